@@ -16,7 +16,7 @@ android {
 
     buildTypes {
         release {
-            isMinifyEnabled = false
+            isMinifyEnabled = true
             proguardFiles(
                 getDefaultProguardFile("proguard-android-optimize.txt"),
                 "proguard-rules.pro"
@@ -34,6 +34,46 @@ android {
     }
 }
 
+// The host tools below run the app's classes on the unit test classpath, where
+// android.util.Log is a stub that throws; this puts a plain stand-in ahead of it
+val compileHostLog = tasks.register<JavaCompile>("compileHostLog") {
+    description = "Compiles the android.util.Log stand-in for the host tools"
+    source = fileTree("src/host/java")
+    classpath = files()
+    destinationDirectory.set(layout.buildDirectory.dir("intermediates/host_classes"))
+    options.release.set(17)
+}
+
+// Compiles .cfg/.json config files into the binary .spc format on the host:
+//   ./gradlew :app:compileSessionConfigs -PconfigDir=/path/to/SubjectiveCfg
+tasks.register<JavaExec>("compileSessionConfigs") {
+    description = "Compiles SubjectivePlayer config files into the binary .spc format"
+    dependsOn("compileDebugUnitTestJavaWithJavac")
+    mainClass.set("org.univie.subjectiveplayer.ConfigCompiler")
+    classpath = files(compileHostLog) + files(provider { tasks.named<Test>("testDebugUnitTest").get().classpath })
+    args(project.findProperty("configDir")?.toString() ?: "SubjectiveCfg")
+}
+
+// Converts binary .splog session logs to CSV on the host:
+//   ./gradlew :app:convertSessionLogs -PlogDir=/path/to/SubjectiveLogs
+tasks.register<JavaExec>("convertSessionLogs") {
+    description = "Converts SubjectivePlayer binary session logs (.splog) to CSV"
+    dependsOn("compileDebugUnitTestJavaWithJavac")
+    mainClass.set("org.univie.subjectiveplayer.BinaryLogReader")
+    classpath = files(compileHostLog) + files(provider { tasks.named<Test>("testDebugUnitTest").get().classpath })
+    args(project.findProperty("logDir")?.toString() ?: "SubjectiveLogs")
+}
+
+// Checks the footer checksums of all session and questionnaire logs on the host:
+//   ./gradlew :app:verifySessionLogs -PlogDir=/path/to/SubjectiveLogs
+tasks.register<JavaExec>("verifySessionLogs") {
+    description = "Verifies the checksums of SubjectivePlayer session and questionnaire logs"
+    dependsOn("compileDebugUnitTestJavaWithJavac")
+    mainClass.set("org.univie.subjectiveplayer.LogVerifier")
+    classpath = files(compileHostLog) + files(provider { tasks.named<Test>("testDebugUnitTest").get().classpath })
+    args(project.findProperty("logDir")?.toString() ?: "SubjectiveLogs")
+}
+
 dependencies {
     implementation("androidx.appcompat:appcompat:1.7.0")
     implementation("androidx.core:core-ktx:1.15.0")
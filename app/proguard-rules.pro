@@ -3,3 +3,6 @@
 # in /Users/werner/Library/Android/sdk/tools/proguard/proguard-android.txt
 # You can edit the include path and order by changing the proguardFiles
 # directive in build.gradle.kts.
+
+# Config files are parsed with the hand-written Gson TypeAdapters in
+# JsonConfigFile, so the config classes need no keep rules for reflection.
@@ -18,6 +18,7 @@ package org.univie.subjectiveplayer;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -41,13 +42,19 @@ public abstract class BaseConfigFile {
     protected String preQuestionnaireMessage = null;
     protected String postQuestionnaireMessage = null;
 
-    // Video entries (including BREAK commands)
-    protected final List<String> entries = new ArrayList<>();
+    // Video entries (including BREAK commands), as IDs in the shared name table
+    protected final PlaylistEntries entries = new PlaylistEntries(VideoNameTable.shared());
 
     // Training section indices (-1 if not defined)
     protected int trainingStartIndex = -1;
     protected int trainingEndIndex = -1;
 
+    // Session log formats (SessionLogSink.FORMAT_ flags, JSON format only)
+    protected int logFormats = SessionLogSink.FORMAT_CSV;
+
+    // Playback engine (CodecPlayer.ENGINE_ constant, JSON format only)
+    protected int playbackEngine = CodecPlayer.ENGINE_DEFAULT;
+
     // Questionnaires (JSON format only, null for text format)
     protected Questionnaire preQuestionnaire = null;
     protected Questionnaire postQuestionnaire = null;
@@ -90,6 +97,76 @@ public abstract class BaseConfigFile {
      */
     protected abstract void parse();
 
+    /**
+     * Checks the stimulus pairs of the playlist: with the DSIS method, every
+     * video entry must name a reference and a test video, and with the paired
+     * comparison method, the two videos to compare; with another method set
+     * in the file, entries cannot be pairs. Called by subclasses after parsing.
+     */
+    protected void validateStimulusPairs() {
+        VideoNameTable table = entries.getTable();
+        BitSet checked = new BitSet(table.size());
+        for (int id : entries.toVideoIdArray()) {
+            if (checked.get(id)) {
+                continue;
+            }
+            checked.set(id);
+            String entry = table.name(id);
+            boolean pair = Session.isStimulusPair(entry);
+            if (method == Methods.TYPE_DSIS_CATEGORICAL) {
+                if (!pair) {
+                    parseErrors.add(new ParseError(0, "DSIS playlist entry \"" + entry
+                            + "\" must name a reference and a test video (reference" + Session.PAIR_SEPARATOR
+                            + "test)"));
+                } else if (Session.parseStimulusPair(entry) == null) {
+                    parseErrors.add(new ParseError(0, "DSIS playlist entry \"" + entry
+                            + "\" must name exactly one reference and one test video"));
+                }
+            } else if (method == Methods.TYPE_PAIRED_COMPARISON) {
+                if (!pair) {
+                    parseErrors.add(new ParseError(0, "PC playlist entry \"" + entry
+                            + "\" must name the two videos to compare (A" + Session.PAIR_SEPARATOR + "B)"));
+                } else if (Session.parseStimulusPair(entry) == null) {
+                    parseErrors.add(new ParseError(0, "PC playlist entry \"" + entry
+                            + "\" must name exactly two videos"));
+                }
+            } else if (pair && method != Methods.UNDEFINED) {
+                parseErrors.add(new ParseError(0, "Playlist entry \"" + entry
+                        + "\" is a video pair, which is only supported by the DSIS and PC methods"));
+            }
+        }
+    }
+
+    /**
+     * Checks the segments of the playlist: every segment must have a valid
+     * range, and the videos of a stimulus pair cannot be segments. Called by
+     * subclasses after parsing.
+     */
+    protected void validateSegments() {
+        VideoNameTable table = entries.getTable();
+        BitSet checked = new BitSet(table.size());
+        for (int id : entries.toVideoIdArray()) {
+            if (checked.get(id)) {
+                continue;
+            }
+            checked.set(id);
+            String entry = table.name(id);
+            String[] pair = Session.parseStimulusPair(entry);
+            if (pair != null ? !Session.isSegment(pair[0]) && !Session.isSegment(pair[1])
+                    : !Session.isSegment(entry)) {
+                continue;
+            }
+            if (pair != null) {
+                parseErrors.add(new ParseError(0, "Playlist entry \"" + entry
+                        + "\" is a video pair with a segment, which is not supported"));
+            } else if (Session.parseSegment(entry) == null) {
+                parseErrors.add(new ParseError(0, "Playlist entry \"" + entry
+                        + "\" must give the segment as name" + Session.SEGMENT_SEPARATOR
+                        + "start-end, in seconds with start before end"));
+            }
+        }
+    }
+
     /**
      * Extracts the participant ID from a config filename.
      * Matches patterns like "subject_1.cfg", "playlist1.cfg", "1.cfg", "subject_1.json"
@@ -148,10 +225,42 @@ public abstract class BaseConfigFile {
         return postQuestionnaireMessage;
     }
 
+    /**
+     * Returns the formats the session log is written in, as
+     * SessionLogSink.FORMAT_ flags.
+     */
+    public int getLogFormats() {
+        return logFormats;
+    }
+
+    /**
+     * Returns the playback engine set in the config, as a CodecPlayer.ENGINE_
+     * constant; ENGINE_DEFAULT if the preference should decide.
+     */
+    public int getPlaybackEngine() {
+        return playbackEngine;
+    }
+
     public List<String> getEntries() {
         return entries;
     }
 
+    /**
+     * Gets the IDs of all entries (including BREAK commands) in the shared
+     * {@link VideoNameTable}.
+     */
+    public int[] getEntryIds() {
+        return entries.toIdArray();
+    }
+
+    /**
+     * Gets the IDs of all video entries (excluding BREAK commands) in the
+     * shared {@link VideoNameTable}.
+     */
+    public int[] getVideoIds() {
+        return entries.toVideoIdArray();
+    }
+
     public int getTrainingStartIndex() {
         return trainingStartIndex;
     }
@@ -192,11 +301,10 @@ public abstract class BaseConfigFile {
      * Gets the list of video filenames (excluding BREAK commands).
      */
     public List<String> getVideoFilenames() {
-        List<String> videos = new ArrayList<>();
-        for (String entry : entries) {
-            if (!Session.isBreakCommand(entry)) {
-                videos.add(entry);
-            }
+        int[] videoIds = entries.toVideoIdArray();
+        List<String> videos = new ArrayList<>(videoIds.length);
+        for (int id : videoIds) {
+            videos.add(entries.getTable().name(id));
         }
         return videos;
     }
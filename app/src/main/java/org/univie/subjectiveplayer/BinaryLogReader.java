@@ -0,0 +1,319 @@
+/*	This file is part of SubjectivePlayer for Android.
+ *
+ *	SubjectivePlayer for Android is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	SubjectivePlayer for Android is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU General Public License for more details.
+ *
+ *	You should have received a copy of the GNU General Public License
+ *	along with SubjectivePlayer for Android.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.univie.subjectiveplayer;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.zip.CRC32;
+
+/**
+ * Reads binary session logs written by {@link BinaryLogSink} and converts
+ * them to the CSV format written by {@link CsvLogSink}.
+ *
+ * A chunk that was cut off (because the app was killed while writing it) is
+ * ignored, so a log can always be read up to its last complete chunk. If the
+ * log has a footer, its checksum is verified.
+ *
+ * Can be used on the device or on a host JVM, see {@link #main(String[])}.
+ */
+public abstract class BinaryLogReader {
+
+    /**
+     * Receives the rows of a binary session log.
+     */
+    public interface RowHandler {
+        /**
+         * Called once before the first row.
+         * @param timeZone The time zone the log was written in
+         */
+        default void begin(TimeZone timeZone) throws IOException {
+        }
+
+        /**
+         * Called for every row, in order. BREAK rows have position -1.
+         * @param durationMillis The rating duration in ms, or -1 if the row has none
+         */
+        void row(int videoPosition, String videoName, int rating, long ratedAtMillis, int durationMillis)
+                throws IOException;
+    }
+
+    /**
+     * Reads all complete rows of a binary session log.
+     * @param file The .splog file
+     * @param handler Receives the rows
+     * @throws IOException When the file cannot be read or is not a binary session log
+     */
+    public static void read(File file, RowHandler handler) throws IOException {
+        byte[] data;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            data = new byte[(int) raf.length()];
+            raf.readFully(data);
+        }
+        read(data, file.getName(), handler);
+    }
+
+    /**
+     * Reads all complete rows of a binary session log from a stream, e.g. an
+     * entry of a {@link LogArchive}. The stream is read to the end but not closed.
+     * @param stream The log data
+     * @param name The log name, for error messages
+     * @param handler Receives the rows
+     * @throws IOException When the stream cannot be read or is not a binary session log
+     */
+    public static void read(InputStream stream, String name, RowHandler handler) throws IOException {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = stream.read(buffer)) > 0) {
+            data.write(buffer, 0, read);
+        }
+        read(data.toByteArray(), name, handler);
+    }
+
+    private static void read(byte[] data, String fileName, RowHandler handler) throws IOException {
+        Decoder in = new Decoder(data);
+        TimeZone timeZone;
+        try {
+            if (in.readInt() != BinaryLogSink.MAGIC) {
+                throw new IOException("Not a binary session log: " + fileName);
+            }
+            short version = in.readShort();
+            if (version < 1 || version > BinaryLogSink.VERSION) {
+                throw new IOException("Unsupported binary log version " + version + ": " + fileName);
+            }
+            timeZone = TimeZone.getTimeZone(in.readString());
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("Not a binary session log: " + fileName);
+        }
+        handler.begin(timeZone);
+
+        List<String> names = new ArrayList<>();
+        int[] positions = new int[BinaryLogSink.CHUNK_ROWS];
+        int[] nameIndices = new int[BinaryLogSink.CHUNK_ROWS];
+        int[] ratings = new int[BinaryLogSink.CHUNK_ROWS];
+        long[] timestamps = new long[BinaryLogSink.CHUNK_ROWS];
+        int[] durations = new int[BinaryLogSink.CHUNK_ROWS];
+        long timestamp = 0;
+
+        while (in.hasRemaining()) {
+            int nameCount = names.size();
+            int rows;
+            try {
+                // Decode the whole chunk before handing out any rows
+                int footerStart = in.getPosition();
+                rows = (int) in.readVarint();
+                if (rows == 0 && in.readInt() == BinaryLogSink.FOOTER_MAGIC) {
+                    in.readInt(); // row count
+                    long crc = in.readInt() & 0xFFFFFFFFL;
+                    CRC32 actual = new CRC32();
+                    actual.update(data, 0, footerStart);
+                    if (actual.getValue() != crc) {
+                        throw new IOException("Checksum mismatch in " + fileName);
+                    }
+                    break;
+                }
+                if (rows <= 0 || rows > BinaryLogSink.CHUNK_ROWS) {
+                    throw new IOException("Corrupt chunk in " + fileName);
+                }
+                int newNames = (int) in.readVarint();
+                for (int i = 0; i < newNames; i++) {
+                    names.add(in.readString());
+                }
+                for (int i = 0; i < rows; i++) {
+                    positions[i] = (int) unzigzag(in.readVarint());
+                }
+                for (int i = 0; i < rows; i++) {
+                    nameIndices[i] = (int) in.readVarint();
+                }
+                for (int i = 0; i < rows; i++) {
+                    ratings[i] = (int) unzigzag(in.readVarint());
+                }
+                long chunkTimestamp = timestamp;
+                for (int i = 0; i < rows; i++) {
+                    chunkTimestamp += unzigzag(in.readVarint());
+                    timestamps[i] = chunkTimestamp;
+                }
+                for (int i = 0; i < rows; i++) {
+                    durations[i] = (int) in.readVarint() - 1;
+                }
+                timestamp = chunkTimestamp;
+            } catch (IndexOutOfBoundsException e) {
+                // Last chunk was cut off
+                names.subList(nameCount, names.size()).clear();
+                break;
+            }
+            for (int i = 0; i < rows; i++) {
+                if (nameIndices[i] >= names.size()) {
+                    throw new IOException("Corrupt chunk in " + fileName);
+                }
+                handler.row(positions[i], names.get(nameIndices[i]), ratings[i], timestamps[i], durations[i]);
+            }
+        }
+    }
+
+    /**
+     * Converts a binary session log to CSV. The rated_at column is expressed
+     * in the time zone the log was written in, so the output is the same as
+     * the CSV log written alongside it, including the footer.
+     * @param binaryFile The .splog file
+     * @param csvFile The CSV file to write
+     * @return The number of rows written, excluding the header
+     */
+    public static int toCsv(File binaryFile, File csvFile) throws IOException {
+        int[] rows = {0};
+        LogFileOutputStream out = new LogFileOutputStream(csvFile);
+        try (BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8))) {
+            writer.write(CsvLogSink.HEADER);
+            writer.newLine();
+            read(binaryFile, new RowHandler() {
+                private TimeZone mTimeZone;
+
+                @Override
+                public void begin(TimeZone timeZone) {
+                    mTimeZone = timeZone;
+                }
+
+                @Override
+                public void row(int position, String name, int rating, long ratedAt, int duration)
+                        throws IOException {
+                    if (position == BinaryLogSink.BREAK_POSITION) {
+                        writer.write(CsvLogSink.BREAK_ROW);
+                    } else {
+                        writer.write(CsvLogSink.formatRow(position, name, rating,
+                                CsvLogSink.formatAsIso8601(ratedAt, mTimeZone), duration));
+                    }
+                    writer.newLine();
+                    rows[0]++;
+                }
+            });
+            writer.flush();
+            out.finish(CsvLogSink.formatFooter(rows[0], out.getChecksum()).getBytes(StandardCharsets.UTF_8));
+        }
+        return rows[0];
+    }
+
+    /**
+     * Converts binary session logs to CSV, writing the .csv file next to each
+     * .splog file. Use the convertSessionLogs Gradle task to run it with the
+     * app classes on the classpath.
+     * @param args Binary logs or folders containing binary logs
+     */
+    public static void main(String[] args) {
+        if (args.length == 0) {
+            System.err.println("Usage: BinaryLogReader <log file or folder>...");
+            System.exit(2);
+        }
+        int converted = 0;
+        int failed = 0;
+        for (String arg : args) {
+            File path = new File(arg);
+            File[] files = path.isDirectory()
+                    ? path.listFiles((dir, name) -> name.endsWith(BinaryLogSink.EXTENSION))
+                    : new File[]{path};
+            if (files == null) {
+                continue;
+            }
+            for (File file : files) {
+                String name = file.getName();
+                String baseName = name.endsWith(BinaryLogSink.EXTENSION)
+                        ? name.substring(0, name.length() - BinaryLogSink.EXTENSION.length()) : name;
+                File csvFile = new File(file.getParentFile(), baseName + CsvLogSink.EXTENSION);
+                try {
+                    int rows = toCsv(file, csvFile);
+                    System.out.println("Converted " + file + " (" + rows + " rows)");
+                    converted++;
+                } catch (IOException e) {
+                    System.err.println("Could not convert " + file + ": " + e.getMessage());
+                    failed++;
+                }
+            }
+        }
+        System.out.println(converted + " converted, " + failed + " failed");
+        System.exit(failed > 0 ? 1 : 0);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * Reads values from a byte array, throwing IndexOutOfBoundsException at
+     * the end of the data.
+     */
+    private static final class Decoder {
+        private final byte[] mData;
+        private int mPosition = 0;
+
+        Decoder(byte[] data) {
+            mData = data;
+        }
+
+        boolean hasRemaining() {
+            return mPosition < mData.length;
+        }
+
+        int getPosition() {
+            return mPosition;
+        }
+
+        int readByte() {
+            if (mPosition >= mData.length) {
+                throw new IndexOutOfBoundsException();
+            }
+            return mData[mPosition++] & 0xFF;
+        }
+
+        int readInt() {
+            return readByte() << 24 | readByte() << 16 | readByte() << 8 | readByte();
+        }
+
+        short readShort() {
+            return (short) (readByte() << 8 | readByte());
+        }
+
+        long readVarint() {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IndexOutOfBoundsException("Varint too long");
+        }
+
+        String readString() {
+            int length = (int) readVarint();
+            if (length < 0 || length > mData.length - mPosition) {
+                throw new IndexOutOfBoundsException();
+            }
+            String value = new String(mData, mPosition, length, StandardCharsets.UTF_8);
+            mPosition += length;
+            return value;
+        }
+    }
+}
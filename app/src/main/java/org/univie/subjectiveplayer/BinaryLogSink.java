@@ -0,0 +1,248 @@
+/*	This file is part of SubjectivePlayer for Android.
+ *
+ *	SubjectivePlayer for Android is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	SubjectivePlayer for Android is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU General Public License for more details.
+ *
+ *	You should have received a copy of the GNU General Public License
+ *	along with SubjectivePlayer for Android.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.univie.subjectiveplayer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * Writes the session log in a compact columnar binary format (.splog), meant
+ * for time-continuous sessions that log many ratings per second. It can be
+ * converted back to the CSV format with {@link BinaryLogReader}.
+ *
+ * Rows are buffered and written in chunks. A chunk is written when it holds
+ * {@link #CHUNK_ROWS} rows, when the playlist position changes, on a BREAK and
+ * when the log is closed, so at most one chunk of a continuous rating is lost
+ * if the app is killed. Within a chunk, each column is stored separately:
+ * <pre>
+ * header:  int magic ("SPLG"), short version, string time zone ID
+ * chunk:   varint row count
+ *          varint number of new names, followed by that many strings
+ *          row count x zigzag varint video_position
+ *          row count x varint video name index
+ *          row count x zigzag varint rating
+ *          row count x zigzag varint rated_at delta (ms, to the previous row)
+ *          row count x varint rating_duration (ms + 1, 0 for none)
+ * </pre>
+ * Video names are dictionary encoded: every name is stored once, in the chunk
+ * where it first appears, and rows refer to it by index in order of first
+ * appearance. Strings are stored as a varint byte length and UTF-8 bytes.
+ * BREAK rows have position -1 and the name "BREAK"; their rating, delta and
+ * duration are 0. When the log is closed, a footer is appended:
+ * <pre>
+ * footer:  varint 0 (instead of a row count), int {@link #FOOTER_MAGIC},
+ *          int total row count, int CRC32 of all preceding bytes
+ * </pre>
+ * and the file is renamed from its temporary name (see
+ * {@link LogFileOutputStream}). The header and footer are big-endian.
+ */
+final class BinaryLogSink implements SessionLogSink {
+
+    /** File extension of binary session logs */
+    static final String EXTENSION = ".splog";
+
+    /** Magic number at the start of every binary log ("SPLG") */
+    static final int MAGIC = 0x53504C47;
+
+    /** Current version of the binary format */
+    static final short VERSION = 2;
+
+    /** Marks the footer of a finished log ("SEND") */
+    static final int FOOTER_MAGIC = 0x53454E44;
+
+    /** Size of the footer in bytes */
+    static final int FOOTER_SIZE = 13;
+
+    /** Maximum number of rows per chunk */
+    static final int CHUNK_ROWS = 64;
+
+    /** Video position of BREAK rows */
+    static final int BREAK_POSITION = -1;
+
+    /** Video name of BREAK rows */
+    static final String BREAK_NAME = "BREAK";
+
+    private final File mFile;
+    private final LogFileOutputStream mOut;
+    private long mTotalRows = 0;
+
+    // Dictionary of video names written so far
+    private final Map<String, Integer> mNames = new HashMap<>();
+    private String[] mNewNames = new String[4];
+    private int mNewNameCount = 0;
+
+    // Columns of the current chunk
+    private final int[] mPositions = new int[CHUNK_ROWS];
+    private final int[] mNameIndices = new int[CHUNK_ROWS];
+    private final int[] mRatings = new int[CHUNK_ROWS];
+    private final long[] mDeltas = new long[CHUNK_ROWS];
+    private final int[] mDurations = new int[CHUNK_ROWS];
+    private int mRows = 0;
+    private long mLastTimestamp = 0;
+
+    // Encoding buffer, reused for every chunk
+    private byte[] mBuffer = new byte[1024];
+    private int mLength = 0;
+
+    BinaryLogSink(File file) throws IOException {
+        mFile = file;
+        mOut = new LogFileOutputStream(file);
+        putInt(MAGIC);
+        putByte(VERSION >>> 8);
+        putByte(VERSION);
+        putString(TimeZone.getDefault().getID());
+        writeBuffer();
+    }
+
+    @Override
+    public File getFile() {
+        return mFile;
+    }
+
+    @Override
+    public void writeRating(int videoPosition, String videoName, int rating, long ratedAtMillis,
+                            Double ratingDurationSeconds) throws IOException {
+        if (mRows > 0 && (mRows == CHUNK_ROWS || mPositions[mRows - 1] != videoPosition)) {
+            writeChunk();
+        }
+        int duration = (int) SessionLogSink.toDurationMillis(ratingDurationSeconds) + 1;
+        addRow(videoPosition, videoName, rating, ratedAtMillis - mLastTimestamp, duration);
+        mLastTimestamp = ratedAtMillis;
+    }
+
+    @Override
+    public void writeBreak() throws IOException {
+        if (mRows == CHUNK_ROWS) {
+            writeChunk();
+        }
+        addRow(BREAK_POSITION, BREAK_NAME, 0, 0, 0);
+        writeChunk();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            writeChunk();
+            long crc = mOut.getChecksum();
+            putByte(0);
+            putInt(FOOTER_MAGIC);
+            putInt((int) mTotalRows);
+            putInt((int) crc);
+            mOut.finish(Arrays.copyOf(mBuffer, mLength));
+            mLength = 0;
+        } finally {
+            mOut.close();
+        }
+    }
+
+    private void addRow(int position, String name, int rating, long delta, int duration) {
+        Integer index = mNames.get(name);
+        if (index == null) {
+            index = mNames.size();
+            mNames.put(name, index);
+            if (mNewNameCount == mNewNames.length) {
+                mNewNames = Arrays.copyOf(mNewNames, mNewNameCount * 2);
+            }
+            mNewNames[mNewNameCount++] = name;
+        }
+        mPositions[mRows] = position;
+        mNameIndices[mRows] = index;
+        mRatings[mRows] = rating;
+        mDeltas[mRows] = delta;
+        mDurations[mRows] = duration;
+        mRows++;
+        mTotalRows++;
+    }
+
+    /**
+     * Encodes the buffered rows as one chunk and writes it with a single write.
+     */
+    private void writeChunk() throws IOException {
+        if (mRows == 0) {
+            return;
+        }
+        putVarint(mRows);
+        putVarint(mNewNameCount);
+        for (int i = 0; i < mNewNameCount; i++) {
+            putString(mNewNames[i]);
+            mNewNames[i] = null;
+        }
+        for (int i = 0; i < mRows; i++) {
+            putVarint(zigzag(mPositions[i]));
+        }
+        for (int i = 0; i < mRows; i++) {
+            putVarint(mNameIndices[i]);
+        }
+        for (int i = 0; i < mRows; i++) {
+            putVarint(zigzag(mRatings[i]));
+        }
+        for (int i = 0; i < mRows; i++) {
+            putVarint(zigzag(mDeltas[i]));
+        }
+        for (int i = 0; i < mRows; i++) {
+            putVarint(mDurations[i]);
+        }
+        writeBuffer();
+        mNewNameCount = 0;
+        mRows = 0;
+    }
+
+    private void writeBuffer() throws IOException {
+        mOut.write(mBuffer, 0, mLength);
+        mOut.flush();
+        mLength = 0;
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private void putByte(int value) {
+        if (mLength == mBuffer.length) {
+            mBuffer = Arrays.copyOf(mBuffer, mLength * 2);
+        }
+        mBuffer[mLength++] = (byte) value;
+    }
+
+    private void putInt(int value) {
+        putByte(value >>> 24);
+        putByte(value >>> 16);
+        putByte(value >>> 8);
+        putByte(value);
+    }
+
+    private void putVarint(long value) {
+        while ((value & ~0x7FL) != 0) {
+            putByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        putByte((int) value);
+    }
+
+    private void putString(String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        putVarint(bytes.length);
+        for (byte b : bytes) {
+            putByte(b);
+        }
+    }
+}
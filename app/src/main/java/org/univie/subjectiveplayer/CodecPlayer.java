@@ -0,0 +1,551 @@
+/*	This file is part of SubjectivePlayer for Android.
+ *
+ *	SubjectivePlayer for Android is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	SubjectivePlayer for Android is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU General Public License for more details.
+ *
+ *	You should have received a copy of the GNU General Public License
+ *	along with SubjectivePlayer for Android.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.univie.subjectiveplayer;
+
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.view.Choreographer;
+import android.view.Surface;
+import android.view.SurfaceHolder;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Plays the video track of a file with {@link MediaExtractor} and
+ * {@link MediaCodec}, as an alternative to {@link android.media.MediaPlayer}
+ * when exact frame timing matters. Audio is not played.
+ *
+ * The decoder runs on its own thread. It is primed when the player is
+ * prepared: the first frame is decoded and held back until {@link #start()},
+ * so the video starts without a decoding delay. Each frame is then handed to
+ * the surface with the time of the vsync it is due at, computed on the vsync
+ * grid of the frame start() was called in. Frames that are handed over after
+ * their release time are counted as late; frames that would be shown more
+ * than one vsync late are dropped instead.
+ *
+ * A segment of the file can be played instead of the whole file
+ * ({@link #setSegment(long, long)}): the extractor seeks to the sync frame
+ * before the start, and the frames up to the start are decoded but not
+ * shown, so the video starts exactly on the first frame of the segment. This
+ * happens while preparing; playback stops before the first frame at or after
+ * the end of the segment.
+ *
+ * The listeners follow the contract of MediaPlayer: after a successful
+ * {@link #prepare()}, the video size and then the prepared listener are
+ * called, the rendering start listener when the first frame has been handed
+ * to the surface, and the completion listener when the last frame has been
+ * shown, or after an error if the error listener returns false. Listeners are
+ * called on the main thread.
+ */
+public class CodecPlayer {
+
+    private static final String TAG = CodecPlayer.class.getSimpleName();
+
+    /** Playback engine: as set in the preferences */
+    public static final int ENGINE_DEFAULT = 0;
+    /** Playback engine: {@link android.media.MediaPlayer} */
+    public static final int ENGINE_MEDIA_PLAYER = 1;
+    /** Playback engine: this class */
+    public static final int ENGINE_MEDIA_CODEC = 2;
+
+    /** Config names of the playback engines, in the order of the ENGINE_ constants after ENGINE_DEFAULT */
+    public static final String[] ENGINE_NAMES = {"mediaplayer", "mediacodec"};
+
+    /** Timeout for dequeuing decoder buffers */
+    private static final long TIMEOUT_US = 10000;
+
+    /** Frames are handed to the surface at most this long before they are due */
+    private static final long RELEASE_AHEAD_NANOS = 50000000L;
+
+    /** Vsyncs between the frame start() is called in and the first video frame */
+    private static final int START_DELAY_VSYNCS = 2;
+
+    public interface OnPreparedListener {
+        void onPrepared(CodecPlayer player);
+    }
+
+    public interface OnVideoSizeChangedListener {
+        void onVideoSizeChanged(CodecPlayer player, int width, int height);
+    }
+
+    public interface OnRenderingStartListener {
+        /**
+         * Called when the first frame has been handed to the surface.
+         * @param displayNanos The vsync the frame is shown at ({@link System#nanoTime()} base)
+         */
+        void onRenderingStart(CodecPlayer player, long displayNanos);
+    }
+
+    public interface OnCompletionListener {
+        void onCompletion(CodecPlayer player);
+    }
+
+    public interface OnErrorListener {
+        /**
+         * @return true if the error was handled; if false, the completion
+         *         listener is called
+         */
+        boolean onError(CodecPlayer player, Exception error);
+    }
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final Object mLock = new Object();
+
+    private OnPreparedListener mOnPreparedListener;
+    private OnVideoSizeChangedListener mOnVideoSizeChangedListener;
+    private OnRenderingStartListener mOnRenderingStartListener;
+    private OnCompletionListener mOnCompletionListener;
+    private OnErrorListener mOnErrorListener;
+
+    private String mPath;
+    /** Part of a file to read instead of mPath, e.g. a video in a pack */
+    private FileDescriptor mFd;
+    private long mOffset;
+    private long mLength;
+    private Surface mSurface;
+    /** Segment to play in microseconds, -1 to play the whole file */
+    private long mSegmentStartUs = -1;
+    private long mSegmentEndUs = -1;
+    private volatile long mVsyncPeriodNanos = 16666667L;
+
+    private MediaExtractor mExtractor;
+    private MediaCodec mCodec;
+    private Thread mThread;
+    private volatile boolean mReleased = false;
+    private int mWidth = 0;
+    private int mHeight = 0;
+
+    /** Vsync the first frame is due at, 0 until start() (guarded by mLock) */
+    private long mStartNanos = 0;
+
+    /** Time the seek to the start of the segment took, -1 if no segment (written before prepared) */
+    private volatile double mSeekMillis = -1;
+
+    // Written by the decoder thread, read on the main thread after completion
+    private int mRenderedFrames = 0;
+    private final List<Double> mLateFrameMillis = new ArrayList<>();
+    private final List<Double> mDroppedFrameMillis = new ArrayList<>();
+
+    /**
+     * Parses the name of a playback engine.
+     * @param name The name as in the config, case-insensitive
+     * @return One of the ENGINE_ constants other than ENGINE_DEFAULT, or -1
+     *         if the name is unknown
+     */
+    public static int parseEngine(String name) {
+        if (name != null) {
+            for (int i = 0; i < ENGINE_NAMES.length; i++) {
+                if (ENGINE_NAMES[i].equalsIgnoreCase(name.trim())) {
+                    return i + 1;
+                }
+            }
+        }
+        return -1;
+    }
+
+    public void setDataSource(String path) {
+        mPath = path;
+        mFd = null;
+    }
+
+    /**
+     * Reads the video from a part of a file, e.g. a video in a pack. The
+     * descriptor must stay open until {@link #prepare()} has returned.
+     * @param name The name of the video, used in log messages
+     */
+    public void setDataSource(String name, FileDescriptor fd, long offset, long length) {
+        mPath = name;
+        mFd = fd;
+        mOffset = offset;
+        mLength = length;
+    }
+
+    public void setDisplay(SurfaceHolder holder) {
+        mSurface = holder.getSurface();
+    }
+
+    /**
+     * Plays only a segment of the file. Must be called before {@link #prepare()}.
+     * @param startUs The presentation time of the first frame to show
+     * @param endUs Frames at or after this presentation time are not shown
+     */
+    public void setSegment(long startUs, long endUs) {
+        mSegmentStartUs = startUs;
+        mSegmentEndUs = endUs;
+    }
+
+    /**
+     * Sets the refresh rate of the display the video is shown on, which
+     * determines the vsync grid frames are released on. Defaults to 60 Hz.
+     */
+    public void setRefreshRate(float refreshRate) {
+        if (refreshRate > 0) {
+            mVsyncPeriodNanos = (long) (1e9 / refreshRate);
+        }
+    }
+
+    public void setOnPreparedListener(OnPreparedListener listener) {
+        mOnPreparedListener = listener;
+    }
+
+    public void setOnVideoSizeChangedListener(OnVideoSizeChangedListener listener) {
+        mOnVideoSizeChangedListener = listener;
+    }
+
+    public void setOnRenderingStartListener(OnRenderingStartListener listener) {
+        mOnRenderingStartListener = listener;
+    }
+
+    public void setOnCompletionListener(OnCompletionListener listener) {
+        mOnCompletionListener = listener;
+    }
+
+    public void setOnErrorListener(OnErrorListener listener) {
+        mOnErrorListener = listener;
+    }
+
+    /**
+     * Opens the file and starts the decoder, which decodes the first frame in
+     * the background; the prepared listener is called when it is ready.
+     * @throws IOException If the file has no video track or cannot be decoded
+     */
+    public void prepare() throws IOException {
+        if (mPath == null || mSurface == null) {
+            throw new IllegalStateException("Data source and display must be set before prepare()");
+        }
+        mExtractor = new MediaExtractor();
+        if (mFd != null) {
+            mExtractor.setDataSource(mFd, mOffset, mLength);
+        } else {
+            mExtractor.setDataSource(mPath);
+        }
+        MediaFormat format = null;
+        for (int i = 0; i < mExtractor.getTrackCount(); i++) {
+            MediaFormat trackFormat = mExtractor.getTrackFormat(i);
+            String mime = trackFormat.getString(MediaFormat.KEY_MIME);
+            if (mime != null && mime.startsWith("video/")) {
+                mExtractor.selectTrack(i);
+                format = trackFormat;
+                break;
+            }
+        }
+        if (format == null) {
+            release();
+            throw new IOException("No video track in " + mPath);
+        }
+
+        mWidth = format.getInteger(MediaFormat.KEY_WIDTH);
+        mHeight = format.getInteger(MediaFormat.KEY_HEIGHT);
+        if (format.containsKey(MediaFormat.KEY_ROTATION)
+                && format.getInteger(MediaFormat.KEY_ROTATION) % 180 != 0) {
+            // The decoder rotates the frames on the surface
+            int width = mWidth;
+            mWidth = mHeight;
+            mHeight = width;
+        }
+
+        if (mSegmentStartUs > 0) {
+            mExtractor.seekTo(mSegmentStartUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+        }
+
+        try {
+            mCodec = MediaCodec.createDecoderByType(format.getString(MediaFormat.KEY_MIME));
+            mCodec.configure(format, mSurface, null, 0);
+            mCodec.start();
+        } catch (IllegalStateException | IllegalArgumentException e) {
+            release();
+            throw new IOException("Could not start decoder for " + mPath + ": " + e, e);
+        }
+        mThread = new Thread(this::decode, TAG);
+        mThread.start();
+    }
+
+    /**
+     * Starts playback: the held first frame is shown on the second vsync
+     * from now. Must be called on the main thread after the player is prepared.
+     */
+    public void start() {
+        Choreographer.getInstance().postFrameCallback(frameTimeNanos -> {
+            synchronized (mLock) {
+                mStartNanos = frameTimeNanos + START_DELAY_VSYNCS * mVsyncPeriodNanos;
+                mLock.notifyAll();
+            }
+        });
+    }
+
+    /**
+     * Stops decoding and releases the decoder. The player cannot be used afterwards.
+     */
+    public void release() {
+        mReleased = true;
+        synchronized (mLock) {
+            mLock.notifyAll();
+        }
+        if (mThread != null) {
+            mThread.interrupt();
+            try {
+                mThread.join(500);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            mThread = null;
+        }
+        mMainHandler.removeCallbacksAndMessages(null);
+        if (mCodec != null) {
+            try {
+                mCodec.stop();
+            } catch (IllegalStateException e) {
+                Log.w(TAG, "Could not stop decoder: " + e);
+            }
+            mCodec.release();
+            mCodec = null;
+        }
+        if (mExtractor != null) {
+            mExtractor.release();
+            mExtractor = null;
+        }
+    }
+
+    public int getVideoWidth() {
+        return mWidth;
+    }
+
+    public int getVideoHeight() {
+        return mHeight;
+    }
+
+    /**
+     * Returns the playback position in milliseconds, 0 before the first frame.
+     */
+    public int getCurrentPosition() {
+        long start;
+        synchronized (mLock) {
+            start = mStartNanos;
+        }
+        return start == 0 ? 0 : (int) Math.max(0, (System.nanoTime() - start) / 1000000);
+    }
+
+    /**
+     * Returns the number of frames shown so far.
+     */
+    public int getRenderedFrames() {
+        return mRenderedFrames;
+    }
+
+    /**
+     * Returns by how much each late frame was late, in milliseconds. Only
+     * complete after the completion listener has been called.
+     */
+    public List<Double> getLateFrameMillis() {
+        return mLateFrameMillis;
+    }
+
+    /**
+     * Returns how long the seek to the start of the segment took while
+     * preparing, from the start of the decoder to the first frame of the
+     * segment, or -1 if the whole file is played. Available once prepared.
+     */
+    public double getSeekMillis() {
+        return mSeekMillis;
+    }
+
+    /**
+     * Returns by how much each dropped frame was late, in milliseconds. Only
+     * complete after the completion listener has been called.
+     */
+    public List<Double> getDroppedFrameMillis() {
+        return mDroppedFrameMillis;
+    }
+
+    /**
+     * Decoder thread: primes the decoder, then releases the frames on time.
+     */
+    private void decode() {
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        boolean inputDone = false;
+        long firstTimeUs = -1;
+        long lastVsyncNanos = 0;
+        long seekStartNanos = System.nanoTime();
+        try {
+            while (!mReleased) {
+                if (!inputDone) {
+                    inputDone = queueInput();
+                }
+                int index = mCodec.dequeueOutputBuffer(info, TIMEOUT_US);
+                if (index < 0) {
+                    continue;
+                }
+                boolean endOfStream = (info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+                boolean endOfSegment = mSegmentEndUs > 0 && info.presentationTimeUs >= mSegmentEndUs;
+                if ((info.size == 0 && endOfStream) || endOfSegment) {
+                    mCodec.releaseOutputBuffer(index, false);
+                    break;
+                }
+                if (firstTimeUs < 0 && info.presentationTimeUs < mSegmentStartUs) {
+                    // Decoded on the way from the sync frame to the start of the segment
+                    mCodec.releaseOutputBuffer(index, false);
+                    if (endOfStream) {
+                        break;
+                    }
+                    continue;
+                }
+                if (firstTimeUs < 0) {
+                    firstTimeUs = info.presentationTimeUs;
+                    if (mSegmentStartUs >= 0) {
+                        mSeekMillis = (System.nanoTime() - seekStartNanos) / 1e6;
+                    }
+                    if (!holdFirstFrame()) {
+                        return;
+                    }
+                }
+                lastVsyncNanos = releaseFrame(index, info.presentationTimeUs - firstTimeUs);
+                if (endOfStream) {
+                    break;
+                }
+            }
+            if (mReleased) {
+                return;
+            }
+            if (firstTimeUs < 0) {
+                throw new IOException("No frames decoded from " + mPath);
+            }
+            sleepUntil(lastVsyncNanos);
+            Log.d(TAG, "Finished " + mPath + ": " + mRenderedFrames + " frames shown, "
+                    + mLateFrameMillis.size() + " late, " + mDroppedFrameMillis.size() + " dropped");
+            mMainHandler.post(() -> {
+                if (!mReleased && mOnCompletionListener != null) {
+                    mOnCompletionListener.onCompletion(this);
+                }
+            });
+        } catch (InterruptedException e) {
+            // released
+        } catch (IOException | IllegalStateException e) {
+            if (mReleased) {
+                return;
+            }
+            Log.e(TAG, "Error decoding " + mPath + ": " + e);
+            mMainHandler.post(() -> {
+                if (mReleased) {
+                    return;
+                }
+                boolean handled = mOnErrorListener != null && mOnErrorListener.onError(this, e);
+                if (!handled && mOnCompletionListener != null) {
+                    mOnCompletionListener.onCompletion(this);
+                }
+            });
+        }
+    }
+
+    /**
+     * Feeds the next sample to the decoder, if it has a free input buffer.
+     * @return true when the end of the stream has been queued
+     */
+    private boolean queueInput() {
+        int index = mCodec.dequeueInputBuffer(TIMEOUT_US);
+        if (index < 0) {
+            return false;
+        }
+        ByteBuffer buffer = mCodec.getInputBuffer(index);
+        int size = mExtractor.readSampleData(buffer, 0);
+        if (size < 0) {
+            mCodec.queueInputBuffer(index, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+            return true;
+        }
+        mCodec.queueInputBuffer(index, 0, size, mExtractor.getSampleTime(), 0);
+        mExtractor.advance();
+        return false;
+    }
+
+    /**
+     * Reports the player as prepared and waits for start().
+     * @return false if the player was released while waiting
+     */
+    private boolean holdFirstFrame() throws InterruptedException {
+        mMainHandler.post(() -> {
+            if (mReleased) {
+                return;
+            }
+            if (mOnVideoSizeChangedListener != null) {
+                mOnVideoSizeChangedListener.onVideoSizeChanged(this, mWidth, mHeight);
+            }
+            if (mOnPreparedListener != null) {
+                mOnPreparedListener.onPrepared(this);
+            }
+        });
+        synchronized (mLock) {
+            while (mStartNanos == 0 && !mReleased) {
+                mLock.wait();
+            }
+        }
+        return !mReleased;
+    }
+
+    /**
+     * Waits until a frame is due and hands it to the surface, or drops it if
+     * it is too late.
+     * @param index The output buffer of the frame
+     * @param offsetUs The presentation time of the frame relative to the first frame
+     * @return The vsync the frame was due at
+     */
+    private long releaseFrame(int index, long offsetUs) throws InterruptedException {
+        long period = mVsyncPeriodNanos;
+        long startNanos;
+        synchronized (mLock) {
+            startNanos = mStartNanos;
+        }
+        // The vsync closest to the presentation time, on the vsync grid of start()
+        long vsyncNanos = startNanos + Math.round(offsetUs * 1000.0 / period) * period;
+        // Half a period early, so the frame is latched for that vsync and not the one before
+        long releaseNanos = vsyncNanos - period / 2;
+        sleepUntil(releaseNanos - RELEASE_AHEAD_NANOS);
+
+        long lateNanos = System.nanoTime() - releaseNanos;
+        if (lateNanos > period) {
+            mCodec.releaseOutputBuffer(index, false);
+            mDroppedFrameMillis.add(lateNanos / 1e6);
+        } else {
+            mCodec.releaseOutputBuffer(index, releaseNanos);
+            mRenderedFrames++;
+            if (lateNanos > 0) {
+                mLateFrameMillis.add(lateNanos / 1e6);
+            }
+            if (mRenderedFrames == 1) {
+                mMainHandler.post(() -> {
+                    if (!mReleased && mOnRenderingStartListener != null) {
+                        mOnRenderingStartListener.onRenderingStart(this, vsyncNanos);
+                    }
+                });
+            }
+        }
+        return vsyncNanos;
+    }
+
+    private static void sleepUntil(long nanoTime) throws InterruptedException {
+        long waitNanos = nanoTime - System.nanoTime();
+        if (waitNanos > 0) {
+            Thread.sleep(waitNanos / 1000000, (int) (waitNanos % 1000000));
+        }
+    }
+}
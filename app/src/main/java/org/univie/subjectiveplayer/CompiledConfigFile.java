@@ -0,0 +1,298 @@
+/*	This file is part of SubjectivePlayer for Android.
+ *
+ *	SubjectivePlayer for Android is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	SubjectivePlayer for Android is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU General Public License for more details.
+ *
+ *	You should have received a copy of the GNU General Public License
+ *	along with SubjectivePlayer for Android.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.univie.subjectiveplayer;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Loads compiled config files (.spc format) written by {@link ConfigCompiler}.
+ *
+ * A compiled file sits next to its source config (e.g. "subject_1.json.spc")
+ * and holds the already parsed session: method, messages, an interned table
+ * of video names, the playlist as opcodes, questionnaires and any parse errors
+ * of the source. It is read with a single bulk read and decoded without any
+ * tokenizing, so loading large playlists does not depend on the source format.
+ *
+ * All multi-byte values are big-endian. Layout (version 3):
+ * <pre>
+ * int    magic ("SPCS")
+ * short  version
+ * long   source file length
+ * long   source file last modified time
+ * byte   method
+ * byte   session log formats (SessionLogSink.FORMAT_ flags)
+ * byte   playback engine (CodecPlayer.ENGINE_ constant)
+ * string start, finish, training, pre-questionnaire, post-questionnaire message
+ * int    video count, training video count, break count
+ * int    name count, followed by that many strings
+ * int    entry count, followed by that many opcodes (int: op &lt;&lt; 24 | name index)
+ * questionnaire pre, post
+ * int    error count, followed by (int line number, string message) pairs
+ * </pre>
+ * Strings are stored as an int byte length (-1 for null) and UTF-8 bytes.
+ * A questionnaire is an int question count (-1 for none), and per question
+ * the question text, the type, an int option count (-1 for none) with the
+ * options, and a byte for required (0 = false, 1 = true, 2 = unset).
+ */
+public class CompiledConfigFile extends BaseConfigFile {
+
+    private static final String TAG = CompiledConfigFile.class.getSimpleName();
+
+    /** Magic number at the start of every compiled file ("SPCS") */
+    static final int MAGIC = 0x53504353;
+
+    /**
+     * Current version of the compiled format. Compiled files keep the parse
+     * errors of their source, so this is also raised when the parsing or
+     * validation of configs changes, so that stale files are recompiled
+     * (4: DSIS pairs, segments and file names containing @).
+     */
+    static final short VERSION = 4;
+
+    /** Opcode: play the video whose name is at the given index */
+    static final int OP_PLAY = 1;
+    /** Opcode: break, the name table holds the original BREAK command */
+    static final int OP_BREAK = 2;
+    /** Opcode: training section starts before the next entry */
+    static final int OP_TRAINING_START = 3;
+    /** Opcode: training section ends after the previous entry */
+    static final int OP_TRAINING_END = 4;
+
+    /** Number of bits used for the name index in an entry */
+    static final int OP_SHIFT = 24;
+    /** Mask for the name index in an entry */
+    static final int NAME_MASK = (1 << OP_SHIFT) - 1;
+
+    /** Encoded value of the required flag when it is not set */
+    static final byte REQUIRED_UNSET = 2;
+
+    private final File compiledFile;
+
+    /** Whether the compiled file was read and decoded completely */
+    private boolean loaded = false;
+
+    /**
+     * Creates a config from a compiled file.
+     * @param sourceFile The .cfg or .json file the compiled file was built from.
+     *                   Filename and ID are taken from it.
+     * @param compiledFile The compiled file to load
+     */
+    public CompiledConfigFile(File sourceFile, File compiledFile) {
+        super(sourceFile);
+        this.compiledFile = compiledFile;
+        parse();
+    }
+
+    /**
+     * Returns the compiled file this config was loaded from.
+     */
+    public File getCompiledFile() {
+        return compiledFile;
+    }
+
+    /**
+     * Returns true if the compiled file was read and decoded completely.
+     * If false, the source file should be parsed instead.
+     */
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    /**
+     * Checks whether a compiled file exists, has the current format version
+     * and was built from the current contents of the given source file.
+     * Only the header is read.
+     * @param sourceFile The .cfg or .json source file
+     * @param compiledFile The compiled file
+     * @return true if the compiled file can be used instead of the source
+     */
+    public static boolean isFresh(File sourceFile, File compiledFile) {
+        if (!compiledFile.isFile()) {
+            return false;
+        }
+        byte[] header = new byte[4 + 2 + 8 + 8];
+        try (FileInputStream fis = new FileInputStream(compiledFile)) {
+            if (readFully(fis, header) < header.length) {
+                return false;
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Could not read compiled file header: " + compiledFile.getName());
+            return false;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(header);
+        return buffer.getInt() == MAGIC
+                && buffer.getShort() == VERSION
+                && buffer.getLong() == sourceFile.length()
+                && buffer.getLong() == sourceFile.lastModified();
+    }
+
+    /**
+     * Loads the compiled file and populates all fields.
+     */
+    @Override
+    protected void parse() {
+        long start = System.nanoTime();
+        byte[] data;
+        try (FileInputStream fis = new FileInputStream(compiledFile)) {
+            data = new byte[(int) compiledFile.length()];
+            if (readFully(fis, data) < data.length) {
+                throw new IOException("Unexpected end of file");
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Error reading compiled config file: " + compiledFile.getName(), e);
+            parseErrors.add(new ParseError(0, "Could not read file: " + e.getMessage()));
+            return;
+        }
+
+        try {
+            decode(ByteBuffer.wrap(data));
+        } catch (BufferUnderflowException | IllegalArgumentException | IndexOutOfBoundsException e) {
+            Log.e(TAG, "Corrupt compiled config file: " + compiledFile.getName(), e);
+            parseErrors.add(new ParseError(0, "Corrupt compiled config file: " + compiledFile.getName()));
+            return;
+        }
+        loaded = true;
+        Log.d(TAG, "Loaded " + compiledFile.getName() + " with " + entries.size()
+                + " entries in " + (System.nanoTime() - start) / 1000 + " us");
+    }
+
+    /**
+     * Decodes the whole compiled file from the buffer.
+     */
+    private void decode(ByteBuffer buffer) {
+        if (buffer.getInt() != MAGIC) {
+            throw new IllegalArgumentException("Not a compiled config file");
+        }
+        short version = buffer.getShort();
+        if (version != VERSION) {
+            throw new IllegalArgumentException("Unsupported compiled format version " + version);
+        }
+        buffer.getLong(); // source length, checked by isFresh()
+        buffer.getLong(); // source last modified, checked by isFresh()
+
+        method = buffer.get();
+        logFormats = buffer.get();
+        playbackEngine = buffer.get();
+        startMessage = readString(buffer);
+        finishMessage = readString(buffer);
+        trainingMessage = readString(buffer);
+        preQuestionnaireMessage = readString(buffer);
+        postQuestionnaireMessage = readString(buffer);
+
+        videoCount = buffer.getInt();
+        trainingVideoCount = buffer.getInt();
+        breakCount = buffer.getInt();
+
+        // Map the file-local name table to IDs in the shared table once
+        int nameCount = buffer.getInt();
+        int[] ids = new int[nameCount];
+        for (int i = 0; i < nameCount; i++) {
+            ids[i] = entries.getTable().intern(readString(buffer));
+        }
+
+        int entryCount = buffer.getInt();
+        for (int i = 0; i < entryCount; i++) {
+            int entry = buffer.getInt();
+            int op = entry >>> OP_SHIFT;
+            switch (op) {
+                case OP_PLAY:
+                case OP_BREAK:
+                    entries.addId(ids[entry & NAME_MASK]);
+                    break;
+                case OP_TRAINING_START:
+                    trainingStartIndex = entries.size();
+                    break;
+                case OP_TRAINING_END:
+                    trainingEndIndex = entries.size() - 1;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown opcode " + op);
+            }
+        }
+
+        preQuestionnaire = readQuestionnaire(buffer);
+        postQuestionnaire = readQuestionnaire(buffer);
+
+        int errorCount = buffer.getInt();
+        for (int i = 0; i < errorCount; i++) {
+            int lineNumber = buffer.getInt();
+            parseErrors.add(new ParseError(lineNumber, readString(buffer)));
+        }
+    }
+
+    private static Questionnaire readQuestionnaire(ByteBuffer buffer) {
+        int questionCount = buffer.getInt();
+        if (questionCount < 0) {
+            return null;
+        }
+        List<Question> questions = new ArrayList<>(questionCount);
+        for (int i = 0; i < questionCount; i++) {
+            String text = readString(buffer);
+            String type = readString(buffer);
+            List<String> options = null;
+            int optionCount = buffer.getInt();
+            if (optionCount >= 0) {
+                options = new ArrayList<>(optionCount);
+                for (int j = 0; j < optionCount; j++) {
+                    options.add(readString(buffer));
+                }
+            }
+            byte required = buffer.get();
+            questions.add(new Question(text, type, options,
+                    required == REQUIRED_UNSET ? null : required == 1));
+        }
+        return new Questionnaire(questions);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        String value = new String(buffer.array(), buffer.position(), length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return value;
+    }
+
+    /**
+     * Reads until the buffer is full or the stream ends.
+     * @return The number of bytes read
+     */
+    private static int readFully(FileInputStream fis, byte[] buffer) throws IOException {
+        int total = 0;
+        while (total < buffer.length) {
+            int read = fis.read(buffer, total, buffer.length - total);
+            if (read < 0) {
+                break;
+            }
+            total += read;
+        }
+        return total;
+    }
+}
@@ -0,0 +1,263 @@
+/*	This file is part of SubjectivePlayer for Android.
+ *
+ *	SubjectivePlayer for Android is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	SubjectivePlayer for Android is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU General Public License for more details.
+ *
+ *	You should have received a copy of the GNU General Public License
+ *	along with SubjectivePlayer for Android.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.univie.subjectiveplayer;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compiles .cfg and .json config files into the binary format read by
+ * {@link CompiledConfigFile}. The compiled file is written next to the source
+ * with the {@link ConfigFileFactory#COMPILED_EXTENSION} appended, and is
+ * picked up automatically by {@link ConfigFileFactory#create(File)} as long
+ * as the source is unchanged.
+ *
+ * Can be used on the device or on a host JVM, see {@link #main(String[])}.
+ */
+public abstract class ConfigCompiler {
+
+    /**
+     * Returns the compiled file that belongs to a source config file.
+     * @param sourceFile The .cfg or .json config file
+     * @return The .spc file next to it (which may not exist)
+     */
+    public static File compiledFileFor(File sourceFile) {
+        return new File(sourceFile.getParentFile(),
+                sourceFile.getName() + ConfigFileFactory.COMPILED_EXTENSION);
+    }
+
+    /**
+     * Parses a source config file and compiles it.
+     * @param sourceFile The .cfg or .json config file
+     * @return The parsed config file
+     * @throws IOException When the compiled file could not be written
+     */
+    public static BaseConfigFile compile(File sourceFile) throws IOException {
+        BaseConfigFile config = ConfigFileFactory.createFromSource(sourceFile);
+        compile(config);
+        return config;
+    }
+
+    /**
+     * Compiles an already parsed config file, unless a fresh compiled file
+     * exists already.
+     * @param config The parsed config file
+     * @return true if a compiled file was written
+     * @throws IOException When the compiled file could not be written
+     */
+    public static boolean compileIfStale(BaseConfigFile config) throws IOException {
+        // The playlist of a design file differs per participant, so it is always generated
+        if (config instanceof CompiledConfigFile || ConfigFileFactory.isDesignFile(config.getFile())
+                || CompiledConfigFile.isFresh(config.getFile(), compiledFileFor(config.getFile()))) {
+            return false;
+        }
+        compile(config);
+        return true;
+    }
+
+    /**
+     * Writes the compiled form of an already parsed config file. The file is
+     * written to a temporary file first and then renamed, so readers never
+     * see a partially written file.
+     * @param config The parsed config file
+     * @throws IOException When the compiled file could not be written
+     */
+    public static void compile(BaseConfigFile config) throws IOException {
+        File sourceFile = config.getFile();
+        File compiledFile = compiledFileFor(sourceFile);
+        File tempFile = new File(compiledFile.getPath() + ".tmp");
+
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+            write(config, sourceFile.length(), sourceFile.lastModified(), out);
+        }
+
+        if (!tempFile.renameTo(compiledFile)) {
+            // renameTo does not replace existing files on all platforms
+            if (!compiledFile.delete() || !tempFile.renameTo(compiledFile)) {
+                tempFile.delete();
+                throw new IOException("Could not write " + compiledFile);
+            }
+        }
+    }
+
+    /**
+     * Encodes a config in the compiled format.
+     */
+    private static void write(BaseConfigFile config, long sourceLength, long sourceLastModified,
+                              DataOutputStream out) throws IOException {
+        out.writeInt(CompiledConfigFile.MAGIC);
+        out.writeShort(CompiledConfigFile.VERSION);
+        out.writeLong(sourceLength);
+        out.writeLong(sourceLastModified);
+
+        out.writeByte(config.getMethod());
+        out.writeByte(config.getLogFormats());
+        out.writeByte(config.getPlaybackEngine());
+        writeString(out, config.getStartMessage());
+        writeString(out, config.getFinishMessage());
+        writeString(out, config.getTrainingMessage());
+        writeString(out, config.getPreQuestionnaireMessage());
+        writeString(out, config.getPostQuestionnaireMessage());
+
+        out.writeInt(config.getVideoCount());
+        out.writeInt(config.getTrainingVideoCount());
+        out.writeInt(config.getBreakCount());
+
+        // Intern all entries into the name table
+        List<String> entries = config.getEntries();
+        Map<String, Integer> nameIndex = new HashMap<>();
+        List<String> names = new ArrayList<>();
+        int[] ids = new int[entries.size()];
+        for (int i = 0; i < entries.size(); i++) {
+            String entry = entries.get(i);
+            Integer index = nameIndex.get(entry);
+            if (index == null) {
+                index = names.size();
+                nameIndex.put(entry, index);
+                names.add(entry);
+            }
+            ids[i] = index;
+        }
+        if (names.size() > CompiledConfigFile.NAME_MASK) {
+            throw new IOException("Too many distinct playlist entries: " + names.size());
+        }
+        out.writeInt(names.size());
+        for (String name : names) {
+            writeString(out, name);
+        }
+
+        // Playlist as opcodes, with training markers at the same positions the
+        // parsers derive the training indices from
+        int trainingStart = config.getTrainingStartIndex();
+        int trainingEnd = config.getTrainingEndIndex();
+        List<Integer> ops = new ArrayList<>(entries.size() + 2);
+        for (int i = 0; i <= entries.size(); i++) {
+            if (i == trainingStart) {
+                ops.add(CompiledConfigFile.OP_TRAINING_START << CompiledConfigFile.OP_SHIFT);
+            }
+            if (trainingEnd >= 0 && i == trainingEnd + 1) {
+                ops.add(CompiledConfigFile.OP_TRAINING_END << CompiledConfigFile.OP_SHIFT);
+            }
+            if (i < entries.size()) {
+                int op = Session.isBreakCommand(entries.get(i))
+                        ? CompiledConfigFile.OP_BREAK : CompiledConfigFile.OP_PLAY;
+                ops.add((op << CompiledConfigFile.OP_SHIFT) | ids[i]);
+            }
+        }
+        out.writeInt(ops.size());
+        for (int op : ops) {
+            out.writeInt(op);
+        }
+
+        writeQuestionnaire(out, config.getPreQuestionnaire());
+        writeQuestionnaire(out, config.getPostQuestionnaire());
+
+        List<BaseConfigFile.ParseError> errors = config.getParseErrors();
+        out.writeInt(errors.size());
+        for (BaseConfigFile.ParseError error : errors) {
+            out.writeInt(error.lineNumber);
+            writeString(out, error.message);
+        }
+    }
+
+    private static void writeQuestionnaire(DataOutputStream out, Questionnaire questionnaire) throws IOException {
+        if (questionnaire == null) {
+            out.writeInt(-1);
+            return;
+        }
+        List<Question> questions = questionnaire.getQuestions();
+        out.writeInt(questions.size());
+        for (Question question : questions) {
+            writeString(out, question.getQuestion());
+            writeString(out, question.getType());
+            List<String> options = question.getOptions();
+            if (options == null) {
+                out.writeInt(-1);
+            } else {
+                out.writeInt(options.size());
+                for (String option : options) {
+                    writeString(out, option);
+                }
+            }
+            Boolean required = question.getRequired();
+            out.writeByte(required == null ? CompiledConfigFile.REQUIRED_UNSET : (required ? 1 : 0));
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Compiles all config files in the given folders, or the given config
+     * files, e.g. for a SubjectiveCfg/ folder prepared on the host before it
+     * is pushed to the devices. Use the compileSessionConfigs Gradle task to
+     * run it with the app classes on the classpath.
+     * @param args Config files or folders containing config files
+     */
+    public static void main(String[] args) {
+        if (args.length == 0) {
+            System.err.println("Usage: ConfigCompiler <config file or folder>...");
+            System.exit(2);
+        }
+        int compiled = 0;
+        int failed = 0;
+        for (String arg : args) {
+            File path = new File(arg);
+            File[] files = path.isDirectory() ? path.listFiles(ConfigFileFactory::isConfigFile) : new File[]{path};
+            if (files == null) {
+                continue;
+            }
+            for (File file : files) {
+                if (ConfigFileFactory.isDesignFile(file)) {
+                    System.out.println("Skipped " + file + " (design files are not compiled)");
+                    continue;
+                }
+                try {
+                    BaseConfigFile config = compile(file);
+                    for (BaseConfigFile.ParseError error : config.getParseErrors()) {
+                        System.err.println(file.getName() + ":" + error.lineNumber + ": " + error.message);
+                    }
+                    System.out.println("Compiled " + file + " (" + config.getEntries().size() + " entries)");
+                    compiled++;
+                } catch (IOException e) {
+                    System.err.println("Could not compile " + file + ": " + e.getMessage());
+                    failed++;
+                }
+            }
+        }
+        System.out.println(compiled + " config file(s) compiled, " + failed + " failed");
+        if (failed > 0) {
+            System.exit(1);
+        }
+    }
+}
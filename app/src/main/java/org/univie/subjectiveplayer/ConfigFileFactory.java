@@ -16,6 +16,8 @@
 
 package org.univie.subjectiveplayer;
 
+import android.util.Log;
+
 import java.io.File;
 
 /**
@@ -23,18 +25,92 @@ import java.io.File;
  */
 public class ConfigFileFactory {
 
+    private static final String TAG = ConfigFileFactory.class.getSimpleName();
+
     /** File extension for JSON config files */
     public static final String JSON_EXTENSION = ".json";
 
     /** File extension for legacy text config files */
     public static final String CFG_EXTENSION = ".cfg";
 
+    /** Extension appended to a config filename for its compiled form */
+    public static final String COMPILED_EXTENSION = ".spc";
+
+    /** Name of the design file, used for participants without a config file of their own */
+    public static final String DESIGN_FILE_NAME = "design.json";
+
     /**
      * Creates the appropriate config file parser based on file extension.
+     * If a compiled form of the file exists and was built from its current
+     * contents (see {@link ConfigCompiler}), it is loaded instead.
      * @param file The config file to parse
-     * @return A parsed config file (JsonConfigFile for .json, TextConfigFile for .cfg)
+     * @return A parsed config file (CompiledConfigFile if a fresh compiled file
+     *         exists, otherwise JsonConfigFile for .json, TextConfigFile for .cfg)
      */
     public static BaseConfigFile create(File file) {
+        File compiledFile = ConfigCompiler.compiledFileFor(file);
+        if (CompiledConfigFile.isFresh(file, compiledFile)) {
+            CompiledConfigFile compiled = new CompiledConfigFile(file, compiledFile);
+            if (compiled.isLoaded()) {
+                return compiled;
+            }
+            Log.w(TAG, "Could not load compiled config, parsing " + file.getName() + " instead");
+        }
+        return createFromSource(file);
+    }
+
+    /**
+     * Creates the config of a participant. For a design file, the playlist of
+     * the participant is generated from the design; other config files are
+     * loaded as with {@link #create(File)}.
+     * @param file The config file or design file
+     * @param participantId The participant ID
+     * @return A parsed config file
+     */
+    public static BaseConfigFile create(File file, int participantId) {
+        if (isDesignFile(file)) {
+            return new JsonConfigFile(file, participantId);
+        }
+        return create(file);
+    }
+
+    /**
+     * Finds the config file of a participant in a folder: subject_ID.json,
+     * subject_ID.cfg, or else the design file.
+     * @param folder The config folder
+     * @param participantId The participant ID
+     * @return The config file, or null if there is none
+     */
+    public static File findConfigFile(File folder, String participantId) {
+        String[] names = {
+                "subject_" + participantId + JSON_EXTENSION,
+                "subject_" + participantId + CFG_EXTENSION,
+                DESIGN_FILE_NAME
+        };
+        for (String name : names) {
+            File file = new File(folder, name);
+            if (file.exists() && file.canRead()) {
+                return file;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Checks if a file is the design file, whose playlist depends on the participant.
+     * @param file The file to check
+     * @return true if the file is named {@link #DESIGN_FILE_NAME}
+     */
+    public static boolean isDesignFile(File file) {
+        return file != null && file.getName().equalsIgnoreCase(DESIGN_FILE_NAME);
+    }
+
+    /**
+     * Parses the config file itself, ignoring any compiled form.
+     * @param file The config file to parse
+     * @return A parsed config file (JsonConfigFile for .json, TextConfigFile for .cfg)
+     */
+    public static BaseConfigFile createFromSource(File file) {
         String filename = file.getName().toLowerCase();
         if (filename.endsWith(JSON_EXTENSION)) {
             return new JsonConfigFile(file);
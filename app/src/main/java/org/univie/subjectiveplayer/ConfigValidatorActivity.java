@@ -17,6 +17,7 @@
 package org.univie.subjectiveplayer;
 
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.text.SpannableStringBuilder;
 import android.text.Spanned;
 import android.text.style.ForegroundColorSpan;
@@ -35,10 +36,14 @@ import androidx.core.view.WindowInsetsCompat;
 import com.google.android.material.appbar.MaterialToolbar;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.BitSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
 
 public class ConfigValidatorActivity extends AppCompatActivity {
 
@@ -48,6 +53,10 @@ public class ConfigValidatorActivity extends AppCompatActivity {
     private TextView mStatusText;
     private TextView mResultText;
     private List<BaseConfigFile> mConfigFiles = new ArrayList<>();
+    /** File names of the videos referenced by any config file that exist */
+    private final Set<String> mReferencedVideos = new TreeSet<>();
+    /** Elapsed realtime of the last progress shown while verifying videos */
+    private long mLastProgressMillis = 0;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -104,10 +113,18 @@ public class ConfigValidatorActivity extends AppCompatActivity {
             return errors;
         }
 
-        // Parse all config files
+        // Parse all config files, and compile them so that later loads are faster
         for (File file : files) {
             Log.d(TAG, "Parsing config file: " + file.getName());
-            mConfigFiles.add(ConfigFileFactory.create(file));
+            BaseConfigFile config = ConfigFileFactory.create(file);
+            mConfigFiles.add(config);
+            try {
+                if (ConfigCompiler.compileIfStale(config)) {
+                    Log.d(TAG, "Compiled config file: " + file.getName());
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Could not compile config file " + file.getName() + ": " + e.getMessage());
+            }
         }
 
         // Sort by ID (numerically if possible)
@@ -133,25 +150,51 @@ public class ConfigValidatorActivity extends AppCompatActivity {
             }
         }
 
-        // Check for missing videos
+        // Check for corrupt packs and missing videos; videos may be in packs
+        checkVideoPacks(errors);
         checkMissingVideos(errors);
+        VideoPack.closeAll();
+        verifyVideoChecksums(errors);
 
         return errors;
     }
 
+    /**
+     * Opens the packs in the videos folder and checks the checksums of the
+     * videos in them, which reads every pack completely.
+     */
+    private void checkVideoPacks(List<String> errors) {
+        for (String error : VideoPack.openAll(Configuration.sFolderVideos)) {
+            errors.add("Video pack " + error);
+        }
+        for (VideoPack pack : VideoPack.getOpenPacks()) {
+            Log.d(TAG, "Verifying video pack: " + pack.getFile().getName());
+            try {
+                for (String name : pack.verify()) {
+                    errors.add("Video \"" + name + "\" in pack \"" + pack.getFile().getName()
+                            + "\" is corrupt (checksum mismatch)");
+                }
+            } catch (IOException e) {
+                errors.add("Video pack \"" + pack.getFile().getName() + "\" cannot be read: " + e.getMessage());
+            }
+        }
+    }
+
     private void checkMissingVideos(List<String> errors) {
         File videosFolder = Configuration.sFolderVideos;
-
-        // Build map of video -> config files that reference it
-        Map<String, List<String>> videoToConfigFiles = new HashMap<>();
-        for (BaseConfigFile config : mConfigFiles) {
-            for (String videoName : config.getVideoFilenames()) {
-                videoToConfigFiles.computeIfAbsent(videoName, k -> new ArrayList<>())
-                        .add(config.getFilename());
+        VideoNameTable table = VideoNameTable.shared();
+
+        // Playlists as ID arrays, and the set of all videos referenced by any of them
+        int[][] videoIds = new int[mConfigFiles.size()][];
+        BitSet referenced = new BitSet(table.size());
+        for (int i = 0; i < mConfigFiles.size(); i++) {
+            videoIds[i] = mConfigFiles.get(i).getVideoIds();
+            for (int id : videoIds[i]) {
+                referenced.set(id);
             }
         }
 
-        if (videoToConfigFiles.isEmpty()) {
+        if (referenced.isEmpty()) {
             return;
         }
 
@@ -160,28 +203,154 @@ public class ConfigValidatorActivity extends AppCompatActivity {
             return;
         }
 
-        for (Map.Entry<String, List<String>> entry : videoToConfigFiles.entrySet()) {
-            String videoName = entry.getKey();
-            List<String> configFileNames = entry.getValue();
-
-            File videoFile = new File(videosFolder, videoName);
-            if (!videoFile.exists()) {
-                String configFilesStr;
-                if (configFileNames.size() == 1) {
-                    configFilesStr = "config file \"" + configFileNames.get(0) + "\"";
-                } else {
-                    StringBuilder sb = new StringBuilder("config files ");
-                    for (int i = 0; i < configFileNames.size(); i++) {
-                        if (i > 0) {
-                            sb.append(", ");
-                        }
-                        sb.append("\"").append(configFileNames.get(i)).append("\"");
+        // Check each distinct video only once
+        BitSet missing = new BitSet(table.size());
+        mReferencedVideos.clear();
+        for (int id = referenced.nextSetBit(0); id >= 0; id = referenced.nextSetBit(id + 1)) {
+            if (!videoExists(videosFolder, table.name(id))) {
+                missing.set(id);
+                continue;
+            }
+            String[] pair = Session.parseStimulusPair(table.name(id));
+            if (pair != null) {
+                mReferencedVideos.add(pair[0]);
+                mReferencedVideos.add(pair[1]);
+            } else {
+                mReferencedVideos.add(Session.getVideoFileName(table.name(id)));
+            }
+        }
+
+        for (int id = missing.nextSetBit(0); id >= 0; id = missing.nextSetBit(id + 1)) {
+            List<String> configFileNames = new ArrayList<>();
+            for (int i = 0; i < videoIds.length; i++) {
+                if (contains(videoIds[i], id)) {
+                    configFileNames.add(mConfigFiles.get(i).getFilename());
+                }
+            }
+
+            String configFilesStr;
+            if (configFileNames.size() == 1) {
+                configFilesStr = "config file \"" + configFileNames.get(0) + "\"";
+            } else {
+                StringBuilder sb = new StringBuilder("config files ");
+                for (int i = 0; i < configFileNames.size(); i++) {
+                    if (i > 0) {
+                        sb.append(", ");
                     }
-                    configFilesStr = sb.toString();
+                    sb.append("\"").append(configFileNames.get(i)).append("\"");
                 }
-                errors.add("Video \"" + videoName + "\" not found, but specified in " + configFilesStr);
+                configFilesStr = sb.toString();
+            }
+            errors.add("Video \"" + table.name(id) + "\" not found, but specified in " + configFilesStr);
+        }
+    }
+
+    /**
+     * Checks the referenced videos against the SHA-256 checksums in
+     * {@link SyncManifest#CHECKSUMS_FILE_NAME}, if the videos folder has one,
+     * to find files that were cut off or damaged while copying. The videos are
+     * hashed in parallel on all cores; hashes are cached in the sync manifest,
+     * so only videos whose size or modification time changed are read again.
+     * Videos in packs are checked by {@link #checkVideoPacks(List)} instead.
+     */
+    private void verifyVideoChecksums(List<String> errors) {
+        File checksumsFile = new File(Configuration.sFolderVideos, SyncManifest.CHECKSUMS_FILE_NAME);
+        if (mReferencedVideos.isEmpty() || !checksumsFile.exists()) {
+            return;
+        }
+        Map<String, String> expected;
+        try {
+            expected = SyncManifest.readChecksums(checksumsFile);
+        } catch (IOException e) {
+            errors.add("Checksum file \"" + checksumsFile.getName() + "\" cannot be read: " + e.getMessage());
+            return;
+        }
+
+        String folder = Configuration.sFolderVideos.getName();
+        Map<String, File> files = new TreeMap<>();
+        for (String name : mReferencedVideos) {
+            File file = new File(Configuration.sFolderVideos, name);
+            if (!file.exists()) {
+                continue;
+            }
+            if (!expected.containsKey(name)) {
+                errors.add("Video \"" + name + "\" has no checksum in \"" + checksumsFile.getName() + "\"");
+                continue;
+            }
+            files.put(folder + "/" + name, file);
+        }
+
+        File manifestFile = new File(Configuration.sStorage, SyncManifest.FILE_NAME);
+        SyncManifest cache;
+        try {
+            cache = SyncManifest.read(manifestFile);
+        } catch (IOException e) {
+            Log.w(TAG, "Ignoring invalid sync manifest: " + e.getMessage());
+            cache = new SyncManifest();
+        }
+
+        long start = System.nanoTime();
+        SyncManifest hashed;
+        try {
+            hashed = SyncManifest.build(files, cache, Runtime.getRuntime().availableProcessors(),
+                    this::onVerifyProgress);
+        } catch (IOException e) {
+            errors.add("Videos could not be verified: " + e.getMessage());
+            return;
+        }
+        Log.d(TAG, "Verified " + files.size() + " videos in " + (System.nanoTime() - start) / 1000000 + " ms");
+
+        for (SyncManifest.Entry entry : hashed.getEntries().values()) {
+            String name = entry.getPath().substring(folder.length() + 1);
+            if (!entry.getSha256().equals(expected.get(name))) {
+                errors.add("Video \"" + name + "\" is corrupt or incomplete (checksum mismatch)");
+            }
+        }
+
+        // Keep the hashes, so the next verification only reads changed videos
+        cache.putAll(hashed);
+        try {
+            cache.write(manifestFile);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not update sync manifest: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Shows the progress of the verification, at most every 100 ms.
+     * Called on the hashing threads.
+     */
+    private synchronized void onVerifyProgress(int files, int totalFiles, long bytes, long totalBytes) {
+        long now = SystemClock.elapsedRealtime();
+        if (files < totalFiles && now - mLastProgressMillis < 100) {
+            return;
+        }
+        mLastProgressMillis = now;
+        String text = getString(R.string.validate_verifying, files, totalFiles,
+                (int) (bytes / 1000000), (int) (totalBytes / 1000000));
+        runOnUiThread(() -> mStatusText.setText(text));
+    }
+
+    /**
+     * Checks that the video of a playlist entry exists as a file or in a pack;
+     * for a stimulus pair, both videos must exist.
+     */
+    private static boolean videoExists(File videosFolder, String entry) {
+        String[] pair = Session.parseStimulusPair(entry);
+        if (pair == null) {
+            return VideoPack.exists(new File(videosFolder, Session.getVideoFileName(entry)));
+        }
+        return VideoPack.exists(new File(videosFolder, pair[0]))
+                && VideoPack.exists(new File(videosFolder, pair[1]));
+    }
+
+    private static boolean contains(int[] ids, int id) {
+        for (int value : ids) {
+            if (value == id) {
+                return true;
             }
         }
+        return false;
     }
 
     private void displayResults(List<String> errors) {
@@ -26,9 +26,13 @@ import android.content.Context;
 import android.content.SharedPreferences;
 import android.os.Build;
 import android.os.Environment;
+import android.os.Handler;
+import android.os.Looper;
 import android.text.TextUtils;
 import android.util.Log;
 
+import androidx.preference.PreferenceManager;
+
 public abstract class Configuration {
 
 	private static final String TAG = Configuration.class.getSimpleName();
@@ -92,9 +96,59 @@ public abstract class Configuration {
      */
     public static boolean sEdgeToEdge = true;
 
+    /**
+     * Videos whose 95% confidence interval (half width) is below this value
+     * are left out of new sessions; 0 disables early stopping
+     */
+    public static double sEarlyStoppingCi95 = 0;
+
+    /**
+     * Logs older than this number of days are packed into the log archive
+     * (see {@link LogArchive}); 0 disables archiving
+     */
+    public static int sArchiveAfterDays = 0;
+
+    /**
+     * Duration in milliseconds of the mid-grey field shown between the
+     * reference and the test video of a DSIS pair; 0 switches directly
+     */
+    public static int sDsisGreyMillis = 0;
+
+    /**
+     * Whether paired comparisons show A and B one at a time on the full
+     * surface, toggled by tapping the video, instead of side by side
+     */
+    public static boolean sPcToggle = false;
+
+    /**
+     * Whether videos are played with the MediaCodec engine ({@link CodecPlayer})
+     * unless the config file selects an engine
+     */
+    public static boolean sCodecEngine = false;
+
+    /**
+     * Whether the display switches to a refresh rate that is a multiple of
+     * the frame rate of the videos ({@link DisplayModeMatcher})
+     */
+    public static boolean sMatchRefreshRate = true;
+
     /** The container for all application preferences */
 	private static SharedPreferences sPreferences = null;
 
+	/** Whether storage folders and preferences have been set up */
+	private static volatile boolean sInitialized = false;
+
+	/**
+	 * Callback for {@link #initializeAsync(Context, OnInitializedListener)}.
+	 * Always invoked on the main thread.
+	 */
+	public interface OnInitializedListener {
+		/**
+		 * @param error null if initialization succeeded, otherwise the cause
+		 */
+		void onInitialized(Exception error);
+	}
+
 
 	/**
 	 * Internally updates the preference values, called by setPreferences on
@@ -107,9 +161,72 @@ public abstract class Configuration {
 			sNoTicks      = sPreferences.getBoolean("noticks", false);
             sAllowDuplicateIds = sPreferences.getBoolean("allowduplicateids", false);
             sEdgeToEdge   = sPreferences.getBoolean("edgetoedge", true);
+            sEarlyStoppingCi95 = parseEarlyStoppingCi95(sPreferences.getString("earlystopping", "0"));
+            sArchiveAfterDays = parseArchiveAfterDays(sPreferences.getString("archivedays", "0"));
+            sDsisGreyMillis = parseDsisGreyMillis(sPreferences.getString("dsisgrey", "0"));
+            sPcToggle     = sPreferences.getBoolean("pctoggle", false);
+            sCodecEngine  = sPreferences.getBoolean("codecengine", false);
+            sMatchRefreshRate = sPreferences.getBoolean("matchrefreshrate", true);
 			Log.d(TAG, "Preferences updated: noTicks=" + sNoTicks +
 					", allowDuplicateIds=" + sAllowDuplicateIds +
-					", edgeToEdge=" + sEdgeToEdge);
+					", edgeToEdge=" + sEdgeToEdge +
+					", earlyStoppingCi95=" + sEarlyStoppingCi95 +
+					", archiveAfterDays=" + sArchiveAfterDays +
+					", dsisGreyMillis=" + sDsisGreyMillis +
+					", pcToggle=" + sPcToggle +
+					", codecEngine=" + sCodecEngine +
+					", matchRefreshRate=" + sMatchRefreshRate);
+		}
+	}
+
+	/**
+	 * Parses the early stopping preference.
+	 * @param value The preference value as entered
+	 * @return The confidence interval threshold, or 0 if disabled or invalid
+	 */
+	public static double parseEarlyStoppingCi95(String value) {
+		if (value == null) {
+			return 0;
+		}
+		try {
+			double width = Double.parseDouble(value.trim());
+			return width > 0 ? width : 0;
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * Parses the log archive preference.
+	 * @param value The preference value as entered
+	 * @return The minimum log age in days, or 0 if disabled or invalid
+	 */
+	public static int parseArchiveAfterDays(String value) {
+		if (value == null) {
+			return 0;
+		}
+		try {
+			int days = Integer.parseInt(value.trim());
+			return days > 0 ? days : 0;
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * Parses the DSIS grey interval preference.
+	 * @param value The preference value as entered
+	 * @return The grey interval in milliseconds, or 0 if disabled or invalid
+	 */
+	public static int parseDsisGreyMillis(String value) {
+		if (value == null) {
+			return 0;
+		}
+		try {
+			int millis = Integer.parseInt(value.trim());
+			return millis > 0 ? millis : 0;
+		} catch (NumberFormatException e) {
+			return 0;
 		}
 	}
 
@@ -180,4 +297,38 @@ public abstract class Configuration {
 
 		Log.i(TAG, "Configuration initialized successfully");
 	}
+
+	/**
+	 * Returns true once {@link #initialize(Context)} has completed, either
+	 * directly or through {@link #initializeAsync(Context, OnInitializedListener)}.
+	 */
+	public static boolean isInitialized() {
+		return sInitialized;
+	}
+
+	/**
+	 * Runs the startup work off the main thread so that it overlaps with the
+	 * first frame: storage checks and directory creation, loading the default
+	 * shared preferences from disk, and warming up the JSON config parser.
+	 * The listener is called on the main thread when everything is done.
+	 */
+	public static void initializeAsync(Context ctx, OnInitializedListener listener) {
+		final Context appCtx = ctx.getApplicationContext();
+		final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+		new Thread(() -> {
+			Exception error = null;
+			try {
+				initialize(appCtx);
+				setPreferences(PreferenceManager.getDefaultSharedPreferences(appCtx));
+				JsonConfigFile.warmUp();
+				sInitialized = true;
+			} catch (Exception e) {
+				Log.e(TAG, "Error during background initialization: " + e.getMessage());
+				error = e;
+			}
+			final Exception result = error;
+			mainHandler.post(() -> listener.onInitialized(result));
+		}, "ConfigurationInit").start();
+	}
 }
@@ -0,0 +1,137 @@
+/*	This file is part of SubjectivePlayer for Android.
+ *
+ *	SubjectivePlayer for Android is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	SubjectivePlayer for Android is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU General Public License for more details.
+ *
+ *	You should have received a copy of the GNU General Public License
+ *	along with SubjectivePlayer for Android.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.univie.subjectiveplayer;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Writes the session log as CSV, one row per rating. Every row is flushed
+ * right away, so the log is complete up to the last rating if the test is
+ * cancelled.
+ *
+ * The log is written to a temporary file (see {@link LogFileOutputStream}).
+ * When it is closed, a footer line with the number of rows (excluding the
+ * header) and the CRC32 of all preceding bytes is appended, see
+ * {@link #formatFooter(long, long)}, and the file is renamed to its final name.
+ */
+final class CsvLogSink implements SessionLogSink {
+
+    /** File extension of CSV session logs */
+    static final String EXTENSION = ".csv";
+
+    /** Header row of CSV session logs */
+    static final String HEADER = "video_position,video_name,rating,rated_at,rating_duration";
+
+    /** Row written for a BREAK entry */
+    static final String BREAK_ROW = "-1,BREAK,,,";
+
+    /** Start of the footer line of finished CSV logs */
+    static final String FOOTER_PREFIX = "# rows=";
+
+    /** ISO8601 date format for the rated_at column */
+    private static final String ISO8601_FORMAT = "yyyy-MM-dd'T'HH:mm:ssXXX";
+
+    private final File mFile;
+    private final LogFileOutputStream mOut;
+    private final BufferedWriter mWriter;
+    private long mRows = 0;
+
+    CsvLogSink(File file) throws IOException {
+        mFile = file;
+        mOut = new LogFileOutputStream(file);
+        mWriter = new BufferedWriter(new OutputStreamWriter(mOut, StandardCharsets.UTF_8));
+        mWriter.write(HEADER);
+        mWriter.newLine();
+        mWriter.flush();
+    }
+
+    @Override
+    public File getFile() {
+        return mFile;
+    }
+
+    @Override
+    public void writeRating(int videoPosition, String videoName, int rating, long ratedAtMillis,
+                            Double ratingDurationSeconds) throws IOException {
+        mWriter.write(formatRow(videoPosition, videoName, rating,
+                formatAsIso8601(ratedAtMillis, TimeZone.getDefault()),
+                SessionLogSink.toDurationMillis(ratingDurationSeconds)));
+        mWriter.newLine();
+        mWriter.flush();
+        mRows++;
+    }
+
+    @Override
+    public void writeBreak() throws IOException {
+        mWriter.write(BREAK_ROW);
+        mWriter.newLine();
+        mWriter.flush();
+        mRows++;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            mWriter.flush();
+            mOut.finish(formatFooter(mRows, mOut.getChecksum()).getBytes(StandardCharsets.UTF_8));
+        } finally {
+            mWriter.close();
+        }
+    }
+
+    /**
+     * Formats the footer line of a finished CSV log, including the line separator.
+     * @param rows The number of rows after the header
+     * @param crc32 The CRC32 of all bytes before the footer
+     */
+    static String formatFooter(long rows, long crc32) {
+        return FOOTER_PREFIX + rows + " crc32=" + String.format(Locale.US, "%08x", crc32)
+                + System.lineSeparator();
+    }
+
+    /**
+     * Formats one rating row, without line separator.
+     * @param durationMillis The rating duration from
+     *                       {@link SessionLogSink#toDurationMillis(Double)}, or -1 for none
+     */
+    static String formatRow(int videoPosition, String videoName, int rating, String ratedAt,
+                            long durationMillis) {
+        String duration = durationMillis >= 0
+                ? String.format(Locale.US, "%d.%03d", durationMillis / 1000, durationMillis % 1000) : "";
+        return "" + videoPosition + ',' + videoName + ',' + rating + ',' + ratedAt + ',' + duration;
+    }
+
+    /**
+     * Converts a Unix epoch timestamp in milliseconds to ISO8601 format
+     * @param millis Unix epoch timestamp in milliseconds
+     * @param timeZone The time zone to express the time in
+     * @return ISO8601 formatted date string
+     */
+    static String formatAsIso8601(long millis, TimeZone timeZone) {
+        SimpleDateFormat iso8601Format = new SimpleDateFormat(ISO8601_FORMAT, Locale.US);
+        iso8601Format.setTimeZone(timeZone);
+        return iso8601Format.format(new Date(millis));
+    }
+}
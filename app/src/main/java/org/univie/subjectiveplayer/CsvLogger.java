@@ -18,17 +18,23 @@ package org.univie.subjectiveplayer;
 
 import android.util.Log;
 
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 
 /**
  * Logging Class that writes log files with the user's ratings.
  * Writes ratings continuously as they are collected to prevent data loss if the test is cancelled.
+ * The session log is written in every format selected by the config (see {@link SessionLogSink}).
+ * The methods that write or close the logs are synchronized, as time-continuous ratings are
+ * written by the {@link RatingSampler} thread while playback events come from the UI thread.
  */
 public abstract class CsvLogger {
 
@@ -37,43 +43,48 @@ public abstract class CsvLogger {
 	/** Sentinel value for BREAK video_position */
 	private static final int BREAK_VIDEO_POSITION = -1;
 
-	/** File handle for the session log file */
+	/** File handle for the session log file (the first one, if several formats are written) */
 	private static File sSessionLogFile = null;
-	/** FileWriter for session log */
-	private static FileWriter sSessionFileWriter = null;
-	/** BufferedWriter for session log */
-	private static BufferedWriter sSessionBufferedWriter = null;
+	/** Sinks for the session log, one per format */
+	private static final List<SessionLogSink> sSessionSinks = new ArrayList<>();
 	/** Whether session logging has started */
 	private static boolean sSessionLogStarted = false;
+	/** Base name (ID_StartTime_Method) of the logs of the current session */
+	private static String sSessionBaseName = null;
+	/** Playback log of the current session, started with its first event */
+	private static PlaybackLogSink sPlaybackSink = null;
+	/** Open questionnaire logs, by questionnaire type */
+	private static final Map<String, QuestionnaireLogSink> sQuestionnaireSinks = new HashMap<>();
+	/** Number of questions logged per open questionnaire log */
+	private static final Map<String, Integer> sQuestionnaireAnswerCounts = new HashMap<>();
+
+	/** Participant ID of the current session */
+	private static int sSessionParticipantId = 0;
+	/** Method of the current session */
+	private static int sSessionMethod = Methods.UNDEFINED;
+	/** Per-video statistics of the current session, committed to the {@link RatingStore} on close */
+	private static Map<String, RatingStore.VideoStats> sSessionStats = new LinkedHashMap<>();
+	/** Playlist position of the presentation whose ratings are being collected */
+	private static int sScorePosition = BREAK_VIDEO_POSITION;
+	/** Video name of the presentation whose ratings are being collected */
+	private static String sScoreVideo = null;
+	/** Sum of the ratings of the current presentation (several for continuous methods) */
+	private static double sScoreSum = 0;
+	/** Number of ratings of the current presentation */
+	private static int sScoreSamples = 0;
 
 
 	/**
 	 * The date format as specified in SimpleDateFormat for writing the filename
 	 */
 	private static final String DATE_FORMAT = "yyyyMMdd-HHmmss";
-	/**
-	 * ISO8601 date format for the rated_at column
-	 */
-	private static final String ISO8601_FORMAT = "yyyy-MM-dd'T'HH:mm:ssXXX";
 	/** The CSV separator character */
 	private static final char SEP_CSV = ',';
 	/** The File separator character, e.g. a space */
 	private static final char SEP_FILE = '_';
-	/** Whether a CSV header should be written or not */
-	private static final boolean HEADER = true;
 	/** The file suffix */
 	private static final String SUFFIX = "csv";
 
-	/**
-	 * Converts a Unix epoch timestamp in milliseconds to ISO8601 format
-	 * @param millis Unix epoch timestamp in milliseconds
-	 * @return ISO8601 formatted date string
-	 */
-	private static String formatAsIso8601(long millis) {
-		SimpleDateFormat iso8601Format = new SimpleDateFormat(ISO8601_FORMAT, Locale.US);
-		return iso8601Format.format(new Date(millis));
-	}
-
     /**
      * Check whether an ID already exists in the log files
      */
@@ -93,15 +104,25 @@ public abstract class CsvLogger {
                 // do nothing
             }
         }
+        // Logs moved into the archive are found through its index
+        for (String idPart : new LogArchive(Configuration.sFolderLogs).getParticipantIds()) {
+            try {
+                if (Integer.parseInt(idPart) == id) {
+                    return true;
+                }
+            } catch (NumberFormatException e) {
+                // do nothing
+            }
+        }
         return false;
     }
 
 	/**
 	 * Starts a session log file. This should be called when the test session begins.
 	 * The file is created with a header and will be written to incrementally as ratings come in.
-	 * File name format: ID_StartTime_Method.csv
+	 * File name format: ID_StartTime_Method.csv (and ID_StartTime_Method.splog for binary logs)
 	 */
-	public static void startSessionLog() {
+	public static synchronized void startSessionLog() {
 		if (sSessionLogStarted) {
 			Log.w(TAG, "Session log already started, closing previous one");
 			closeSessionLog();
@@ -112,25 +133,35 @@ public abstract class CsvLogger {
 			String methodName = Methods.METHOD_NAMES[Session.sCurrentMethod];
 			methodName = methodName.replace(' ', SEP_FILE);
 
-			// ID_StartTime_Method.csv
-			String fileName = "" + Session.sParticipantId + SEP_FILE
-					+ format.format(new Date()) + SEP_FILE + methodName
-					+ "." + SUFFIX;
-			sSessionLogFile = new File(Configuration.sFolderLogs, fileName);
-
-			Log.d(TAG, "Starting session log: " + sSessionLogFile.getAbsolutePath());
-
-			sSessionFileWriter = new FileWriter(sSessionLogFile);
-			sSessionBufferedWriter = new BufferedWriter(sSessionFileWriter);
-
-			if (HEADER) {
-				sSessionBufferedWriter.write("video_position" + SEP_CSV + "video_name" + SEP_CSV
-						+ "rating" + SEP_CSV + "rated_at" + SEP_CSV + "rating_duration");
-				sSessionBufferedWriter.newLine();
-				sSessionBufferedWriter.flush();
+			// ID_StartTime_Method, followed by the extension of each format
+			String baseName = "" + Session.sParticipantId + SEP_FILE
+					+ format.format(new Date()) + SEP_FILE + methodName;
+			int formats = Session.sLogFormats != 0 ? Session.sLogFormats : SessionLogSink.FORMAT_CSV;
+			for (int flag = 1; flag <= formats; flag <<= 1) {
+				if ((formats & flag) == 0) {
+					continue;
+				}
+				try {
+					SessionLogSink sink = SessionLogSink.create(flag, Configuration.sFolderLogs, baseName);
+					sSessionSinks.add(sink);
+					Log.d(TAG, "Starting session log: " + sink.getFile().getAbsolutePath());
+				} catch (IOException e) {
+					Log.e(TAG, "Error starting session log " + baseName + ": " + e.getMessage());
+				}
+			}
+			if (sSessionSinks.isEmpty()) {
+				throw new IOException("No session log could be created");
 			}
+			sSessionLogFile = sSessionSinks.get(0).getFile();
+			String fileName = sSessionLogFile.getName();
 
 			sSessionLogStarted = true;
+			sSessionBaseName = baseName;
+			sSessionParticipantId = Session.sParticipantId;
+			sSessionMethod = Session.sCurrentMethod;
+			sSessionStats.clear();
+			sScorePosition = BREAK_VIDEO_POSITION;
+			sScoreSamples = 0;
 			Log.i(TAG, "Session log started: " + fileName);
 		} catch (IOException e) {
 			Log.e(TAG, "Error starting session log: " + e.getMessage());
@@ -138,6 +169,14 @@ public abstract class CsvLogger {
 		}
 	}
 
+	/**
+	 * Returns the session log file that is currently being written, or null if
+	 * no session log is open.
+	 */
+	static synchronized File getCurrentSessionLogFile() {
+		return sSessionLogStarted ? sSessionLogFile : null;
+	}
+
 	/**
 	 * Logs a single rating entry to the session log file.
 	 * This should be called immediately after each rating is collected.
@@ -149,53 +188,154 @@ public abstract class CsvLogger {
 	 * @param ratingDurationSeconds The time in seconds the user took to submit the rating,
 	 *                              or null if not applicable (e.g., time-continuous rating)
 	 */
-	public static void logRating(int videoPosition, String videoName, int rating, long ratedAtMillis, Double ratingDurationSeconds) {
+	public static synchronized void logRating(int videoPosition, String videoName, int rating, long ratedAtMillis, Double ratingDurationSeconds) {
 		if (!sSessionLogStarted) {
 			Log.w(TAG, "Session log not started, starting now");
 			startSessionLog();
 		}
 
-		try {
-			String durationStr = "";
-			if (ratingDurationSeconds != null) {
-				durationStr = String.format(Locale.US, "%.3f", ratingDurationSeconds);
+		for (SessionLogSink sink : sSessionSinks) {
+			try {
+				sink.writeRating(videoPosition, videoName, rating, ratedAtMillis, ratingDurationSeconds);
+			} catch (IOException e) {
+				Log.e(TAG, "Error logging rating to " + sink.getFile().getName() + ": " + e.getMessage());
 			}
-			sSessionBufferedWriter.write("" + videoPosition + SEP_CSV + videoName + SEP_CSV
-					+ rating + SEP_CSV + formatAsIso8601(ratedAtMillis) + SEP_CSV + durationStr);
-			sSessionBufferedWriter.newLine();
-			sSessionBufferedWriter.flush();
-			Log.d(TAG, "Logged rating: video=" + videoName + ", rating=" + rating + ", duration=" + durationStr + "s");
-		} catch (IOException e) {
-			Log.e(TAG, "Error logging rating: " + e.getMessage());
-			e.printStackTrace();
 		}
+		Log.d(TAG, "Logged rating: video=" + videoName + ", rating=" + rating + ", duration=" + ratingDurationSeconds + "s");
+
+		addToSessionStats(videoPosition, videoName, rating);
+	}
+
+	/**
+	 * Collects a rating for the session statistics. Consecutive ratings for the
+	 * same playlist position (continuous methods) are averaged into one score.
+	 * Training videos are not counted.
+	 */
+	private static void addToSessionStats(int videoPosition, String videoName, int rating) {
+		if (videoPosition != sScorePosition) {
+			flushSessionScore();
+			sScorePosition = videoPosition;
+			sScoreVideo = videoName;
+		}
+		if (!Session.isTrainingTrack(videoPosition)) {
+			sScoreSum += rating;
+			sScoreSamples++;
+		}
+	}
+
+	/**
+	 * Adds the score of the presentation collected so far to the session statistics.
+	 */
+	private static void flushSessionScore() {
+		if (sScoreSamples == 0) {
+			return;
+		}
+		String method = Methods.METHOD_NAMES[sSessionMethod];
+		String key = method + SEP_CSV + sScoreVideo;
+		RatingStore.VideoStats stats = sSessionStats.get(key);
+		if (stats == null) {
+			stats = new RatingStore.VideoStats(method, sScoreVideo);
+			sSessionStats.put(key, stats);
+		}
+		boolean categorical = sSessionMethod == Methods.TYPE_ACR_CATEGORICAL
+				|| sSessionMethod == Methods.TYPE_DSIS_CATEGORICAL
+				|| sSessionMethod == Methods.TYPE_PAIRED_COMPARISON;
+		int category = categorical && sScoreSamples == 1 ? (int) sScoreSum : 0;
+		stats.add(sScoreSum / sScoreSamples, category);
+		sScoreSum = 0;
+		sScoreSamples = 0;
 	}
 
 	/**
 	 * Logs a BREAK entry to the session log file.
 	 * BREAK entries have video_position=-1, video_name=BREAK, and empty rating/rated_at/rating_duration.
 	 */
-	public static void logBreak() {
+	public static synchronized void logBreak() {
+		if (!sSessionLogStarted) {
+			Log.w(TAG, "Session log not started, starting now");
+			startSessionLog();
+		}
+
+		for (SessionLogSink sink : sSessionSinks) {
+			try {
+				sink.writeBreak();
+			} catch (IOException e) {
+				Log.e(TAG, "Error logging break to " + sink.getFile().getName() + ": " + e.getMessage());
+			}
+		}
+		Log.d(TAG, "Logged BREAK entry");
+	}
+
+	/**
+	 * Logs a timing measurement taken during playback to the playback log of
+	 * the session, which is started with the first event.
+	 * File name format: ID_StartTime_Method_playback.csv
+	 *
+	 * @param videoPosition The position/index of the video in the playlist
+	 * @param videoName The playlist entry of the video
+	 * @param event The event name, one of the PlaybackLogSink.EVENT_ constants
+	 * @param valueMillis The measured value in milliseconds
+	 */
+	public static synchronized void logPlaybackEvent(int videoPosition, String videoName, String event, double valueMillis) {
 		if (!sSessionLogStarted) {
 			Log.w(TAG, "Session log not started, starting now");
 			startSessionLog();
 		}
+		if (sSessionBaseName == null) {
+			return;
+		}
 
 		try {
-			sSessionBufferedWriter.write("" + BREAK_VIDEO_POSITION + SEP_CSV + "BREAK" + SEP_CSV + SEP_CSV + SEP_CSV);
-			sSessionBufferedWriter.newLine();
-			sSessionBufferedWriter.flush();
-			Log.d(TAG, "Logged BREAK entry");
+			if (sPlaybackSink == null) {
+				sPlaybackSink = new PlaybackLogSink(new File(Configuration.sFolderLogs,
+						sSessionBaseName + PlaybackLogSink.SUFFIX + "." + SUFFIX));
+				Log.d(TAG, "Starting playback log: " + sPlaybackSink.getFile().getAbsolutePath());
+			}
+			sPlaybackSink.writeEvent(videoPosition, videoName, event, valueMillis, System.currentTimeMillis());
 		} catch (IOException e) {
-			Log.e(TAG, "Error logging break: " + e.getMessage());
-			e.printStackTrace();
+			Log.e(TAG, "Error logging playback event: " + e.getMessage());
 		}
+		Log.d(TAG, "Logged playback event: video=" + videoName + ", " + event + "=" + valueMillis + "ms");
 	}
 
 	/**
-	 * Logs questionnaire answers to a separate CSV file.
+	 * Logs the answer to one questionnaire question as soon as it is given.
+	 * The questionnaire log of the given type is started with the first answer
+	 * and written like the session log: each answer is flushed right away, so
+	 * it is kept if the app is killed during the questionnaire.
 	 * File name format: ID_StartTime_questionnaire_type.csv
 	 *
+	 * @param type The type of questionnaire ("pre" or "post")
+	 * @param questionIndex The zero-based index of the question
+	 * @param question The question
+	 * @param answer The answer
+	 */
+	public static synchronized void logQuestionnaireAnswer(String type, int questionIndex, Question question, QuestionnaireAnswer answer) {
+		QuestionnaireLogSink sink = sQuestionnaireSinks.get(type);
+		try {
+			if (sink == null) {
+				SimpleDateFormat format = new SimpleDateFormat(DATE_FORMAT, Locale.US);
+				String fileName = "" + Session.sParticipantId + SEP_FILE
+						+ format.format(new Date()) + SEP_FILE + "questionnaire" + SEP_FILE + type
+						+ "." + SUFFIX;
+				sink = new QuestionnaireLogSink(new File(Configuration.sFolderLogs, fileName));
+				sQuestionnaireSinks.put(type, sink);
+				sQuestionnaireAnswerCounts.put(type, 0);
+				Log.d(TAG, "Starting questionnaire log: " + sink.getFile().getAbsolutePath());
+			}
+			sink.writeAnswer(questionIndex + 1, question, answer);
+			sQuestionnaireAnswerCounts.put(type, questionIndex + 1);
+		} catch (IOException e) {
+			Log.e(TAG, "Error logging questionnaire answer: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Finishes the questionnaire log of the given type, producing
+	 * ID_StartTime_questionnaire_type.csv. Answers that were not logged with
+	 * {@link #logQuestionnaireAnswer} yet are written first; questions without
+	 * an answer get a row with an empty answer.
+	 *
 	 * Uses tidy data format: one row per answer. Multiple-choice questions
 	 * produce multiple rows (one per selected option).
 	 *
@@ -203,113 +343,91 @@ public abstract class CsvLogger {
 	 * @param questionnaire The questionnaire with questions
 	 * @param answers The list of answers (parallel to questions)
 	 */
-	public static void logQuestionnaire(String type, Questionnaire questionnaire, java.util.List<QuestionnaireAnswer> answers) {
+	public static synchronized void logQuestionnaire(String type, Questionnaire questionnaire, java.util.List<QuestionnaireAnswer> answers) {
 		if (questionnaire == null || questionnaire.isEmpty()) {
 			Log.d(TAG, "No questionnaire to log for type: " + type);
 			return;
 		}
 
-		try {
-			SimpleDateFormat format = new SimpleDateFormat(DATE_FORMAT, Locale.US);
-
-			// ID_StartTime_questionnaire_type.csv
-			String fileName = "" + Session.sParticipantId + SEP_FILE
-					+ format.format(new Date()) + SEP_FILE + "questionnaire" + SEP_FILE + type
-					+ "." + SUFFIX;
-			File questionnaireFile = new File(Configuration.sFolderLogs, fileName);
-
-			Log.d(TAG, "Writing questionnaire log: " + questionnaireFile.getAbsolutePath());
-
-			try (FileWriter fw = new FileWriter(questionnaireFile);
-				 BufferedWriter bw = new BufferedWriter(fw)) {
-
-				// Write header
-				bw.write("question_number" + SEP_CSV + "question_type" + SEP_CSV + "question" + SEP_CSV
-						+ "answer" + SEP_CSV + "answered_at" + SEP_CSV + "answer_duration");
-				bw.newLine();
-
-				// Write each question and answer
-				java.util.List<Question> questions = questionnaire.getQuestions();
-				for (int i = 0; i < questions.size(); i++) {
-					Question q = questions.get(i);
-					QuestionnaireAnswer qa = (i < answers.size()) ? answers.get(i) : null;
-
-					String questionText = escapeCSV(q.getQuestion());
-					String answeredAt = (qa != null) ? formatAsIso8601(qa.getAnsweredAtMillis()) : "";
-					String duration = (qa != null) ? String.format(Locale.US, "%.3f", qa.getAnswerDurationSeconds()) : "";
-					int questionNumber = i + 1;
-
-					if (qa == null || qa.isEmpty()) {
-						// Empty answer: write single row with empty answer
-						bw.write("" + questionNumber + SEP_CSV + q.getType() + SEP_CSV + questionText + SEP_CSV
-								+ SEP_CSV + answeredAt + SEP_CSV + duration);
-						bw.newLine();
-					} else if (Question.TYPE_MULTIPLE_CHOICE.equals(q.getType()) && qa.hasMultipleSelections()) {
-						// Multiple-choice with multiple selections: one row per selected option
-						for (String selectedOption : qa.getAnswers()) {
-							String answerText = escapeCSV(selectedOption);
-							bw.write("" + questionNumber + SEP_CSV + q.getType() + SEP_CSV + questionText + SEP_CSV
-									+ answerText + SEP_CSV + answeredAt + SEP_CSV + duration);
-							bw.newLine();
-						}
-					} else {
-						// Single answer (number, radio, text, or single multiple-choice selection)
-						String answerText = escapeCSV(qa.getAnswer());
-						bw.write("" + questionNumber + SEP_CSV + q.getType() + SEP_CSV + questionText + SEP_CSV
-								+ answerText + SEP_CSV + answeredAt + SEP_CSV + duration);
-						bw.newLine();
-					}
-				}
+		java.util.List<Question> questions = questionnaire.getQuestions();
+		Integer logged = sQuestionnaireAnswerCounts.get(type);
+		for (int i = logged != null ? logged : 0; i < questions.size(); i++) {
+			logQuestionnaireAnswer(type, i, questions.get(i), i < answers.size() ? answers.get(i) : null);
+		}
 
-				bw.flush();
-				Log.i(TAG, "Questionnaire log written: " + fileName + " with " + questions.size() + " questions");
+		QuestionnaireLogSink sink = sQuestionnaireSinks.remove(type);
+		sQuestionnaireAnswerCounts.remove(type);
+		if (sink != null) {
+			try {
+				sink.close();
+				Log.i(TAG, "Questionnaire log written: " + sink.getFile().getName() + " with " + questions.size() + " questions");
+			} catch (IOException e) {
+				Log.e(TAG, "Error writing questionnaire log: " + e.getMessage());
 			}
-		} catch (IOException e) {
-			Log.e(TAG, "Error writing questionnaire log: " + e.getMessage());
-			e.printStackTrace();
 		}
 	}
 
 	/**
-	 * Escapes a string for CSV output by quoting if necessary.
+	 * Closes the session log file. Should be called when the session ends.
 	 */
-	private static String escapeCSV(String value) {
-		if (value == null) {
-			return "";
-		}
-		// If the value contains comma, quote, or newline, wrap in quotes and escape internal quotes
-		if (value.contains(",") || value.contains("\"") || value.contains("\n") || value.contains("\r")) {
-			return "\"" + value.replace("\"", "\"\"") + "\"";
+	public static synchronized void closeSessionLog() {
+		// A questionnaire that is still open was cancelled; its answers stay in
+		// the unfinished log
+		for (QuestionnaireLogSink sink : sQuestionnaireSinks.values()) {
+			try {
+				sink.abandon();
+			} catch (IOException e) {
+				Log.e(TAG, "Error closing questionnaire log " + sink.getFile().getName() + ": " + e.getMessage());
+			}
 		}
-		return value;
-	}
+		sQuestionnaireSinks.clear();
+		sQuestionnaireAnswerCounts.clear();
 
-	/**
-	 * Closes the session log file. Should be called when the session ends.
-	 */
-	public static void closeSessionLog() {
 		if (!sSessionLogStarted) {
 			Log.d(TAG, "Session log not started, nothing to close");
 			return;
 		}
 
-		try {
-			if (sSessionBufferedWriter != null) {
-				sSessionBufferedWriter.close();
+		for (SessionLogSink sink : sSessionSinks) {
+			try {
+				sink.close();
+				Log.i(TAG, "Session log closed: " + sink.getFile().getName());
+			} catch (IOException e) {
+				Log.e(TAG, "Error closing session log " + sink.getFile().getName() + ": " + e.getMessage());
 			}
-			if (sSessionFileWriter != null) {
-				sSessionFileWriter.close();
+		}
+
+		if (sPlaybackSink != null) {
+			try {
+				sPlaybackSink.close();
+				Log.i(TAG, "Playback log closed: " + sPlaybackSink.getFile().getName());
+			} catch (IOException e) {
+				Log.e(TAG, "Error closing playback log " + sPlaybackSink.getFile().getName() + ": " + e.getMessage());
 			}
-			Log.i(TAG, "Session log closed: " + (sSessionLogFile != null ? sSessionLogFile.getName() : "unknown"));
-		} catch (IOException e) {
-			Log.e(TAG, "Error closing session log: " + e.getMessage());
-			e.printStackTrace();
-		} finally {
-			sSessionLogStarted = false;
-			sSessionBufferedWriter = null;
-			sSessionFileWriter = null;
-			sSessionLogFile = null;
+			sPlaybackSink = null;
 		}
+
+		// Commit the session's ratings to the persistent statistics
+		flushSessionScore();
+		if (!sSessionStats.isEmpty() && sSessionLogFile != null) {
+			try {
+				new RatingStore(Configuration.sFolderLogs).commit(sSessionLogFile.getName(), sSessionStats.values());
+				Log.i(TAG, "Committed ratings of " + sSessionStats.size() + " videos to the rating store");
+			} catch (IOException e) {
+				Log.e(TAG, "Error updating rating store: " + e.getMessage());
+			}
+			try {
+				SubjectScreening.commit(Configuration.sFolderLogs, String.valueOf(sSessionParticipantId),
+						sSessionStats.values());
+			} catch (IOException e) {
+				Log.e(TAG, "Error updating subject scores: " + e.getMessage());
+			}
+		}
+
+		sSessionLogStarted = false;
+		sSessionBaseName = null;
+		sSessionSinks.clear();
+		sSessionLogFile = null;
 	}
 
 	/**
@@ -0,0 +1,493 @@
+/*	This file is part of SubjectivePlayer for Android.
+ *
+ *	SubjectivePlayer for Android is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	SubjectivePlayer for Android is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU General Public License for more details.
+ *
+ *	You should have received a copy of the GNU General Public License
+ *	along with SubjectivePlayer for Android.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.univie.subjectiveplayer;
+
+import android.content.Context;
+import android.hardware.display.DisplayManager;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.view.Display;
+import android.view.Surface;
+import android.view.SurfaceView;
+import android.view.Window;
+import android.view.WindowManager;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Matches the refresh rate of the display to the frame rate of the videos,
+ * so that every frame is shown for the same number of refreshes (a 25 fps
+ * video on a 60 Hz display would otherwise judder).
+ *
+ * The frame rate of each video is probed from its container. The session
+ * window then prefers a display mode with the same resolution as the current
+ * mode whose refresh rate is a whole multiple of the frame rate. The mode is
+ * only switched when the current one does not fit, and the new mode is chosen
+ * to also fit as many of the following videos as possible, so consecutive
+ * videos with compatible rates do not cause a switch each.
+ *
+ * Probing opens each file, so it runs on a background thread. It is started
+ * ahead of time with {@link #probeAhead(List, int)} while the start screen or
+ * a rating dialog is shown; a video whose frame rates are not known yet when
+ * it is about to be played waits for the probe like for a mode switch.
+ */
+final class DisplayModeMatcher implements DisplayManager.DisplayListener {
+
+    private static final String TAG = DisplayModeMatcher.class.getSimpleName();
+
+    /** Time to wait for the display to report a requested mode before starting anyway */
+    static final long SWITCH_TIMEOUT_MILLIS = 2000;
+
+    /** Number of following playlist entries taken into account when a mode is chosen */
+    static final int LOOKAHEAD = 4;
+
+    /**
+     * Relative deviation up to which a refresh rate counts as a multiple of a
+     * frame rate, so that e.g. 119.88 Hz still matches 24 fps
+     */
+    private static final double MULTIPLE_TOLERANCE = 0.002;
+
+    /** Number of sample timestamps read when the container has no frame rate */
+    private static final int PROBE_SAMPLES = 32;
+
+    private final Window mWindow;
+    private final SurfaceView mView;
+    private final DisplayManager mDisplayManager;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mSwitchTimeout = this::onSwitchTimeout;
+
+    /** Probed frame rates by file path, 0 if unknown */
+    private final Map<String, Float> mFrameRates = new ConcurrentHashMap<>();
+
+    /** Probes the frame rates, one file after the other */
+    private final ExecutorService mProbeExecutor =
+            Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, TAG));
+
+    /** Counts the calls to matchTrack() and cancel(), so a probe finishing late is ignored */
+    private int mRequest = 0;
+
+    /** Whether the frame rates for the current request are still being probed */
+    private boolean mIsProbing = false;
+
+    /** The mode the window currently prefers, 0 if none was requested */
+    private int mPreferredModeId = 0;
+
+    /** Whether a requested mode has not been reported by the display yet */
+    private boolean mIsSwitching = false;
+
+    /** Started once the display has switched to the requested mode */
+    private Runnable mPendingStart;
+
+    /**
+     * @param context Context to look up the display manager
+     * @param window The session window whose preferred display mode is set
+     * @param view The surface the videos are shown on
+     */
+    DisplayModeMatcher(Context context, Window window, SurfaceView view) {
+        mWindow = window;
+        mView = view;
+        mDisplayManager = (DisplayManager) context.getSystemService(Context.DISPLAY_SERVICE);
+    }
+
+    /**
+     * Probes the frame rates of the given playlist entry and the ones after
+     * it in the background, so that matching them later does not wait.
+     * @param tracks The playlist
+     * @param index The index of the first entry to probe
+     */
+    void probeAhead(List<String> tracks, int index) {
+        List<File> files = getLookaheadFiles(tracks, index);
+        mProbeExecutor.execute(() -> {
+            for (File file : files) {
+                probeFrameRate(file);
+            }
+        });
+    }
+
+    /**
+     * Requests a display mode matching the video of the given playlist entry.
+     * For a reference/test pair, the reference decides. Does nothing if the
+     * frame rate cannot be probed or no mode fits it. Frame rates that have
+     * not been probed yet are probed in the background first;
+     * {@link #runWhenSettled(Runnable)} waits for that.
+     * @param tracks The playlist
+     * @param index The index of the entry about to be played
+     */
+    void matchTrack(List<String> tracks, int index) {
+        if (mView.getDisplay() == null) {
+            return;
+        }
+        String track = tracks.get(index);
+        List<File> files = getLookaheadFiles(tracks, index);
+        int request = ++mRequest;
+        float[] rates = new float[files.size()];
+        boolean cached = true;
+        for (int i = 0; i < rates.length && cached; i++) {
+            Float rate = mFrameRates.get(files.get(i).getPath());
+            cached = rate != null;
+            rates[i] = cached ? rate : 0;
+        }
+        if (cached) {
+            matchFrameRates(track, rates);
+            return;
+        }
+
+        mIsProbing = true;
+        mHandler.removeCallbacks(mSwitchTimeout);
+        mHandler.postDelayed(mSwitchTimeout, SWITCH_TIMEOUT_MILLIS);
+        mProbeExecutor.execute(() -> {
+            for (int i = 0; i < rates.length; i++) {
+                rates[i] = probeFrameRate(files.get(i));
+            }
+            mHandler.post(() -> {
+                if (request != mRequest || !mIsProbing) {
+                    return;
+                }
+                mIsProbing = false;
+                matchFrameRates(track, rates);
+                if (!mIsSwitching) {
+                    finishSwitch();
+                }
+            });
+        });
+    }
+
+    /**
+     * @return The files whose frame rates decide the mode for the given
+     * playlist entry: its video and those of up to LOOKAHEAD following
+     * entries, skipping breaks
+     */
+    private static List<File> getLookaheadFiles(List<String> tracks, int index) {
+        List<File> files = new ArrayList<>();
+        for (int i = index; i < tracks.size() && files.size() <= LOOKAHEAD; i++) {
+            String track = tracks.get(i);
+            if (Session.isBreakCommand(track)) {
+                continue;
+            }
+            String[] pair = Session.parseStimulusPair(track);
+            String video = Session.getVideoFileName(pair != null ? pair[0] : track);
+            files.add(new File(Configuration.sFolderVideos, video));
+        }
+        return files;
+    }
+
+    /**
+     * Requests the display mode for the given frame rates.
+     * @param track The playlist entry about to be played, for logging
+     * @param rates The frame rate of its video, followed by those of the next
+     *              videos (0 where unknown)
+     */
+    private void matchFrameRates(String track, float[] rates) {
+        Display display = mView.getDisplay();
+        if (display == null) {
+            return;
+        }
+        if (rates.length == 0 || rates[0] <= 0) {
+            Log.d(TAG, "Frame rate of " + track + " unknown, keeping display mode");
+            return;
+        }
+
+        Display.Mode current = display.getMode();
+        List<Display.Mode> modes = new ArrayList<>();
+        for (Display.Mode mode : display.getSupportedModes()) {
+            if (mode.getPhysicalWidth() == current.getPhysicalWidth()
+                    && mode.getPhysicalHeight() == current.getPhysicalHeight()) {
+                modes.add(mode);
+            }
+        }
+        float[] refreshRates = new float[modes.size()];
+        int currentIndex = -1;
+        for (int i = 0; i < modes.size(); i++) {
+            refreshRates[i] = modes.get(i).getRefreshRate();
+            if (modes.get(i).getModeId() == current.getModeId()) {
+                currentIndex = i;
+            }
+        }
+        int selected = selectMode(refreshRates, currentIndex, rates);
+        if (selected < 0) {
+            Log.w(TAG, "No display mode matches " + rates[0] + " fps, keeping " + current.getRefreshRate() + " Hz");
+            return;
+        }
+
+        Display.Mode mode = modes.get(selected);
+        setSurfaceFrameRate(rates[0]);
+        if (mode.getModeId() == mPreferredModeId) {
+            return;
+        }
+        mPreferredModeId = mode.getModeId();
+        WindowManager.LayoutParams params = mWindow.getAttributes();
+        params.preferredDisplayModeId = mPreferredModeId;
+        mWindow.setAttributes(params);
+        if (mode.getModeId() == current.getModeId()) {
+            Log.d(TAG, "Keeping " + mode.getRefreshRate() + " Hz for " + rates[0] + " fps");
+            finishSwitch();
+            return;
+        }
+        Log.i(TAG, "Switching display from " + current.getRefreshRate() + " Hz to "
+                + mode.getRefreshRate() + " Hz for " + rates[0] + " fps");
+        if (!mIsSwitching) {
+            mIsSwitching = true;
+            mDisplayManager.registerDisplayListener(this, mHandler);
+        }
+        mHandler.removeCallbacks(mSwitchTimeout);
+        mHandler.postDelayed(mSwitchTimeout, SWITCH_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * Runs the given action once the display has switched to the requested
+     * mode, or right away if neither a probe nor a switch is pending. Replaces
+     * an action that is still waiting.
+     */
+    void runWhenSettled(Runnable start) {
+        if (!mIsSwitching && !mIsProbing) {
+            start.run();
+            return;
+        }
+        Log.d(TAG, mIsProbing ? "Waiting for frame rate probe" : "Waiting for display mode switch");
+        mPendingStart = start;
+    }
+
+    /**
+     * @return The current refresh rate of the display the videos are shown
+     * on, or 0 if the surface is not attached to a display
+     */
+    float getRefreshRate() {
+        Display display = mView.getDisplay();
+        return display != null ? display.getRefreshRate() : 0;
+    }
+
+    /**
+     * Stops waiting for a probe or mode switch and drops a pending start. The
+     * preferred mode stays in place for the next video.
+     */
+    void cancel() {
+        mRequest++;
+        mPendingStart = null;
+        finishSwitch();
+    }
+
+    /**
+     * Cancels and ends the probe thread, at the end of the session.
+     */
+    void release() {
+        cancel();
+        mProbeExecutor.shutdownNow();
+    }
+
+    /**
+     * Returns the frame rate of a video, from the container if it declares
+     * one, otherwise estimated from the timestamps of its first frames.
+     * Results are cached per file. Called on the probe thread.
+     * @return The frame rate, or 0 if it cannot be determined
+     */
+    float probeFrameRate(File file) {
+        Float cached = mFrameRates.get(file.getPath());
+        if (cached != null) {
+            return cached;
+        }
+        float frameRate = 0;
+        MediaExtractor extractor = new MediaExtractor();
+        try {
+            VideoPack.Entry packed = VideoPack.resolve(file);
+            if (packed != null) {
+                // A separate descriptor, so the shared one of the pack keeps its position
+                try (FileInputStream in = packed.openStream()) {
+                    extractor.setDataSource(in.getFD(), packed.getOffset(), packed.getLength());
+                }
+            } else {
+                extractor.setDataSource(file.getPath());
+            }
+            for (int i = 0; i < extractor.getTrackCount(); i++) {
+                MediaFormat format = extractor.getTrackFormat(i);
+                String mime = format.getString(MediaFormat.KEY_MIME);
+                if (mime == null || !mime.startsWith("video/")) {
+                    continue;
+                }
+                if (format.containsKey(MediaFormat.KEY_FRAME_RATE)) {
+                    try {
+                        frameRate = format.getInteger(MediaFormat.KEY_FRAME_RATE);
+                    } catch (ClassCastException e) {
+                        frameRate = format.getFloat(MediaFormat.KEY_FRAME_RATE);
+                    }
+                }
+                if (frameRate <= 0) {
+                    extractor.selectTrack(i);
+                    long[] times = new long[PROBE_SAMPLES];
+                    int count = 0;
+                    while (count < PROBE_SAMPLES && extractor.getSampleTime() >= 0) {
+                        times[count++] = extractor.getSampleTime();
+                        extractor.advance();
+                    }
+                    frameRate = estimateFrameRate(Arrays.copyOf(times, count));
+                }
+                break;
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            Log.w(TAG, "Could not probe frame rate of " + file.getName() + ": " + e);
+        } finally {
+            extractor.release();
+        }
+        Log.d(TAG, "Frame rate of " + file.getName() + ": " + frameRate + " fps");
+        mFrameRates.put(file.getPath(), frameRate);
+        return frameRate;
+    }
+
+    /**
+     * Estimates a frame rate from sample timestamps, which may be in decoding
+     * order, using the median distance between consecutive frames.
+     * @param timesUs Presentation timestamps in microseconds
+     * @return The frame rate, or 0 if there are fewer than two distinct timestamps
+     */
+    static float estimateFrameRate(long[] timesUs) {
+        long[] sorted = timesUs.clone();
+        Arrays.sort(sorted);
+        List<Long> deltas = new ArrayList<>();
+        for (int i = 1; i < sorted.length; i++) {
+            if (sorted[i] > sorted[i - 1]) {
+                deltas.add(sorted[i] - sorted[i - 1]);
+            }
+        }
+        if (deltas.isEmpty()) {
+            return 0;
+        }
+        deltas.sort(null);
+        return 1e6f / deltas.get(deltas.size() / 2);
+    }
+
+    /**
+     * Chooses the display mode for a video. The current mode is kept if it
+     * fits the frame rate of the video. Otherwise, of the modes that fit, the
+     * one that also fits the longest run of the following videos is chosen,
+     * and among those the one with the highest refresh rate.
+     * @param refreshRates The refresh rates of the available modes
+     * @param current The index of the current mode, -1 if unknown
+     * @param frameRates The frame rate of the video, followed by those of the
+     *                   next videos (0 where unknown)
+     * @return The index of the chosen mode, or -1 if no mode fits
+     */
+    static int selectMode(float[] refreshRates, int current, float[] frameRates) {
+        if (current >= 0 && isMultiple(refreshRates[current], frameRates[0])) {
+            return current;
+        }
+        int best = -1;
+        int bestRun = 0;
+        for (int i = 0; i < refreshRates.length; i++) {
+            int run = 0;
+            while (run < frameRates.length
+                    && (frameRates[run] <= 0 || isMultiple(refreshRates[i], frameRates[run]))) {
+                run++;
+            }
+            if (run == 0) {
+                continue;
+            }
+            if (run > bestRun || (run == bestRun && refreshRates[i] > refreshRates[best])) {
+                best = i;
+                bestRun = run;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * @return Whether each frame at the given frame rate is shown for a whole
+     * number of refreshes at the given refresh rate
+     */
+    static boolean isMultiple(float refreshRate, float frameRate) {
+        if (refreshRate <= 0 || frameRate <= 0) {
+            return false;
+        }
+        long multiple = Math.round(refreshRate / frameRate);
+        return multiple >= 1 && Math.abs(refreshRate - multiple * frameRate) <= refreshRate * MULTIPLE_TOLERANCE;
+    }
+
+    /**
+     * Tells the compositor the frame rate of the content on the video surface,
+     * so it does not vote for a different rate than the preferred mode.
+     */
+    private void setSurfaceFrameRate(float frameRate) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.R || mView.getHolder() == null) {
+            return;
+        }
+        Surface surface = mView.getHolder().getSurface();
+        if (surface == null || !surface.isValid()) {
+            return;
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
+            surface.setFrameRate(frameRate, Surface.FRAME_RATE_COMPATIBILITY_FIXED_SOURCE,
+                    Surface.CHANGE_FRAME_RATE_ALWAYS);
+        } else {
+            surface.setFrameRate(frameRate, Surface.FRAME_RATE_COMPATIBILITY_FIXED_SOURCE);
+        }
+    }
+
+    private void onSwitchTimeout() {
+        if (mIsProbing) {
+            Log.w(TAG, "Frame rates not probed within " + SWITCH_TIMEOUT_MILLIS + " ms, starting anyway");
+        } else {
+            Log.w(TAG, "Display did not switch to mode " + mPreferredModeId + " within "
+                    + SWITCH_TIMEOUT_MILLIS + " ms, starting anyway");
+        }
+        finishSwitch();
+    }
+
+    private void finishSwitch() {
+        mHandler.removeCallbacks(mSwitchTimeout);
+        mIsProbing = false;
+        if (mIsSwitching) {
+            mIsSwitching = false;
+            mDisplayManager.unregisterDisplayListener(this);
+        }
+        Runnable start = mPendingStart;
+        mPendingStart = null;
+        if (start != null) {
+            start.run();
+        }
+    }
+
+    @Override
+    public void onDisplayChanged(int displayId) {
+        Display display = mView.getDisplay();
+        if (display == null || display.getDisplayId() != displayId) {
+            return;
+        }
+        if (display.getMode().getModeId() == mPreferredModeId) {
+            Log.d(TAG, "Display switched to " + display.getRefreshRate() + " Hz");
+            finishSwitch();
+        }
+    }
+
+    @Override
+    public void onDisplayAdded(int displayId) {
+    }
+
+    @Override
+    public void onDisplayRemoved(int displayId) {
+    }
+}
@@ -0,0 +1,286 @@
+/*	This file is part of SubjectivePlayer for Android.
+ *
+ *	SubjectivePlayer for Android is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	SubjectivePlayer for Android is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU General Public License for more details.
+ *
+ *	You should have received a copy of the GNU General Public License
+ *	along with SubjectivePlayer for Android.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.univie.subjectiveplayer;
+
+import android.media.AudioManager;
+import android.media.MediaPlayer;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.SurfaceHolder;
+import android.view.SurfaceView;
+import android.view.View;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * Plays a DSIS stimulus pair: the reference video, then, after an optional
+ * mid-grey interval, the test video.
+ *
+ * Both videos are prepared up front, each on its own player and surface, and
+ * the reference starts when {@link #start()} is called, so the caller can wait
+ * for the display to settle in between. The test surface is stacked on top of the reference surface and stays empty
+ * until the test video renders its first frame, so the last reference frame
+ * (or the grey field) stays on screen until the test video actually appears.
+ * The time from the end of the reference to the first frame of the test
+ * video, minus the grey interval, is measured as the switch gap.
+ */
+public class DsisPlayer implements SurfaceHolder.Callback {
+
+    private static final String TAG = DsisPlayer.class.getSimpleName();
+
+    /** Switch gaps longer than this (two frames at 60 Hz) are logged as warnings */
+    static final double SWITCH_GAP_WARNING_MILLIS = 34;
+
+    /**
+     * Receives the progress of a stimulus pair. Called on the main thread.
+     */
+    public interface Listener {
+        /**
+         * Called when both videos are prepared. The reference starts when
+         * {@link #start()} is called.
+         * @param width The width of the reference video, or 0 if unknown
+         * @param height The height of the reference video, or 0 if unknown
+         */
+        void onPairPrepared(int width, int height);
+
+        /**
+         * Called when the reference video has rendered its first frame.
+         */
+        void onFirstFrame();
+
+        /**
+         * Called when the test video has finished.
+         * @param switchGapMillis The measured switch gap, or -1 if the first
+         *                        frame of the test video was not reported
+         */
+        void onPairCompleted(double switchGapMillis);
+
+        /**
+         * Called when the pair could not be prepared.
+         */
+        void onPairFailed(Exception error);
+    }
+
+    private final SurfaceView mReferenceView;
+    private final SurfaceView mTestView;
+    private final View mGreyView;
+    private final Listener mListener;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mStartTest = this::startTest;
+
+    private MediaPlayer mReference;
+    private MediaPlayer mTest;
+    private boolean mIsTestSurfaceValid = false;
+
+    /** Pair waiting for the test surface to be created */
+    private File mPendingReference;
+    private File mPendingTest;
+
+    private int mGreyMillis = 0;
+    private long mReferenceEndNanos = -1;
+    private double mSwitchGapMillis = -1;
+
+    /**
+     * Creates the player. Must be called before the views are attached to the
+     * window, i.e. in onCreate().
+     * @param referenceView The surface for the reference video
+     * @param testView The surface for the test video, laid out on top of the reference surface
+     * @param greyView The view covering both surfaces during the grey interval
+     * @param listener Receives the progress of each pair
+     */
+    public DsisPlayer(SurfaceView referenceView, SurfaceView testView, View greyView, Listener listener) {
+        mReferenceView = referenceView;
+        mTestView = testView;
+        mGreyView = greyView;
+        mListener = listener;
+        mTestView.setZOrderMediaOverlay(true);
+        mTestView.getHolder().addCallback(this);
+    }
+
+    /**
+     * Prepares and plays a stimulus pair. The surface of the reference must
+     * be valid; the test surface is shown and the pair starts as soon as it
+     * has been created.
+     * @param reference The reference video
+     * @param test The test video
+     * @param greyMillis Duration of the grey interval, 0 to switch directly
+     */
+    public void play(File reference, File test, int greyMillis) {
+        release();
+        mGreyMillis = greyMillis;
+        if (!mIsTestSurfaceValid) {
+            Log.d(TAG, "Test surface not ready, queuing pair");
+            mPendingReference = reference;
+            mPendingTest = test;
+            mTestView.setVisibility(View.VISIBLE);
+            return;
+        }
+        prepare(reference, test);
+    }
+
+    /**
+     * Starts the reference video of the prepared pair. Does nothing if no pair
+     * is prepared.
+     */
+    public void start() {
+        if (mReference != null) {
+            mReference.start();
+        }
+    }
+
+    /**
+     * Stops playback and releases both players.
+     */
+    public void release() {
+        mHandler.removeCallbacks(mStartTest);
+        mPendingReference = null;
+        mPendingTest = null;
+        if (mReference != null) {
+            mReference.release();
+            mReference = null;
+        }
+        if (mTest != null) {
+            mTest.release();
+            mTest = null;
+        }
+        mReferenceEndNanos = -1;
+        mSwitchGapMillis = -1;
+        mGreyView.setVisibility(View.GONE);
+    }
+
+    private void prepare(File reference, File test) {
+        long start = SystemClock.elapsedRealtimeNanos();
+        try {
+            mReference = createPlayer(reference, mReferenceView.getHolder());
+            mTest = createPlayer(test, mTestView.getHolder());
+            mReference.setOnInfoListener(this::onReferenceInfo);
+            mReference.setOnCompletionListener(mp -> onReferenceCompleted());
+            mTest.setOnInfoListener(this::onTestInfo);
+            mTest.setOnCompletionListener(mp -> onTestCompleted());
+            mReference.prepare();
+            mTest.prepare();
+        } catch (IOException | IllegalStateException | IllegalArgumentException e) {
+            Log.e(TAG, "Could not prepare pair " + reference.getName() + ", " + test.getName() + ": " + e);
+            release();
+            mListener.onPairFailed(e);
+            return;
+        }
+        Log.d(TAG, "Prepared pair " + reference.getName() + ", " + test.getName() + " in "
+                + (SystemClock.elapsedRealtimeNanos() - start) / 1000000 + " ms");
+
+        mListener.onPairPrepared(mReference.getVideoWidth(), mReference.getVideoHeight());
+    }
+
+    private static MediaPlayer createPlayer(File file, SurfaceHolder holder) throws IOException {
+        VideoPack.Entry packed = VideoPack.resolve(file);
+        if (packed == null && (!file.exists() || !file.canRead())) {
+            throw new IOException("Video file " + file.getPath() + " not found!");
+        }
+        MediaPlayer player = new MediaPlayer();
+        if (packed != null) {
+            // Both videos of a pair are read at the same time, so each gets its own descriptor
+            try (FileInputStream in = packed.openStream()) {
+                player.setDataSource(in.getFD(), packed.getOffset(), packed.getLength());
+            }
+        } else {
+            player.setDataSource(file.getPath());
+        }
+        player.setDisplay(holder);
+        player.setScreenOnWhilePlaying(true);
+        player.setAudioStreamType(AudioManager.STREAM_MUSIC);
+        player.setOnErrorListener((mp, what, extra) -> {
+            // Returning false moves on to the completion listener
+            Log.e(TAG, "Error playing " + file.getName() + ": what=" + what + ", extra=" + extra);
+            return false;
+        });
+        return player;
+    }
+
+    private boolean onReferenceInfo(MediaPlayer mp, int what, int extra) {
+        if (what != MediaPlayer.MEDIA_INFO_VIDEO_RENDERING_START) {
+            return false;
+        }
+        mListener.onFirstFrame();
+        return true;
+    }
+
+    private void onReferenceCompleted() {
+        mReferenceEndNanos = SystemClock.elapsedRealtimeNanos();
+        if (mGreyMillis > 0) {
+            mGreyView.setVisibility(View.VISIBLE);
+            mHandler.postDelayed(mStartTest, mGreyMillis);
+        } else {
+            startTest();
+        }
+    }
+
+    private void startTest() {
+        if (mTest != null) {
+            mTest.start();
+        }
+    }
+
+    private boolean onTestInfo(MediaPlayer mp, int what, int extra) {
+        if (what != MediaPlayer.MEDIA_INFO_VIDEO_RENDERING_START || mReferenceEndNanos < 0
+                || mSwitchGapMillis >= 0) {
+            return false;
+        }
+        // The first test frame is on the test surface now, which covers the reference
+        mGreyView.setVisibility(View.GONE);
+        mSwitchGapMillis = Math.max(0,
+                (SystemClock.elapsedRealtimeNanos() - mReferenceEndNanos) / 1e6 - mGreyMillis);
+        if (mSwitchGapMillis > SWITCH_GAP_WARNING_MILLIS) {
+            Log.w(TAG, "Perceptible switch gap: " + mSwitchGapMillis + " ms");
+        } else {
+            Log.d(TAG, "Switch gap: " + mSwitchGapMillis + " ms");
+        }
+        return true;
+    }
+
+    private void onTestCompleted() {
+        double switchGapMillis = mSwitchGapMillis;
+        release();
+        // Recreate the test surface for the next pair, so it starts out empty
+        mTestView.setVisibility(View.INVISIBLE);
+        mListener.onPairCompleted(switchGapMillis);
+    }
+
+    @Override
+    public void surfaceCreated(SurfaceHolder holder) {
+        mIsTestSurfaceValid = true;
+        if (mPendingReference != null) {
+            File reference = mPendingReference;
+            File test = mPendingTest;
+            mPendingReference = null;
+            mPendingTest = null;
+            prepare(reference, test);
+        }
+    }
+
+    @Override
+    public void surfaceChanged(SurfaceHolder holder, int format, int width, int height) {
+    }
+
+    @Override
+    public void surfaceDestroyed(SurfaceHolder holder) {
+        mIsTestSurfaceValid = false;
+    }
+}
@@ -19,12 +19,17 @@ package org.univie.subjectiveplayer;
 import android.util.Log;
 
 import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
 import com.google.gson.JsonSyntaxException;
-import com.google.gson.annotations.SerializedName;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
 
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -35,32 +40,89 @@ public class JsonConfigFile extends BaseConfigFile {
 
     private static final String TAG = JsonConfigFile.class.getSimpleName();
 
+    /** Shared parser instance, created lazily on first use (or by warmUp()) */
+    private static volatile Gson sGson = null;
+
+    /** Participant whose playlist is generated when the file has a design instead of a playlist */
+    private final int participantId;
+
+    // Playlist design (null if the file has a playlist)
+    private PlaylistDesign design = null;
+
     /**
      * Creates and parses a JSON config file.
      * @param configFile The config file to parse
      */
     public JsonConfigFile(File configFile) {
+        this(configFile, 1);
+    }
+
+    /**
+     * Creates and parses a JSON config file, generating the playlist of the
+     * given participant if the file contains a design.
+     * @param configFile The config file to parse
+     * @param participantId The participant to generate the playlist for
+     */
+    public JsonConfigFile(File configFile, int participantId) {
         super(configFile);
+        this.participantId = participantId;
         parse();
     }
 
+    /**
+     * Returns the playlist design, or null if the file lists the playlist directly.
+     */
+    public PlaylistDesign getDesign() {
+        return design;
+    }
+
+    /**
+     * Returns the shared Gson instance, creating it if necessary.
+     * Gson instances are thread-safe and cache their type adapters.
+     * The config schema is bound through the hand-written adapters below,
+     * so parsing does not use reflection and survives minification.
+     */
+    private static Gson gson() {
+        Gson gson = sGson;
+        if (gson == null) {
+            synchronized (JsonConfigFile.class) {
+                gson = sGson;
+                if (gson == null) {
+                    gson = new GsonBuilder()
+                            .registerTypeAdapter(JsonConfig.class, new JsonConfigAdapter())
+                            .registerTypeAdapter(CustomMessages.class, new CustomMessagesAdapter())
+                            .registerTypeAdapter(Question.class, new QuestionAdapter())
+                            .registerTypeAdapter(PlaylistDesign.class, new PlaylistDesignAdapter())
+                            .create();
+                    sGson = gson;
+                }
+            }
+        }
+        return gson;
+    }
+
+    /**
+     * Loads the Gson classes and builds the type adapters for the config
+     * schema by parsing a minimal document. Meant to be called from a
+     * background thread at startup so that the first real parse is fast.
+     */
+    public static void warmUp() {
+        long start = System.nanoTime();
+        gson().fromJson("{\"playlist\": []}", JsonConfig.class);
+        Log.d(TAG, "JSON parser warmed up in " + (System.nanoTime() - start) / 1000 + " us");
+    }
+
     /**
      * Internal class representing the JSON structure.
      */
     private static class JsonConfig {
-        @SerializedName("method")
         String method;
-
-        @SerializedName("custom_messages")
         CustomMessages customMessages;
-
-        @SerializedName("playlist")
         List<String> playlist;
-
-        @SerializedName("pre_questionnaire")
+        PlaylistDesign design;
+        List<String> logFormats;
+        String playbackEngine;
         List<Question> preQuestionnaire;
-
-        @SerializedName("post_questionnaire")
         List<Question> postQuestionnaire;
     }
 
@@ -68,32 +130,475 @@ public class JsonConfigFile extends BaseConfigFile {
      * Internal class for custom messages section.
      */
     private static class CustomMessages {
-        @SerializedName("start_message")
         String startMessage;
-
-        @SerializedName("finish_message")
         String finishMessage;
-
-        @SerializedName("training_message")
         String trainingMessage;
-
-        @SerializedName("pre_questionnaire_message")
         String preQuestionnaireMessage;
-
-        @SerializedName("post_questionnaire_message")
         String postQuestionnaireMessage;
     }
 
+    // ==================== Type adapters ====================
+    // These mirror json-schema/subject-config.schema.json. Unknown properties
+    // are skipped, and strings/booleans are coerced the same way Gson's
+    // built-in adapters do, so the behavior matches reflective binding.
+
+    /**
+     * Type adapter for the top-level config object.
+     */
+    private static final class JsonConfigAdapter extends TypeAdapter<JsonConfig> {
+        private final CustomMessagesAdapter customMessagesAdapter = new CustomMessagesAdapter();
+        private final QuestionAdapter questionAdapter = new QuestionAdapter();
+        private final PlaylistDesignAdapter designAdapter = new PlaylistDesignAdapter();
+
+        @Override
+        public JsonConfig read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            JsonConfig config = new JsonConfig();
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "method":
+                        config.method = readString(in);
+                        break;
+                    case "custom_messages":
+                        config.customMessages = customMessagesAdapter.read(in);
+                        break;
+                    case "playlist":
+                        config.playlist = readPlaylist(in);
+                        break;
+                    case "design":
+                        config.design = designAdapter.read(in);
+                        break;
+                    case "log_formats":
+                        config.logFormats = readStringList(in);
+                        break;
+                    case "playback_engine":
+                        config.playbackEngine = readString(in);
+                        break;
+                    case "pre_questionnaire":
+                        config.preQuestionnaire = readQuestionList(in);
+                        break;
+                    case "post_questionnaire":
+                        config.postQuestionnaire = readQuestionList(in);
+                        break;
+                    default:
+                        in.skipValue();
+                }
+            }
+            in.endObject();
+            return config;
+        }
+
+        @Override
+        public void write(JsonWriter out, JsonConfig config) throws IOException {
+            if (config == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            out.name("method").value(config.method);
+            out.name("custom_messages");
+            customMessagesAdapter.write(out, config.customMessages);
+            out.name("playlist");
+            writeStringList(out, config.playlist);
+            out.name("design");
+            designAdapter.write(out, config.design);
+            out.name("log_formats");
+            writeStringList(out, config.logFormats);
+            out.name("playback_engine").value(config.playbackEngine);
+            out.name("pre_questionnaire");
+            writeQuestionList(out, config.preQuestionnaire);
+            out.name("post_questionnaire");
+            writeQuestionList(out, config.postQuestionnaire);
+            out.endObject();
+        }
+
+        private List<Question> readQuestionList(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            List<Question> questions = new ArrayList<>();
+            in.beginArray();
+            while (in.hasNext()) {
+                questions.add(questionAdapter.read(in));
+            }
+            in.endArray();
+            return questions;
+        }
+
+        private void writeQuestionList(JsonWriter out, List<Question> questions) throws IOException {
+            if (questions == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginArray();
+            for (Question question : questions) {
+                questionAdapter.write(out, question);
+            }
+            out.endArray();
+        }
+    }
+
+    /**
+     * Type adapter for the custom_messages section.
+     */
+    private static final class CustomMessagesAdapter extends TypeAdapter<CustomMessages> {
+        @Override
+        public CustomMessages read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            CustomMessages messages = new CustomMessages();
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "start_message":
+                        messages.startMessage = readString(in);
+                        break;
+                    case "finish_message":
+                        messages.finishMessage = readString(in);
+                        break;
+                    case "training_message":
+                        messages.trainingMessage = readString(in);
+                        break;
+                    case "pre_questionnaire_message":
+                        messages.preQuestionnaireMessage = readString(in);
+                        break;
+                    case "post_questionnaire_message":
+                        messages.postQuestionnaireMessage = readString(in);
+                        break;
+                    default:
+                        in.skipValue();
+                }
+            }
+            in.endObject();
+            return messages;
+        }
+
+        @Override
+        public void write(JsonWriter out, CustomMessages messages) throws IOException {
+            if (messages == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            out.name("start_message").value(messages.startMessage);
+            out.name("finish_message").value(messages.finishMessage);
+            out.name("training_message").value(messages.trainingMessage);
+            out.name("pre_questionnaire_message").value(messages.preQuestionnaireMessage);
+            out.name("post_questionnaire_message").value(messages.postQuestionnaireMessage);
+            out.endObject();
+        }
+    }
+
+    /**
+     * Type adapter for a single questionnaire question.
+     */
+    static final class QuestionAdapter extends TypeAdapter<Question> {
+        @Override
+        public Question read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            String question = null;
+            String type = null;
+            List<String> options = null;
+            Boolean required = null;
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "question":
+                        question = readString(in);
+                        break;
+                    case "type":
+                        type = readString(in);
+                        break;
+                    case "options":
+                        options = readStringList(in);
+                        break;
+                    case "required":
+                        required = readBoolean(in);
+                        break;
+                    default:
+                        in.skipValue();
+                }
+            }
+            in.endObject();
+            return new Question(question, type, options, required);
+        }
+
+        @Override
+        public void write(JsonWriter out, Question question) throws IOException {
+            if (question == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            out.name("question").value(question.getQuestion());
+            out.name("type").value(question.getType());
+            out.name("options");
+            writeStringList(out, question.getOptions());
+            out.name("required").value(question.getRequired());
+            out.endObject();
+        }
+    }
+
+    /**
+     * Type adapter for the playlist design section.
+     */
+    private static final class PlaylistDesignAdapter extends TypeAdapter<PlaylistDesign> {
+        @Override
+        public PlaylistDesign read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            String scheme = null;
+            List<String> videos = null;
+            List<String> training = null;
+            Integer blocks = null;
+            Integer breakInterval = null;
+            Integer breakDuration = null;
+            String sourcePattern = null;
+            Long seed = null;
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "scheme":
+                        scheme = readString(in);
+                        break;
+                    case "videos":
+                        videos = readPlaylist(in);
+                        break;
+                    case "training":
+                        training = readPlaylist(in);
+                        break;
+                    case "blocks":
+                        blocks = readInteger(in);
+                        break;
+                    case "break_interval":
+                        breakInterval = readInteger(in);
+                        break;
+                    case "break_duration":
+                        breakDuration = readInteger(in);
+                        break;
+                    case "source_pattern":
+                        sourcePattern = readString(in);
+                        break;
+                    case "seed":
+                        seed = readLong(in);
+                        break;
+                    default:
+                        in.skipValue();
+                }
+            }
+            in.endObject();
+            return new PlaylistDesign(scheme, videos, training, blocks, breakInterval, breakDuration,
+                    sourcePattern, seed);
+        }
+
+        @Override
+        public void write(JsonWriter out, PlaylistDesign design) throws IOException {
+            if (design == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            out.name("scheme").value(design.getScheme());
+            out.name("videos");
+            writeStringList(out, design.getVideos());
+            out.name("training");
+            writeStringList(out, design.getTraining());
+            out.name("blocks").value(design.getBlocks());
+            out.name("break_interval").value(design.getBreakInterval());
+            if (design.getBreakDuration() >= 0) {
+                out.name("break_duration").value(design.getBreakDuration());
+            }
+            out.name("source_pattern").value(design.getSourcePattern());
+            out.name("seed").value(design.getSeed());
+            out.endObject();
+        }
+    }
+
+    /**
+     * Reads an integer value, or null. Like Gson's built-in adapter, numbers
+     * given as strings are accepted and invalid numbers are a syntax error.
+     */
+    private static Integer readInteger(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        try {
+            return in.nextInt();
+        } catch (NumberFormatException e) {
+            throw new JsonSyntaxException(e);
+        }
+    }
+
+    /**
+     * Reads a long value, or null.
+     */
+    private static Long readLong(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        try {
+            return in.nextLong();
+        } catch (NumberFormatException e) {
+            throw new JsonSyntaxException(e);
+        }
+    }
+
+    /**
+     * Reads a double value, or null.
+     */
+    private static Double readDouble(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        try {
+            return in.nextDouble();
+        } catch (NumberFormatException e) {
+            throw new JsonSyntaxException(e);
+        }
+    }
+
+    /**
+     * Reads a string value, accepting numbers and booleans like Gson's built-in adapter.
+     */
+    private static String readString(JsonReader in) throws IOException {
+        JsonToken token = in.peek();
+        if (token == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        if (token == JsonToken.BOOLEAN) {
+            return Boolean.toString(in.nextBoolean());
+        }
+        return in.nextString();
+    }
+
+    /**
+     * Reads a boolean value, accepting "true"/"false" strings like Gson's built-in adapter.
+     */
+    private static Boolean readBoolean(JsonReader in) throws IOException {
+        JsonToken token = in.peek();
+        if (token == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        if (token == JsonToken.STRING) {
+            return Boolean.parseBoolean(in.nextString());
+        }
+        return in.nextBoolean();
+    }
+
+    /**
+     * Reads an array of strings, or null.
+     */
+    private static List<String> readStringList(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        List<String> values = new ArrayList<>();
+        in.beginArray();
+        while (in.hasNext()) {
+            values.add(readString(in));
+        }
+        in.endArray();
+        return values;
+    }
+
+    /**
+     * Reads a list of playlist entries, or null. Entries are strings, or
+     * segments given as objects with the video and its start and end time in
+     * seconds, which are read as "video@start-end" strings.
+     */
+    private static List<String> readPlaylist(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        List<String> values = new ArrayList<>();
+        in.beginArray();
+        while (in.hasNext()) {
+            if (in.peek() == JsonToken.BEGIN_OBJECT) {
+                values.add(readSegment(in));
+            } else {
+                values.add(readString(in));
+            }
+        }
+        in.endArray();
+        return values;
+    }
+
+    /**
+     * Reads a segment object ({"video": ..., "start": ..., "end": ...}) as a
+     * playlist entry.
+     */
+    private static String readSegment(JsonReader in) throws IOException {
+        String video = null;
+        Double start = null;
+        Double end = null;
+        in.beginObject();
+        while (in.hasNext()) {
+            switch (in.nextName()) {
+                case "video":
+                    video = readString(in);
+                    break;
+                case "start":
+                    start = readDouble(in);
+                    break;
+                case "end":
+                    end = readDouble(in);
+                    break;
+                default:
+                    in.skipValue();
+            }
+        }
+        in.endObject();
+        if (video == null || start == null || end == null) {
+            throw new JsonSyntaxException("Playlist segment must have video, start and end");
+        }
+        return Session.formatSegment(video.trim(), start, end);
+    }
+
+    /**
+     * Writes an array of strings, or null.
+     */
+    private static void writeStringList(JsonWriter out, List<String> values) throws IOException {
+        if (values == null) {
+            out.nullValue();
+            return;
+        }
+        out.beginArray();
+        for (String value : values) {
+            out.value(value);
+        }
+        out.endArray();
+    }
+
     /**
      * Parses the JSON config file and populates all fields.
      */
     @Override
     protected void parse() {
-        Gson gson = new Gson();
         JsonConfig config;
+        long start = System.nanoTime();
 
         try (FileReader reader = new FileReader(file)) {
-            config = gson.fromJson(reader, JsonConfig.class);
+            config = gson().fromJson(reader, JsonConfig.class);
+            Log.d(TAG, "Parsed " + filename + " in " + (System.nanoTime() - start) / 1000 + " us");
         } catch (IOException e) {
             Log.e(TAG, "Error reading config file: " + filename, e);
             parseErrors.add(new ParseError(0, "Could not read file: " + e.getMessage()));
@@ -115,7 +620,7 @@ public class JsonConfigFile extends BaseConfigFile {
             if (parsedMethod == Methods.UNDEFINED) {
                 parseErrors.add(new ParseError(0,
                         "Unknown method \"" + config.method +
-                        "\" (valid: ACR, CONTINUOUS, DSIS, TIME_CONTINUOUS)"));
+                        "\" (valid: ACR, CONTINUOUS, DSIS, TIME_CONTINUOUS, PC)"));
             } else {
                 method = parsedMethod;
             }
@@ -140,12 +645,36 @@ public class JsonConfigFile extends BaseConfigFile {
             }
         }
 
-        // Parse playlist
-        if (config.playlist == null || config.playlist.isEmpty()) {
+        // Parse log formats
+        if (config.logFormats != null) {
+            parseLogFormats(config.logFormats);
+        }
+
+        // Parse playback engine
+        if (config.playbackEngine != null) {
+            int engine = CodecPlayer.parseEngine(config.playbackEngine);
+            if (engine < 0) {
+                parseErrors.add(new ParseError(0, "Unknown playback engine \"" + config.playbackEngine
+                        + "\" (valid: " + String.join(", ", CodecPlayer.ENGINE_NAMES) + ")"));
+            } else {
+                playbackEngine = engine;
+            }
+        }
+
+        // Parse playlist, or generate it from the design
+        if (config.design != null) {
+            if (config.playlist != null) {
+                parseErrors.add(new ParseError(0, "Use either playlist or design, not both"));
+            }
+            design = config.design;
+            generatePlaylist();
+        } else if (config.playlist == null || config.playlist.isEmpty()) {
             parseErrors.add(new ParseError(0, "Playlist is required and cannot be empty"));
         } else {
             parsePlaylist(config.playlist);
         }
+        validateStimulusPairs();
+        validateSegments();
 
         // Parse questionnaires
         if (config.preQuestionnaire != null && !config.preQuestionnaire.isEmpty()) {
@@ -181,11 +710,60 @@ public class JsonConfigFile extends BaseConfigFile {
                 return Methods.TYPE_DSIS_CATEGORICAL;
             case "TIME_CONTINUOUS":
                 return Methods.TYPE_TIME_CONTINUOUS;
+            case "PC":
+                return Methods.TYPE_PAIRED_COMPARISON;
             default:
                 return Methods.UNDEFINED;
         }
     }
 
+    /**
+     * Parses the session log formats.
+     */
+    private void parseLogFormats(List<String> names) {
+        int formats = 0;
+        for (String name : names) {
+            int format = SessionLogSink.parseFormat(name);
+            if (format == 0) {
+                parseErrors.add(new ParseError(0, "Unknown log format \"" + name + "\" (valid: "
+                        + String.join(", ", SessionLogSink.FORMAT_NAMES) + ")"));
+            }
+            formats |= format;
+        }
+        if (formats == 0) {
+            parseErrors.add(new ParseError(0, "log_formats must contain at least one format"));
+        } else {
+            logFormats = formats;
+        }
+    }
+
+    /**
+     * Generates the playlist of the participant from the design, if it is valid.
+     */
+    private void generatePlaylist() {
+        List<String> errors = design.validate();
+        for (String error : errors) {
+            parseErrors.add(new ParseError(0, "design: " + error));
+        }
+        if (!errors.isEmpty()) {
+            return;
+        }
+
+        trainingVideoCount = design.generate(participantId, entries);
+        if (trainingVideoCount > 0) {
+            trainingStartIndex = 0;
+            trainingEndIndex = trainingVideoCount - 1;
+        }
+        VideoNameTable table = entries.getTable();
+        for (int i = trainingVideoCount; i < entries.size(); i++) {
+            if (table.isBreak(entries.getId(i))) {
+                breakCount++;
+            } else {
+                videoCount++;
+            }
+        }
+    }
+
     /**
      * Parses the playlist entries, processing special markers and commands.
      */
@@ -0,0 +1,420 @@
+/*	This file is part of SubjectivePlayer for Android.
+ *
+ *	SubjectivePlayer for Android is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	SubjectivePlayer for Android is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU General Public License for more details.
+ *
+ *	You should have received a copy of the GNU General Public License
+ *	along with SubjectivePlayer for Android.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.univie.subjectiveplayer;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Packs old session and questionnaire logs of the logs folder into one
+ * compressed archive per day, in the {@link #FOLDER_NAME} subfolder.
+ *
+ * Logs are grouped by the date in their file name, so a day's archive holds
+ * all sessions started on that day (logs_yyyyMMdd.zip). An index file lists
+ * every archived log with its archive, participant ID, CRC32 and size, so ID
+ * checks and readers can find archived logs without opening the archives.
+ * Archives are written to a temporary file and renamed, and the original logs
+ * are only deleted once the archive and the index are written, so a log is
+ * never lost if the app is killed while archiving.
+ */
+public class LogArchive {
+
+    private static final String TAG = LogArchive.class.getSimpleName();
+
+    /** Subfolder of the logs folder holding the archives */
+    public static final String FOLDER_NAME = "archive";
+
+    /** Name of the index file in the archive folder */
+    public static final String INDEX_FILE_NAME = "index.txt";
+
+    private static final String ARCHIVE_PREFIX = "logs_";
+    private static final String ARCHIVE_EXTENSION = ".zip";
+    private static final long DAY_MILLIS = 24L * 60 * 60 * 1000;
+
+    /** Log file names: ID_StartTime_Rest.csv or ID_StartTime_Rest.splog */
+    private static final Pattern LOG_NAME =
+            Pattern.compile("^(.+?)_(\\d{8})-\\d{6}_.+\\.(csv|splog)$");
+
+    /** Serializes archive runs and index updates of all instances */
+    private static final Object LOCK = new Object();
+
+    /** Whether a background archive run is in progress */
+    private static final AtomicBoolean sRunning = new AtomicBoolean(false);
+
+    private final File mLogFolder;
+    private final File mArchiveFolder;
+
+    // Index entries by log name, loaded on first use
+    private Map<String, Entry> mIndex = null;
+    private long mIndexModified = -1;
+
+    /**
+     * One archived log.
+     */
+    public static final class Entry {
+        public final String archive;
+        public final String name;
+        public final String participantId;
+        public final long crc32;
+        public final long size;
+
+        Entry(String archive, String name, String participantId, long crc32, long size) {
+            this.archive = archive;
+            this.name = name;
+            this.participantId = participantId;
+            this.crc32 = crc32;
+            this.size = size;
+        }
+    }
+
+    /**
+     * Receives archived logs, see {@link #read(File, EntryHandler)}.
+     */
+    public interface EntryHandler {
+        /**
+         * Called for every log in an archive. The stream must not be closed.
+         */
+        void entry(String name, InputStream in) throws IOException;
+    }
+
+    /**
+     * Creates an archive for the given logs folder.
+     */
+    public LogArchive(File logFolder) {
+        mLogFolder = logFolder;
+        mArchiveFolder = new File(logFolder, FOLDER_NAME);
+    }
+
+    /**
+     * Archives logs older than the given number of days on a background
+     * thread, unless a run is already in progress.
+     * @param logFolder The logs folder
+     * @param minAgeDays Minimum age in days; 0 or less does nothing
+     */
+    public static void archiveInBackground(File logFolder, int minAgeDays) {
+        if (logFolder == null || minAgeDays <= 0 || !sRunning.compareAndSet(false, true)) {
+            return;
+        }
+        new Thread(() -> {
+            try {
+                new LogArchive(logFolder).archive(minAgeDays, System.currentTimeMillis());
+            } catch (IOException e) {
+                Log.e(TAG, "Error archiving logs: " + e.getMessage());
+            } finally {
+                sRunning.set(false);
+            }
+        }, "LogArchive").start();
+    }
+
+    /**
+     * Moves all logs that were last modified more than the given number of
+     * days ago into the archive of the day they were started on.
+     * @param minAgeDays Minimum age in days
+     * @param now The current time (Unix epoch ms)
+     * @return The number of logs archived
+     * @throws IOException When an archive or the index could not be written;
+     *                     logs that were not archived are left in place
+     */
+    public int archive(int minAgeDays, long now) throws IOException {
+        synchronized (LOCK) {
+            long start = System.nanoTime();
+            File[] files = mLogFolder.listFiles();
+            if (files == null) {
+                return 0;
+            }
+
+            long cutoff = now - minAgeDays * DAY_MILLIS;
+            File openLog = CsvLogger.getCurrentSessionLogFile();
+            Map<String, List<File>> days = new TreeMap<>();
+            for (File file : files) {
+                Matcher matcher = LOG_NAME.matcher(file.getName());
+                if (!file.isFile() || !matcher.matches() || file.lastModified() >= cutoff
+                        || file.equals(openLog)) {
+                    continue;
+                }
+                List<File> dayFiles = days.get(matcher.group(2));
+                if (dayFiles == null) {
+                    dayFiles = new ArrayList<>();
+                    days.put(matcher.group(2), dayFiles);
+                }
+                dayFiles.add(file);
+            }
+            if (days.isEmpty()) {
+                return 0;
+            }
+            if (!mArchiveFolder.exists() && !mArchiveFolder.mkdirs()) {
+                throw new IOException("Could not create " + mArchiveFolder);
+            }
+
+            int archived = 0;
+            for (Map.Entry<String, List<File>> day : days.entrySet()) {
+                List<Entry> entries = writeArchive(ARCHIVE_PREFIX + day.getKey() + ARCHIVE_EXTENSION,
+                        day.getValue());
+                appendToIndex(entries);
+                for (File file : day.getValue()) {
+                    if (!file.delete()) {
+                        Log.w(TAG, "Could not delete archived log " + file.getName());
+                    }
+                }
+                archived += entries.size();
+            }
+            Log.i(TAG, "Archived " + archived + " logs into " + days.size() + " archive(s) in "
+                    + (System.nanoTime() - start) / 1000000 + " ms");
+            return archived;
+        }
+    }
+
+    /**
+     * Writes a day's archive with the given logs, keeping the logs already in
+     * it. A log that is in the archive already (because an earlier run was
+     * interrupted before deleting it) is replaced.
+     * @return The index entries of the newly added logs
+     */
+    private List<Entry> writeArchive(String archiveName, List<File> files) throws IOException {
+        File archiveFile = new File(mArchiveFolder, archiveName);
+        File tempFile = new File(mArchiveFolder, archiveName + ".tmp");
+        Set<String> newNames = new HashSet<>();
+        for (File file : files) {
+            newNames.add(file.getName());
+        }
+
+        List<Entry> entries = new ArrayList<>();
+        byte[] buffer = new byte[16 * 1024];
+        try (FileOutputStream fileOut = new FileOutputStream(tempFile);
+             ZipOutputStream out = new ZipOutputStream(fileOut)) {
+            out.setLevel(9);
+            if (archiveFile.exists()) {
+                try (ZipInputStream in = new ZipInputStream(new FileInputStream(archiveFile))) {
+                    ZipEntry existing;
+                    while ((existing = in.getNextEntry()) != null) {
+                        if (!newNames.contains(existing.getName())) {
+                            ZipEntry copy = new ZipEntry(existing.getName());
+                            copy.setTime(existing.getTime());
+                            out.putNextEntry(copy);
+                            copy(in, out, buffer, null);
+                            out.closeEntry();
+                        }
+                    }
+                }
+            }
+            for (File file : files) {
+                ZipEntry zipEntry = new ZipEntry(file.getName());
+                zipEntry.setTime(file.lastModified());
+                out.putNextEntry(zipEntry);
+                CRC32 crc = new CRC32();
+                long size;
+                try (InputStream in = new FileInputStream(file)) {
+                    size = copy(in, out, buffer, crc);
+                }
+                out.closeEntry();
+                entries.add(new Entry(archiveName, file.getName(), participantOf(file.getName()),
+                        crc.getValue(), size));
+            }
+            out.finish();
+            fileOut.getFD().sync();
+        } catch (IOException e) {
+            tempFile.delete();
+            throw e;
+        }
+
+        if (!tempFile.renameTo(archiveFile)) {
+            // renameTo does not replace existing files on all platforms
+            if (!archiveFile.delete() || !tempFile.renameTo(archiveFile)) {
+                tempFile.delete();
+                throw new IOException("Could not write " + archiveFile);
+            }
+        }
+        return entries;
+    }
+
+    private static long copy(InputStream in, OutputStream out, byte[] buffer, CRC32 crc)
+            throws IOException {
+        long total = 0;
+        int read;
+        while ((read = in.read(buffer)) > 0) {
+            out.write(buffer, 0, read);
+            if (crc != null) {
+                crc.update(buffer, 0, read);
+            }
+            total += read;
+        }
+        return total;
+    }
+
+    private void appendToIndex(List<Entry> entries) throws IOException {
+        File indexFile = new File(mArchiveFolder, INDEX_FILE_NAME);
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(indexFile, true))) {
+            for (Entry entry : entries) {
+                writer.write(entry.archive + '\t' + entry.name + '\t' + entry.participantId + '\t'
+                        + Long.toHexString(entry.crc32) + '\t' + entry.size);
+                writer.newLine();
+            }
+        }
+    }
+
+    private static String participantOf(String logName) {
+        return logName.substring(0, logName.indexOf('_'));
+    }
+
+    /**
+     * Returns the index entries of all archived logs, by log name. The index
+     * is read again when it changed; if it is missing, it is rebuilt from the
+     * archives.
+     */
+    public Map<String, Entry> getIndex() {
+        synchronized (LOCK) {
+            File indexFile = new File(mArchiveFolder, INDEX_FILE_NAME);
+            if (!indexFile.exists() && listArchives().length > 0) {
+                rebuildIndex();
+            }
+            long modified = indexFile.exists() ? indexFile.lastModified() ^ indexFile.length() : 0;
+            if (mIndex == null || modified != mIndexModified) {
+                mIndex = readIndex(indexFile);
+                mIndexModified = modified;
+            }
+            return mIndex;
+        }
+    }
+
+    private static Map<String, Entry> readIndex(File indexFile) {
+        Map<String, Entry> index = new HashMap<>();
+        if (!indexFile.exists()) {
+            return index;
+        }
+        try (BufferedReader reader = new BufferedReader(new FileReader(indexFile))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t");
+                if (fields.length != 5) {
+                    continue;
+                }
+                try {
+                    index.put(fields[1], new Entry(fields[0], fields[1], fields[2],
+                            Long.parseLong(fields[3], 16), Long.parseLong(fields[4])));
+                } catch (NumberFormatException e) {
+                    // skip damaged line
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Error reading archive index: " + e.getMessage());
+        }
+        return index;
+    }
+
+    /**
+     * Writes the index from the central directories of all archives.
+     */
+    private void rebuildIndex() {
+        List<Entry> entries = new ArrayList<>();
+        for (File archive : listArchives()) {
+            try (ZipFile zip = new ZipFile(archive)) {
+                Enumeration<? extends ZipEntry> zipEntries = zip.entries();
+                while (zipEntries.hasMoreElements()) {
+                    ZipEntry zipEntry = zipEntries.nextElement();
+                    entries.add(new Entry(archive.getName(), zipEntry.getName(),
+                            participantOf(zipEntry.getName()), zipEntry.getCrc(), zipEntry.getSize()));
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Error reading archive " + archive.getName() + ": " + e.getMessage());
+            }
+        }
+        try {
+            appendToIndex(entries);
+            Log.i(TAG, "Rebuilt archive index with " + entries.size() + " logs");
+        } catch (IOException e) {
+            Log.e(TAG, "Error writing archive index: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Returns the IDs of all participants with archived logs.
+     */
+    public Set<String> getParticipantIds() {
+        Set<String> ids = new HashSet<>();
+        for (Entry entry : getIndex().values()) {
+            ids.add(entry.participantId);
+        }
+        return ids;
+    }
+
+    /**
+     * Returns true if a log with the given name is archived.
+     */
+    public boolean contains(String logName) {
+        return getIndex().containsKey(logName);
+    }
+
+    /**
+     * Returns all archives, oldest day first.
+     */
+    public File[] listArchives() {
+        File[] archives = mArchiveFolder.listFiles((dir, name) ->
+                name.startsWith(ARCHIVE_PREFIX) && name.endsWith(ARCHIVE_EXTENSION));
+        if (archives == null) {
+            return new File[0];
+        }
+        Arrays.sort(archives);
+        return archives;
+    }
+
+    /**
+     * Streams all logs of an archive, in the order they were archived.
+     * @param archive An archive from {@link #listArchives()}
+     * @param handler Receives the logs
+     */
+    public static void read(File archive, EntryHandler handler) throws IOException {
+        try (ZipInputStream in = new ZipInputStream(new FileInputStream(archive))) {
+            ZipEntry entry;
+            while ((entry = in.getNextEntry()) != null) {
+                handler.entry(entry.getName(), new FilterInputStream(in) {
+                    @Override
+                    public void close() {
+                        // the handler must not close the archive
+                    }
+                });
+            }
+        }
+    }
+}
@@ -0,0 +1,113 @@
+/*	This file is part of SubjectivePlayer for Android.
+ *
+ *	SubjectivePlayer for Android is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	SubjectivePlayer for Android is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU General Public License for more details.
+ *
+ *	You should have received a copy of the GNU General Public License
+ *	along with SubjectivePlayer for Android.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.univie.subjectiveplayer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+
+/**
+ * Writes a log to a temporary file (the log name followed by
+ * {@link #TEMP_EXTENSION}) and keeps a running CRC32 of everything written.
+ * {@link #finish(byte[])} appends a footer, syncs the file to disk and renames
+ * it to the log name, so a log with its final name is always complete. A log
+ * that was never finished, e.g. because the app was killed, keeps the
+ * temporary name.
+ *
+ * Every write goes straight to the file; wrap the stream in a buffered writer
+ * and flush it as needed.
+ */
+final class LogFileOutputStream extends OutputStream {
+
+    /** Extension of logs that are still being written */
+    static final String TEMP_EXTENSION = ".part";
+
+    private final File mFile;
+    private final File mTempFile;
+    private final FileOutputStream mOut;
+    private final CRC32 mCrc = new CRC32();
+    private boolean mClosed = false;
+
+    /**
+     * Creates the temporary file for a log.
+     * @param file The final log file
+     */
+    LogFileOutputStream(File file) throws IOException {
+        mFile = file;
+        mTempFile = new File(file.getParentFile(), file.getName() + TEMP_EXTENSION);
+        mOut = new FileOutputStream(mTempFile);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        mOut.write(b);
+        mCrc.update(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        mOut.write(b, off, len);
+        mCrc.update(b, off, len);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        mOut.flush();
+    }
+
+    /**
+     * Returns the CRC32 of everything written so far.
+     */
+    long getChecksum() {
+        return mCrc.getValue();
+    }
+
+    /**
+     * Appends the footer (not included in the checksum), syncs the file and
+     * renames it to the log name.
+     * @param footer The footer bytes
+     */
+    void finish(byte[] footer) throws IOException {
+        if (mClosed) {
+            return;
+        }
+        try {
+            mOut.write(footer);
+            mOut.flush();
+            mOut.getFD().sync();
+        } finally {
+            mClosed = true;
+            mOut.close();
+        }
+        if (!mTempFile.renameTo(mFile)) {
+            throw new IOException("Could not rename " + mTempFile.getName() + " to " + mFile.getName());
+        }
+    }
+
+    /**
+     * Closes the temporary file without finishing the log.
+     */
+    @Override
+    public void close() throws IOException {
+        if (!mClosed) {
+            mClosed = true;
+            mOut.close();
+        }
+    }
+}
@@ -0,0 +1,214 @@
+/*	This file is part of SubjectivePlayer for Android.
+ *
+ *	SubjectivePlayer for Android is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	SubjectivePlayer for Android is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU General Public License for more details.
+ *
+ *	You should have received a copy of the GNU General Public License
+ *	along with SubjectivePlayer for Android.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.univie.subjectiveplayer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * Checks the integrity of session and questionnaire logs against the footer
+ * written when they were closed (see {@link LogFileOutputStream}), without
+ * parsing them: every log is read once, in large blocks, while the CRC32 is
+ * computed, and only the last few bytes are looked at to find the footer.
+ *
+ * Can be used on the device or on a host JVM, see {@link #main(String[])}.
+ */
+public abstract class LogVerifier {
+
+    /** Outcome of verifying one log */
+    public enum Status {
+        /** The footer is present and matches the contents */
+        VALID,
+        /** The log has no footer: it is still being written, was cut off, or predates footers */
+        UNFINISHED,
+        /** The footer does not match the contents */
+        CORRUPT
+    }
+
+    /**
+     * Result of verifying one log.
+     */
+    public static final class Result {
+        /** Log file name, prefixed by the archive name for archived logs */
+        public final String name;
+        public final Status status;
+        /** Number of rows after the header, or -1 if unknown */
+        public final long rows;
+        /** Details for logs that are not valid, otherwise null */
+        public final String message;
+
+        Result(String name, Status status, long rows, String message) {
+            this.name = name;
+            this.status = status;
+            this.rows = rows;
+            this.message = message;
+        }
+    }
+
+    /** Session and questionnaire logs, including logs still being written */
+    private static final Pattern LOG_NAME = Pattern.compile(
+            "^.+?_\\d{8}-\\d{6}_.+(\\.csv|\\.splog)(" + Pattern.quote(LogFileOutputStream.TEMP_EXTENSION) + ")?$");
+
+    /** Footer line of CSV logs, see {@link CsvLogSink#formatFooter(long, long)} */
+    private static final Pattern CSV_FOOTER =
+            Pattern.compile("^" + Pattern.quote(CsvLogSink.FOOTER_PREFIX) + "(\\d+) crc32=([0-9a-f]{8})\\r?\\n$");
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /** Bytes held back from the checksum until the footer has been found */
+    private static final int TAIL_SIZE = 64;
+
+    /**
+     * Verifies one log file.
+     */
+    public static Result verify(File file) {
+        String name = file.getName();
+        if (name.endsWith(LogFileOutputStream.TEMP_EXTENSION)) {
+            return new Result(name, Status.UNFINISHED, -1, "still being written or cut off");
+        }
+        try (InputStream in = new FileInputStream(file)) {
+            return verify(name, in);
+        } catch (IOException e) {
+            return new Result(name, Status.CORRUPT, -1, e.getMessage());
+        }
+    }
+
+    /**
+     * Verifies one log read from a stream. The stream is read to the end but
+     * not closed.
+     * @param name The log file name; its extension selects the format
+     */
+    public static Result verify(String name, InputStream in) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE + TAIL_SIZE];
+        CRC32 crc = new CRC32();
+        long total = 0;
+        int held = 0;
+        int read;
+        while ((read = in.read(buffer, held, buffer.length - held)) > 0) {
+            held += read;
+            total += read;
+            if (held == buffer.length) {
+                int ready = held - TAIL_SIZE;
+                crc.update(buffer, 0, ready);
+                System.arraycopy(buffer, ready, buffer, 0, TAIL_SIZE);
+                held = TAIL_SIZE;
+            }
+        }
+
+        if (name.endsWith(BinaryLogSink.EXTENSION)) {
+            int start = held - BinaryLogSink.FOOTER_SIZE;
+            if (start < 0 || buffer[start] != 0 || readInt(buffer, start + 1) != BinaryLogSink.FOOTER_MAGIC) {
+                return new Result(name, Status.UNFINISHED, -1, "no footer");
+            }
+            crc.update(buffer, 0, start);
+            long rows = readInt(buffer, start + 5) & 0xFFFFFFFFL;
+            long expected = readInt(buffer, start + 9) & 0xFFFFFFFFL;
+            if (crc.getValue() != expected) {
+                return new Result(name, Status.CORRUPT, rows, "checksum mismatch");
+            }
+            return new Result(name, Status.VALID, rows, null);
+        }
+
+        // CSV: the footer is the last line
+        int start = held - 2;
+        while (start >= 0 && buffer[start] != '\n') {
+            start--;
+        }
+        start++;
+        if (held == 0 || buffer[held - 1] != '\n' || (start == 0 && total > held)) {
+            return new Result(name, Status.UNFINISHED, -1, "no footer");
+        }
+        Matcher footer = CSV_FOOTER.matcher(new String(buffer, start, held - start, StandardCharsets.UTF_8));
+        if (!footer.matches()) {
+            return new Result(name, Status.UNFINISHED, -1, "no footer");
+        }
+        crc.update(buffer, 0, start);
+        long rows = Long.parseLong(footer.group(1));
+        if (crc.getValue() != Long.parseLong(footer.group(2), 16)) {
+            return new Result(name, Status.CORRUPT, rows, "checksum mismatch");
+        }
+        return new Result(name, Status.VALID, rows, null);
+    }
+
+    /**
+     * Verifies all logs in a logs folder, including archived logs (see
+     * {@link LogArchive}). Logs are returned in file name order, followed by
+     * the archived logs.
+     */
+    public static List<Result> verifyFolder(File folder) {
+        List<Result> results = new ArrayList<>();
+        File[] files = folder.listFiles((dir, name) -> LOG_NAME.matcher(name).matches());
+        if (files != null) {
+            Arrays.sort(files);
+            for (File file : files) {
+                results.add(verify(file));
+            }
+        }
+        for (File archive : new LogArchive(folder).listArchives()) {
+            try {
+                LogArchive.read(archive, (name, in) -> {
+                    if (LOG_NAME.matcher(name).matches()) {
+                        results.add(verify(archive.getName() + '/' + name, in));
+                    }
+                });
+            } catch (IOException e) {
+                results.add(new Result(archive.getName(), Status.CORRUPT, -1, e.getMessage()));
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Verifies the logs in the given folders and prints one tab-separated line
+     * per log: status, name, rows and details. Exits with status 1 if any log
+     * is corrupt. Use the verifySessionLogs Gradle task to run it with the app
+     * classes on the classpath.
+     * @param args Logs folders
+     */
+    public static void main(String[] args) {
+        if (args.length == 0) {
+            System.err.println("Usage: LogVerifier <logs folder>...");
+            System.exit(2);
+        }
+        int[] counts = new int[Status.values().length];
+        for (String arg : args) {
+            for (Result result : verifyFolder(new File(arg))) {
+                System.out.println(result.status + "\t" + result.name + "\t" + result.rows
+                        + (result.message != null ? "\t" + result.message : ""));
+                counts[result.status.ordinal()]++;
+            }
+        }
+        System.err.println(counts[Status.VALID.ordinal()] + " valid, "
+                + counts[Status.UNFINISHED.ordinal()] + " unfinished, "
+                + counts[Status.CORRUPT.ordinal()] + " corrupt");
+        System.exit(counts[Status.CORRUPT.ordinal()] > 0 ? 1 : 0);
+    }
+
+    private static int readInt(byte[] buffer, int offset) {
+        return (buffer[offset] & 0xFF) << 24 | (buffer[offset + 1] & 0xFF) << 16
+                | (buffer[offset + 2] & 0xFF) << 8 | (buffer[offset + 3] & 0xFF);
+    }
+}
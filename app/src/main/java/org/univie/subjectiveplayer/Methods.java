@@ -23,7 +23,7 @@ public abstract class Methods {
 
 	// method names
 	public static final String[] METHOD_NAMES = { "ACR - Categorical",
-			"Continuous scale", "DSIS", "Time-continuous" };
+			"Continuous scale", "DSIS", "Time-continuous", "Paired comparison" };
 
 	// method IDs, these should be in the same order
 	// as the names above!
@@ -32,6 +32,7 @@ public abstract class Methods {
 	public static final int TYPE_CONTINUOUS = 1;
 	public static final int TYPE_DSIS_CATEGORICAL = 2;
 	public static final int TYPE_TIME_CONTINUOUS = 3;
+	public static final int TYPE_PAIRED_COMPARISON = 4;
 
 	// labels for the ACR category
 	public static final String[] STATIC_LABELS_ACR = {
@@ -51,5 +52,11 @@ public abstract class Methods {
             "Very Annoying"
     };
 
+	// labels for the paired comparison (values 1 and 2)
+	public static final String[] LABELS_PC = {
+            "A",
+            "B"
+    };
+
 
 }
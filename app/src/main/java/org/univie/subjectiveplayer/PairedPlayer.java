@@ -0,0 +1,456 @@
+/*	This file is part of SubjectivePlayer for Android.
+ *
+ *	SubjectivePlayer for Android is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	SubjectivePlayer for Android is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU General Public License for more details.
+ *
+ *	You should have received a copy of the GNU General Public License
+ *	along with SubjectivePlayer for Android.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.univie.subjectiveplayer;
+
+import android.graphics.ImageFormat;
+import android.media.AudioManager;
+import android.media.Image;
+import android.media.ImageReader;
+import android.media.MediaPlayer;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.Choreographer;
+import android.view.SurfaceHolder;
+import android.view.SurfaceView;
+import android.view.View;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * Plays the two videos of a paired comparison at the same time, each on its
+ * own player, either side by side on two surfaces or toggled on one surface.
+ *
+ * Both videos are prepared up front and start together when {@link #start()}
+ * is called, so the caller can wait for the display to settle in between.
+ * Video A is the clock both videos follow: A is played with sound, and the
+ * position of B is compared with the position of A every
+ * {@link #SYNC_INTERVAL_MILLIS}. Small drift is corrected by playing B
+ * slightly faster or slower, large drift by seeking B. The mean and maximum
+ * drift of each pair are reported when both videos have finished.
+ *
+ * In toggle mode, both players keep decoding all the time: the hidden video
+ * decodes into an offscreen surface that drops its frames, and toggling moves
+ * the output of the two players between that surface and the visible one.
+ * The time from the toggle to the first display frame after the switch, the
+ * earliest the other video can be on screen, is reported as the toggle
+ * latency.
+ */
+public class PairedPlayer implements SurfaceHolder.Callback {
+
+    private static final String TAG = PairedPlayer.class.getSimpleName();
+
+    /** Interval of the drift measurements */
+    static final int SYNC_INTERVAL_MILLIS = 100;
+
+    /** Drift up to this is left alone (about one frame at 50 Hz) */
+    static final int DRIFT_TOLERANCE_MILLIS = 20;
+
+    /** Drift above this is corrected by seeking B instead of changing its speed */
+    static final int DRIFT_SEEK_MILLIS = 250;
+
+    /** Speed change of B while it catches up with A */
+    static final float SPEED_CORRECTION = 0.05f;
+
+    /** Buffers of the offscreen surfaces of hidden videos */
+    private static final int PARKING_IMAGES = 2;
+
+    /**
+     * Receives the progress of a pair. Called on the main thread.
+     */
+    public interface Listener {
+        /**
+         * Called when both videos are prepared. They start when
+         * {@link #start()} is called.
+         * @param width The width of video A, or 0 if unknown
+         * @param height The height of video A, or 0 if unknown
+         */
+        void onPairPrepared(int width, int height);
+
+        /**
+         * Called when video A has rendered its first frame.
+         */
+        void onFirstFrame();
+
+        /**
+         * Called in toggle mode when the display has shown the first frame
+         * after the other video was put on the surface.
+         * @param showingB Whether video B is shown now
+         * @param latencyMillis The time from the toggle to that frame
+         */
+        void onToggled(boolean showingB, double latencyMillis);
+
+        /**
+         * Called when both videos have finished.
+         * @param meanDriftMillis The mean absolute drift between A and B, or
+         *                        -1 if no drift was measured
+         * @param maxDriftMillis The maximum absolute drift, or -1 if no drift
+         *                       was measured
+         */
+        void onPairCompleted(double meanDriftMillis, double maxDriftMillis);
+
+        /**
+         * Called when the pair could not be prepared.
+         */
+        void onPairFailed(Exception error);
+    }
+
+    private final SurfaceView mViewA;
+    private final SurfaceView mViewB;
+    private final Listener mListener;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mSync = this::sync;
+    private final Choreographer.FrameCallback mToggleFrame = this::onToggleFrame;
+
+    private MediaPlayer mPlayerA;
+    private MediaPlayer mPlayerB;
+    private boolean mIsSurfaceBValid = false;
+
+    /** Toggle mode: offscreen surfaces of the hidden video and the thread emptying them */
+    private ImageReader mParkingA;
+    private ImageReader mParkingB;
+    private HandlerThread mParkingThread;
+
+    /** Pair waiting for the surface of B to be created */
+    private File mPendingA;
+    private File mPendingB;
+
+    private boolean mCompletedA = false;
+    private boolean mCompletedB = false;
+    private boolean mShowingB = false;
+    private float mSpeedB = 1f;
+
+    /** Start of the last toggle in the System.nanoTime() clock of Choreographer, or -1 */
+    private long mToggleStartNanos = -1;
+
+    private double mDriftSum = 0;
+    private int mDriftSamples = 0;
+    private double mDriftMax = 0;
+
+    /**
+     * Creates the player. Must be called before the views are attached to the
+     * window, i.e. in onCreate().
+     * @param viewA The surface for video A, or for both videos in toggle mode
+     * @param viewB The surface for video B, or null for toggle mode
+     * @param listener Receives the progress of each pair
+     */
+    public PairedPlayer(SurfaceView viewA, SurfaceView viewB, Listener listener) {
+        mViewA = viewA;
+        mViewB = viewB;
+        mListener = listener;
+        if (mViewB != null) {
+            mViewB.getHolder().addCallback(this);
+        }
+    }
+
+    /**
+     * Whether both videos share one surface and are toggled with {@link #toggle()}.
+     */
+    public boolean isToggleMode() {
+        return mViewB == null;
+    }
+
+    /**
+     * Prepares and plays a pair. The surface of A must be valid; in side by
+     * side mode, the surface of B is shown and the pair starts as soon as it
+     * has been created.
+     * @param videoA Video A
+     * @param videoB Video B
+     */
+    public void play(File videoA, File videoB) {
+        release();
+        if (mViewB != null && !mIsSurfaceBValid) {
+            Log.d(TAG, "Surface of B not ready, queuing pair");
+            mPendingA = videoA;
+            mPendingB = videoB;
+            mViewB.setVisibility(View.VISIBLE);
+            return;
+        }
+        prepare(videoA, videoB);
+    }
+
+    /**
+     * Starts both videos of the prepared pair. Does nothing if no pair is
+     * prepared.
+     */
+    public void start() {
+        if (mPlayerA == null || mPlayerB == null) {
+            return;
+        }
+        mPlayerA.start();
+        mPlayerB.start();
+        mHandler.postDelayed(mSync, SYNC_INTERVAL_MILLIS);
+    }
+
+    /**
+     * Toggle mode: shows the other video of the pair. Does nothing in side by
+     * side mode or when one of the videos has finished.
+     */
+    public void toggle() {
+        if (mViewB != null || mPlayerA == null || mPlayerB == null || mCompletedA || mCompletedB) {
+            return;
+        }
+        long start = System.nanoTime();
+        MediaPlayer shown = mShowingB ? mPlayerB : mPlayerA;
+        MediaPlayer hidden = mShowingB ? mPlayerA : mPlayerB;
+        ImageReader parking = mShowingB ? mParkingB : mParkingA;
+        try {
+            // A surface takes frames from one player only, so free it first
+            shown.setSurface(parking.getSurface());
+            hidden.setDisplay(mViewA.getHolder());
+            shown.setVolume(0f, 0f);
+            hidden.setVolume(1f, 1f);
+        } catch (IllegalStateException | IllegalArgumentException e) {
+            Log.e(TAG, "Could not toggle video: " + e);
+            return;
+        }
+        mShowingB = !mShowingB;
+        Log.d(TAG, "Switched surface to " + (mShowingB ? "B" : "A") + " in "
+                + (System.nanoTime() - start) / 1e6 + " ms");
+        // A toggle before the last one was shown only reports the newer one
+        mToggleStartNanos = start;
+        Choreographer.getInstance().removeFrameCallback(mToggleFrame);
+        Choreographer.getInstance().postFrameCallback(mToggleFrame);
+    }
+
+    private void onToggleFrame(long frameTimeNanos) {
+        if (mToggleStartNanos < 0) {
+            return;
+        }
+        if (frameTimeNanos < mToggleStartNanos) {
+            // Toggled while this frame was being drawn: wait for the next vsync
+            Choreographer.getInstance().postFrameCallback(mToggleFrame);
+            return;
+        }
+        double latencyMillis = (frameTimeNanos - mToggleStartNanos) / 1e6;
+        mToggleStartNanos = -1;
+        Log.d(TAG, "Toggled to " + (mShowingB ? "B" : "A") + " in " + latencyMillis + " ms");
+        mListener.onToggled(mShowingB, latencyMillis);
+    }
+
+    /**
+     * Stops playback and releases both players.
+     */
+    public void release() {
+        mHandler.removeCallbacks(mSync);
+        Choreographer.getInstance().removeFrameCallback(mToggleFrame);
+        mToggleStartNanos = -1;
+        mPendingA = null;
+        mPendingB = null;
+        if (mPlayerA != null) {
+            mPlayerA.release();
+            mPlayerA = null;
+        }
+        if (mPlayerB != null) {
+            mPlayerB.release();
+            mPlayerB = null;
+        }
+        if (mParkingA != null) {
+            mParkingA.close();
+            mParkingA = null;
+        }
+        if (mParkingB != null) {
+            mParkingB.close();
+            mParkingB = null;
+        }
+        if (mParkingThread != null) {
+            mParkingThread.quitSafely();
+            mParkingThread = null;
+        }
+        mCompletedA = false;
+        mCompletedB = false;
+        mShowingB = false;
+        mSpeedB = 1f;
+        mDriftSum = 0;
+        mDriftSamples = 0;
+        mDriftMax = 0;
+    }
+
+    private void prepare(File videoA, File videoB) {
+        long start = SystemClock.elapsedRealtimeNanos();
+        try {
+            mPlayerA = createPlayer(videoA);
+            mPlayerB = createPlayer(videoB);
+            mPlayerA.setDisplay(mViewA.getHolder());
+            if (mViewB != null) {
+                mPlayerB.setDisplay(mViewB.getHolder());
+            }
+            mPlayerA.setOnInfoListener(this::onInfoA);
+            mPlayerA.setOnCompletionListener(mp -> onCompleted(true));
+            mPlayerB.setOnCompletionListener(mp -> onCompleted(false));
+            mPlayerA.prepare();
+            mPlayerB.prepare();
+            if (mViewB == null) {
+                // The offscreen surfaces are sized after the videos, which are
+                // only known once prepared
+                mParkingThread = new HandlerThread(TAG);
+                mParkingThread.start();
+                Handler parkingHandler = new Handler(mParkingThread.getLooper());
+                mParkingA = createParkingSurface(mPlayerA, parkingHandler);
+                mParkingB = createParkingSurface(mPlayerB, parkingHandler);
+                mPlayerB.setSurface(mParkingB.getSurface());
+            }
+        } catch (IOException | IllegalStateException | IllegalArgumentException e) {
+            Log.e(TAG, "Could not prepare pair " + videoA.getName() + ", " + videoB.getName() + ": " + e);
+            release();
+            mListener.onPairFailed(e);
+            return;
+        }
+        Log.d(TAG, "Prepared pair " + videoA.getName() + ", " + videoB.getName() + " in "
+                + (SystemClock.elapsedRealtimeNanos() - start) / 1000000 + " ms");
+
+        mPlayerB.setVolume(0f, 0f);
+        mListener.onPairPrepared(mPlayerA.getVideoWidth(), mPlayerA.getVideoHeight());
+    }
+
+    private static MediaPlayer createPlayer(File file) throws IOException {
+        VideoPack.Entry packed = VideoPack.resolve(file);
+        if (packed == null && (!file.exists() || !file.canRead())) {
+            throw new IOException("Video file " + file.getPath() + " not found!");
+        }
+        MediaPlayer player = new MediaPlayer();
+        if (packed != null) {
+            // Both videos of a pair are read at the same time, so each gets its own descriptor
+            try (FileInputStream in = packed.openStream()) {
+                player.setDataSource(in.getFD(), packed.getOffset(), packed.getLength());
+            }
+        } else {
+            player.setDataSource(file.getPath());
+        }
+        player.setScreenOnWhilePlaying(true);
+        player.setAudioStreamType(AudioManager.STREAM_MUSIC);
+        player.setOnErrorListener((mp, what, extra) -> {
+            // Returning false moves on to the completion listener
+            Log.e(TAG, "Error playing " + file.getName() + ": what=" + what + ", extra=" + extra);
+            return false;
+        });
+        return player;
+    }
+
+    /**
+     * Creates an offscreen surface for a hidden video that drops every frame,
+     * so the decoder keeps running and never waits for a free buffer.
+     */
+    private static ImageReader createParkingSurface(MediaPlayer player, Handler handler) {
+        ImageReader reader = ImageReader.newInstance(Math.max(1, player.getVideoWidth()),
+                Math.max(1, player.getVideoHeight()), ImageFormat.PRIVATE, PARKING_IMAGES);
+        reader.setOnImageAvailableListener(r -> {
+            Image image = r.acquireLatestImage();
+            if (image != null) {
+                image.close();
+            }
+        }, handler);
+        return reader;
+    }
+
+    private boolean onInfoA(MediaPlayer mp, int what, int extra) {
+        if (what != MediaPlayer.MEDIA_INFO_VIDEO_RENDERING_START) {
+            return false;
+        }
+        mListener.onFirstFrame();
+        return true;
+    }
+
+    /**
+     * Measures the drift of B against A and corrects it.
+     */
+    private void sync() {
+        if (mPlayerA == null || mPlayerB == null || mCompletedA || mCompletedB) {
+            return;
+        }
+        int positionA = mPlayerA.getCurrentPosition();
+        int drift = mPlayerB.getCurrentPosition() - positionA;
+        int absDrift = Math.abs(drift);
+        mDriftSum += absDrift;
+        mDriftSamples++;
+        mDriftMax = Math.max(mDriftMax, absDrift);
+
+        if (absDrift > DRIFT_SEEK_MILLIS) {
+            Log.w(TAG, "Drift of " + drift + " ms, seeking B to " + positionA + " ms");
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+                mPlayerB.seekTo((long) positionA, MediaPlayer.SEEK_CLOSEST);
+            } else {
+                mPlayerB.seekTo(positionA);
+            }
+            setSpeedB(1f);
+        } else if (absDrift > DRIFT_TOLERANCE_MILLIS) {
+            // B ahead: slow it down; B behind: speed it up
+            setSpeedB(drift > 0 ? 1f - SPEED_CORRECTION : 1f + SPEED_CORRECTION);
+        } else {
+            setSpeedB(1f);
+        }
+        mHandler.postDelayed(mSync, SYNC_INTERVAL_MILLIS);
+    }
+
+    private void setSpeedB(float speed) {
+        if (speed == mSpeedB) {
+            return;
+        }
+        try {
+            mPlayerB.setPlaybackParams(mPlayerB.getPlaybackParams().setSpeed(speed));
+            mSpeedB = speed;
+        } catch (IllegalStateException | IllegalArgumentException e) {
+            Log.w(TAG, "Could not set speed of B to " + speed + ": " + e);
+        }
+    }
+
+    private void onCompleted(boolean isA) {
+        if (isA) {
+            mCompletedA = true;
+        } else {
+            mCompletedB = true;
+        }
+        if (!mCompletedA || !mCompletedB) {
+            return;
+        }
+        double meanDriftMillis = mDriftSamples > 0 ? mDriftSum / mDriftSamples : -1;
+        double maxDriftMillis = mDriftSamples > 0 ? mDriftMax : -1;
+        Log.d(TAG, "Pair finished, drift: mean " + meanDriftMillis + " ms, max " + maxDriftMillis + " ms");
+        release();
+        if (mViewB != null) {
+            // Hide B with A while the rating is asked for
+            mViewB.setVisibility(View.INVISIBLE);
+        }
+        mListener.onPairCompleted(meanDriftMillis, maxDriftMillis);
+    }
+
+    @Override
+    public void surfaceCreated(SurfaceHolder holder) {
+        mIsSurfaceBValid = true;
+        if (mPendingA != null) {
+            File videoA = mPendingA;
+            File videoB = mPendingB;
+            mPendingA = null;
+            mPendingB = null;
+            prepare(videoA, videoB);
+        }
+    }
+
+    @Override
+    public void surfaceChanged(SurfaceHolder holder, int format, int width, int height) {
+    }
+
+    @Override
+    public void surfaceDestroyed(SurfaceHolder holder) {
+        mIsSurfaceBValid = false;
+    }
+}
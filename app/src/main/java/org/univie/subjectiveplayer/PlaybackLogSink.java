@@ -0,0 +1,145 @@
+/*	This file is part of SubjectivePlayer for Android.
+ *
+ *	SubjectivePlayer for Android is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	SubjectivePlayer for Android is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU General Public License for more details.
+ *
+ *	You should have received a copy of the GNU General Public License
+ *	along with SubjectivePlayer for Android.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.univie.subjectiveplayer;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Writes the playback log of a session as CSV: timing measurements taken
+ * while the videos were shown, one row per event. Rows are flushed as they
+ * are written, and the log is finished with the same footer as
+ * {@link CsvLogSink} on {@link #close()}.
+ */
+final class PlaybackLogSink implements Closeable {
+
+    /** Header row of playback logs */
+    static final String HEADER = "video_position,video_name,event,value_ms,logged_at";
+
+    /** Suffix of the playback log, appended to the base name of the session log */
+    static final String SUFFIX = "_playback";
+
+    /**
+     * Event: time the switch from the reference to the test video of a DSIS
+     * pair took, from the end of the reference to the first frame of the test
+     * video, minus the grey interval
+     */
+    static final String EVENT_SWITCH_GAP = "switch_gap";
+
+    /** Event: mean absolute drift between the two videos of a paired comparison */
+    static final String EVENT_DRIFT_MEAN = "drift_mean";
+
+    /** Event: maximum absolute drift between the two videos of a paired comparison */
+    static final String EVENT_DRIFT_MAX = "drift_max";
+
+    /**
+     * Event: time from a switch between the videos of a paired comparison in
+     * toggle mode to the first display frame after it, logged for every switch
+     */
+    static final String EVENT_TOGGLE_LATENCY = "toggle_latency";
+
+    /**
+     * Event: a frame of the MediaCodec engine was handed to the surface after
+     * its release time, by the logged amount
+     */
+    static final String EVENT_FRAME_LATE = "frame_late";
+
+    /**
+     * Event: a frame of the MediaCodec engine was dropped because it would
+     * have been shown more than one vsync late, by the logged amount
+     */
+    static final String EVENT_FRAME_DROPPED = "frame_dropped";
+
+    /**
+     * Event: duration of one refresh of the display while the video was
+     * shown, logged once per video (16.7 = 60 Hz)
+     */
+    static final String EVENT_REFRESH_PERIOD = "refresh_period";
+
+    /**
+     * Event: time from the request to play a video (after the rating of the
+     * previous one, or after a break or screen) to its first frame on the surface
+     */
+    static final String EVENT_FIRST_FRAME = "first_frame";
+
+    /**
+     * Event: time the seek to the first frame of a segment took while the
+     * video was prepared
+     */
+    static final String EVENT_SEEK = "seek";
+
+    private final File mFile;
+    private final LogFileOutputStream mOut;
+    private final BufferedWriter mWriter;
+    private long mRows = 0;
+
+    PlaybackLogSink(File file) throws IOException {
+        mFile = file;
+        mOut = new LogFileOutputStream(file);
+        mWriter = new BufferedWriter(new OutputStreamWriter(mOut, StandardCharsets.UTF_8));
+        mWriter.write(HEADER);
+        mWriter.newLine();
+        mWriter.flush();
+    }
+
+    File getFile() {
+        return mFile;
+    }
+
+    /**
+     * Writes one event.
+     * @param videoPosition The position of the video in the playlist
+     * @param videoName The playlist entry of the video
+     * @param event The event name, one of the EVENT_ constants
+     * @param valueMillis The measured value in milliseconds
+     * @param loggedAtMillis The time of the event (Unix epoch ms)
+     */
+    void writeEvent(int videoPosition, String videoName, String event, double valueMillis,
+                    long loggedAtMillis) throws IOException {
+        mWriter.write(Integer.toString(videoPosition));
+        mWriter.write(',');
+        QuestionnaireLogSink.writeField(mWriter, videoName);
+        mWriter.write(',');
+        mWriter.write(event);
+        mWriter.write(',');
+        mWriter.write(String.format(Locale.US, "%.1f", valueMillis));
+        mWriter.write(',');
+        mWriter.write(CsvLogSink.formatAsIso8601(loggedAtMillis, TimeZone.getDefault()));
+        mWriter.newLine();
+        mWriter.flush();
+        mRows++;
+    }
+
+    /**
+     * Finishes the log: appends the footer and renames it to its final name.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            mWriter.flush();
+            mOut.finish(CsvLogSink.formatFooter(mRows, mOut.getChecksum()).getBytes(StandardCharsets.UTF_8));
+        } finally {
+            mWriter.close();
+        }
+    }
+}
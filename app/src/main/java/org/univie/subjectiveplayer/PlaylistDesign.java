@@ -0,0 +1,385 @@
+/*	This file is part of SubjectivePlayer for Android.
+ *
+ *	SubjectivePlayer for Android is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	SubjectivePlayer for Android is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU General Public License for more details.
+ *
+ *	You should have received a copy of the GNU General Public License
+ *	along with SubjectivePlayer for Android.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.univie.subjectiveplayer;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Describes how to build the playlist of every participant from one set of
+ * videos, so that a single design file can replace the per-participant
+ * config files. The playlist of a participant is derived from their ID only,
+ * so it is the same every time it is generated.
+ *
+ * The playlist consists of the training videos (in the given order), followed
+ * by a number of blocks that each contain every test video once. The order
+ * within a block depends on the scheme:
+ * <ul>
+ *   <li>{@link #SCHEME_LATIN_SQUARE}: rows of a cyclic Latin square, so every
+ *       video appears at every position equally often</li>
+ *   <li>{@link #SCHEME_WILLIAMS}: rows of a Williams design, which in addition
+ *       has every video preceded by every other video equally often</li>
+ *   <li>{@link #SCHEME_RANDOM}: a random order in which no two consecutive
+ *       videos share the same source content</li>
+ * </ul>
+ * Participant ID p uses row (p - 1 + block) of the square. A BREAK is
+ * inserted between blocks, and within blocks every {@code breakInterval}
+ * videos.
+ */
+public class PlaylistDesign {
+
+    private static final String TAG = PlaylistDesign.class.getSimpleName();
+
+    public static final String SCHEME_LATIN_SQUARE = "latin_square";
+    public static final String SCHEME_WILLIAMS = "williams";
+    public static final String SCHEME_RANDOM = "random";
+
+    /** Default pattern for the source content of a video: the name up to the first underscore */
+    public static final String DEFAULT_SOURCE_PATTERN = "^([^_]+)_";
+
+    private final String scheme;
+    private final List<String> videos;
+    private final List<String> training;
+    private final int blocks;
+    private final int breakInterval;
+    private final int breakDuration;
+    private final String sourcePattern;
+    private final long seed;
+
+    // Derived from the video list on first use
+    private int[] mSourceGroups = null;
+
+    /**
+     * Creates a design. Null arguments are replaced by their defaults.
+     * @param scheme One of the SCHEME_ constants (default: random)
+     * @param videos The test videos
+     * @param training The training videos (default: none)
+     * @param blocks The number of times every test video is shown (default: 1)
+     * @param breakInterval Number of videos after which a BREAK is inserted
+     *                      within a block (default: 0, no breaks within blocks)
+     * @param breakDuration Duration of the inserted breaks in seconds
+     *                      (default: none, the participant continues manually)
+     * @param sourcePattern Regular expression whose first group identifies the
+     *                      source content of a video (default: {@link #DEFAULT_SOURCE_PATTERN})
+     * @param seed Seed for the random scheme (default: 0)
+     */
+    public PlaylistDesign(String scheme, List<String> videos, List<String> training, Integer blocks,
+                          Integer breakInterval, Integer breakDuration, String sourcePattern, Long seed) {
+        this.scheme = scheme != null ? scheme : SCHEME_RANDOM;
+        this.videos = videos != null ? new ArrayList<>(videos) : new ArrayList<>();
+        this.training = training != null ? new ArrayList<>(training) : new ArrayList<>();
+        this.blocks = blocks != null ? blocks : 1;
+        this.breakInterval = breakInterval != null ? breakInterval : 0;
+        this.breakDuration = breakDuration != null ? breakDuration : -1;
+        this.sourcePattern = sourcePattern != null ? sourcePattern : DEFAULT_SOURCE_PATTERN;
+        this.seed = seed != null ? seed : 0;
+    }
+
+    public String getScheme() {
+        return scheme;
+    }
+
+    public List<String> getVideos() {
+        return videos;
+    }
+
+    public List<String> getTraining() {
+        return training;
+    }
+
+    public int getBlocks() {
+        return blocks;
+    }
+
+    public int getBreakInterval() {
+        return breakInterval;
+    }
+
+    /**
+     * Returns the break duration in seconds, or -1 if breaks have no duration.
+     */
+    public int getBreakDuration() {
+        return breakDuration;
+    }
+
+    public String getSourcePattern() {
+        return sourcePattern;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    /**
+     * Validates the design and returns a list of errors.
+     * @return list of error messages (empty if valid)
+     */
+    public List<String> validate() {
+        List<String> errors = new ArrayList<>();
+        if (!SCHEME_LATIN_SQUARE.equals(scheme) && !SCHEME_WILLIAMS.equals(scheme)
+                && !SCHEME_RANDOM.equals(scheme)) {
+            errors.add("Unknown scheme \"" + scheme + "\" (valid: " + SCHEME_LATIN_SQUARE + ", "
+                    + SCHEME_WILLIAMS + ", " + SCHEME_RANDOM + ")");
+        }
+        if (videos.isEmpty()) {
+            errors.add("videos is required and cannot be empty");
+        }
+        checkNames(videos, "videos", errors);
+        checkNames(training, "training", errors);
+        if (blocks < 1) {
+            errors.add("blocks must be at least 1");
+        }
+        if (breakInterval < 0) {
+            errors.add("break_interval must be non-negative");
+        }
+        try {
+            Pattern.compile(sourcePattern);
+        } catch (PatternSyntaxException e) {
+            errors.add("source_pattern is not a valid regular expression: " + e.getDescription());
+        }
+        return errors;
+    }
+
+    private static void checkNames(List<String> names, String field, List<String> errors) {
+        for (int i = 0; i < names.size(); i++) {
+            String name = names.get(i);
+            if (name == null || name.trim().isEmpty()) {
+                errors.add(field + " item " + (i + 1) + " is empty");
+            } else if (Session.isBreakCommand(name) || name.equalsIgnoreCase("TRAINING_START")
+                    || name.equalsIgnoreCase("TRAINING_END")) {
+                errors.add(field + " item " + (i + 1) + " must be a video filename, not \"" + name + "\"");
+            }
+        }
+    }
+
+    /**
+     * Appends the playlist of a participant to the given entries. The design
+     * must be valid (see {@link #validate()}).
+     * @param participantId The participant ID
+     * @param entries The entries to append to
+     * @return The number of training videos, which are appended first
+     */
+    public int generate(int participantId, PlaylistEntries entries) {
+        long start = System.nanoTime();
+        VideoNameTable table = entries.getTable();
+
+        for (String video : training) {
+            entries.add(video.trim());
+        }
+
+        int n = videos.size();
+        int[] videoIds = new int[n];
+        for (int i = 0; i < n; i++) {
+            videoIds[i] = table.intern(videos.get(i).trim());
+        }
+        int breakId = table.intern(breakDuration >= 0
+                ? Session.BREAK_PREFIX + " " + breakDuration : Session.BREAK_PREFIX);
+
+        int[] groups = getSourceGroups();
+        Random random = new Random(seed * 31 + participantId);
+        int[] order = new int[n];
+        int previousGroup = -1;
+        for (int block = 0; block < blocks; block++) {
+            int row = participantId - 1 + block;
+            if (SCHEME_LATIN_SQUARE.equals(scheme)) {
+                latinSquareRow(row, order);
+            } else if (SCHEME_WILLIAMS.equals(scheme)) {
+                williamsRow(row, order);
+            } else {
+                shuffle(order, random);
+                separateSources(order, groups, previousGroup);
+            }
+
+            if (block > 0) {
+                entries.addId(breakId);
+            }
+            for (int i = 0; i < n; i++) {
+                if (breakInterval > 0 && i > 0 && i % breakInterval == 0) {
+                    entries.addId(breakId);
+                }
+                entries.addId(videoIds[order[i]]);
+            }
+            previousGroup = groups[order[n - 1]];
+        }
+
+        Log.d(TAG, "Generated " + entries.size() + " entries for participant " + participantId
+                + " in " + (System.nanoTime() - start) / 1000 + " us");
+        return training.size();
+    }
+
+    /**
+     * Fills in a row of the cyclic Latin square of order n: video (row + j) mod n at position j.
+     */
+    static void latinSquareRow(int row, int[] order) {
+        int n = order.length;
+        int offset = Math.floorMod(row, n);
+        for (int j = 0; j < n; j++) {
+            order[j] = (offset + j) % n;
+        }
+    }
+
+    /**
+     * Fills in a row of the Williams design of order n. The first row is
+     * 0, 1, n-1, 2, n-2, ..., and row r adds r to every element (mod n). For
+     * odd n the design needs 2n rows, the second n being the first n reversed.
+     */
+    static void williamsRow(int row, int[] order) {
+        int n = order.length;
+        int rows = n % 2 == 0 ? n : 2 * n;
+        int r = Math.floorMod(row, rows);
+        int offset = r % n;
+        for (int j = 0; j < n; j++) {
+            int first = j == 0 ? 0 : (j % 2 == 1 ? (j + 1) / 2 : n - j / 2);
+            order[j] = (first + offset) % n;
+        }
+        if (r >= n) {
+            for (int i = 0, j = n - 1; i < j; i++, j--) {
+                int tmp = order[i];
+                order[i] = order[j];
+                order[j] = tmp;
+            }
+        }
+    }
+
+    private static void shuffle(int[] order, Random random) {
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        for (int i = order.length - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int tmp = order[i];
+            order[i] = order[j];
+            order[j] = tmp;
+        }
+    }
+
+    /**
+     * Reorders a shuffled block so that no two consecutive videos share the
+     * same source group. The videos are taken in their shuffled order, except
+     * that a video is skipped while it would follow one of its own group or
+     * leave videos that can no longer be separated. This succeeds whenever no
+     * group makes up more than half of the videos (rounded up), and no more
+     * than half rounded down if it is the group of the previous video. Otherwise
+     * the group with the most videos left is taken first, keeping the
+     * conflicts as few as possible.
+     * @param previousGroup The group of the video before the block, or -1
+     */
+    static void separateSources(int[] order, int[] groups, int previousGroup) {
+        int n = order.length;
+        int groupCount = 0;
+        for (int group : groups) {
+            groupCount = Math.max(groupCount, group + 1);
+        }
+        int[] left = new int[groupCount];
+        for (int video : order) {
+            left[groups[video]]++;
+        }
+        int[] shuffled = order.clone();
+        boolean[] taken = new boolean[n];
+        int before = previousGroup;
+        int conflicts = 0;
+        for (int i = 0; i < n; i++) {
+            int pick = -1;
+            int fallback = -1;
+            for (int j = 0; j < n && pick < 0; j++) {
+                if (taken[j]) {
+                    continue;
+                }
+                int group = groups[shuffled[j]];
+                if (group == before) {
+                    continue;
+                }
+                if (canSeparateRest(left, group, n - i - 1)) {
+                    pick = j;
+                } else if (fallback < 0 || left[group] > left[groups[shuffled[fallback]]]) {
+                    fallback = j;
+                }
+            }
+            if (pick < 0) {
+                pick = fallback;
+            }
+            if (pick < 0) {
+                // Only videos of the previous group are left
+                pick = 0;
+                while (taken[pick]) {
+                    pick++;
+                }
+                conflicts++;
+            }
+            taken[pick] = true;
+            order[i] = shuffled[pick];
+            before = groups[order[i]];
+            left[before]--;
+        }
+        if (conflicts > 0) {
+            Log.w(TAG, conflicts + " videos follow a video of the same source; too few other sources");
+        }
+    }
+
+    /**
+     * Checks if the videos left after taking one of the given group can still
+     * be ordered so that no two of the same group are consecutive, and the
+     * first of them is not of the given group.
+     * @param left The number of videos left per group, before taking one
+     * @param group The group of the video to take
+     * @param remaining The number of videos left after taking it
+     */
+    private static boolean canSeparateRest(int[] left, int group, int remaining) {
+        for (int g = 0; g < left.length; g++) {
+            int count = g == group ? left[g] - 1 : left[g];
+            int limit = g == group ? remaining / 2 : (remaining + 1) / 2;
+            if (count > limit) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the source group of every test video, numbered in order of first
+     * appearance. Videos that do not match the source pattern form their own group.
+     */
+    int[] getSourceGroups() {
+        if (mSourceGroups == null) {
+            Pattern pattern = Pattern.compile(sourcePattern);
+            Map<String, Integer> groupIds = new HashMap<>();
+            int[] groups = new int[videos.size()];
+            for (int i = 0; i < groups.length; i++) {
+                String video = videos.get(i).trim();
+                Matcher matcher = pattern.matcher(video);
+                String source = matcher.find() && matcher.groupCount() >= 1 && matcher.group(1) != null
+                        ? matcher.group(1) : video;
+                Integer id = groupIds.get(source);
+                if (id == null) {
+                    id = groupIds.size();
+                    groupIds.put(source, id);
+                }
+                groups[i] = id;
+            }
+            mSourceGroups = groups;
+        }
+        return mSourceGroups;
+    }
+}
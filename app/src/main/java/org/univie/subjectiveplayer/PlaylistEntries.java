@@ -0,0 +1,107 @@
+/*	This file is part of SubjectivePlayer for Android.
+ *
+ *	SubjectivePlayer for Android is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	SubjectivePlayer for Android is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU General Public License for more details.
+ *
+ *	You should have received a copy of the GNU General Public License
+ *	along with SubjectivePlayer for Android.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.univie.subjectiveplayer;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.RandomAccess;
+
+/**
+ * Playlist entries of a config file, stored as an int array of IDs in a
+ * {@link VideoNameTable}. Behaves like a list of strings, so parsers and
+ * callers of {@link BaseConfigFile#getEntries()} can keep working with names,
+ * while the strings themselves are shared across all config files.
+ */
+public final class PlaylistEntries extends AbstractList<String> implements RandomAccess {
+
+    private final VideoNameTable mTable;
+    private int[] mIds = new int[16];
+    private int mSize = 0;
+
+    /**
+     * Creates an empty playlist backed by the given table.
+     */
+    public PlaylistEntries(VideoNameTable table) {
+        mTable = table;
+    }
+
+    /**
+     * Returns the table the IDs of this playlist refer to.
+     */
+    public VideoNameTable getTable() {
+        return mTable;
+    }
+
+    @Override
+    public String get(int index) {
+        return mTable.name(getId(index));
+    }
+
+    @Override
+    public int size() {
+        return mSize;
+    }
+
+    @Override
+    public boolean add(String name) {
+        addId(mTable.intern(name));
+        return true;
+    }
+
+    /**
+     * Appends an entry by its ID.
+     * @param id An ID from the table of this playlist
+     */
+    public void addId(int id) {
+        if (mSize == mIds.length) {
+            mIds = Arrays.copyOf(mIds, mSize * 2);
+        }
+        mIds[mSize++] = id;
+        modCount++;
+    }
+
+    /**
+     * Returns the ID of the entry at the given index.
+     */
+    public int getId(int index) {
+        if (index < 0 || index >= mSize) {
+            throw new IndexOutOfBoundsException("Index " + index + ", size " + mSize);
+        }
+        return mIds[index];
+    }
+
+    /**
+     * Returns the IDs of all entries, including BREAK commands.
+     */
+    public int[] toIdArray() {
+        return Arrays.copyOf(mIds, mSize);
+    }
+
+    /**
+     * Returns the IDs of all video entries, excluding BREAK commands.
+     */
+    public int[] toVideoIdArray() {
+        int[] videoIds = new int[mSize];
+        int count = 0;
+        for (int i = 0; i < mSize; i++) {
+            if (!mTable.isBreak(mIds[i])) {
+                videoIds[count++] = mIds[i];
+            }
+        }
+        return Arrays.copyOf(videoIds, count);
+    }
+}
@@ -17,6 +17,7 @@
 package org.univie.subjectiveplayer;
 
 import android.os.Bundle;
+import android.text.InputType;
 import android.view.MenuItem;
 import android.widget.LinearLayout;
 
@@ -25,6 +26,7 @@ import androidx.core.graphics.Insets;
 import androidx.core.view.ViewCompat;
 import androidx.core.view.WindowCompat;
 import androidx.core.view.WindowInsetsCompat;
+import androidx.preference.EditTextPreference;
 import androidx.preference.PreferenceFragmentCompat;
 
 import com.google.android.material.appbar.MaterialToolbar;
@@ -74,6 +76,42 @@ public class PreferencesActivity extends AppCompatActivity {
 		@Override
 		public void onCreatePreferences(Bundle savedInstanceState, String rootKey) {
 			setPreferencesFromResource(R.xml.preferences, rootKey);
+
+			EditTextPreference earlyStopping = findPreference("earlystopping");
+			if (earlyStopping != null) {
+				earlyStopping.setOnBindEditTextListener(editText ->
+						editText.setInputType(InputType.TYPE_CLASS_NUMBER | InputType.TYPE_NUMBER_FLAG_DECIMAL));
+				earlyStopping.setSummaryProvider(preference -> {
+					String text = ((EditTextPreference) preference).getText();
+					return Configuration.parseEarlyStoppingCi95(text) > 0
+							? getString(R.string.preferences_earlystopping_summary_on, text.trim())
+							: getString(R.string.preferences_earlystopping_summary_off);
+				});
+			}
+
+			EditTextPreference archiveDays = findPreference("archivedays");
+			if (archiveDays != null) {
+				archiveDays.setOnBindEditTextListener(editText ->
+						editText.setInputType(InputType.TYPE_CLASS_NUMBER));
+				archiveDays.setSummaryProvider(preference -> {
+					String text = ((EditTextPreference) preference).getText();
+					return Configuration.parseArchiveAfterDays(text) > 0
+							? getString(R.string.preferences_archivedays_summary_on, text.trim())
+							: getString(R.string.preferences_archivedays_summary_off);
+				});
+			}
+
+			EditTextPreference dsisGrey = findPreference("dsisgrey");
+			if (dsisGrey != null) {
+				dsisGrey.setOnBindEditTextListener(editText ->
+						editText.setInputType(InputType.TYPE_CLASS_NUMBER));
+				dsisGrey.setSummaryProvider(preference -> {
+					String text = ((EditTextPreference) preference).getText();
+					return Configuration.parseDsisGreyMillis(text) > 0
+							? getString(R.string.preferences_dsisgrey_summary_on, text.trim())
+							: getString(R.string.preferences_dsisgrey_summary_off);
+				});
+			}
 		}
 	}
 }
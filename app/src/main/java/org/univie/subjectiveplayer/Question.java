@@ -16,8 +16,6 @@
 
 package org.univie.subjectiveplayer;
 
-import com.google.gson.annotations.SerializedName;
-
 import java.util.List;
 
 /**
@@ -33,19 +31,15 @@ public class Question {
     public static final String TYPE_TEXT = "text";
 
     /** The question text to display */
-    @SerializedName("question")
     private String question;
 
     /** The type of question: "number", "radio", "multiple-choice", or "text" */
-    @SerializedName("type")
     private String type;
 
     /** Options for radio or multiple-choice questions */
-    @SerializedName("options")
     private List<String> options;
 
     /** Whether the question requires an answer (defaults to true) */
-    @SerializedName("required")
     private Boolean required;
 
     /**
@@ -96,6 +90,13 @@ public class Question {
         return required == null || required;
     }
 
+    /**
+     * Returns the required flag as given in the config, or null if not specified.
+     */
+    public Boolean getRequired() {
+        return required;
+    }
+
     public void setRequired(Boolean required) {
         this.required = required;
     }
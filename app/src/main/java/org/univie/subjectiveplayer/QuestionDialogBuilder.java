@@ -40,7 +40,8 @@ import java.util.List;
 /**
  * Builder class for creating question dialogs.
  * Supports number, radio, multiple-choice, and text question types.
- * Renders each question in a landscape-friendly centered dialog.
+ * Renders each question in a landscape-friendly centered dialog, or as a page
+ * that {@link QuestionnaireRenderer} shows in a shared dialog.
  */
 public class QuestionDialogBuilder {
 
@@ -58,6 +59,9 @@ public class QuestionDialogBuilder {
     private final Question question;
     private final int questionNumber;
     private final int totalQuestions;
+    private final float density;
+    private final int colorWhite;
+    private final int colorHint;
     private OnAnswerListener listener;
 
     // UI elements for collecting answers
@@ -71,6 +75,9 @@ public class QuestionDialogBuilder {
         this.question = question;
         this.questionNumber = questionNumber;
         this.totalQuestions = totalQuestions;
+        this.density = context.getResources().getDisplayMetrics().density;
+        this.colorWhite = context.getResources().getColor(R.color.white, null);
+        this.colorHint = context.getResources().getColor(R.color.text_hint, null);
     }
 
     public QuestionDialogBuilder setOnAnswerListener(OnAnswerListener listener) {
@@ -84,7 +91,25 @@ public class QuestionDialogBuilder {
     public Dialog build() {
         Dialog dialog = new CustomDialog(context);
         dialog.setCancelable(false);
+        dialog.setContentView(buildContent(dialog::dismiss));
+        dialog.getWindow().setLayout(LayoutParams.MATCH_PARENT, LayoutParams.MATCH_PARENT);
+        return dialog;
+    }
+
+    /**
+     * Creates the question page without a dialog. The submit button calls
+     * the listener that is set when it is clicked, so the page can be built
+     * ahead of time and the listener set when it is shown.
+     */
+    public View buildView() {
+        return buildContent(null);
+    }
 
+    /**
+     * Creates the question page.
+     * @param onAnswered Called after the listener, may be null
+     */
+    private View buildContent(Runnable onAnswered) {
         // Create the main layout
         FrameLayout rootLayout = new FrameLayout(context);
         rootLayout.setLayoutParams(new LayoutParams(LayoutParams.MATCH_PARENT, LayoutParams.MATCH_PARENT));
@@ -116,7 +141,7 @@ public class QuestionDialogBuilder {
         // Question counter (e.g., "Question 1 of 3")
         TextView counterView = new TextView(context);
         counterView.setText(context.getString(R.string.questionnaire_counter, questionNumber, totalQuestions));
-        counterView.setTextColor(context.getResources().getColor(R.color.text_hint, null));
+        counterView.setTextColor(colorHint);
         counterView.setTextSize(TypedValue.COMPLEX_UNIT_SP, 14);
         counterView.setGravity(Gravity.CENTER);
         LinearLayout.LayoutParams counterParams = new LinearLayout.LayoutParams(
@@ -128,7 +153,7 @@ public class QuestionDialogBuilder {
         // Question text
         TextView questionView = new TextView(context);
         questionView.setText(question.getQuestion());
-        questionView.setTextColor(context.getResources().getColor(R.color.white, null));
+        questionView.setTextColor(colorWhite);
         questionView.setTextSize(TypedValue.COMPLEX_UNIT_SP, 18);
         questionView.setGravity(Gravity.CENTER);
         questionView.setLineSpacing(0, 1.3f);
@@ -142,7 +167,7 @@ public class QuestionDialogBuilder {
         if (!question.isRequired()) {
             TextView optionalView = new TextView(context);
             optionalView.setText(context.getString(R.string.questionnaire_optional));
-            optionalView.setTextColor(context.getResources().getColor(R.color.text_hint, null));
+            optionalView.setTextColor(colorHint);
             optionalView.setTextSize(TypedValue.COMPLEX_UNIT_SP, 12);
             optionalView.setGravity(Gravity.CENTER);
             LinearLayout.LayoutParams optionalParams = new LinearLayout.LayoutParams(
@@ -163,7 +188,7 @@ public class QuestionDialogBuilder {
         Button submitButton = new Button(context);
         submitButton.setText(R.string.questionnaire_next);
         submitButton.setTextSize(TypedValue.COMPLEX_UNIT_SP, 16);
-        submitButton.setTextColor(context.getResources().getColor(R.color.white, null));
+        submitButton.setTextColor(colorWhite);
         submitButton.setTypeface(submitButton.getTypeface(), android.graphics.Typeface.BOLD);
         submitButton.setBackgroundResource(R.drawable.submit_button_background);
         submitButton.setAllCaps(false);
@@ -183,17 +208,16 @@ public class QuestionDialogBuilder {
             if (listener != null) {
                 listener.onAnswer(answer != null ? answer : "");
             }
-            dialog.dismiss();
+            if (onAnswered != null) {
+                onAnswered.run();
+            }
         });
 
         contentLayout.addView(submitButton);
         centerWrapper.addView(contentLayout);
         scrollView.addView(centerWrapper);
         rootLayout.addView(scrollView);
-        dialog.setContentView(rootLayout);
-        dialog.getWindow().setLayout(LayoutParams.MATCH_PARENT, LayoutParams.MATCH_PARENT);
-
-        return dialog;
+        return rootLayout;
     }
 
     /**
@@ -235,10 +259,10 @@ public class QuestionDialogBuilder {
         for (int i = 0; i < options.size(); i++) {
             RadioButton radioButton = new RadioButton(context);
             radioButton.setText(options.get(i));
-            radioButton.setTextColor(context.getResources().getColor(R.color.white, null));
+            radioButton.setTextColor(colorWhite);
             radioButton.setTextSize(TypedValue.COMPLEX_UNIT_SP, 16);
             radioButton.setButtonTintList(android.content.res.ColorStateList.valueOf(
-                    context.getResources().getColor(R.color.white, null)));
+                    colorWhite));
             radioButton.setId(View.generateViewId());
             RadioGroup.LayoutParams rbParams = new RadioGroup.LayoutParams(
                     LayoutParams.WRAP_CONTENT, LayoutParams.WRAP_CONTENT);
@@ -273,10 +297,10 @@ public class QuestionDialogBuilder {
         for (int i = 0; i < options.size(); i++) {
             CheckBox checkBox = new CheckBox(context);
             checkBox.setText(options.get(i));
-            checkBox.setTextColor(context.getResources().getColor(R.color.white, null));
+            checkBox.setTextColor(colorWhite);
             checkBox.setTextSize(TypedValue.COMPLEX_UNIT_SP, 16);
             checkBox.setButtonTintList(android.content.res.ColorStateList.valueOf(
-                    context.getResources().getColor(R.color.white, null)));
+                    colorWhite));
             LinearLayout.LayoutParams cbParams = new LinearLayout.LayoutParams(
                     LayoutParams.WRAP_CONTENT, LayoutParams.WRAP_CONTENT);
             cbParams.bottomMargin = dpToPx(8);
@@ -295,8 +319,8 @@ public class QuestionDialogBuilder {
     private View createNumberInput() {
         numberInput = new EditText(context);
         numberInput.setInputType(InputType.TYPE_CLASS_NUMBER);
-        numberInput.setTextColor(context.getResources().getColor(R.color.white, null));
-        numberInput.setHintTextColor(context.getResources().getColor(R.color.text_hint, null));
+        numberInput.setTextColor(colorWhite);
+        numberInput.setHintTextColor(colorHint);
         numberInput.setHint(R.string.questionnaire_number_hint);
         numberInput.setTextSize(TypedValue.COMPLEX_UNIT_SP, 18);
         numberInput.setGravity(Gravity.CENTER);
@@ -315,8 +339,8 @@ public class QuestionDialogBuilder {
     private View createTextInput() {
         textInput = new EditText(context);
         textInput.setInputType(InputType.TYPE_CLASS_TEXT | InputType.TYPE_TEXT_FLAG_MULTI_LINE);
-        textInput.setTextColor(context.getResources().getColor(R.color.white, null));
-        textInput.setHintTextColor(context.getResources().getColor(R.color.text_hint, null));
+        textInput.setTextColor(colorWhite);
+        textInput.setHintTextColor(colorHint);
         textInput.setHint(R.string.questionnaire_text_hint);
         textInput.setTextSize(TypedValue.COMPLEX_UNIT_SP, 16);
         textInput.setMinLines(3);
@@ -381,7 +405,6 @@ public class QuestionDialogBuilder {
      * Converts dp to pixels.
      */
     private int dpToPx(int dp) {
-        float density = context.getResources().getDisplayMetrics().density;
         return Math.round(dp * density);
     }
 }
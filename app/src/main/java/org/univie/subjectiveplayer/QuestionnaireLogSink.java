@@ -0,0 +1,162 @@
+/*	This file is part of SubjectivePlayer for Android.
+ *
+ *	SubjectivePlayer for Android is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	SubjectivePlayer for Android is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU General Public License for more details.
+ *
+ *	You should have received a copy of the GNU General Public License
+ *	along with SubjectivePlayer for Android.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.univie.subjectiveplayer;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Writes a questionnaire log as CSV (tidy format, one row per answer).
+ * Answers are written and flushed as they are given, like the rows of the
+ * session log, so the log is complete up to the last answer if the app is
+ * killed during a questionnaire. The log is written to a temporary file and
+ * finished with the same footer as {@link CsvLogSink} on {@link #close()}.
+ */
+final class QuestionnaireLogSink implements Closeable {
+
+    /** Header row of questionnaire logs */
+    static final String HEADER = "question_number,question_type,question,answer,answered_at,answer_duration";
+
+    private final File mFile;
+    private final LogFileOutputStream mOut;
+    private final BufferedWriter mWriter;
+    private long mRows = 0;
+
+    QuestionnaireLogSink(File file) throws IOException {
+        mFile = file;
+        mOut = new LogFileOutputStream(file);
+        mWriter = new BufferedWriter(new OutputStreamWriter(mOut, StandardCharsets.UTF_8));
+        mWriter.write(HEADER);
+        mWriter.newLine();
+        mWriter.flush();
+    }
+
+    File getFile() {
+        return mFile;
+    }
+
+    /**
+     * Writes the answer to one question. An empty or missing answer is written
+     * as a single row with an empty answer; a multiple-choice answer with
+     * several selections is written as one row per selected option.
+     * @param questionNumber The one-based question number
+     * @param question The question
+     * @param answer The answer, or null if the question was not answered
+     */
+    void writeAnswer(int questionNumber, Question question, QuestionnaireAnswer answer) throws IOException {
+        String answeredAt = answer != null
+                ? CsvLogSink.formatAsIso8601(answer.getAnsweredAtMillis(), TimeZone.getDefault()) : "";
+        String duration = answer != null
+                ? String.format(Locale.US, "%.3f", answer.getAnswerDurationSeconds()) : "";
+
+        if (answer == null || answer.isEmpty()) {
+            writeRow(questionNumber, question, "", answeredAt, duration);
+        } else if (Question.TYPE_MULTIPLE_CHOICE.equals(question.getType()) && answer.hasMultipleSelections()) {
+            for (String selectedOption : answer.getAnswers()) {
+                writeRow(questionNumber, question, selectedOption, answeredAt, duration);
+            }
+        } else {
+            writeRow(questionNumber, question, answer.getAnswer(), answeredAt, duration);
+        }
+        mWriter.flush();
+    }
+
+    private void writeRow(int questionNumber, Question question, String answer, String answeredAt,
+                          String duration) throws IOException {
+        mWriter.write(Integer.toString(questionNumber));
+        mWriter.write(',');
+        mWriter.write(String.valueOf(question.getType()));
+        mWriter.write(',');
+        writeField(mWriter, question.getQuestion());
+        mWriter.write(',');
+        writeField(mWriter, answer);
+        mWriter.write(',');
+        mWriter.write(answeredAt);
+        mWriter.write(',');
+        mWriter.write(duration);
+        mWriter.newLine();
+        mRows++;
+    }
+
+    /**
+     * Finishes the log: appends the footer and renames it to its final name.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            mWriter.flush();
+            mOut.finish(CsvLogSink.formatFooter(mRows, mOut.getChecksum()).getBytes(StandardCharsets.UTF_8));
+        } finally {
+            mWriter.close();
+        }
+    }
+
+    /**
+     * Closes the log without finishing it, e.g. when a questionnaire was
+     * cancelled. The answers written so far stay in the temporary file.
+     */
+    void abandon() throws IOException {
+        mWriter.close();
+    }
+
+    /**
+     * Writes a CSV field, quoted if it contains a comma, quote or line break.
+     * The value is scanned once; if nothing needs escaping, it is written as
+     * is without creating any new strings.
+     * @param out The writer
+     * @param value The field value; null is written as an empty field
+     */
+    static void writeField(Writer out, String value) throws IOException {
+        if (value == null) {
+            return;
+        }
+        int length = value.length();
+        int i = 0;
+        while (i < length) {
+            char c = value.charAt(i);
+            if (c == ',' || c == '"' || c == '\n' || c == '\r') {
+                break;
+            }
+            i++;
+        }
+        if (i == length) {
+            out.write(value);
+            return;
+        }
+
+        // Write the plain prefix, then the rest with quotes doubled
+        out.write('"');
+        out.write(value, 0, i);
+        int start = i;
+        for (; i < length; i++) {
+            if (value.charAt(i) == '"') {
+                out.write(value, start, i + 1 - start);
+                out.write('"');
+                start = i + 1;
+            }
+        }
+        out.write(value, start, length - start);
+        out.write('"');
+    }
+}
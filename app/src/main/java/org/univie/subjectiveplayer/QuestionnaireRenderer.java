@@ -0,0 +1,133 @@
+/*	This file is part of SubjectivePlayer for Android.
+ *
+ *	SubjectivePlayer for Android is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	SubjectivePlayer for Android is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU General Public License for more details.
+ *
+ *	You should have received a copy of the GNU General Public License
+ *	along with SubjectivePlayer for Android.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.univie.subjectiveplayer;
+
+import android.app.Dialog;
+import android.content.Context;
+import android.os.Looper;
+import android.os.MessageQueue;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.View;
+import android.view.ViewGroup.LayoutParams;
+import android.widget.FrameLayout;
+
+import java.util.List;
+
+/**
+ * Shows all questions of a questionnaire as pages of a single dialog.
+ *
+ * The question pages are built ahead of time with {@link QuestionDialogBuilder},
+ * one page each time the main thread is idle, so they can be built while the
+ * questionnaire intro is shown (views can only be created on the main
+ * thread). Moving to the next question then only swaps the page in the
+ * dialog. A page that has not been built yet when it is needed is built right
+ * away.
+ */
+public class QuestionnaireRenderer {
+
+    private static final String TAG = QuestionnaireRenderer.class.getSimpleName();
+
+    private final Context mContext;
+    private final List<Question> mQuestions;
+    private final QuestionDialogBuilder[] mBuilders;
+    private final View[] mPages;
+    private int mBuilt = 0;
+    private boolean mPrebuilding = false;
+
+    private Dialog mDialog;
+    private FrameLayout mContainer;
+
+    /** Builds one page per idle callback until all pages are built */
+    private final MessageQueue.IdleHandler mIdleHandler = () -> {
+        if (mBuilt < mPages.length) {
+            buildPage(mBuilt);
+        }
+        mPrebuilding = mBuilt < mPages.length;
+        return mPrebuilding;
+    };
+
+    public QuestionnaireRenderer(Context context, Questionnaire questionnaire) {
+        mContext = context;
+        mQuestions = questionnaire.getQuestions();
+        mBuilders = new QuestionDialogBuilder[mQuestions.size()];
+        mPages = new View[mQuestions.size()];
+    }
+
+    /**
+     * Starts building the question pages whenever the main thread is idle.
+     * Must be called on the main thread.
+     */
+    public void prebuild() {
+        if (!mPrebuilding && mBuilt < mPages.length) {
+            mPrebuilding = true;
+            Looper.myQueue().addIdleHandler(mIdleHandler);
+        }
+    }
+
+    /**
+     * Shows a question, opening the dialog if it is not shown yet.
+     * @param index The zero-based question index
+     * @param listener Receives the answer when the question is submitted
+     */
+    public void showQuestion(int index, QuestionDialogBuilder.OnAnswerListener listener) {
+        if (mDialog == null) {
+            mDialog = new CustomDialog(mContext);
+            mDialog.setCancelable(false);
+            mContainer = new FrameLayout(mContext);
+            mDialog.setContentView(mContainer);
+            mDialog.getWindow().setLayout(LayoutParams.MATCH_PARENT, LayoutParams.MATCH_PARENT);
+        }
+
+        View page = mPages[index] != null ? mPages[index] : buildPage(index);
+        mBuilders[index].setOnAnswerListener(listener);
+        mContainer.removeAllViews();
+        mContainer.addView(page);
+        if (!mDialog.isShowing()) {
+            mDialog.show();
+        }
+    }
+
+    /**
+     * Closes the dialog and stops building pages.
+     */
+    public void dismiss() {
+        if (mPrebuilding) {
+            Looper.myQueue().removeIdleHandler(mIdleHandler);
+            mPrebuilding = false;
+        }
+        if (mDialog != null) {
+            mDialog.dismiss();
+            mDialog = null;
+            mContainer = null;
+        }
+    }
+
+    private View buildPage(int index) {
+        long start = SystemClock.elapsedRealtimeNanos();
+        QuestionDialogBuilder builder = new QuestionDialogBuilder(
+                mContext, mQuestions.get(index), index + 1, mQuestions.size());
+        mBuilders[index] = builder;
+        mPages[index] = builder.buildView();
+        while (mBuilt < mPages.length && mPages[mBuilt] != null) {
+            mBuilt++;
+        }
+        Log.d(TAG, "Built question page " + (index + 1) + " in "
+                + (SystemClock.elapsedRealtimeNanos() - start) / 1000 + " us");
+        return mPages[index];
+    }
+}
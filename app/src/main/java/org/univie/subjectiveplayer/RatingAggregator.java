@@ -0,0 +1,504 @@
+/*	This file is part of SubjectivePlayer for Android.
+ *
+ *	SubjectivePlayer for Android is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	SubjectivePlayer for Android is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU General Public License for more details.
+ *
+ *	You should have received a copy of the GNU General Public License
+ *	along with SubjectivePlayer for Android.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.univie.subjectiveplayer;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Computes the MOS and 95% confidence interval of every video from the
+ * session logs written by {@link CsvLogger}, including the logs packed into
+ * a {@link LogArchive}. Binary logs are read when there is no CSV log of the
+ * same session.
+ *
+ * Each session log is streamed once. BREAK rows and training videos are
+ * skipped, and consecutive rows for the same playlist position (as written
+ * by the continuous methods) are averaged into one score per presentation.
+ * Scores are kept per method and per video in running mean/variance
+ * accumulators (Welford's algorithm) indexed by {@link VideoNameTable} ID, so
+ * the table can be produced at any time without touching the logs again.
+ *
+ * {@link #update()} only folds in logs that were not seen by a previous call,
+ * so it can be called between participants to watch the scores converge.
+ */
+public class RatingAggregator {
+
+    private static final String TAG = RatingAggregator.class.getSimpleName();
+
+    /** Header of the session logs written by {@link CsvLogger} */
+    static final String SESSION_LOG_HEADER = "video_position,video_name,rating,rated_at,rating_duration";
+
+    /** Session log file names: ID_StartTime_Method.csv or ID_StartTime_Method.splog */
+    private static final Pattern SESSION_LOG_NAME =
+            Pattern.compile("^(.+?)_(\\d{8}-\\d{6})_(.+)(\\.csv|\\.splog)$");
+
+    /** Two-sided 95% quantiles of Student's t distribution for 1 to 30 degrees of freedom */
+    private static final double[] T_95 = {
+            12.706, 4.303, 3.182, 2.776, 2.571, 2.447, 2.365, 2.306, 2.262, 2.228,
+            2.201, 2.179, 2.160, 2.145, 2.131, 2.120, 2.110, 2.101, 2.093, 2.086,
+            2.080, 2.074, 2.069, 2.064, 2.060, 2.056, 2.052, 2.048, 2.045, 2.042
+    };
+
+    private static RatingAggregator sDefault = null;
+
+    private final File mLogFolder;
+    private final File mConfigFolder;
+    private final LogArchive mArchive;
+    private final VideoNameTable mTable = VideoNameTable.shared();
+
+    /** Accumulators per method, keyed by the method part of the log file name */
+    private final Map<String, Accumulator> mMethods = new LinkedHashMap<>();
+    /** Names of all logs folded in so far */
+    private final Set<String> mFoldedLogs = new HashSet<>();
+    /** Training videos per participant ID, loaded from the subject configs */
+    private final Map<String, TrainingSection> mTrainingSections = new HashMap<>();
+    /** Modification time threshold for the next incremental update */
+    private long mLastUpdate = Long.MIN_VALUE;
+    private int mSessionCount = 0;
+    private long mRatingCount = 0;
+
+    /**
+     * Result row: the MOS and confidence interval of one video for one method.
+     */
+    public static final class VideoScore {
+        public final String method;
+        public final String video;
+        public final int count;
+        public final double mos;
+        public final double stdDev;
+        public final double ci95;
+
+        VideoScore(String method, String video, int count, double mos, double stdDev, double ci95) {
+            this.method = method;
+            this.video = video;
+            this.count = count;
+            this.mos = mos;
+            this.stdDev = stdDev;
+            this.ci95 = ci95;
+        }
+    }
+
+    /**
+     * Running statistics of all videos for one method, as parallel arrays
+     * indexed by video ID.
+     */
+    private static final class Accumulator {
+        int[] count = new int[0];
+        double[] mean = new double[0];
+        double[] m2 = new double[0];
+
+        void add(int id, double score) {
+            if (id >= count.length) {
+                int capacity = Math.max(id + 1, count.length * 2);
+                count = Arrays.copyOf(count, capacity);
+                mean = Arrays.copyOf(mean, capacity);
+                m2 = Arrays.copyOf(m2, capacity);
+            }
+            int n = ++count[id];
+            double delta = score - mean[id];
+            mean[id] += delta / n;
+            m2[id] += delta * (score - mean[id]);
+        }
+    }
+
+    /**
+     * Training videos of one subject config, and the last playlist position
+     * they can appear at.
+     */
+    private static final class TrainingSection {
+        final BitSet videoIds = new BitSet();
+        int lastPosition = -1;
+    }
+
+    /**
+     * Opens the data of a session log.
+     */
+    private interface LogSource {
+        InputStream open() throws IOException;
+    }
+
+    /**
+     * Creates an aggregator for the given folders.
+     * @param logFolder The folder containing the session logs
+     * @param configFolder The folder containing the subject configs, used to
+     *                     identify training videos. May be null.
+     */
+    public RatingAggregator(File logFolder, File configFolder) {
+        mLogFolder = logFolder;
+        mConfigFolder = configFolder;
+        mArchive = logFolder != null ? new LogArchive(logFolder) : null;
+    }
+
+    /**
+     * Returns the aggregator for the folders of the current {@link Configuration}.
+     * It is kept for the lifetime of the process, so repeated calls to
+     * {@link #update()} only read new logs.
+     */
+    public static synchronized RatingAggregator getDefault() {
+        if (sDefault == null) {
+            sDefault = new RatingAggregator(Configuration.sFolderLogs, Configuration.sFolderApproot);
+        }
+        return sDefault;
+    }
+
+    /**
+     * Folds in all session logs that were written since the last update.
+     * The log of a session that is still running is left out until it is closed.
+     * @return The number of session logs folded in
+     */
+    public synchronized int update() {
+        long start = System.nanoTime();
+        File[] files = mLogFolder != null ? mLogFolder.listFiles() : null;
+        if (files == null) {
+            return 0;
+        }
+
+        File openLog = CsvLogger.getCurrentSessionLogFile();
+        long threshold = mLastUpdate;
+        int folded = 0;
+        for (File file : files) {
+            long lastModified = file.lastModified();
+            // Logs closed in the same second as the last update have the same
+            // timestamp, so compare inclusively and rely on the set of folded names
+            if (lastModified < threshold || mFoldedLogs.contains(file.getName())
+                    || file.equals(openLog)) {
+                continue;
+            }
+            if (fold(file)) {
+                folded++;
+            }
+            mLastUpdate = Math.max(mLastUpdate, lastModified);
+        }
+
+        // Archives are rewritten when logs are added, so only those changed
+        // since the last update can hold logs that were not folded in yet
+        int[] archived = {0};
+        for (File archive : mArchive.listArchives()) {
+            long lastModified = archive.lastModified();
+            if (lastModified < threshold) {
+                continue;
+            }
+            try {
+                LogArchive.read(archive, (name, in) -> {
+                    if (!mFoldedLogs.contains(name) && fold(name, () -> in)) {
+                        archived[0]++;
+                    }
+                });
+            } catch (IOException e) {
+                Log.e(TAG, "Error reading archive " + archive.getName() + ": " + e.getMessage());
+            }
+            mLastUpdate = Math.max(mLastUpdate, lastModified);
+        }
+        folded += archived[0];
+        Log.d(TAG, "Folded in " + folded + " session log(s) in "
+                + (System.nanoTime() - start) / 1000 + " us");
+        return folded;
+    }
+
+    /**
+     * Discards all statistics and reads all session logs again, e.g. after
+     * logs or configs were changed or removed.
+     * @return The number of session logs folded in
+     */
+    public synchronized int rebuild() {
+        mMethods.clear();
+        mFoldedLogs.clear();
+        mTrainingSections.clear();
+        mLastUpdate = Long.MIN_VALUE;
+        mSessionCount = 0;
+        mRatingCount = 0;
+        return update();
+    }
+
+    /**
+     * Streams one session log into the statistics.
+     * @param file The session log
+     * @return true if the file is a session log and was folded in
+     */
+    synchronized boolean fold(File file) {
+        return fold(file.getName(), () -> new FileInputStream(file));
+    }
+
+    /**
+     * Streams one session log into the statistics.
+     * @param name The file name of the log
+     * @param source Opens the log data
+     * @return true if the data is a session log and was folded in
+     */
+    private boolean fold(String name, LogSource source) {
+        Matcher matcher = SESSION_LOG_NAME.matcher(name);
+        if (!matcher.matches()) {
+            return false;
+        }
+        String participantId = matcher.group(1);
+        String method = matcher.group(3).replace('_', ' ');
+        boolean binary = BinaryLogSink.EXTENSION.equals(matcher.group(4));
+        if (binary && hasLog(name.substring(0, matcher.start(4)) + CsvLogSink.EXTENSION)) {
+            // The CSV log of the same session is folded in instead
+            return false;
+        }
+
+        try (InputStream in = source.open()) {
+            if (binary) {
+                LogFold fold = new LogFold(getAccumulator(method), getTrainingSection(participantId));
+                BinaryLogReader.read(in, name, (position, video, rating, ratedAt, duration) -> {
+                    if (position < 0) {
+                        return; // BREAK
+                    }
+                    if (fold.isNewPresentation(position)) {
+                        fold.begin(position, video);
+                    }
+                    fold.add(rating);
+                });
+                fold.finish();
+            } else if (!foldCsv(in, participantId, method)) {
+                return false;
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Error reading session log " + name + ": " + e.getMessage());
+            return false;
+        }
+
+        mFoldedLogs.add(name);
+        mSessionCount++;
+        return true;
+    }
+
+    /**
+     * Returns true if a log with the given name is in the logs folder or in
+     * the archive.
+     */
+    private boolean hasLog(String name) {
+        return mLogFolder != null
+                && (new File(mLogFolder, name).exists() || mArchive.contains(name));
+    }
+
+    /**
+     * Streams the rows of a CSV session log into the statistics.
+     * @return false if the data is not a session log
+     */
+    private boolean foldCsv(InputStream in, String participantId, String method) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        if (!SESSION_LOG_HEADER.equals(reader.readLine())) {
+            // Questionnaire logs and other files share the naming scheme
+            return false;
+        }
+
+        LogFold fold = new LogFold(getAccumulator(method), getTrainingSection(participantId));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            int first = line.indexOf(',');
+            int ratingEnd = line.lastIndexOf(',', line.lastIndexOf(',') - 1);
+            int nameEnd = line.lastIndexOf(',', ratingEnd - 1);
+            if (first < 0 || nameEnd <= first) {
+                continue;
+            }
+            int rowPosition;
+            int rating;
+            try {
+                rowPosition = Integer.parseInt(line.substring(0, first));
+                if (rowPosition < 0) {
+                    continue; // BREAK
+                }
+                rating = Integer.parseInt(line.substring(nameEnd + 1, ratingEnd));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+
+            if (fold.isNewPresentation(rowPosition)) {
+                fold.begin(rowPosition, line.substring(first + 1, nameEnd));
+            }
+            fold.add(rating);
+        }
+        fold.finish();
+        return true;
+    }
+
+    private Accumulator getAccumulator(String method) {
+        Accumulator accumulator = mMethods.get(method);
+        if (accumulator == null) {
+            accumulator = new Accumulator();
+            mMethods.put(method, accumulator);
+        }
+        return accumulator;
+    }
+
+    /**
+     * Averages the rows of one session log per presentation and adds the
+     * scores to an accumulator, skipping training videos.
+     */
+    private final class LogFold {
+        private final Accumulator mAccumulator;
+        private final TrainingSection mTraining;
+        // Rows of the presentation that is currently being averaged
+        private int mPosition = -1;
+        private int mVideoId = -1;
+        private boolean mSkipped = false;
+        private double mSum = 0;
+        private int mSamples = 0;
+
+        LogFold(Accumulator accumulator, TrainingSection training) {
+            mAccumulator = accumulator;
+            mTraining = training;
+        }
+
+        boolean isNewPresentation(int position) {
+            return position != mPosition;
+        }
+
+        /**
+         * Finishes the current presentation and starts the next one.
+         */
+        void begin(int position, String videoName) {
+            finish();
+            mPosition = position;
+            mVideoId = mTable.intern(videoName);
+            mSkipped = mTraining != null && position <= mTraining.lastPosition
+                    && mTraining.videoIds.get(mVideoId);
+        }
+
+        void add(int rating) {
+            if (!mSkipped) {
+                mSum += rating;
+                mSamples++;
+            }
+        }
+
+        /**
+         * Adds the score of the current presentation, if it has any ratings.
+         */
+        void finish() {
+            if (mSamples > 0) {
+                mAccumulator.add(mVideoId, mSum / mSamples);
+                mRatingCount++;
+            }
+            mSum = 0;
+            mSamples = 0;
+        }
+    }
+
+    /**
+     * Returns the training videos of a participant's config, loading the
+     * config on first use.
+     * @return The training section, or null if the config has none
+     */
+    private TrainingSection getTrainingSection(String participantId) {
+        if (mTrainingSections.containsKey(participantId)) {
+            return mTrainingSections.get(participantId);
+        }
+        TrainingSection training = null;
+        BaseConfigFile config = findConfig(participantId);
+        if (config != null && config.hasTrainingSection()) {
+            training = new TrainingSection();
+            int[] ids = config.getEntryIds();
+            for (int i = config.getTrainingStartIndex(); i <= config.getTrainingEndIndex() && i < ids.length; i++) {
+                training.videoIds.set(ids[i]);
+            }
+            // Videos missing on the device are dropped from the playlist, which
+            // can only move training videos to earlier positions
+            training.lastPosition = config.getTrainingEndIndex();
+        }
+        mTrainingSections.put(participantId, training);
+        return training;
+    }
+
+    private BaseConfigFile findConfig(String participantId) {
+        if (mConfigFolder == null) {
+            return null;
+        }
+        File file = ConfigFileFactory.findConfigFile(mConfigFolder, participantId);
+        if (file == null) {
+            return null;
+        }
+        if (ConfigFileFactory.isDesignFile(file)) {
+            try {
+                return ConfigFileFactory.create(file, Integer.parseInt(participantId));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        return ConfigFileFactory.create(file);
+    }
+
+    /**
+     * Returns the MOS table, ordered by method (in order of appearance) and
+     * video name.
+     */
+    public synchronized List<VideoScore> getScores() {
+        List<VideoScore> scores = new ArrayList<>();
+        for (Map.Entry<String, Accumulator> entry : mMethods.entrySet()) {
+            Accumulator accumulator = entry.getValue();
+            List<VideoScore> methodScores = new ArrayList<>();
+            for (int id = 0; id < accumulator.count.length; id++) {
+                int n = accumulator.count[id];
+                if (n == 0) {
+                    continue;
+                }
+                double stdDev = n > 1 ? Math.sqrt(accumulator.m2[id] / (n - 1)) : 0;
+                double ci95 = n > 1 ? tQuantile95(n - 1) * stdDev / Math.sqrt(n) : Double.NaN;
+                methodScores.add(new VideoScore(entry.getKey(), mTable.name(id), n,
+                        accumulator.mean[id], stdDev, ci95));
+            }
+            methodScores.sort((a, b) -> a.video.compareTo(b.video));
+            scores.addAll(methodScores);
+        }
+        return scores;
+    }
+
+    /**
+     * Returns the number of session logs folded in.
+     */
+    public synchronized int getSessionCount() {
+        return mSessionCount;
+    }
+
+    /**
+     * Returns the number of scores folded in (one per presentation of a video).
+     */
+    public synchronized long getRatingCount() {
+        return mRatingCount;
+    }
+
+    /**
+     * Returns the two-sided 95% quantile of Student's t distribution.
+     */
+    static double tQuantile95(int degreesOfFreedom) {
+        if (degreesOfFreedom <= T_95.length) {
+            return T_95[degreesOfFreedom - 1];
+        }
+        // Close to the exact values (within 0.002) above 30 degrees of freedom
+        return 1.96 + 2.4 / degreesOfFreedom;
+    }
+}
@@ -0,0 +1,253 @@
+/*	This file is part of SubjectivePlayer for Android.
+ *
+ *	SubjectivePlayer for Android is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	SubjectivePlayer for Android is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU General Public License for more details.
+ *
+ *	You should have received a copy of the GNU General Public License
+ *	along with SubjectivePlayer for Android.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.univie.subjectiveplayer;
+
+import android.util.Log;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Samples the rating of the time-continuous method while a video plays.
+ *
+ * The rating is kept in one atomic cell that the UI thread changes without
+ * locking, together with a sequence number that counts the changes; the
+ * sampler always reads a consistent rating. One sampler thread runs for the
+ * whole session and is started and paused for every video. Each sample is
+ * taken under the lock and written to the sink outside of it, so starting
+ * and pausing a video never waits for the sink; a generation counter that
+ * changes with every start and pause keeps a sample of a paused video from
+ * being written. Samples are taken at a fixed rate from the start of the
+ * video, so they do not drift by the time it takes to write them.
+ */
+final class RatingSampler {
+
+    private static final String TAG = RatingSampler.class.getSimpleName();
+
+    /**
+     * Receives the samples, on the sampler thread.
+     */
+    interface Sink {
+        void onSample(int videoPosition, String videoName, int rating, long sampledAtMillis);
+    }
+
+    private final int mMin;
+    private final int mDefault;
+    private final int mMax;
+    private final long mIntervalNanos;
+    private final Sink mSink;
+
+    /** Sequence number of the rating in the upper 32 bits, the rating in the lower 32 */
+    private final AtomicLong mCell;
+
+    /** Guards the clip state below; not held while a sample is written */
+    private final Object mLock = new Object();
+    private Thread mThread;
+    private boolean mSampling = false;
+    private boolean mStopped = false;
+    private int mVideoPosition;
+    private String mVideoName;
+    private long mNextSampleNanos;
+    private long mClipStartSequence;
+    /** Changed by every start and pause, so a sample taken before is dropped */
+    private volatile long mGeneration = 0;
+
+    /**
+     * @param min The lowest rating
+     * @param defaultRating The rating every video starts with
+     * @param max The highest rating
+     * @param intervalMillis The time between two samples
+     * @param sink Receives the samples
+     */
+    RatingSampler(int min, int defaultRating, int max, long intervalMillis, Sink sink) {
+        mMin = min;
+        mDefault = defaultRating;
+        mMax = max;
+        mIntervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+        mSink = sink;
+        mCell = new AtomicLong(pack(0, defaultRating));
+    }
+
+    private static long pack(long sequence, int rating) {
+        return (sequence << 32) | (rating & 0xFFFFFFFFL);
+    }
+
+    private static int ratingOf(long cell) {
+        return (int) cell;
+    }
+
+    private static long sequenceOf(long cell) {
+        return cell >>> 32;
+    }
+
+    /**
+     * @return The current rating
+     */
+    int getRating() {
+        return ratingOf(mCell.get());
+    }
+
+    /**
+     * @return The number of changes of the rating so far
+     */
+    long getSequence() {
+        return sequenceOf(mCell.get());
+    }
+
+    /**
+     * Changes the rating by the given amount, within the rating scale.
+     * @return The new rating
+     */
+    int adjust(int delta) {
+        while (true) {
+            long cell = mCell.get();
+            int rating = Math.max(mMin, Math.min(mMax, ratingOf(cell) + delta));
+            if (rating == ratingOf(cell)) {
+                return rating;
+            }
+            if (mCell.compareAndSet(cell, pack(sequenceOf(cell) + 1, rating))) {
+                return rating;
+            }
+        }
+    }
+
+    /**
+     * Sets the rating back to the default for the next video.
+     */
+    private void reset() {
+        while (true) {
+            long cell = mCell.get();
+            if (mCell.compareAndSet(cell, pack(sequenceOf(cell) + 1, mDefault))) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Starts sampling a video, with the rating set back to the default. The
+     * first sample is taken right away. Starts the sampler thread the first
+     * time it is called.
+     */
+    void startClip(int videoPosition, String videoName) {
+        synchronized (mLock) {
+            if (mStopped) {
+                return;
+            }
+            reset();
+            mVideoPosition = videoPosition;
+            mVideoName = videoName;
+            mClipStartSequence = getSequence();
+            mNextSampleNanos = System.nanoTime();
+            mSampling = true;
+            mGeneration++;
+            if (mThread == null) {
+                mThread = new Thread(this::run, TAG);
+                mThread.start();
+            }
+            mLock.notifyAll();
+        }
+        Log.d(TAG, "Sampling ratings of " + videoName);
+    }
+
+    /**
+     * Stops sampling the current video. Does not wait for the sink: a sample
+     * that is not being written yet is dropped, and no new one is taken.
+     */
+    void pauseClip() {
+        synchronized (mLock) {
+            if (!mSampling) {
+                return;
+            }
+            mSampling = false;
+            mGeneration++;
+            mLock.notifyAll();
+            Log.d(TAG, "Stopped sampling " + mVideoName + " after "
+                    + (getSequence() - mClipStartSequence) + " rating changes");
+        }
+    }
+
+    /**
+     * Stops sampling and ends the sampler thread, at the end of the session.
+     * Waits for a sample that is being written, so the sink can be closed
+     * after this returns.
+     */
+    void stop() {
+        Thread thread;
+        synchronized (mLock) {
+            mSampling = false;
+            mStopped = true;
+            mGeneration++;
+            mLock.notifyAll();
+            thread = mThread;
+        }
+        if (thread != null) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void run() {
+        try {
+            while (true) {
+                long generation;
+                int position;
+                String name;
+                int rating;
+                long sampledAt;
+                synchronized (mLock) {
+                    long now = System.nanoTime();
+                    while (!mStopped && (!mSampling || mNextSampleNanos - now > 0)) {
+                        if (!mSampling) {
+                            mLock.wait();
+                        } else {
+                            long delay = mNextSampleNanos - now;
+                            mLock.wait(delay / 1000000, (int) (delay % 1000000));
+                        }
+                        now = System.nanoTime();
+                    }
+                    if (mStopped) {
+                        return;
+                    }
+                    generation = mGeneration;
+                    position = mVideoPosition;
+                    name = mVideoName;
+                    rating = getRating();
+                    sampledAt = System.currentTimeMillis();
+                    mNextSampleNanos += mIntervalNanos;
+                    if (mNextSampleNanos <= now) {
+                        // Samples that were missed while the device was busy are skipped
+                        mNextSampleNanos = now + mIntervalNanos;
+                    }
+                }
+                if (generation != mGeneration) {
+                    // The video was paused or changed since the sample was taken
+                    continue;
+                }
+                try {
+                    mSink.onSample(position, name, rating, sampledAt);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Error writing rating sample: " + e.getMessage());
+                }
+            }
+        } catch (InterruptedException e) {
+            Log.w(TAG, "Sampler thread interrupted");
+        }
+    }
+}
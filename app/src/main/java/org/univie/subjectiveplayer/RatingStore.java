@@ -0,0 +1,343 @@
+/*	This file is part of SubjectivePlayer for Android.
+ *
+ *	SubjectivePlayer for Android is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	SubjectivePlayer for Android is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU General Public License for more details.
+ *
+ *	You should have received a copy of the GNU General Public License
+ *	along with SubjectivePlayer for Android.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.univie.subjectiveplayer;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Persistent per-video rating statistics, updated whenever a session log is
+ * closed (see {@link CsvLogger#closeSessionLog()}), so that scores can be read
+ * without scanning all session logs.
+ *
+ * The store is a text file in the logs folder. Each session appends one
+ * record with its own statistics; a record only counts once its end marker
+ * is written, so a session interrupted while writing is ignored. When the
+ * number of records exceeds {@link #COMPACT_THRESHOLD}, all records are merged
+ * into one, so reading the store depends on the number of videos and not on
+ * the number of sessions.
+ *
+ * Record format (tab-separated):
+ * <pre>
+ * R  record name (the session log file name, or * for a compacted record)
+ * V  method  video  count  sum  sum of squares  histogram 1..5
+ * E
+ * </pre>
+ */
+public class RatingStore {
+
+    private static final String TAG = RatingStore.class.getSimpleName();
+
+    /** Name of the store file in the logs folder */
+    public static final String FILE_NAME = "rating_aggregates.txt";
+
+    /** Number of records after which the store is compacted */
+    static final int COMPACT_THRESHOLD = 32;
+
+    /** Number of categories in the histogram (the 5-point ACR and DSIS scales) */
+    public static final int CATEGORY_COUNT = 5;
+
+    private static final String HEADER = "# SubjectivePlayer rating aggregates v1";
+    private static final String RECORD_START = "R";
+    private static final String RECORD_VIDEO = "V";
+    private static final String RECORD_END = "E";
+    private static final String COMPACTED_RECORD = "*";
+    private static final char SEP = '\t';
+
+    /**
+     * Guards the store file. Stores are created per call (e.g. by CsvLogger
+     * and the results screen), so an instance lock would exclude nothing.
+     */
+    private static final Object sLock = new Object();
+
+    private final File mFile;
+
+    /**
+     * Statistics of one video for one method.
+     */
+    public static final class VideoStats {
+        public final String method;
+        public final String video;
+        private int mCount = 0;
+        private double mSum = 0;
+        private double mSumSquares = 0;
+        private final int[] mHistogram = new int[CATEGORY_COUNT];
+
+        public VideoStats(String method, String video) {
+            this.method = method;
+            this.video = video;
+        }
+
+        /**
+         * Adds one score.
+         * @param score The score of one presentation
+         * @param category The category (1 to {@link #CATEGORY_COUNT}) for
+         *                 categorical methods, or 0 if the score has none
+         */
+        public void add(double score, int category) {
+            mCount++;
+            mSum += score;
+            mSumSquares += score * score;
+            if (category >= 1 && category <= CATEGORY_COUNT) {
+                mHistogram[category - 1]++;
+            }
+        }
+
+        void merge(VideoStats other) {
+            mCount += other.mCount;
+            mSum += other.mSum;
+            mSumSquares += other.mSumSquares;
+            for (int i = 0; i < CATEGORY_COUNT; i++) {
+                mHistogram[i] += other.mHistogram[i];
+            }
+        }
+
+        public int getCount() {
+            return mCount;
+        }
+
+        public double getSum() {
+            return mSum;
+        }
+
+        public double getSumSquares() {
+            return mSumSquares;
+        }
+
+        /**
+         * Returns the number of scores in a category.
+         * @param category The category, 1 to {@link #CATEGORY_COUNT}
+         */
+        public int getCategoryCount(int category) {
+            return mHistogram[category - 1];
+        }
+
+        public double getMean() {
+            return mCount > 0 ? mSum / mCount : Double.NaN;
+        }
+
+        public double getStdDev() {
+            if (mCount < 2) {
+                return 0;
+            }
+            double variance = (mSumSquares - mSum * mSum / mCount) / (mCount - 1);
+            return Math.sqrt(Math.max(variance, 0));
+        }
+
+        /**
+         * Returns the half width of the 95% confidence interval of the mean,
+         * or NaN if there are fewer than two scores.
+         */
+        public double getCi95() {
+            if (mCount < 2) {
+                return Double.NaN;
+            }
+            return RatingAggregator.tQuantile95(mCount - 1) * getStdDev() / Math.sqrt(mCount);
+        }
+    }
+
+    /**
+     * Creates a store in the given folder. The file is created on the first commit.
+     * @param folder The logs folder
+     */
+    public RatingStore(File folder) {
+        mFile = new File(folder, FILE_NAME);
+    }
+
+    /**
+     * Returns the file the store is kept in.
+     */
+    public File getFile() {
+        return mFile;
+    }
+
+    /**
+     * Appends the statistics of one session, and compacts the store if it
+     * holds too many records.
+     * @param recordName A name for the record, e.g. the session log file name
+     * @param stats The statistics of the session
+     * @throws IOException When the store could not be written
+     */
+    public void commit(String recordName, Collection<VideoStats> stats) throws IOException {
+        synchronized (sLock) {
+            boolean exists = mFile.length() > 0;
+            boolean needsNewline = exists && !endsWithNewline();
+            try (Writer writer = new BufferedWriter(new FileWriter(mFile, true))) {
+                if (!exists) {
+                    writer.write(HEADER);
+                    writer.write('\n');
+                } else if (needsNewline) {
+                    // Finish a line cut off by an earlier interrupted write
+                    writer.write('\n');
+                }
+                writeRecord(writer, recordName, stats);
+            }
+
+            Map<String, VideoStats> merged = new LinkedHashMap<>();
+            int records = read(merged);
+            if (records > COMPACT_THRESHOLD) {
+                compact(merged.values());
+                Log.i(TAG, "Compacted " + records + " records into one");
+            }
+        }
+    }
+
+    /**
+     * Returns the statistics of all committed sessions, merged per method and video.
+     */
+    public List<VideoStats> read() {
+        Map<String, VideoStats> merged = new LinkedHashMap<>();
+        synchronized (sLock) {
+            read(merged);
+        }
+        return new ArrayList<>(merged.values());
+    }
+
+    /**
+     * Reads all complete records and merges them.
+     * @return The number of complete records
+     */
+    private int read(Map<String, VideoStats> merged) {
+        if (!mFile.exists()) {
+            return 0;
+        }
+        int records = 0;
+        List<VideoStats> pending = null;
+        try (BufferedReader reader = new BufferedReader(new FileReader(mFile))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split(String.valueOf(SEP), -1);
+                switch (fields[0]) {
+                    case RECORD_START:
+                        pending = new ArrayList<>();
+                        break;
+                    case RECORD_VIDEO:
+                        if (pending != null) {
+                            VideoStats stats = parseVideo(fields);
+                            if (stats != null) {
+                                pending.add(stats);
+                            } else {
+                                pending = null;
+                            }
+                        }
+                        break;
+                    case RECORD_END:
+                        if (pending != null) {
+                            for (VideoStats stats : pending) {
+                                String key = stats.method + SEP + stats.video;
+                                VideoStats total = merged.get(key);
+                                if (total == null) {
+                                    total = new VideoStats(stats.method, stats.video);
+                                    merged.put(key, total);
+                                }
+                                total.merge(stats);
+                            }
+                            records++;
+                        }
+                        pending = null;
+                        break;
+                    default:
+                        // Damaged line: drop the record it belongs to
+                        pending = null;
+                        break;
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Error reading rating store: " + e.getMessage());
+        }
+        return records;
+    }
+
+    private static VideoStats parseVideo(String[] fields) {
+        if (fields.length != 6 + CATEGORY_COUNT) {
+            return null;
+        }
+        try {
+            VideoStats stats = new VideoStats(fields[1], fields[2]);
+            stats.mCount = Integer.parseInt(fields[3]);
+            stats.mSum = Double.parseDouble(fields[4]);
+            stats.mSumSquares = Double.parseDouble(fields[5]);
+            for (int i = 0; i < CATEGORY_COUNT; i++) {
+                stats.mHistogram[i] = Integer.parseInt(fields[6 + i]);
+            }
+            return stats;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static void writeRecord(Writer writer, String recordName, Collection<VideoStats> stats) throws IOException {
+        writer.write(RECORD_START + SEP + recordName + '\n');
+        for (VideoStats s : stats) {
+            StringBuilder line = new StringBuilder(RECORD_VIDEO)
+                    .append(SEP).append(s.method)
+                    .append(SEP).append(s.video)
+                    .append(SEP).append(s.mCount)
+                    .append(SEP).append(s.mSum)
+                    .append(SEP).append(s.mSumSquares);
+            for (int count : s.mHistogram) {
+                line.append(SEP).append(count);
+            }
+            writer.write(line.append('\n').toString());
+        }
+        writer.write(RECORD_END + '\n');
+    }
+
+    /**
+     * Replaces the store with a single record holding the merged statistics.
+     * Written to a temporary file and renamed, so a crash leaves either the
+     * old or the new store.
+     */
+    private void compact(Collection<VideoStats> merged) throws IOException {
+        File tempFile = new File(mFile.getPath() + ".tmp");
+        try (Writer writer = new BufferedWriter(new FileWriter(tempFile))) {
+            writer.write(HEADER);
+            writer.write('\n');
+            writeRecord(writer, COMPACTED_RECORD, merged);
+        }
+        if (!tempFile.renameTo(mFile)) {
+            // renameTo does not replace existing files on all platforms
+            if (!mFile.delete() || !tempFile.renameTo(mFile)) {
+                tempFile.delete();
+                throw new IOException("Could not compact " + mFile);
+            }
+        }
+    }
+
+    private boolean endsWithNewline() throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(mFile, "r")) {
+            raf.seek(raf.length() - 1);
+            return raf.read() == '\n';
+        }
+    }
+}
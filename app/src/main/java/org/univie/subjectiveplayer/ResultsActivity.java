@@ -0,0 +1,280 @@
+/*	This file is part of SubjectivePlayer for Android.
+ *
+ *	SubjectivePlayer for Android is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	SubjectivePlayer for Android is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU General Public License for more details.
+ *
+ *	You should have received a copy of the GNU General Public License
+ *	along with SubjectivePlayer for Android.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.univie.subjectiveplayer;
+
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+import android.text.style.ForegroundColorSpan;
+import android.util.Log;
+import android.view.Menu;
+import android.view.MenuItem;
+import android.view.View;
+import android.widget.ProgressBar;
+import android.widget.TextView;
+import android.widget.Toast;
+
+import androidx.activity.result.ActivityResultLauncher;
+import androidx.activity.result.contract.ActivityResultContracts;
+import androidx.appcompat.app.AppCompatActivity;
+import androidx.core.content.ContextCompat;
+import androidx.core.graphics.Insets;
+import androidx.core.view.ViewCompat;
+import androidx.core.view.WindowCompat;
+import androidx.core.view.WindowInsetsCompat;
+
+import com.google.android.material.appbar.MaterialToolbar;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+/**
+ * Shows the MOS and 95% confidence interval of every video, computed from
+ * the session logs by {@link RatingAggregator}, and the participants flagged
+ * by {@link SubjectScreening}. Sessions finished since the screen was last
+ * shown are folded in whenever it is resumed. The menu exports all logs and
+ * config files into a zip with {@link ResultsExporter}.
+ */
+public class ResultsActivity extends AppCompatActivity {
+
+    private static final String TAG = ResultsActivity.class.getSimpleName();
+
+    private ProgressBar mProgressBar;
+    private TextView mStatusText;
+    private TextView mResultText;
+    /** Elapsed realtime of the last progress shown while exporting */
+    private long mLastProgressMillis = 0;
+
+    private final ActivityResultLauncher<String> mExportLauncher = registerForActivityResult(
+            new ActivityResultContracts.CreateDocument(ResultsExporter.MIME_TYPE), this::exportTo);
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        Log.d(TAG, "onCreate called");
+
+        WindowCompat.setDecorFitsSystemWindows(getWindow(), false);
+        setContentView(R.layout.activity_results);
+
+        MaterialToolbar toolbar = findViewById(R.id.toolbar);
+        setSupportActionBar(toolbar);
+        toolbar.setNavigationOnClickListener(v -> finish());
+
+        View mainLayout = findViewById(R.id.main_layout);
+        ViewCompat.setOnApplyWindowInsetsListener(mainLayout, (v, windowInsets) -> {
+            Insets insets = windowInsets.getInsets(
+                    WindowInsetsCompat.Type.systemBars() | WindowInsetsCompat.Type.displayCutout()
+            );
+            v.setPadding(insets.left, insets.top, insets.right, insets.bottom);
+            return WindowInsetsCompat.CONSUMED;
+        });
+
+        mProgressBar = findViewById(R.id.progress_bar);
+        mStatusText = findViewById(R.id.status_text);
+        mResultText = findViewById(R.id.result_text);
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        runAggregation();
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        getMenuInflater().inflate(R.menu.results_menu, menu);
+        return true;
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        if (item.getItemId() == R.id.menu_export) {
+            mExportLauncher.launch(ResultsExporter.defaultFileName(System.currentTimeMillis()));
+            return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
+
+    /**
+     * Streams the export to the document chosen by the user, on a background
+     * thread, and shows how long it took.
+     * @param uri The document, or null if the user cancelled
+     */
+    private void exportTo(Uri uri) {
+        if (uri == null) {
+            return;
+        }
+        mProgressBar.setVisibility(View.VISIBLE);
+        mStatusText.setVisibility(View.VISIBLE);
+
+        new Thread(() -> {
+            String message;
+            try (OutputStream out = getContentResolver().openOutputStream(uri)) {
+                if (out == null) {
+                    throw new IOException("Cannot open " + uri);
+                }
+                ResultsExporter exporter = new ResultsExporter(Configuration.sFolderLogs,
+                        Configuration.sFolderApproot, Runtime.getRuntime().availableProcessors());
+                ResultsExporter.Stats stats = exporter.export(out, this::onExportProgress);
+                Log.i(TAG, "Exported " + stats.files + " files, " + stats.bytesIn + " bytes into "
+                        + stats.bytesOut + " bytes in " + stats.nanos / 1000000 + " ms ("
+                        + stats.getMegabytesPerSecond() + " MB/s)");
+                message = getString(R.string.results_export_done, stats.files, stats.bytesIn / 1e6,
+                        stats.getSeconds(), stats.getMegabytesPerSecond());
+            } catch (IOException | SecurityException e) {
+                Log.e(TAG, "Error exporting results: " + e.getMessage());
+                message = getString(R.string.results_export_failed, e.getMessage());
+            }
+            String result = message;
+            runOnUiThread(() -> {
+                mProgressBar.setVisibility(View.GONE);
+                mStatusText.setVisibility(View.GONE);
+                Toast.makeText(this, result, Toast.LENGTH_LONG).show();
+            });
+        }, "ResultsExport").start();
+    }
+
+    /**
+     * Shows the progress of the export, at most every 100 ms. Called on the
+     * exporting thread.
+     */
+    private void onExportProgress(int files, int totalFiles) {
+        long now = SystemClock.elapsedRealtime();
+        if (files < totalFiles && now - mLastProgressMillis < 100) {
+            return;
+        }
+        mLastProgressMillis = now;
+        String text = getString(R.string.results_exporting, files, totalFiles);
+        runOnUiThread(() -> {
+            // The aggregation that runs when the screen is resumed hides the status when it is done
+            mProgressBar.setVisibility(View.VISIBLE);
+            mStatusText.setVisibility(View.VISIBLE);
+            mStatusText.setText(text);
+        });
+    }
+
+    private void runAggregation() {
+        mProgressBar.setVisibility(View.VISIBLE);
+        mStatusText.setVisibility(View.VISIBLE);
+        mStatusText.setText(R.string.results_running);
+
+        new Thread(() -> {
+            RatingAggregator aggregator = RatingAggregator.getDefault();
+            aggregator.update();
+            List<RatingAggregator.VideoScore> scores = aggregator.getScores();
+            int sessionCount = aggregator.getSessionCount();
+            long ratingCount = aggregator.getRatingCount();
+
+            SubjectScreening screening = SubjectScreening.getDefault();
+            screening.update();
+            List<SubjectScreening.Result> screeningResults = screening.screen();
+            int participantCount = screening.getParticipantCount();
+
+            runOnUiThread(() -> displayResults(scores, sessionCount, ratingCount,
+                    screeningResults, participantCount));
+        }).start();
+    }
+
+    private void displayResults(List<RatingAggregator.VideoScore> scores, int sessionCount, long ratingCount,
+                                List<SubjectScreening.Result> screeningResults, int participantCount) {
+        mProgressBar.setVisibility(View.GONE);
+        mStatusText.setVisibility(View.GONE);
+
+        if (scores.isEmpty()) {
+            mResultText.setText(R.string.results_no_ratings);
+            mResultText.setTextColor(ContextCompat.getColor(this, R.color.text_secondary));
+            return;
+        }
+
+        SpannableStringBuilder builder = new SpannableStringBuilder();
+
+        // Participant screening section first
+        if (participantCount > 0) {
+            appendScreening(builder, screeningResults, participantCount);
+            builder.append("\n\n");
+        }
+
+        builder.append(getString(R.string.results_summary, sessionCount, (int) ratingCount));
+
+        String method = null;
+        for (RatingAggregator.VideoScore score : scores) {
+            // Method header
+            if (!score.method.equals(method)) {
+                method = score.method;
+                builder.append("\n\n");
+                int headerStart = builder.length();
+                builder.append(method);
+                builder.setSpan(new ForegroundColorSpan(ContextCompat.getColor(this, R.color.white)),
+                        headerStart, builder.length(), Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+                builder.append("\n");
+            }
+
+            int lineStart = builder.length();
+            builder.append("\n    ");
+            if (score.count > 1) {
+                builder.append(getString(R.string.results_score, score.video, score.mos, score.ci95, score.count));
+            } else {
+                builder.append(getString(R.string.results_score_single, score.video, score.mos));
+            }
+            builder.setSpan(new ForegroundColorSpan(ContextCompat.getColor(this, R.color.text_secondary)),
+                    lineStart, builder.length(), Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        }
+
+        mResultText.setText(builder);
+    }
+
+    private void appendScreening(SpannableStringBuilder builder, List<SubjectScreening.Result> results,
+                                 int participantCount) {
+        builder.append(getString(R.string.results_screening_header, participantCount));
+        builder.append("\n\n");
+
+        int suspects = 0;
+        for (SubjectScreening.Result result : results) {
+            if (!result.isSuspect()) {
+                continue;
+            }
+            if (suspects > 0) {
+                builder.append("\n");
+            }
+            suspects++;
+            int start = builder.length();
+            if (result.rejectedByBt500) {
+                builder.append("\u2022 ").append(getString(R.string.results_suspect_bt500, result.participantId,
+                        result.method, result.highCount + result.lowCount, result.screenedCount));
+            }
+            if (result.rejectedByCorrelation) {
+                if (result.rejectedByBt500) {
+                    builder.append("\n");
+                }
+                builder.append("\u2022 ").append(getString(R.string.results_suspect_correlation,
+                        result.participantId, result.method, result.correlation));
+            }
+            builder.setSpan(new ForegroundColorSpan(ContextCompat.getColor(this, R.color.error)),
+                    start, builder.length(), Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        }
+
+        if (suspects == 0) {
+            int start = builder.length();
+            builder.append(getString(R.string.results_screening_ok));
+            builder.setSpan(new ForegroundColorSpan(ContextCompat.getColor(this, R.color.success)),
+                    start, builder.length(), Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        }
+    }
+}
@@ -0,0 +1,574 @@
+/*	This file is part of SubjectivePlayer for Android.
+ *
+ *	SubjectivePlayer for Android is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	SubjectivePlayer for Android is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU General Public License for more details.
+ *
+ *	You should have received a copy of the GNU General Public License
+ *	along with SubjectivePlayer for Android.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.univie.subjectiveplayer;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Exports all logs and config files into one zip, streamed to any output
+ * stream (a document chosen through the Storage Access Framework), together
+ * with a manifest of the SHA-256 of every file that "sha256sum -c" checks
+ * after unpacking.
+ *
+ * Files are compressed in parallel, one per task, and written in their
+ * original order as soon as they are done, so the zip is written in one pass
+ * without a temporary copy. java.util.zip cannot write data that is already
+ * compressed, so the zip format is written here; Zip64 records are added
+ * when there are more than 65535 files or the zip grows beyond 4 GB. Files
+ * larger than {@link #MAX_PARALLEL_SIZE} are compressed on the writing
+ * thread while they are streamed, and the files compressed in memory that
+ * wait to be written take at most {@link #MAX_BUFFERED_SIZE} together, so
+ * memory use stays bounded.
+ */
+final class ResultsExporter {
+
+    /** MIME type of the export */
+    static final String MIME_TYPE = "application/zip";
+
+    /** Folder of the logs in the zip */
+    static final String FOLDER_LOGS = "logs/";
+
+    /** Folder of the config files in the zip */
+    static final String FOLDER_CONFIGS = "configs/";
+
+    /** Name of the manifest in the zip */
+    static final String MANIFEST_NAME = "manifest.sha256";
+
+    /** Files up to this size are compressed in parallel, in memory */
+    static final int MAX_PARALLEL_SIZE = 4 << 20;
+
+    /** Files compressed in memory take at most this much until they are written */
+    static final int MAX_BUFFERED_SIZE = 32 << 20;
+
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    /**
+     * Receives the progress of an export, on the exporting thread.
+     */
+    interface ProgressListener {
+        void onProgress(int files, int totalFiles);
+    }
+
+    /**
+     * Summary of an export.
+     */
+    static final class Stats {
+        /** Number of files exported, without the manifest */
+        final int files;
+        /** Size of the exported files */
+        final long bytesIn;
+        /** Size of the zip */
+        final long bytesOut;
+        final long nanos;
+
+        Stats(int files, long bytesIn, long bytesOut, long nanos) {
+            this.files = files;
+            this.bytesIn = bytesIn;
+            this.bytesOut = bytesOut;
+            this.nanos = nanos;
+        }
+
+        double getSeconds() {
+            return nanos / 1e9;
+        }
+
+        /** Throughput in MB of exported files per second */
+        double getMegabytesPerSecond() {
+            return nanos > 0 ? bytesIn / 1e6 / getSeconds() : 0;
+        }
+    }
+
+    /** A file compressed for the zip; data is null if it is compressed while it is written */
+    private static final class Compressed {
+        final String name;
+        final File file;
+        final byte[] data;
+        final int method;
+        final long crc;
+        /** Uncompressed size */
+        final long size;
+        final String sha256;
+
+        Compressed(String name, File file, byte[] data, int method, long crc, long size, String sha256) {
+            this.name = name;
+            this.file = file;
+            this.data = data;
+            this.method = method;
+            this.crc = crc;
+            this.size = size;
+            this.sha256 = sha256;
+        }
+    }
+
+    private final File mLogFolder;
+    private final File mConfigFolder;
+    private final int mThreads;
+
+    /**
+     * @param logFolder The logs folder, exported with its subfolders
+     * @param configFolder The config folder; its JSON and text config files are exported
+     * @param threads Number of files compressed at the same time
+     */
+    ResultsExporter(File logFolder, File configFolder, int threads) {
+        mLogFolder = logFolder;
+        mConfigFolder = configFolder;
+        mThreads = Math.max(1, threads);
+    }
+
+    /**
+     * @return A file name for an export made at the given time
+     */
+    static String defaultFileName(long millis) {
+        return "subjectiveplayer_results_"
+                + new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date(millis)) + ".zip";
+    }
+
+    /**
+     * Writes the zip. The stream is not closed.
+     * @param out The stream to write to
+     * @param listener Receives the progress, or null
+     */
+    Stats export(OutputStream out, ProgressListener listener) throws IOException {
+        long start = System.nanoTime();
+        List<String> names = new ArrayList<>();
+        List<File> files = new ArrayList<>();
+        collect(mLogFolder, FOLDER_LOGS, names, files, false);
+        collect(mConfigFolder, FOLDER_CONFIGS, names, files, true);
+
+        ZipWriter zip = new ZipWriter(out);
+        StringBuilder manifest = new StringBuilder();
+        long bytesIn = 0;
+        ExecutorService executor = Executors.newFixedThreadPool(mThreads);
+        try {
+            // Keep files in flight up to the buffer size, one permit per KB,
+            // and write them in order
+            Semaphore buffered = new Semaphore(MAX_BUFFERED_SIZE / 1024);
+            ArrayDeque<Future<Compressed>> pending = new ArrayDeque<>();
+            ArrayDeque<Integer> pendingPermits = new ArrayDeque<>();
+            int written = 0;
+            for (int i = 0; i < files.size(); i++) {
+                String name = names.get(i);
+                File file = files.get(i);
+                int permits = bufferPermits(file.length());
+                // One file never takes all permits, so there is one to write when they run out
+                while (!buffered.tryAcquire(permits)) {
+                    write(zip, pending.poll().get(), manifest);
+                    buffered.release(pendingPermits.poll());
+                    reportProgress(listener, ++written, files.size());
+                }
+                pending.add(executor.submit(() -> compress(name, file)));
+                pendingPermits.add(permits);
+                bytesIn += file.length();
+            }
+            while (!pending.isEmpty()) {
+                write(zip, pending.poll().get(), manifest);
+                buffered.release(pendingPermits.poll());
+                reportProgress(listener, ++written, files.size());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while exporting", e);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+
+        write(zip, compress(MANIFEST_NAME, null, manifest.toString().getBytes(StandardCharsets.UTF_8)), null);
+        zip.finish();
+        return new Stats(files.size(), bytesIn, zip.getOffset(), System.nanoTime() - start);
+    }
+
+    /**
+     * @return The permits of {@link #MAX_BUFFERED_SIZE} a file of the given
+     * size takes until it is written: one per KB if it is compressed in
+     * memory, one if it is streamed
+     */
+    private static int bufferPermits(long length) {
+        if (length > MAX_PARALLEL_SIZE) {
+            return 1;
+        }
+        return (int) Math.max(1, (length + 1023) / 1024);
+    }
+
+    private static void reportProgress(ProgressListener listener, int files, int totalFiles) {
+        if (listener != null) {
+            listener.onProgress(files, totalFiles);
+        }
+    }
+
+    /**
+     * Adds the files of a folder, sorted by name, with subfolders unless only
+     * config files are wanted.
+     */
+    private static void collect(File folder, String prefix, List<String> names, List<File> files,
+                                boolean configsOnly) {
+        File[] children = folder != null ? folder.listFiles() : null;
+        if (children == null) {
+            return;
+        }
+        Arrays.sort(children);
+        for (File child : children) {
+            if (child.isDirectory() && !configsOnly) {
+                collect(child, prefix + child.getName() + "/", names, files, false);
+            } else if (child.isFile() && (!configsOnly
+                    || child.getName().endsWith(".json") || child.getName().endsWith(".cfg"))) {
+                names.add(prefix + child.getName());
+                files.add(child);
+            }
+        }
+    }
+
+    private static void write(ZipWriter zip, Compressed compressed, StringBuilder manifest) throws IOException {
+        String sha256;
+        if (compressed.data != null) {
+            zip.writeEntry(compressed.name, compressed.file != null ? compressed.file.lastModified()
+                    : System.currentTimeMillis(), compressed.method, compressed.data, compressed.crc,
+                    compressed.size);
+            sha256 = compressed.sha256;
+        } else {
+            sha256 = zip.writeStreamedEntry(compressed.name, compressed.file);
+        }
+        if (manifest != null) {
+            manifest.append(sha256).append("  ").append(compressed.name).append('\n');
+        }
+    }
+
+    /**
+     * Compresses a file in memory, or only marks it for streaming if it is large.
+     */
+    private static Compressed compress(String name, File file) throws IOException {
+        long length = file.length();
+        if (length > MAX_PARALLEL_SIZE) {
+            return new Compressed(name, file, null, ZipWriter.METHOD_DEFLATED, 0, length, null);
+        }
+        byte[] data = new byte[(int) length];
+        int read = 0;
+        try (InputStream in = new FileInputStream(file)) {
+            int n;
+            while (read < data.length && (n = in.read(data, read, data.length - read)) > 0) {
+                read += n;
+            }
+        }
+        return compress(name, file, read < data.length ? Arrays.copyOf(data, read) : data);
+    }
+
+    private static Compressed compress(String name, File file, byte[] data) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        MessageDigest digest = sha256();
+        digest.update(data);
+
+        // Zip archives of old logs are already compressed
+        if (!name.endsWith(".zip")) {
+            Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+            try {
+                deflater.setInput(data);
+                deflater.finish();
+                ByteArrayOutputStream compressed = new ByteArrayOutputStream(data.length / 4 + 64);
+                byte[] buffer = new byte[Math.max(1024, Math.min(data.length, BUFFER_SIZE))];
+                while (!deflater.finished()) {
+                    int n = deflater.deflate(buffer);
+                    compressed.write(buffer, 0, n);
+                }
+                if (compressed.size() < data.length) {
+                    return new Compressed(name, file, compressed.toByteArray(), ZipWriter.METHOD_DEFLATED,
+                            crc.getValue(), data.length, toHex(digest.digest()));
+                }
+            } finally {
+                deflater.end();
+            }
+        }
+        return new Compressed(name, file, data, ZipWriter.METHOD_STORED, crc.getValue(), data.length,
+                toHex(digest.digest()));
+    }
+
+    static MessageDigest sha256() throws IOException {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+    static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Writes the zip format to a stream that cannot seek, from data that is
+     * already compressed or is compressed while it is written.
+     */
+    private static final class ZipWriter {
+
+        static final int METHOD_STORED = 0;
+        static final int METHOD_DEFLATED = 8;
+
+        private static final int FLAG_DATA_DESCRIPTOR = 1 << 3;
+        private static final int FLAG_UTF8 = 1 << 11;
+        private static final long ZIP64_LIMIT = 0xFFFFFFFFL;
+
+        /** Central directory headers of the entries written so far */
+        private final ByteArrayOutputStream mCentral = new ByteArrayOutputStream();
+        private final CountingOutputStream mOut;
+        private int mEntries = 0;
+
+        ZipWriter(OutputStream out) {
+            mOut = new CountingOutputStream(new BufferedOutputStream(out, BUFFER_SIZE));
+        }
+
+        long getOffset() {
+            return mOut.count;
+        }
+
+        void writeEntry(String name, long time, int method, byte[] data, long crc, long size) throws IOException {
+            long offset = mOut.count;
+            byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+            writeLocalHeader(nameBytes, time, method, FLAG_UTF8, crc, data.length, size);
+            mOut.write(data);
+            addCentralHeader(nameBytes, time, method, FLAG_UTF8, crc, data.length, size, offset);
+        }
+
+        /**
+         * Compresses a file while writing it, with the checksum and sizes in
+         * a data descriptor after the data.
+         * @return The SHA-256 of the file
+         */
+        String writeStreamedEntry(String name, File file) throws IOException {
+            long offset = mOut.count;
+            long time = file.lastModified();
+            byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+            int flags = FLAG_UTF8 | FLAG_DATA_DESCRIPTOR;
+            writeLocalHeader(nameBytes, time, METHOD_DEFLATED, flags, 0, 0, 0);
+
+            CRC32 crc = new CRC32();
+            MessageDigest digest = sha256();
+            Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+            long dataStart = mOut.count;
+            long size = 0;
+            try (InputStream in = new FileInputStream(file)) {
+                byte[] input = new byte[BUFFER_SIZE];
+                byte[] output = new byte[BUFFER_SIZE];
+                int n;
+                while ((n = in.read(input)) > 0) {
+                    crc.update(input, 0, n);
+                    digest.update(input, 0, n);
+                    size += n;
+                    deflater.setInput(input, 0, n);
+                    while (!deflater.needsInput()) {
+                        mOut.write(output, 0, deflater.deflate(output));
+                    }
+                }
+                deflater.finish();
+                while (!deflater.finished()) {
+                    mOut.write(output, 0, deflater.deflate(output));
+                }
+            } finally {
+                deflater.end();
+            }
+            long compressedSize = mOut.count - dataStart;
+            if (size >= ZIP64_LIMIT || compressedSize >= ZIP64_LIMIT) {
+                throw new IOException(name + " is too large to export");
+            }
+
+            writeInt(0x08074b50);
+            writeInt(crc.getValue());
+            writeInt(compressedSize);
+            writeInt(size);
+            addCentralHeader(nameBytes, time, METHOD_DEFLATED, flags, crc.getValue(), compressedSize, size, offset);
+            return toHex(digest.digest());
+        }
+
+        private void writeLocalHeader(byte[] name, long time, int method, int flags, long crc,
+                                      long compressedSize, long size) throws IOException {
+            if (compressedSize >= ZIP64_LIMIT) {
+                throw new IOException(new String(name, StandardCharsets.UTF_8) + " is too large to export");
+            }
+            writeInt(0x04034b50);
+            writeShort(20);
+            writeShort(flags);
+            writeShort(method);
+            writeInt(dosTime(time));
+            writeInt(crc);
+            writeInt(compressedSize);
+            writeInt(size);
+            writeShort(name.length);
+            writeShort(0);
+            mOut.write(name);
+        }
+
+        private void addCentralHeader(byte[] name, long time, int method, int flags, long crc,
+                                      long compressedSize, long size, long offset) {
+            boolean zip64 = offset >= ZIP64_LIMIT;
+            ByteArrayOutputStream out = mCentral;
+            putInt(out, 0x02014b50);
+            putShort(out, zip64 ? 45 : 20);
+            putShort(out, zip64 ? 45 : 20);
+            putShort(out, flags);
+            putShort(out, method);
+            putInt(out, dosTime(time));
+            putInt(out, crc);
+            putInt(out, compressedSize);
+            putInt(out, size);
+            putShort(out, name.length);
+            putShort(out, zip64 ? 12 : 0);
+            putShort(out, 0);
+            putShort(out, 0);
+            putShort(out, 0);
+            putInt(out, 0);
+            putInt(out, zip64 ? ZIP64_LIMIT : offset);
+            out.write(name, 0, name.length);
+            if (zip64) {
+                putShort(out, 0x0001);
+                putShort(out, 8);
+                putLong(out, offset);
+            }
+            mEntries++;
+        }
+
+        /**
+         * Writes the central directory and the end records, and flushes the stream.
+         */
+        void finish() throws IOException {
+            long centralOffset = mOut.count;
+            mCentral.writeTo(mOut);
+            long centralSize = mOut.count - centralOffset;
+            if (mEntries >= 0xFFFF || centralOffset >= ZIP64_LIMIT || centralSize >= ZIP64_LIMIT) {
+                long zip64EndOffset = mOut.count;
+                writeInt(0x06064b50);
+                writeLong(44);
+                writeShort(45);
+                writeShort(45);
+                writeInt(0);
+                writeInt(0);
+                writeLong(mEntries);
+                writeLong(mEntries);
+                writeLong(centralSize);
+                writeLong(centralOffset);
+                writeInt(0x07064b50);
+                writeInt(0);
+                writeLong(zip64EndOffset);
+                writeInt(1);
+            }
+            writeInt(0x06054b50);
+            writeShort(0);
+            writeShort(0);
+            writeShort(Math.min(mEntries, 0xFFFF));
+            writeShort(Math.min(mEntries, 0xFFFF));
+            writeInt(Math.min(centralSize, ZIP64_LIMIT));
+            writeInt(Math.min(centralOffset, ZIP64_LIMIT));
+            writeShort(0);
+            mOut.flush();
+        }
+
+        private void writeShort(int value) throws IOException {
+            mOut.write(value & 0xff);
+            mOut.write((value >> 8) & 0xff);
+        }
+
+        private void writeInt(long value) throws IOException {
+            writeShort((int) (value & 0xffff));
+            writeShort((int) ((value >> 16) & 0xffff));
+        }
+
+        private void writeLong(long value) throws IOException {
+            writeInt(value & ZIP64_LIMIT);
+            writeInt(value >>> 32);
+        }
+
+        private static void putShort(ByteArrayOutputStream out, int value) {
+            out.write(value & 0xff);
+            out.write((value >> 8) & 0xff);
+        }
+
+        private static void putInt(ByteArrayOutputStream out, long value) {
+            putShort(out, (int) (value & 0xffff));
+            putShort(out, (int) ((value >> 16) & 0xffff));
+        }
+
+        private static void putLong(ByteArrayOutputStream out, long value) {
+            putInt(out, value & ZIP64_LIMIT);
+            putInt(out, value >>> 32);
+        }
+
+        /** Converts a time to the MS-DOS date and time of zip headers */
+        private static long dosTime(long millis) {
+            Calendar calendar = Calendar.getInstance();
+            calendar.setTimeInMillis(millis);
+            int year = calendar.get(Calendar.YEAR);
+            if (year < 1980) {
+                return (1 << 21) | (1 << 16);
+            }
+            return ((long) (year - 1980) << 25)
+                    | ((calendar.get(Calendar.MONTH) + 1) << 21)
+                    | (calendar.get(Calendar.DAY_OF_MONTH) << 16)
+                    | (calendar.get(Calendar.HOUR_OF_DAY) << 11)
+                    | (calendar.get(Calendar.MINUTE) << 5)
+                    | (calendar.get(Calendar.SECOND) >> 1);
+        }
+    }
+
+    /** Counts the bytes written, for the offsets in the zip */
+    private static final class CountingOutputStream extends FilterOutputStream {
+        long count = 0;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
@@ -18,7 +18,13 @@ package org.univie.subjectiveplayer;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import android.util.Log;
 
@@ -68,6 +74,12 @@ public abstract class Session {
     /** Post-questionnaire (questions after the test) */
     public static Questionnaire sPostQuestionnaire = null;
 
+    /** Session log formats from config file (SessionLogSink.FORMAT_ flags) */
+    public static int sLogFormats = SessionLogSink.FORMAT_CSV;
+
+    /** Playback engine from config file (CodecPlayer.ENGINE_ constant) */
+    public static int sPlaybackEngine = CodecPlayer.ENGINE_DEFAULT;
+
     /** Pre-questionnaire answers (parallel to sPreQuestionnaire.getQuestions()) */
     public static List<QuestionnaireAnswer> sPreQuestionnaireAnswers = new ArrayList<>();
 
@@ -80,6 +92,9 @@ public abstract class Session {
     /** Index in sTracks where training ends (-1 if no training section) */
     public static int sTrainingEndIndex = -1;
 
+    /** Minimum number of ratings of a video before early stopping can leave it out */
+    static final int EARLY_STOPPING_MIN_RATINGS = 10;
+
     /** Prefix for BREAK commands in playlist files */
 	public static final String BREAK_PREFIX = "BREAK";
 
@@ -101,6 +116,22 @@ public abstract class Session {
 	/** Marker for end of training section in playlist files */
 	public static final String TRAINING_END_MARKER = "TRAINING_END";
 
+	/** Separates the reference and the test video of a DSIS playlist entry */
+	public static final String PAIR_SEPARATOR = "|";
+
+	/**
+	 * Separates a video file name from the segment of it that is played
+	 * (e.g., "src01.mp4@12.0-22.0" for seconds 12 to 22)
+	 */
+	public static final String SEGMENT_SEPARATOR = "@";
+
+	/**
+	 * A file name followed by the separator and a start-end range of seconds.
+	 * Other entries containing the separator are plain file names.
+	 */
+	private static final Pattern SEGMENT_PATTERN = Pattern.compile("^(.*\\S)\\s*"
+			+ Pattern.quote(SEGMENT_SEPARATOR) + "\\s*(\\d+(?:\\.\\d+)?)\\s*-\\s*(\\d+(?:\\.\\d+)?)\\s*$");
+
 	/**
 	 * Checks if a track entry is a BREAK command
 	 * @param track The track entry to check
@@ -134,6 +165,94 @@ public abstract class Session {
 		return -1;
 	}
 
+	/**
+	 * Checks if a track entry names a stimulus pair, i.e. two videos separated
+	 * by {@link #PAIR_SEPARATOR} (e.g., "src01_ref.mp4|src01_hrc2.mp4"): the
+	 * reference and the test video for DSIS, or videos A and B for paired
+	 * comparison
+	 * @param track The track entry to check
+	 * @return true if the track is a stimulus pair
+	 */
+	public static boolean isStimulusPair(String track) {
+		return track != null && !isBreakCommand(track) && track.contains(PAIR_SEPARATOR);
+	}
+
+	/**
+	 * Splits a stimulus pair into its reference and test video (A and B for
+	 * paired comparison).
+	 * @param track The track entry (e.g., "src01_ref.mp4|src01_hrc2.mp4")
+	 * @return The reference and the test video file name, or null if the entry
+	 *         is not a pair of two non-empty file names
+	 */
+	public static String[] parseStimulusPair(String track) {
+		if (!isStimulusPair(track)) {
+			return null;
+		}
+		int separator = track.indexOf(PAIR_SEPARATOR);
+		String reference = track.substring(0, separator).trim();
+		String test = track.substring(separator + PAIR_SEPARATOR.length()).trim();
+		if (reference.isEmpty() || test.isEmpty() || test.contains(PAIR_SEPARATOR)) {
+			return null;
+		}
+		return new String[] { reference, test };
+	}
+
+	/**
+	 * Checks if a video entry names a segment of a file, i.e. the file name is
+	 * followed by {@link #SEGMENT_SEPARATOR} and a start and end time in
+	 * seconds. File names that merely contain the separator are not segments.
+	 * @param video The video entry to check
+	 * @return true if the entry is a segment
+	 */
+	public static boolean isSegment(String video) {
+		return video != null && !isBreakCommand(video) && SEGMENT_PATTERN.matcher(video).matches();
+	}
+
+	/**
+	 * Returns the file a video entry is played from.
+	 * @param video The video entry (e.g., "src01.mp4@12.0-22.0" or "src01.mp4")
+	 * @return The file name without the segment
+	 */
+	public static String getVideoFileName(String video) {
+		if (!isSegment(video)) {
+			return video;
+		}
+		Matcher matcher = SEGMENT_PATTERN.matcher(video);
+		matcher.matches();
+		return matcher.group(1).trim();
+	}
+
+	/**
+	 * Parses the segment of a video entry.
+	 * @param video The video entry (e.g., "src01.mp4@12.0-22.0")
+	 * @return The start and end of the segment in milliseconds, or null if the
+	 *         entry is not a segment or its end time is not after its start time
+	 */
+	public static long[] parseSegment(String video) {
+		if (!isSegment(video)) {
+			return null;
+		}
+		Matcher matcher = SEGMENT_PATTERN.matcher(video);
+		matcher.matches();
+		double start = Double.parseDouble(matcher.group(2));
+		double end = Double.parseDouble(matcher.group(3));
+		if (!(end > start) || Double.isInfinite(end)) {
+			return null;
+		}
+		return new long[] { Math.round(start * 1000), Math.round(end * 1000) };
+	}
+
+	/**
+	 * Builds the entry of a segment, in the form {@link #parseSegment(String)} reads.
+	 * @param file The video file name
+	 * @param startSeconds The start of the segment in seconds
+	 * @param endSeconds The end of the segment in seconds
+	 * @return The video entry (e.g., "src01.mp4@12.0-22.0")
+	 */
+	public static String formatSegment(String file, double startSeconds, double endSeconds) {
+		return file + SEGMENT_SEPARATOR + startSeconds + "-" + endSeconds;
+	}
+
 	/**
 	 * Checks if a line is a METHOD directive
 	 * @param line The line to check
@@ -251,7 +370,7 @@ public abstract class Session {
 
 	/**
 	 * Parses the method type from a METHOD directive.
-	 * Supported values: ACR, CONTINUOUS, DSIS, TIME_CONTINUOUS
+	 * Supported values: ACR, CONTINUOUS, DSIS, TIME_CONTINUOUS, PC
 	 * @param line The METHOD directive string (e.g., "METHOD ACR")
 	 * @return The method type constant, or Methods.UNDEFINED if invalid
 	 */
@@ -275,6 +394,9 @@ public abstract class Session {
 				case "TIME_CONTINUOUS":
 					Log.d(TAG, "Parsed METHOD: TIME_CONTINUOUS (TYPE_TIME_CONTINUOUS)");
 					return Methods.TYPE_TIME_CONTINUOUS;
+				case "PC":
+					Log.d(TAG, "Parsed METHOD: PC (TYPE_PAIRED_COMPARISON)");
+					return Methods.TYPE_PAIRED_COMPARISON;
 				default:
 					Log.w(TAG, "Unknown method type: " + methodName);
 					return Methods.UNDEFINED;
@@ -302,8 +424,9 @@ public abstract class Session {
 			return;
 		}
 
-		// Parse config file using appropriate parser based on extension
-		BaseConfigFile config = ConfigFileFactory.create(configFile);
+		// Parse config file using appropriate parser based on extension (for a
+		// design file, this generates the playlist of the participant)
+		BaseConfigFile config = ConfigFileFactory.create(configFile, sParticipantId);
 
 		// Log any parse errors (but continue - validation is done separately)
 		for (BaseConfigFile.ParseError error : config.getParseErrors()) {
@@ -352,6 +475,9 @@ public abstract class Session {
 			Log.i(TAG, "Post-questionnaire loaded with " + sPostQuestionnaire.size() + " questions");
 		}
 
+		sLogFormats = config.getLogFormats();
+		sPlaybackEngine = config.getPlaybackEngine();
+
 		// Copy entries to tracks
 		sTracks.addAll(config.getEntries());
 
@@ -362,30 +488,130 @@ public abstract class Session {
 			Log.i(TAG, "Training section: indices " + sTrainingStartIndex + " to " + sTrainingEndIndex);
 		}
 
-		// Filter out missing video files (skip BREAK commands)
+		// Videos that are not files are looked up in the packs of the videos folder
+		for (String error : VideoPack.openAll(Configuration.sFolderVideos)) {
+			Log.e(TAG, "Cannot open video pack: " + error);
+		}
+
+		// Filter out missing video files (skip BREAK commands; both videos of a
+		// stimulus pair must exist). Segments of the same file are checked once.
+		Map<String, Boolean> fileExists = new HashMap<>();
 		for (int i = sTracks.size() - 1; i >= 0; i--) {
 			String track = sTracks.get(i);
 			if (isBreakCommand(track)) {
 				Log.d(TAG, "Keeping BREAK command at index " + i + ": " + track);
 				continue;
 			}
-			File f = new File(Configuration.sFolderVideos, track);
-			if (!f.exists()) {
-				Log.w(TAG, "Video file not found, removing from playlist: " + f.getAbsolutePath());
-				sTracks.remove(i);
-				// Adjust training indices if needed
-				if (sTrainingStartIndex > i) {
-					sTrainingStartIndex--;
+			String[] pair = parseStimulusPair(track);
+			String[] videos = pair != null ? pair : new String[] { track };
+			for (String video : videos) {
+				File f = new File(Configuration.sFolderVideos, getVideoFileName(video));
+				Boolean exists = fileExists.get(f.getPath());
+				if (exists == null) {
+					exists = VideoPack.exists(f);
+					fileExists.put(f.getPath(), exists);
 				}
-				if (sTrainingEndIndex >= i) {
-					sTrainingEndIndex--;
+				if (!exists) {
+					Log.w(TAG, "Video file not found, removing from playlist: " + f.getAbsolutePath());
+					removeTrack(i);
+					break;
 				}
 			}
 		}
 
+		if (Configuration.sEarlyStoppingCi95 > 0 && sCurrentMethod != Methods.UNDEFINED) {
+			applyEarlyStopping(Configuration.sEarlyStoppingCi95);
+		}
+
 		Log.d(TAG, "Playlist loaded with " + sTracks.size() + " entries");
 	}
 
+	/**
+	 * Checks if the playlist has a video to rate outside of the training section
+	 * @return false if the playlist is empty or only holds training videos and
+	 *         breaks, e.g. after early stopping removed every test video
+	 */
+	public static boolean hasTestVideos() {
+		for (int i = 0; i < sTracks.size(); i++) {
+			if (!isBreakCommand(sTracks.get(i)) && !isTrainingTrack(i)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Removes a track from the playlist and adjusts the training indices.
+	 */
+	private static void removeTrack(int index) {
+		sTracks.remove(index);
+		if (sTrainingStartIndex > index) {
+			sTrainingStartIndex--;
+		}
+		if (sTrainingEndIndex >= index) {
+			sTrainingEndIndex--;
+		}
+	}
+
+	/**
+	 * Removes videos whose MOS is already known precisely enough from the
+	 * playlist, based on the statistics of previous sessions in the
+	 * {@link RatingStore}. Training videos are always kept. BREAK commands
+	 * that would follow another BREAK, or end the playlist, are removed as well.
+	 *
+	 * @param maxCi95 Videos with a 95% confidence interval (half width) below
+	 *                this value are removed
+	 */
+	static void applyEarlyStopping(double maxCi95) {
+		String method = Methods.METHOD_NAMES[sCurrentMethod];
+		Set<String> converged = new HashSet<>();
+		for (RatingStore.VideoStats stats : new RatingStore(Configuration.sFolderLogs).read()) {
+			if (stats.method.equals(method) && stats.getCount() >= EARLY_STOPPING_MIN_RATINGS
+					&& stats.getCi95() < maxCi95) {
+				converged.add(stats.video);
+			}
+		}
+		if (converged.isEmpty()) {
+			return;
+		}
+
+		int removed = 0;
+		for (int i = sTracks.size() - 1; i >= 0; i--) {
+			String track = sTracks.get(i);
+			if (!isBreakCommand(track) && !isTrainingTrack(i) && converged.contains(track)) {
+				removeTrack(i);
+				removed++;
+			}
+		}
+		if (removed == 0) {
+			return;
+		}
+		for (int i = sTracks.size() - 1; i >= 0; i--) {
+			if (isBreakCommand(sTracks.get(i))
+					&& (i == sTracks.size() - 1 || i == 0 || isBreakCommand(sTracks.get(i - 1)))) {
+				removeTrack(i);
+			}
+		}
+		Log.i(TAG, "Early stopping: removed " + removed + " videos with CI95 below " + maxCi95);
+	}
+
+	/**
+	 * Checks if videos are played with {@link CodecPlayer} instead of
+	 * MediaPlayer: as set in the config file, otherwise as set in the
+	 * preferences. DSIS and paired comparisons always use MediaPlayer.
+	 * @return true if the MediaCodec engine is used
+	 */
+	public static boolean usesCodecEngine() {
+		if (sCurrentMethod == Methods.TYPE_DSIS_CATEGORICAL
+				|| sCurrentMethod == Methods.TYPE_PAIRED_COMPARISON) {
+			return false;
+		}
+		if (sPlaybackEngine != CodecPlayer.ENGINE_DEFAULT) {
+			return sPlaybackEngine == CodecPlayer.ENGINE_MEDIA_CODEC;
+		}
+		return Configuration.sCodecEngine;
+	}
+
 	/**
 	 * Checks if a pre-questionnaire is defined
 	 * @return true if a pre-questionnaire with at least one question exists
@@ -419,9 +645,12 @@ public abstract class Session {
 		sPostQuestionnaireMessage = null;
 		sPreQuestionnaire = null;
 		sPostQuestionnaire = null;
+		sLogFormats = SessionLogSink.FORMAT_CSV;
+		sPlaybackEngine = CodecPlayer.ENGINE_DEFAULT;
 		sPreQuestionnaireAnswers = new ArrayList<QuestionnaireAnswer>();
 		sPostQuestionnaireAnswers = new ArrayList<QuestionnaireAnswer>();
 		sTrainingStartIndex = -1;
 		sTrainingEndIndex = -1;
+		VideoPack.closeAll();
 	}
 }
@@ -48,6 +48,7 @@ import androidx.core.view.WindowCompat;
 import androidx.core.view.WindowInsetsCompat;
 import androidx.preference.PreferenceManager;
 import android.util.Log;
+import android.view.Choreographer;
 import android.view.KeyEvent;
 import android.view.SurfaceHolder;
 import android.view.SurfaceView;
@@ -86,23 +87,42 @@ public class SessionActivity extends AppCompatActivity implements Callback,
 
     private Button mOkButton = null;
 
-	private static int sCurrentRating;
 	private static final int RATING_MIN = 1;
 	private static final int RATING_DEFAULT = 3;
 	private static final int RATING_MAX = 5;
 	/** The interval in milliseconds that the rating should be captured	 */
 	private static final int RATING_INTERVAL = 1000;
-	
-	private LoggingThread mLoggingThread;
-	private Thread mThread;
+
+	/** Samples the rating of the time-continuous method, null for other methods */
+	private RatingSampler mRatingSampler;
 
 	private MediaPlayer mPlayer;
+	/** Plays the videos instead of mPlayer when the MediaCodec engine is used */
+	private CodecPlayer mCodecPlayer;
+	/** Matches the refresh rate of the display to the frame rate of the videos */
+	private DisplayModeMatcher mDisplayModeMatcher;
 	private SurfaceView mPlayView;
 	private SurfaceHolder mHolder;
+	/** Keeps mPlayView alive and sized across the whole session */
+	private VideoSurface mVideoSurface;
 	private int mVideoWidth;
 	private int mVideoHeight;
-	/** Determines whether a video is currently playing or not */
-	private boolean mIsVideoPlaying = false;
+
+	/**
+	 * When the current video was requested ({@link System#nanoTime()} base),
+	 * for measuring the time to its first frame; -1 once measured
+	 */
+	private long mFirstFrameRequestNanos = -1;
+
+	/** Start and end (ms) of the segment of the current video, or null to play the whole file */
+	private long[] mSegment;
+	/** When the seek to the start of the segment was issued ({@link System#nanoTime()} base) */
+	private long mSeekStartNanos;
+	/** Stops the MediaPlayer at the end of the segment; see {@link #checkSegmentEnd()} */
+	private final Runnable mSegmentEndCheck = this::checkSegmentEnd;
+	private final Choreographer.FrameCallback mSegmentEndFrameCheck = frameTimeNanos -> checkSegmentEnd();
+	/** Before the end of a segment, its position is checked on every vsync from this long before */
+	private static final long SEGMENT_END_POLL_MILLIS = 100;
 	/**
 	 * Determines whether the video size is known or not. If not, the player
 	 * will not start
@@ -120,6 +140,16 @@ public class SessionActivity extends AppCompatActivity implements Callback,
 	/** Stores pending video index when surface was not ready */
 	private int mPendingVideoIndex = -1;
 
+	/** Plays the reference/test pairs of DSIS sessions (null for other methods) */
+	private DsisPlayer mDsisPlayer;
+
+	/** Plays the video pairs of paired comparison sessions (null for other methods) */
+	private PairedPlayer mPairedPlayer;
+	/** Surface of video B in side by side paired comparisons */
+	private SurfaceView mPlayViewB;
+	/** Label of the video shown on the main surface in paired comparisons */
+	private TextView mLabelA;
+
     private Dialog mDialog;
     /** Separate dialog instance for break dialogs to avoid interfering with rating dialogs */
     private Dialog mBreakDialog;
@@ -133,8 +163,8 @@ public class SessionActivity extends AppCompatActivity implements Callback,
     private Dialog mTrainingCompleteDialog;
     /** Dialog instance for questionnaire intro screens */
     private Dialog mQuestionnaireIntroDialog;
-    /** Dialog instance for question dialogs */
-    private Dialog mQuestionDialog;
+    /** Renderer showing the questions of the current questionnaire */
+    private QuestionnaireRenderer mQuestionnaireRenderer;
     /** Tracks whether the start screen has been shown */
     private boolean mStartScreenShown = false;
     /** Tracks whether the training intro screen has been shown */
@@ -155,6 +185,10 @@ public class SessionActivity extends AppCompatActivity implements Callback,
     // P.NATS: new dialog
     private static final int DIALOG_ACR_CUSTOM = 3;
     private static final int DIALOG_BREAK = 4;
+    private static final int DIALOG_PAIRED_COMPARISON = 5;
+
+    /** Width of the rating options in the DSIS dialog */
+    private static final int DSIS_RATING_WIDTH_DP = 280;
 
     /** Placeholder rating value for BREAK entries */
     private static final int BREAK_RATING_PLACEHOLDER = -1;
@@ -259,7 +293,34 @@ public class SessionActivity extends AppCompatActivity implements Callback,
 			mPlayView = (SurfaceView) findViewById(R.id.video_surface);
 			mHolder = mPlayView.getHolder();
 			mHolder.addCallback(this);
+			mDisplayModeMatcher = new DisplayModeMatcher(this, getWindow(), mPlayView);
+			if (Configuration.sMatchRefreshRate) {
+				// Probe the first videos while the start screen is shown
+				mDisplayModeMatcher.probeAhead(Session.sTracks, 0);
+			}
+			if (Session.sCurrentMethod == Methods.TYPE_TIME_CONTINUOUS) {
+				// One sampler for the whole session; its thread starts with the first video
+				mRatingSampler = new RatingSampler(RATING_MIN, RATING_DEFAULT, RATING_MAX, RATING_INTERVAL,
+						(position, name, rating, time) -> CsvLogger.logRating(position, name, rating, time, null));
+			}
 			// Note: setType(SURFACE_TYPE_PUSH_BUFFERS) removed - deprecated since API 15
+			if (Session.sCurrentMethod == Methods.TYPE_DSIS_CATEGORICAL) {
+				mDsisPlayer = new DsisPlayer(mPlayView,
+						(SurfaceView) findViewById(R.id.video_surface_test),
+						findViewById(R.id.video_grey), mDsisListener);
+			} else if (Session.sCurrentMethod == Methods.TYPE_PAIRED_COMPARISON) {
+				mLabelA = (TextView) findViewById(R.id.video_label_a);
+				mLabelA.setVisibility(View.VISIBLE);
+				if (Configuration.sPcToggle) {
+					mPairedPlayer = new PairedPlayer(mPlayView, null, mPairedListener);
+					mPlayView.setOnClickListener(v -> mPairedPlayer.toggle());
+				} else {
+					mPlayViewB = (SurfaceView) findViewById(R.id.video_surface_b);
+					findViewById(R.id.video_frame_b).setVisibility(View.VISIBLE);
+					mPairedPlayer = new PairedPlayer(mPlayView, mPlayViewB, mPairedListener);
+				}
+			}
+			mVideoSurface = new VideoSurface(mPlayView, mPlayViewB, findViewById(R.id.video_cover));
 		} catch (Exception e) {
 			Log.e(TAG, "Error while creating Surface:" + e.toString());
 		}
@@ -273,8 +334,8 @@ public class SessionActivity extends AppCompatActivity implements Callback,
 		super.onPause();
 		Log.d(TAG, "onPause called");
 		releasePlayer();
-		if (mLoggingThread != null) {
-			mLoggingThread.stop();
+		if (mRatingSampler != null) {
+			mRatingSampler.pauseClip();
 		}
 		if (mBreakTimer != null) {
 			mBreakTimer.cancel();
@@ -311,9 +372,9 @@ public class SessionActivity extends AppCompatActivity implements Callback,
 			mQuestionnaireIntroDialog = null;
 			Log.d(TAG, "Questionnaire intro dialog dismissed in onPause");
 		}
-		if (mQuestionDialog != null) {
-			mQuestionDialog.dismiss();
-			mQuestionDialog = null;
+		if (mQuestionnaireRenderer != null) {
+			mQuestionnaireRenderer.dismiss();
+			mQuestionnaireRenderer = null;
 			Log.d(TAG, "Question dialog dismissed in onPause");
 		}
 		cleanUp();
@@ -327,6 +388,12 @@ public class SessionActivity extends AppCompatActivity implements Callback,
 		super.onDestroy();
 		releasePlayer();
 		cleanUp();
+		if (mDisplayModeMatcher != null) {
+			mDisplayModeMatcher.release();
+		}
+		if (mRatingSampler != null) {
+			mRatingSampler.stop();
+		}
 		// Close the session log file (ensures data is saved even if test is cancelled)
 		CsvLogger.closeSessionLog();
 		Session.reset();
@@ -344,7 +411,8 @@ public class SessionActivity extends AppCompatActivity implements Callback,
 			int videoIndex = mPendingVideoIndex;
 			mPendingVideoIndex = -1;
 			preparePlayerForVideo(videoIndex);
-		} else if (Session.sCurrentTrack == 0 && mPlayer == null && !mStartScreenShown) {
+		} else if (Session.sCurrentTrack == 0 && mPlayer == null && mCodecPlayer == null
+				&& !mStartScreenShown) {
 			// First video - show pre-questionnaire first (if defined), then start screen
 			if (Session.hasPreQuestionnaire() && !mPreQuestionnaireShown) {
 				showPreQuestionnaireIntro();
@@ -400,6 +468,10 @@ public class SessionActivity extends AppCompatActivity implements Callback,
 			}
 		}
 
+		if (mFirstFrameRequestNanos < 0) {
+			mFirstFrameRequestNanos = System.nanoTime();
+		}
+
 		// If surface is not valid, store pending video index and wait
 		if (!mIsSurfaceValid) {
 			Log.d(TAG, "Surface not ready, queuing video " + videoIndex);
@@ -407,29 +479,54 @@ public class SessionActivity extends AppCompatActivity implements Callback,
 			return;
 		}
 
-		try {
+		if (Configuration.sMatchRefreshRate) {
+			mDisplayModeMatcher.matchTrack(Session.sTracks, videoIndex);
+		}
 
-			if (Session.sCurrentMethod == Methods.TYPE_TIME_CONTINUOUS) {
-				String videoName = Session.sTracks.get(videoIndex);
-				Log.d(TAG, "Creating new logging thread for video " + videoName);
-				mLoggingThread = new LoggingThread(videoName, videoIndex);
-				sCurrentRating = RATING_DEFAULT;
-			}
+		if (mDsisPlayer != null) {
+			prepareDsisPair(videoIndex);
+			return;
+		}
+		if (mPairedPlayer != null) {
+			preparePairedComparison(videoIndex);
+			return;
+		}
 
-			mPlayer = new MediaPlayer();
+		try {
 
 			String videoPath = getPathFromPlaylist(videoIndex);
 			File videoFile = new File(videoPath);
-			if ((!videoFile.exists()) || (!videoFile.canRead())) {
+			// Videos that are not files are read from their pack, through its open descriptor
+			VideoPack.Entry packed = VideoPack.resolve(videoFile);
+			if (packed == null && ((!videoFile.exists()) || (!videoFile.canRead()))) {
 				throw new IOException("Video file " + videoPath + "not found!");
 			}
-			mPlayer.setDataSource(videoPath);
+			mSegment = Session.parseSegment(Session.sTracks.get(videoIndex));
+
+			if (Session.usesCodecEngine()) {
+				prepareCodecPlayer(videoPath, packed);
+				return;
+			}
+
+			mPlayer = new MediaPlayer();
+			if (packed != null) {
+				mPlayer.setDataSource(packed.getFileDescriptor(), packed.getOffset(), packed.getLength());
+			} else {
+				mPlayer.setDataSource(videoPath);
+			}
 			mPlayer.setDisplay(mHolder);
 			mPlayer.setScreenOnWhilePlaying(true);
 			mPlayer.setOnPreparedListener(this);
 			mPlayer.setOnCompletionListener(this);
 			mPlayer.setOnVideoSizeChangedListener(this);
 			mPlayer.setOnErrorListener(this);
+			mPlayer.setOnSeekCompleteListener(mp -> onSegmentSeekComplete());
+			mPlayer.setOnInfoListener((mp, what, extra) -> {
+				if (what == MediaPlayer.MEDIA_INFO_VIDEO_RENDERING_START) {
+					onFirstFrame(System.nanoTime());
+				}
+				return false;
+			});
 			mPlayer.setAudioStreamType(AudioManager.STREAM_MUSIC);
 			mPlayer.prepare();
 		} catch (IllegalArgumentException e) {
@@ -447,10 +544,279 @@ public class SessionActivity extends AppCompatActivity implements Callback,
 		}
 	}
 
+	/**
+	 * Prepares a video with the MediaCodec engine. The engine calls the same
+	 * prepared/size/completion steps as MediaPlayer, and additionally logs
+	 * late and dropped frames to the playback log when the video has finished.
+	 *
+	 * @param videoPath
+	 *            The path of the video file
+	 * @param packed
+	 *            The video in a pack if it is not a file, otherwise null
+	 * @throws IOException
+	 *             When the video cannot be decoded
+	 */
+	private void prepareCodecPlayer(String videoPath, VideoPack.Entry packed) throws IOException {
+		mCodecPlayer = new CodecPlayer();
+		if (packed != null) {
+			mCodecPlayer.setDataSource(packed.getName(), packed.getFileDescriptor(), packed.getOffset(),
+					packed.getLength());
+		} else {
+			mCodecPlayer.setDataSource(videoPath);
+		}
+		mCodecPlayer.setDisplay(mHolder);
+		if (mSegment != null) {
+			mCodecPlayer.setSegment(mSegment[0] * 1000, mSegment[1] * 1000);
+		}
+		mCodecPlayer.setOnPreparedListener(player -> {
+			if (mSegment != null) {
+				logSeek(player.getSeekMillis());
+			}
+			onVideoPrepared();
+		});
+		mCodecPlayer.setOnVideoSizeChangedListener((player, width, height) -> onVideoSizeKnown(width, height));
+		mCodecPlayer.setOnRenderingStartListener((player, displayNanos) -> onFirstFrame(displayNanos));
+		mCodecPlayer.setOnCompletionListener(player -> {
+			logFrameTimings(player);
+			onPresentationFinished();
+		});
+		mCodecPlayer.setOnErrorListener((player, error) -> {
+			Log.e(TAG, "Error playing video: " + error);
+			return false;
+		});
+		mCodecPlayer.prepare();
+	}
+
+	/**
+	 * Called when the first frame of the current video is on the surface:
+	 * lifts the cover and logs the time since the video was requested.
+	 *
+	 * @param displayNanos
+	 *            When the frame was shown ({@link System#nanoTime()} base)
+	 */
+	private void onFirstFrame(long displayNanos) {
+		mVideoSurface.uncover();
+		if (mFirstFrameRequestNanos < 0) {
+			return;
+		}
+		double firstFrameMillis = Math.max(0, (displayNanos - mFirstFrameRequestNanos) / 1e6);
+		mFirstFrameRequestNanos = -1;
+		Log.d(TAG, "First frame after " + firstFrameMillis + " ms");
+		CsvLogger.logPlaybackEvent(Session.sCurrentTrack, Session.sTracks.get(Session.sCurrentTrack),
+				PlaybackLogSink.EVENT_FIRST_FRAME, firstFrameMillis);
+	}
+
+	/**
+	 * Writes the late and dropped frames of a video played with the MediaCodec
+	 * engine to the playback log.
+	 */
+	private void logFrameTimings(CodecPlayer player) {
+		String track = Session.sTracks.get(Session.sCurrentTrack);
+		for (double lateMillis : player.getLateFrameMillis()) {
+			CsvLogger.logPlaybackEvent(Session.sCurrentTrack, track, PlaybackLogSink.EVENT_FRAME_LATE, lateMillis);
+		}
+		for (double droppedMillis : player.getDroppedFrameMillis()) {
+			CsvLogger.logPlaybackEvent(Session.sCurrentTrack, track, PlaybackLogSink.EVENT_FRAME_DROPPED,
+					droppedMillis);
+		}
+	}
+
+	/**
+	 * Starts a prepared DSIS or paired comparison pair once the display runs
+	 * at the refresh rate requested for it, like {@link #startVideo()}.
+	 *
+	 * @param start
+	 *            Starts the pair on its player
+	 */
+	private void startPair(Runnable start) {
+		mDisplayModeMatcher.runWhenSettled(() -> {
+			// Show the video surface again once the first frame is on it
+			if (mVideoSurface != null) {
+				mVideoSurface.uncoverOnFirstFrame();
+			}
+			logRefreshRate();
+			start.run();
+		});
+	}
+
+	/**
+	 * Prepares the reference and the test video of a DSIS playlist entry and
+	 * plays them. The rating dialog is shown when the test video has finished.
+	 *
+	 * @param videoIndex
+	 *            The index of the entry in the session.
+	 */
+	private void prepareDsisPair(int videoIndex) {
+		String track = Session.sTracks.get(videoIndex);
+		String[] pair = Session.parseStimulusPair(track);
+		if (pair == null) {
+			Log.e(TAG, "DSIS playlist entry is not a reference/test pair, skipping: " + track);
+			nextVideo();
+			return;
+		}
+		mDsisPlayer.play(new File(Configuration.sFolderVideos, pair[0]),
+				new File(Configuration.sFolderVideos, pair[1]), Configuration.sDsisGreyMillis);
+	}
+
+	private final DsisPlayer.Listener mDsisListener = new DsisPlayer.Listener() {
+		@Override
+		public void onPairPrepared(int width, int height) {
+			if (width > 0 && height > 0) {
+				mVideoWidth = width;
+				mVideoHeight = height;
+				layoutVideoSurface();
+			}
+			startPair(mDsisPlayer::start);
+		}
+
+		@Override
+		public void onFirstFrame() {
+			if (mVideoSurface != null) {
+				mVideoSurface.uncover();
+			}
+		}
+
+		@Override
+		public void onPairCompleted(double switchGapMillis) {
+			if (switchGapMillis >= 0) {
+				CsvLogger.logPlaybackEvent(Session.sCurrentTrack, Session.sTracks.get(Session.sCurrentTrack),
+						PlaybackLogSink.EVENT_SWITCH_GAP, switchGapMillis);
+			}
+			onPresentationFinished();
+		}
+
+		@Override
+		public void onPairFailed(Exception error) {
+			nextVideo();
+		}
+	};
+
+	/**
+	 * Prepares the two videos of a paired comparison playlist entry and plays
+	 * them together. The preference dialog is shown when both have finished.
+	 *
+	 * @param videoIndex
+	 *            The index of the entry in the session.
+	 */
+	private void preparePairedComparison(int videoIndex) {
+		String track = Session.sTracks.get(videoIndex);
+		String[] pair = Session.parseStimulusPair(track);
+		if (pair == null) {
+			Log.e(TAG, "PC playlist entry is not a video pair, skipping: " + track);
+			nextVideo();
+			return;
+		}
+		mLabelA.setText(R.string.pc_label_a);
+		mPairedPlayer.play(new File(Configuration.sFolderVideos, pair[0]),
+				new File(Configuration.sFolderVideos, pair[1]));
+	}
+
+	private final PairedPlayer.Listener mPairedListener = new PairedPlayer.Listener() {
+		@Override
+		public void onPairPrepared(int width, int height) {
+			if (width > 0 && height > 0) {
+				mVideoWidth = width;
+				mVideoHeight = height;
+				layoutVideoSurface();
+			}
+			startPair(mPairedPlayer::start);
+		}
+
+		@Override
+		public void onFirstFrame() {
+			if (mVideoSurface != null) {
+				mVideoSurface.uncover();
+			}
+		}
+
+		@Override
+		public void onToggled(boolean showingB, double latencyMillis) {
+			mLabelA.setText(showingB ? R.string.pc_label_b : R.string.pc_label_a);
+			CsvLogger.logPlaybackEvent(Session.sCurrentTrack, Session.sTracks.get(Session.sCurrentTrack),
+					PlaybackLogSink.EVENT_TOGGLE_LATENCY, latencyMillis);
+		}
+
+		@Override
+		public void onPairCompleted(double meanDriftMillis, double maxDriftMillis) {
+			if (meanDriftMillis >= 0) {
+				String track = Session.sTracks.get(Session.sCurrentTrack);
+				CsvLogger.logPlaybackEvent(Session.sCurrentTrack, track,
+						PlaybackLogSink.EVENT_DRIFT_MEAN, meanDriftMillis);
+				CsvLogger.logPlaybackEvent(Session.sCurrentTrack, track,
+						PlaybackLogSink.EVENT_DRIFT_MAX, maxDriftMillis);
+			}
+			onPresentationFinished();
+		}
+
+		@Override
+		public void onPairFailed(Exception error) {
+			nextVideo();
+		}
+	};
+
 	/**
 	 * Called when the Media Player is finished preparing and ready to play.
+	 * For a segment, the player first seeks to the exact frame it starts on.
 	 */
 	public void onPrepared(MediaPlayer player) {
+		if (mSegment == null) {
+			onVideoPrepared();
+			return;
+		}
+		mSeekStartNanos = System.nanoTime();
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+			player.seekTo(mSegment[0], MediaPlayer.SEEK_CLOSEST);
+		} else {
+			player.seekTo((int) mSegment[0]);
+		}
+	}
+
+	private void onSegmentSeekComplete() {
+		if (mSegment == null || mIsVideoReadyToBePlayed) {
+			return;
+		}
+		logSeek((System.nanoTime() - mSeekStartNanos) / 1e6);
+		onVideoPrepared();
+	}
+
+	/**
+	 * Writes the time the seek to the start of the segment of the current
+	 * video took to the playback log.
+	 */
+	private void logSeek(double seekMillis) {
+		if (seekMillis < 0) {
+			return;
+		}
+		Log.d(TAG, "Seeked to segment start in " + seekMillis + " ms");
+		CsvLogger.logPlaybackEvent(Session.sCurrentTrack, Session.sTracks.get(Session.sCurrentTrack),
+				PlaybackLogSink.EVENT_SEEK, seekMillis);
+	}
+
+	/**
+	 * Stops the MediaPlayer when the end of the segment is reached: the
+	 * position is checked once shortly before the end, and then on every
+	 * vsync, until the frame at the end time would be shown on the next one.
+	 */
+	private void checkSegmentEnd() {
+		if (mPlayer == null || mSegment == null) {
+			return;
+		}
+		long remainingMillis = mSegment[1] - mPlayer.getCurrentPosition();
+		if (remainingMillis > SEGMENT_END_POLL_MILLIS) {
+			mPlayView.postDelayed(mSegmentEndCheck, remainingMillis - SEGMENT_END_POLL_MILLIS);
+			return;
+		}
+		float refreshRate = mDisplayModeMatcher.getRefreshRate();
+		double vsyncMillis = refreshRate > 0 ? 1000.0 / refreshRate : 1000.0 / 60;
+		if (remainingMillis > vsyncMillis) {
+			Choreographer.getInstance().postFrameCallback(mSegmentEndFrameCheck);
+			return;
+		}
+		mPlayer.pause();
+		onPresentationFinished();
+	}
+
+	private void onVideoPrepared() {
 		mIsVideoReadyToBePlayed = true;
 		if (mIsVideoReadyToBePlayed && mIsVideoSizeKnown) {
 			startVideo();
@@ -461,6 +827,10 @@ public class SessionActivity extends AppCompatActivity implements Callback,
 	 * Called when the video size changes.
 	 */
 	public void onVideoSizeChanged(MediaPlayer mp, int width, int height) {
+		onVideoSizeKnown(width, height);
+	}
+
+	private void onVideoSizeKnown(int width, int height) {
 		Log.v(TAG, "onVideoSizeChanged called");
 		if (width == 0 || height == 0) {
 			Log.e(TAG, "invalid video width(" + width + ") or height(" + height
@@ -481,14 +851,25 @@ public class SessionActivity extends AppCompatActivity implements Callback,
 	 * Called when the Media Player finished playing its file.
 	 */
 	public void onCompletion(MediaPlayer player) {
+		onPresentationFinished();
+	}
+
+	/**
+	 * Called when a video (or a DSIS or PC pair) has been shown: asks for the rating.
+	 */
+	private void onPresentationFinished() {
 		// release the player and reset
 		releasePlayer();
 		cleanUp();
+		if (Configuration.sMatchRefreshRate) {
+			// Probe the next videos while the rating dialog is shown
+			mDisplayModeMatcher.probeAhead(Session.sTracks, Session.sCurrentTrack + 1);
+		}
 
-		// Hide the video surface while showing the rating dialog
-		// Use INVISIBLE instead of GONE to keep the surface alive
-		if (mPlayView != null) {
-			mPlayView.setVisibility(View.INVISIBLE);
+		// Cover the video surface while showing the rating dialog
+		// (the surface itself stays alive for the next video)
+		if (mVideoSurface != null) {
+			mVideoSurface.cover();
 		}
 
 		switch (Session.sCurrentMethod) {
@@ -499,6 +880,12 @@ public class SessionActivity extends AppCompatActivity implements Callback,
             showDialog(DIALOG_ACR_CUSTOM);
 			break;
 		case Methods.TYPE_DSIS_CATEGORICAL:
+			mRatingDialogShownTime = System.currentTimeMillis();
+			showDialog(DIALOG_DSIS_CATEGORICAL);
+			break;
+		case Methods.TYPE_PAIRED_COMPARISON:
+			mRatingDialogShownTime = System.currentTimeMillis();
+			showDialog(DIALOG_PAIRED_COMPARISON);
 			break;
 		case Methods.TYPE_CONTINUOUS:
 			mRatingDialogShownTime = System.currentTimeMillis();
@@ -523,16 +910,58 @@ public class SessionActivity extends AppCompatActivity implements Callback,
 	}
 
 	/**
-	 * Starts the player.
+	 * Starts the player, once the display runs at the refresh rate requested
+	 * for the video.
 	 */
 	public void startVideo() {
-		// Show the video surface again
-		if (mPlayView != null) {
-			mPlayView.setVisibility(View.VISIBLE);
+		mDisplayModeMatcher.runWhenSettled(this::startPlayback);
+	}
+
+	private void startPlayback() {
+		// Show the video surface again once the first frame is on it
+		mVideoSurface.uncoverOnFirstFrame();
+
+        layoutVideoSurface();
+
+		if (mRatingSampler != null) {
+			mRatingSampler.startClip(Session.sCurrentTrack, Session.sTracks.get(Session.sCurrentTrack));
 		}
 
-        LayoutParams mParams = mPlayView.getLayoutParams();
+		logRefreshRate();
+		if (mCodecPlayer != null) {
+			float refreshRate = mDisplayModeMatcher.getRefreshRate();
+			if (refreshRate > 0) {
+				mCodecPlayer.setRefreshRate(refreshRate);
+			}
+			mCodecPlayer.start();
+		} else {
+			mPlayer.start();
+			if (mSegment != null) {
+				checkSegmentEnd();
+			}
+		}
+	}
+
+	/**
+	 * Writes the refresh rate the display runs at while the current video is
+	 * shown to the playback log, as the duration of one refresh.
+	 */
+	private void logRefreshRate() {
+		float refreshRate = mDisplayModeMatcher.getRefreshRate();
+		if (refreshRate <= 0) {
+			return;
+		}
+		Log.i(TAG, "Showing video " + Session.sCurrentTrack + " at " + refreshRate + " Hz");
+		CsvLogger.logPlaybackEvent(Session.sCurrentTrack, Session.sTracks.get(Session.sCurrentTrack),
+				PlaybackLogSink.EVENT_REFRESH_PERIOD, 1000.0 / refreshRate);
+	}
 
+	/**
+	 * Sizes the video surface to the available width, keeping the aspect
+	 * ratio of the video. Side by side paired comparisons split the width
+	 * between the surfaces of A and B.
+	 */
+	private void layoutVideoSurface() {
         // Get screen width using modern API
         int screenWidth;
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
@@ -545,24 +974,14 @@ public class SessionActivity extends AppCompatActivity implements Callback,
 
         // Subtract insets for safe area (when not edge-to-edge)
         int availableWidth = screenWidth - mInsetLeft - mInsetRight;
+        if (mPlayViewB != null) {
+            availableWidth /= 2;
+        }
         Log.d(TAG, "Video sizing: screenWidth=" + screenWidth + ", insetLeft=" + mInsetLeft +
             ", insetRight=" + mInsetRight + ", availableWidth=" + availableWidth);
 
-        // Set the width of the SurfaceView to the available width
-        mParams.width = availableWidth;
-        // Set the height of the SurfaceView to match the aspect ratio of the video
-        mParams.height = (int) (((float) mVideoHeight / (float) mVideoWidth) * (float) availableWidth);
-
-        mPlayView.setLayoutParams(mParams);
-        mIsVideoPlaying = true;
-		
-		if (Session.sCurrentMethod == Methods.TYPE_TIME_CONTINUOUS) {
-			Log.d(TAG, "Running thread");
-			mThread = new Thread(mLoggingThread);
-			mThread.start();
-		}
-		
-		mPlayer.start();
+        // Only relayout if the size actually changed, e.g. for a different aspect ratio
+        mVideoSurface.layout(mVideoWidth, mVideoHeight, availableWidth);
 	}
 
 	/**
@@ -573,9 +992,9 @@ public class SessionActivity extends AppCompatActivity implements Callback,
 		mVideoHeight = 0;
 		mIsVideoReadyToBePlayed = false;
 		mIsVideoSizeKnown = false;
-		mIsVideoPlaying = false;
-		if (mLoggingThread != null) {
-			mLoggingThread.stop();
+		mFirstFrameRequestNanos = -1;
+		if (mRatingSampler != null) {
+			mRatingSampler.pauseClip();
 		}
 	}
 
@@ -583,10 +1002,27 @@ public class SessionActivity extends AppCompatActivity implements Callback,
 	 * Releases the player.
 	 */
 	private void releasePlayer() {
+		if (mPlayView != null) {
+			mPlayView.removeCallbacks(mSegmentEndCheck);
+		}
+		Choreographer.getInstance().removeFrameCallback(mSegmentEndFrameCheck);
 		if (mPlayer != null) {
 			mPlayer.release();
 			mPlayer = null;
 		}
+		if (mCodecPlayer != null) {
+			mCodecPlayer.release();
+			mCodecPlayer = null;
+		}
+		if (mDsisPlayer != null) {
+			mDsisPlayer.release();
+		}
+		if (mPairedPlayer != null) {
+			mPairedPlayer.release();
+		}
+		if (mDisplayModeMatcher != null) {
+			mDisplayModeMatcher.cancel();
+		}
 	}
 
 	/**
@@ -606,7 +1042,7 @@ public class SessionActivity extends AppCompatActivity implements Callback,
 	private String getPathFromPlaylist(int index)
 			throws ArrayIndexOutOfBoundsException {
 		File file = new File(Configuration.sFolderVideos,
-				Session.sTracks.get(index));
+				Session.getVideoFileName(Session.sTracks.get(index)));
 		String path = file.getPath();
 		Log.d(TAG, "Set data source to: " + path);
 		return path;
@@ -632,9 +1068,11 @@ public class SessionActivity extends AppCompatActivity implements Callback,
 	 * Closes log file and shows finish screen.
 	 */
 	private void completeSession() {
-		if (Session.sCurrentMethod != Methods.TYPE_TIME_CONTINUOUS) {
-			CsvLogger.closeSessionLog();
+		// The last rating sample must be written before the log is closed
+		if (mRatingSampler != null) {
+			mRatingSampler.stop();
 		}
+		CsvLogger.closeSessionLog();
 		// Show finish screen before ending
 		showFinishScreen();
 	}
@@ -663,10 +1101,6 @@ public class SessionActivity extends AppCompatActivity implements Callback,
 				return;
 			}
 
-			// Show the surface first to trigger recreation if needed
-			if (mPlayView != null) {
-				mPlayView.setVisibility(View.VISIBLE);
-			}
 			preparePlayerForVideo(Session.sCurrentTrack);
 		} else {
 			finishSession();
@@ -678,24 +1112,17 @@ public class SessionActivity extends AppCompatActivity implements Callback,
 	 */
 	public boolean onKeyDown(int keyCode, KeyEvent event) {
 
-        if (Session.sCurrentMethod == Methods.TYPE_ACR_CATEGORICAL) {
+        if (Session.sCurrentMethod == Methods.TYPE_ACR_CATEGORICAL
+                || Session.sCurrentMethod == Methods.TYPE_DSIS_CATEGORICAL
+                || Session.sCurrentMethod == Methods.TYPE_PAIRED_COMPARISON) {
             return super.onKeyDown(keyCode, event);
         }
 
-        if (keyCode == KeyEvent.KEYCODE_VOLUME_DOWN
-				|| keyCode == KeyEvent.KEYCODE_VOLUME_UP) {
-
-			if ((keyCode == KeyEvent.KEYCODE_VOLUME_DOWN)
-					&& (sCurrentRating > RATING_MIN)) {
-				sCurrentRating--;
-			}
-
-			if ((keyCode == KeyEvent.KEYCODE_VOLUME_UP)
-					&& (sCurrentRating < RATING_MAX)) {
-				sCurrentRating++;
-			}
+        if ((keyCode == KeyEvent.KEYCODE_VOLUME_DOWN
+				|| keyCode == KeyEvent.KEYCODE_VOLUME_UP) && mRatingSampler != null) {
 
-			Log.d(TAG, "Current rating: " + sCurrentRating);
+			int rating = mRatingSampler.adjust(keyCode == KeyEvent.KEYCODE_VOLUME_UP ? 1 : -1);
+			Log.d(TAG, "Current rating: " + rating);
 
 			return true;
 		} else {
@@ -703,40 +1130,6 @@ public class SessionActivity extends AppCompatActivity implements Callback,
 		}
 	}
 
-	public class LoggingThread implements Runnable {
-		String videoName;
-		int videoPosition;
-
-		public LoggingThread(String videoName, int videoPosition) {
-			Log.d(TAG, "Created logging thread for " + videoName);
-			this.videoName = videoName;
-			this.videoPosition = videoPosition;
-		}
-
-		/**
-		 * Runs the logging thread in the background.
-		 * Logs continuous ratings to the session log file.
-		 * Note: rating_duration is null for time-continuous ratings since
-		 * ratings are logged automatically during playback, not after user interaction.
-		 */
-		public void run() {
-			Log.d(TAG, "Running the thread for " + videoName);
-			try {
-				while (mIsVideoPlaying) {
-					CsvLogger.logRating(videoPosition, videoName, sCurrentRating, System.currentTimeMillis(), null);
-					Thread.sleep(RATING_INTERVAL);
-				}
-				Log.d(TAG, "Video " + videoName + " not playing anymore, stopping.");
-			} catch (Exception e) {
-				Log.e(TAG, "Error in logging thread: " + e.getMessage());
-			}
-		}
-
-		public void stop() {
-			Log.d(TAG, "Stopped logging thread for " + videoName);
-		}
-	}
-
     /**
      * Closes the currently active dialog
      */
@@ -746,6 +1139,67 @@ public class SessionActivity extends AppCompatActivity implements Callback,
         }
     }
 
+    /**
+     * Sets up the option buttons and the submit button of a custom rating
+     * dialog: selecting an option shows the submit button, which logs the
+     * rating and moves on to the next video.
+     *
+     * @param radioButtonList
+     *            The option buttons of the dialog
+     * @param valueMap
+     *            The rating value of each option button
+     */
+    private void setUpRatingButtons(final List<RadioButton> radioButtonList,
+                                    final HashMap<Button, Integer> valueMap) {
+        mOkButton = (Button) mDialog.findViewById(R.id.buttonSendRating);
+        mOkButton.setEnabled(false);
+
+        for (final Button b : valueMap.keySet()) {
+            b.setOnClickListener(new View.OnClickListener() {
+                @Override
+                public void onClick(View view) {
+                    Button okButton = (Button) mDialog.findViewById(R.id.buttonSendRating);
+                    mCurrentRating = valueMap.get(b);
+                    Log.d(TAG, "Setting rating to " + mCurrentRating);
+                    int id = view.getId();
+                    for (RadioButton rb : radioButtonList) {
+                        if (rb.getId() == id) {
+                            rb.setChecked(true);
+                        } else {
+                            rb.setChecked(false);
+                        }
+                    }
+                    okButton.setVisibility(View.VISIBLE);
+                    okButton.setEnabled(true);
+                }
+            });
+        }
+
+        mOkButton.setOnClickListener(new View.OnClickListener() {
+            public void onClick(View v) {
+                if (!v.isEnabled()) {
+                    return;
+                }
+                long ratedAt = System.currentTimeMillis();
+                Double ratingDuration = (ratedAt - mRatingDialogShownTime) / 1000.0;
+                Session.sRatings.add(mCurrentRating);
+                Log.d(TAG, "Rating saved: " + mCurrentRating + " (took " + ratingDuration + "s)");
+                Session.sRatingTime.add(ratedAt);
+                // Log rating immediately to file
+                String videoName = Session.sTracks.get(Session.sCurrentTrack);
+                CsvLogger.logRating(Session.sCurrentTrack, videoName, mCurrentRating, ratedAt, ratingDuration);
+                dismissCurrentDialog();
+                // reset buttons
+                for (RadioButton rb : radioButtonList) {
+                    rb.setChecked(false);
+                }
+                v.setVisibility(View.INVISIBLE);
+                v.setEnabled(false);
+                nextVideo();
+            }
+        });
+    }
+
 	/**
 	 * Handles the dialogs shown in the application
 	 */
@@ -859,6 +1313,8 @@ public class SessionActivity extends AppCompatActivity implements Callback,
 
         // P.NATS
         case DIALOG_ACR_CUSTOM:
+        // DSIS uses the same five-point dialog with the impairment scale labels
+        case DIALOG_DSIS_CATEGORICAL:
             mDialog = new CustomDialog(this);
             mDialog.setContentView(R.layout.dialog_acr_custom);
             mDialog.setCancelable(false);
@@ -878,7 +1334,20 @@ public class SessionActivity extends AppCompatActivity implements Callback,
             radioButtonList.add(acrButtonPoor);
             radioButtonList.add(acrButtonBad);
 
-            // ACR values
+            if (id == DIALOG_DSIS_CATEGORICAL) {
+                ((TextView) mDialog.findViewById(R.id.rate_caption)).setText(R.string.rate_DSIS_caption_short);
+                acrButtonExcellent.setText(R.string.dsis_imperceptible);
+                acrButtonGood.setText(R.string.dsis_perceptible);
+                acrButtonFair.setText(R.string.dsis_slightly_annoying);
+                acrButtonPoor.setText(R.string.dsis_annoying);
+                acrButtonBad.setText(R.string.dsis_very_annoying);
+                // The impairment labels are longer than the ACR labels
+                View ratingContainer = (View) acrButtonExcellent.getParent();
+                ratingContainer.getLayoutParams().width =
+                        (int) (DSIS_RATING_WIDTH_DP * getResources().getDisplayMetrics().density);
+            }
+
+            // ACR values (for DSIS: 5 = imperceptible to 1 = very annoying)
             final HashMap<Button, Integer> valueMap = new HashMap<Button, Integer>();
             valueMap.put(acrButtonExcellent, 5);
             valueMap.put(acrButtonGood, 4);
@@ -886,54 +1355,28 @@ public class SessionActivity extends AppCompatActivity implements Callback,
             valueMap.put(acrButtonPoor, 2);
             valueMap.put(acrButtonBad, 1);
 
-            mOkButton = (Button) mDialog.findViewById(R.id.buttonSendRating);
-            mOkButton.setEnabled(false);
-
-            for (final Button b : valueMap.keySet()) {
-                b.setOnClickListener(new View.OnClickListener() {
-                    @Override
-                    public void onClick(View view) {
-                        Button okButton = (Button) mDialog.findViewById(R.id.buttonSendRating);
-                        mCurrentRating = valueMap.get(b);
-                        Log.d(TAG, "Setting rating to " + mCurrentRating);
-                        int id = view.getId();
-                        for (RadioButton rb : radioButtonList) {
-                            if (rb.getId() == id) {
-                                rb.setChecked(true);
-                            } else {
-                                rb.setChecked(false);
-                            }
-                        }
-                        okButton.setVisibility(View.VISIBLE);
-                        okButton.setEnabled(true);
-                    }
-                });
-            }
+            setUpRatingButtons(radioButtonList, valueMap);
+            mDialog.getWindow().setLayout(LayoutParams.MATCH_PARENT, LayoutParams.MATCH_PARENT);
 
-            mOkButton.setOnClickListener(new View.OnClickListener() {
-                public void onClick(View v) {
-                    if (!v.isEnabled()) {
-                        return;
-                    }
-                    long ratedAt = System.currentTimeMillis();
-                    Double ratingDuration = (ratedAt - mRatingDialogShownTime) / 1000.0;
-                    Session.sRatings.add(mCurrentRating);
-                    Log.d(TAG, "Rating saved: " + mCurrentRating + " (took " + ratingDuration + "s)");
-                    Session.sRatingTime.add(ratedAt);
-                    // Log rating immediately to file
-                    String videoName = Session.sTracks.get(Session.sCurrentTrack);
-                    CsvLogger.logRating(Session.sCurrentTrack, videoName, mCurrentRating, ratedAt, ratingDuration);
-                    dismissCurrentDialog();
-                    // reset buttons
-                    for (RadioButton rb : radioButtonList) {
-                        rb.setChecked(false);
-                    }
-                    v.setVisibility(View.INVISIBLE);
-                    v.setEnabled(false);
-                    nextVideo();
-                }
-            });
+            break;
+
+        case DIALOG_PAIRED_COMPARISON:
+            mDialog = new CustomDialog(this);
+            mDialog.setContentView(R.layout.dialog_pc_custom);
+            mDialog.setCancelable(false);
 
+            final List<RadioButton> pcButtonList = new ArrayList<RadioButton>();
+            RadioButton pcButtonA = (RadioButton) mDialog.findViewById(R.id.radioButtonA);
+            RadioButton pcButtonB = (RadioButton) mDialog.findViewById(R.id.radioButtonB);
+            pcButtonList.add(pcButtonA);
+            pcButtonList.add(pcButtonB);
+
+            // preference values: 1 = A preferred, 2 = B preferred
+            final HashMap<Button, Integer> pcValueMap = new HashMap<Button, Integer>();
+            pcValueMap.put(pcButtonA, 1);
+            pcValueMap.put(pcButtonB, 2);
+
+            setUpRatingButtons(pcButtonList, pcValueMap);
             mDialog.getWindow().setLayout(LayoutParams.MATCH_PARENT, LayoutParams.MATCH_PARENT);
 
             break;
@@ -1022,9 +1465,9 @@ public class SessionActivity extends AppCompatActivity implements Callback,
     private void showBreakDialog(String breakCommand) {
         Log.d(TAG, "showBreakDialog called with: " + breakCommand);
 
-        // Hide the video surface while showing the break dialog
-        if (mPlayView != null) {
-            mPlayView.setVisibility(View.INVISIBLE);
+        // Cover the video surface while showing the break dialog
+        if (mVideoSurface != null) {
+            mVideoSurface.cover();
         }
 
         // Parse the break duration
@@ -1133,9 +1576,9 @@ public class SessionActivity extends AppCompatActivity implements Callback,
         Log.d(TAG, "showStartScreen called");
         mStartScreenShown = true;
 
-        // Hide the video surface while showing the start screen
-        if (mPlayView != null) {
-            mPlayView.setVisibility(View.INVISIBLE);
+        // Cover the video surface while showing the start screen
+        if (mVideoSurface != null) {
+            mVideoSurface.cover();
         }
 
         // Create and show the start dialog
@@ -1176,10 +1619,9 @@ public class SessionActivity extends AppCompatActivity implements Callback,
     private void onStartScreenFinished() {
         Log.d(TAG, "onStartScreenFinished called");
 
-        // Start the session log file (for non-continuous rating methods)
-        if (Session.sCurrentMethod != Methods.TYPE_TIME_CONTINUOUS) {
-            CsvLogger.startSessionLog();
-        }
+        // Start the session log file before the first video, so that the
+        // rating sampler and the playback events never have to start it
+        CsvLogger.startSessionLog();
 
         // Dismiss the start dialog
         if (mStartDialog != null) {
@@ -1188,10 +1630,7 @@ public class SessionActivity extends AppCompatActivity implements Callback,
             Log.d(TAG, "Start dialog dismissed");
         }
 
-        // Show the surface and prepare first video
-        if (mPlayView != null) {
-            mPlayView.setVisibility(View.VISIBLE);
-        }
+        // Prepare first video
         preparePlayerForVideo(Session.sCurrentTrack);
     }
 
@@ -1202,9 +1641,9 @@ public class SessionActivity extends AppCompatActivity implements Callback,
     private void showFinishScreen() {
         Log.d(TAG, "showFinishScreen called");
 
-        // Hide the video surface while showing the finish screen
-        if (mPlayView != null) {
-            mPlayView.setVisibility(View.INVISIBLE);
+        // Cover the video surface while showing the finish screen
+        if (mVideoSurface != null) {
+            mVideoSurface.cover();
         }
 
         // Create and show the finish dialog
@@ -1265,9 +1704,9 @@ public class SessionActivity extends AppCompatActivity implements Callback,
         Log.d(TAG, "showTrainingIntroScreen called");
         mTrainingIntroShown = true;
 
-        // Hide the video surface while showing the training intro screen
-        if (mPlayView != null) {
-            mPlayView.setVisibility(View.INVISIBLE);
+        // Cover the video surface while showing the training intro screen
+        if (mVideoSurface != null) {
+            mVideoSurface.cover();
         }
 
         // Create and show the training intro dialog
@@ -1315,10 +1754,7 @@ public class SessionActivity extends AppCompatActivity implements Callback,
             Log.d(TAG, "Training intro dialog dismissed");
         }
 
-        // Show the surface and prepare first training video
-        if (mPlayView != null) {
-            mPlayView.setVisibility(View.VISIBLE);
-        }
+        // Prepare first training video
         preparePlayerForVideo(Session.sCurrentTrack);
     }
 
@@ -1328,9 +1764,9 @@ public class SessionActivity extends AppCompatActivity implements Callback,
     private void showTrainingCompleteScreen() {
         Log.d(TAG, "showTrainingCompleteScreen called");
 
-        // Hide the video surface while showing the training complete screen
-        if (mPlayView != null) {
-            mPlayView.setVisibility(View.INVISIBLE);
+        // Cover the video surface while showing the training complete screen
+        if (mVideoSurface != null) {
+            mVideoSurface.cover();
         }
 
         // Create and show the training complete dialog
@@ -1373,10 +1809,7 @@ public class SessionActivity extends AppCompatActivity implements Callback,
             Log.d(TAG, "Training complete dialog dismissed");
         }
 
-        // Show the surface and prepare next video
-        if (mPlayView != null) {
-            mPlayView.setVisibility(View.VISIBLE);
-        }
+        // Prepare next video
         preparePlayerForVideo(Session.sCurrentTrack);
     }
 
@@ -1419,9 +1852,9 @@ public class SessionActivity extends AppCompatActivity implements Callback,
         mIsPreQuestionnaire = true;
         mCurrentQuestionIndex = 0;
 
-        // Hide the video surface
-        if (mPlayView != null) {
-            mPlayView.setVisibility(View.INVISIBLE);
+        // Cover the video surface
+        if (mVideoSurface != null) {
+            mVideoSurface.cover();
         }
 
         showQuestionnaireIntroDialog(
@@ -1429,6 +1862,9 @@ public class SessionActivity extends AppCompatActivity implements Callback,
                 getString(R.string.questionnaire_pre_message_default),
                 this::onPreQuestionnaireIntroFinished
         );
+        // Build the question pages while the intro is read
+        mQuestionnaireRenderer = new QuestionnaireRenderer(this, Session.sPreQuestionnaire);
+        mQuestionnaireRenderer.prebuild();
     }
 
     /**
@@ -1439,9 +1875,9 @@ public class SessionActivity extends AppCompatActivity implements Callback,
         mIsPreQuestionnaire = false;
         mCurrentQuestionIndex = 0;
 
-        // Hide the video surface
-        if (mPlayView != null) {
-            mPlayView.setVisibility(View.INVISIBLE);
+        // Cover the video surface
+        if (mVideoSurface != null) {
+            mVideoSurface.cover();
         }
 
         showQuestionnaireIntroDialog(
@@ -1449,6 +1885,9 @@ public class SessionActivity extends AppCompatActivity implements Callback,
                 getString(R.string.questionnaire_post_message_default),
                 this::onPostQuestionnaireIntroFinished
         );
+        // Build the question pages while the intro is read
+        mQuestionnaireRenderer = new QuestionnaireRenderer(this, Session.sPostQuestionnaire);
+        mQuestionnaireRenderer.prebuild();
     }
 
     /**
@@ -1513,6 +1952,10 @@ public class SessionActivity extends AppCompatActivity implements Callback,
 
         if (questionnaire == null || mCurrentQuestionIndex >= questionnaire.size()) {
             // All questions answered
+            if (mQuestionnaireRenderer != null) {
+                mQuestionnaireRenderer.dismiss();
+                mQuestionnaireRenderer = null;
+            }
             onQuestionnaireComplete();
             return;
         }
@@ -1525,10 +1968,10 @@ public class SessionActivity extends AppCompatActivity implements Callback,
         // Record when the question dialog is shown for timing measurement
         mQuestionStartTime = System.currentTimeMillis();
 
-        QuestionDialogBuilder builder = new QuestionDialogBuilder(
-                this, question, mCurrentQuestionIndex + 1, totalQuestions);
-
-        builder.setOnAnswerListener(answer -> {
+        if (mQuestionnaireRenderer == null) {
+            mQuestionnaireRenderer = new QuestionnaireRenderer(this, questionnaire);
+        }
+        mQuestionnaireRenderer.showQuestion(mCurrentQuestionIndex, answer -> {
             Log.d(TAG, "Question " + (mCurrentQuestionIndex + 1) + " answered: " + answer);
 
             // Calculate timing
@@ -1553,12 +1996,11 @@ public class SessionActivity extends AppCompatActivity implements Callback,
             }
 
             answers.add(qa);
+            CsvLogger.logQuestionnaireAnswer(mIsPreQuestionnaire ? "pre" : "post",
+                    mCurrentQuestionIndex, question, qa);
             mCurrentQuestionIndex++;
             showNextQuestion();
         });
-
-        mQuestionDialog = builder.build();
-        mQuestionDialog.show();
     }
 
     /**
@@ -1569,13 +2011,13 @@ public class SessionActivity extends AppCompatActivity implements Callback,
 
         if (mIsPreQuestionnaire) {
             mPreQuestionnaireShown = true;
-            // Log pre-questionnaire answers
+            // Finish the pre-questionnaire log (answers were logged as they were given)
             CsvLogger.logQuestionnaire("pre", Session.sPreQuestionnaire, Session.sPreQuestionnaireAnswers);
             // Now show the start screen
             showStartScreen();
         } else {
             mPostQuestionnaireShown = true;
-            // Log post-questionnaire answers
+            // Finish the post-questionnaire log (answers were logged as they were given)
             CsvLogger.logQuestionnaire("post", Session.sPostQuestionnaire, Session.sPostQuestionnaireAnswers);
             // Now complete the session
             completeSession();
@@ -0,0 +1,102 @@
+/*	This file is part of SubjectivePlayer for Android.
+ *
+ *	SubjectivePlayer for Android is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	SubjectivePlayer for Android is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU General Public License for more details.
+ *
+ *	You should have received a copy of the GNU General Public License
+ *	along with SubjectivePlayer for Android.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.univie.subjectiveplayer;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Output format of a session log. {@link CsvLogger} writes every rating of a
+ * session to one sink per format selected in the config (see
+ * {@link BaseConfigFile#getLogFormats()}).
+ */
+public interface SessionLogSink extends Closeable {
+
+    /** Format flag: CSV session log, see {@link CsvLogSink} */
+    int FORMAT_CSV = 1;
+
+    /** Format flag: compact binary session log, see {@link BinaryLogSink} */
+    int FORMAT_BINARY = 1 << 1;
+
+    /** Names of the formats in config files, indexed by flag bit */
+    String[] FORMAT_NAMES = {"csv", "binary"};
+
+    /**
+     * Returns the file the sink writes to.
+     */
+    File getFile();
+
+    /**
+     * Writes a rating.
+     * @param videoPosition The position of the video in the playlist
+     * @param videoName The name of the video file
+     * @param rating The rating value
+     * @param ratedAtMillis The time of the rating (Unix epoch ms)
+     * @param ratingDurationSeconds The time the participant took to rate, or
+     *                              null if not applicable
+     */
+    void writeRating(int videoPosition, String videoName, int rating, long ratedAtMillis,
+                     Double ratingDurationSeconds) throws IOException;
+
+    /**
+     * Writes a BREAK entry.
+     */
+    void writeBreak() throws IOException;
+
+    /**
+     * Returns the format flag for a format name, or 0 if the name is unknown.
+     * @param name A format name, case insensitive
+     */
+    static int parseFormat(String name) {
+        if (name != null) {
+            for (int i = 0; i < FORMAT_NAMES.length; i++) {
+                if (FORMAT_NAMES[i].equalsIgnoreCase(name.trim())) {
+                    return 1 << i;
+                }
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Rounds a rating duration to the whole milliseconds every format stores,
+     * so a CSV converted from a binary log is identical to one written directly.
+     * @param seconds The rating duration in seconds, or null if there is none
+     * @return The duration in milliseconds, or -1 if there is none
+     */
+    static long toDurationMillis(Double seconds) {
+        return seconds != null ? Math.round(seconds * 1000) : -1;
+    }
+
+    /**
+     * Creates the sink for one format.
+     * @param format One of the FORMAT_ flags
+     * @param folder The log folder
+     * @param baseName The file name without extension (ID_StartTime_Method)
+     */
+    static SessionLogSink create(int format, File folder, String baseName) throws IOException {
+        switch (format) {
+            case FORMAT_CSV:
+                return new CsvLogSink(new File(folder, baseName + CsvLogSink.EXTENSION));
+            case FORMAT_BINARY:
+                return new BinaryLogSink(new File(folder, baseName + BinaryLogSink.EXTENSION));
+            default:
+                throw new IllegalArgumentException("Unknown log format " + format);
+        }
+    }
+}
@@ -0,0 +1,407 @@
+/*	This file is part of SubjectivePlayer for Android.
+ *
+ *	SubjectivePlayer for Android is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	SubjectivePlayer for Android is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU General Public License for more details.
+ *
+ *	You should have received a copy of the GNU General Public License
+ *	along with SubjectivePlayer for Android.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.univie.subjectiveplayer;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Screens participants for unreliable ratings, following the procedures of
+ * ITU-R BT.500 (kurtosis-based rejection) and ITU-T P.913 (correlation of
+ * each participant's scores with the MOS).
+ *
+ * When a session ends, the participant's score per video is appended to a
+ * file in the logs folder (see {@link #commit}). The engine keeps a matrix
+ * of participant scores and the per-video power sums needed for mean,
+ * standard deviation and kurtosis, and folds in only the sessions appended
+ * since the last {@link #update()}. Screening itself takes
+ * O(participants x videos) and never reads the session logs.
+ *
+ * File format: one tab-separated line per session,
+ * <pre>
+ * participant ID  method  video  score  video  score ...
+ * </pre>
+ */
+public class SubjectScreening {
+
+    private static final String TAG = SubjectScreening.class.getSimpleName();
+
+    /** Name of the score file in the logs folder */
+    public static final String FILE_NAME = "subject_scores.txt";
+
+    /** BT.500: a participant is rejected if more than this share of scores are outliers... */
+    static final double BT500_OUTLIER_RATIO = 0.05;
+    /** ...and the outliers are not mostly on one side of the mean */
+    static final double BT500_SYMMETRY_RATIO = 0.3;
+    /** P.913: a participant is suspect if the correlation with the MOS is below this value */
+    static final double CORRELATION_THRESHOLD = 0.75;
+    /** Minimum number of participants per video before it is used for BT.500 screening */
+    static final int MIN_PARTICIPANTS_PER_VIDEO = 3;
+    /** Minimum number of videos a participant must have rated to compute a correlation */
+    static final int MIN_VIDEOS_FOR_CORRELATION = 3;
+
+    private static final char SEP = '\t';
+
+    private static SubjectScreening sDefault = null;
+
+    private final File mFile;
+    private final VideoNameTable mTable = VideoNameTable.shared();
+    private final Map<String, MethodScores> mMethods = new LinkedHashMap<>();
+    /** Number of bytes of the score file already folded in */
+    private long mReadOffset = 0;
+
+    /**
+     * Screening result for one participant and method.
+     */
+    public static final class Result {
+        public final String participantId;
+        public final String method;
+        /** Number of scores that could be screened with BT.500 */
+        public final int screenedCount;
+        /** BT.500: number of scores above the expected range */
+        public final int highCount;
+        /** BT.500: number of scores below the expected range */
+        public final int lowCount;
+        /** Pearson correlation with the MOS, or NaN if it could not be computed */
+        public final double correlation;
+        public final boolean rejectedByBt500;
+        public final boolean rejectedByCorrelation;
+
+        Result(String participantId, String method, int screenedCount, int highCount, int lowCount,
+               double correlation) {
+            this.participantId = participantId;
+            this.method = method;
+            this.screenedCount = screenedCount;
+            this.highCount = highCount;
+            this.lowCount = lowCount;
+            this.correlation = correlation;
+            int outliers = highCount + lowCount;
+            this.rejectedByBt500 = screenedCount > 0 && outliers > 0
+                    && (double) outliers / screenedCount > BT500_OUTLIER_RATIO
+                    && (double) Math.abs(highCount - lowCount) / outliers < BT500_SYMMETRY_RATIO;
+            this.rejectedByCorrelation = !Double.isNaN(correlation) && correlation < CORRELATION_THRESHOLD;
+        }
+
+        public boolean isSuspect() {
+            return rejectedByBt500 || rejectedByCorrelation;
+        }
+    }
+
+    /**
+     * The scores of one participant: the sum and the number of scores per
+     * video over all sessions, indexed by {@link VideoNameTable} ID.
+     */
+    private static final class ParticipantScores {
+        double[] sum = new double[0];
+        int[] sessions = new int[0];
+
+        /**
+         * @return The mean score of the video over all sessions, NaN if the
+         * participant did not rate it
+         */
+        double mean(int videoId) {
+            return videoId < sessions.length && sessions[videoId] > 0
+                    ? sum[videoId] / sessions[videoId] : Double.NaN;
+        }
+    }
+
+    /**
+     * Participant scores of one method, and the per-video sums over all
+     * participants. Arrays are indexed by {@link VideoNameTable} ID.
+     */
+    private static final class MethodScores {
+        final Map<String, ParticipantScores> participants = new LinkedHashMap<>();
+        int[] count = new int[0];
+        double[] sum1 = new double[0];
+        double[] sum2 = new double[0];
+        double[] sum3 = new double[0];
+        double[] sum4 = new double[0];
+
+        ParticipantScores row(String participantId, int size) {
+            ParticipantScores row = participants.get(participantId);
+            if (row == null) {
+                row = new ParticipantScores();
+                participants.put(participantId, row);
+            }
+            if (row.sessions.length < size) {
+                int capacity = Math.max(size, row.sessions.length * 2);
+                row.sum = Arrays.copyOf(row.sum, capacity);
+                row.sessions = Arrays.copyOf(row.sessions, capacity);
+            }
+            return row;
+        }
+
+        void ensureVideos(int size) {
+            if (size > count.length) {
+                int capacity = Math.max(size, count.length * 2);
+                count = Arrays.copyOf(count, capacity);
+                sum1 = Arrays.copyOf(sum1, capacity);
+                sum2 = Arrays.copyOf(sum2, capacity);
+                sum3 = Arrays.copyOf(sum3, capacity);
+                sum4 = Arrays.copyOf(sum4, capacity);
+            }
+        }
+
+        /**
+         * Adds a participant's score for a video. A participant who rated the
+         * same video in earlier sessions keeps the mean over all of them.
+         */
+        void set(String participantId, int videoId, double score) {
+            ensureVideos(videoId + 1);
+            ParticipantScores row = row(participantId, videoId + 1);
+            double old = row.mean(videoId);
+            if (!Double.isNaN(old)) {
+                accumulate(videoId, old, -1);
+            }
+            row.sum[videoId] += score;
+            row.sessions[videoId]++;
+            accumulate(videoId, row.mean(videoId), 1);
+        }
+
+        private void accumulate(int videoId, double x, int sign) {
+            double x2 = x * x;
+            count[videoId] += sign;
+            sum1[videoId] += sign * x;
+            sum2[videoId] += sign * x2;
+            sum3[videoId] += sign * x2 * x;
+            sum4[videoId] += sign * x2 * x2;
+        }
+    }
+
+    /**
+     * Creates a screening engine for the given logs folder.
+     */
+    public SubjectScreening(File folder) {
+        mFile = new File(folder, FILE_NAME);
+    }
+
+    /**
+     * Returns the engine for the logs folder of the current {@link Configuration}.
+     */
+    public static synchronized SubjectScreening getDefault() {
+        if (sDefault == null) {
+            sDefault = new SubjectScreening(Configuration.sFolderLogs);
+        }
+        return sDefault;
+    }
+
+    /**
+     * Appends the scores of one session to the score file.
+     * @param folder The logs folder
+     * @param participantId The participant ID
+     * @param stats The statistics of the session, one entry per method and video
+     * @throws IOException When the file could not be written
+     */
+    public static void commit(File folder, String participantId, Collection<RatingStore.VideoStats> stats)
+            throws IOException {
+        // One line per method, since a session log only has one method this is usually one line
+        Map<String, StringBuilder> lines = new LinkedHashMap<>();
+        for (RatingStore.VideoStats s : stats) {
+            StringBuilder line = lines.get(s.method);
+            if (line == null) {
+                line = new StringBuilder(participantId).append(SEP).append(s.method);
+                lines.put(s.method, line);
+            }
+            line.append(SEP).append(s.video).append(SEP).append(s.getMean());
+        }
+        try (Writer writer = new BufferedWriter(new FileWriter(new File(folder, FILE_NAME), true))) {
+            for (StringBuilder line : lines.values()) {
+                writer.write(line.append('\n').toString());
+            }
+        }
+    }
+
+    /**
+     * Folds in the sessions appended to the score file since the last update.
+     * @return The number of sessions folded in
+     */
+    public synchronized int update() {
+        if (!mFile.exists()) {
+            return 0;
+        }
+        if (mFile.length() < mReadOffset) {
+            // The file was replaced, start over
+            mMethods.clear();
+            mReadOffset = 0;
+        }
+        int sessions = 0;
+        try (FileInputStream fis = new FileInputStream(mFile)) {
+            if (fis.skip(mReadOffset) < mReadOffset) {
+                return 0;
+            }
+            BufferedReader reader = new BufferedReader(new InputStreamReader(fis, StandardCharsets.UTF_8));
+            String line;
+            long offset = mReadOffset;
+            while ((line = reader.readLine()) != null) {
+                long next = offset + line.getBytes(StandardCharsets.UTF_8).length + 1;
+                if (next > mFile.length()) {
+                    // Incomplete last line, read it again once it is finished
+                    break;
+                }
+                offset = next;
+                if (parseSession(line)) {
+                    sessions++;
+                }
+            }
+            mReadOffset = offset;
+        } catch (IOException e) {
+            Log.e(TAG, "Error reading subject scores: " + e.getMessage());
+        }
+        return sessions;
+    }
+
+    private boolean parseSession(String line) {
+        String[] fields = line.split(String.valueOf(SEP), -1);
+        if (fields.length < 4 || fields.length % 2 != 0) {
+            return false;
+        }
+        int[] videoIds = new int[(fields.length - 2) / 2];
+        double[] scores = new double[videoIds.length];
+        try {
+            for (int i = 0; i < videoIds.length; i++) {
+                videoIds[i] = mTable.intern(fields[2 + 2 * i]);
+                scores[i] = Double.parseDouble(fields[3 + 2 * i]);
+            }
+        } catch (NumberFormatException e) {
+            return false;
+        }
+
+        MethodScores method = mMethods.get(fields[1]);
+        if (method == null) {
+            method = new MethodScores();
+            mMethods.put(fields[1], method);
+        }
+        for (int i = 0; i < videoIds.length; i++) {
+            method.set(fields[0], videoIds[i], scores[i]);
+        }
+        return true;
+    }
+
+    /**
+     * Screens all participants.
+     * @return One result per participant and method, in order of first session
+     */
+    public synchronized List<Result> screen() {
+        List<Result> results = new ArrayList<>();
+        for (Map.Entry<String, MethodScores> entry : mMethods.entrySet()) {
+            MethodScores scores = entry.getValue();
+            int videos = scores.count.length;
+
+            // Per-video mean, and BT.500 outlier bounds from the kurtosis
+            double[] mean = new double[videos];
+            double[] low = new double[videos];
+            double[] high = new double[videos];
+            boolean[] screened = new boolean[videos];
+            for (int v = 0; v < videos; v++) {
+                int n = scores.count[v];
+                if (n == 0) {
+                    continue;
+                }
+                double mu = scores.sum1[v] / n;
+                mean[v] = mu;
+                if (n < MIN_PARTICIPANTS_PER_VIDEO) {
+                    continue;
+                }
+                double e2 = scores.sum2[v] / n;
+                double e3 = scores.sum3[v] / n;
+                double e4 = scores.sum4[v] / n;
+                double m2 = e2 - mu * mu;
+                double m4 = e4 - 4 * mu * e3 + 6 * mu * mu * e2 - 3 * mu * mu * mu * mu;
+                if (m2 <= 1e-12) {
+                    continue; // everyone agreed, nothing to screen
+                }
+                double kurtosis = m4 / (m2 * m2);
+                double stdDev = Math.sqrt(m2 * n / (n - 1));
+                double k = kurtosis >= 2 && kurtosis <= 4 ? 2 : Math.sqrt(20);
+                low[v] = mu - k * stdDev;
+                high[v] = mu + k * stdDev;
+                screened[v] = true;
+            }
+
+            for (Map.Entry<String, ParticipantScores> participant : scores.participants.entrySet()) {
+                ParticipantScores row = participant.getValue();
+                int screenedCount = 0;
+                int highCount = 0;
+                int lowCount = 0;
+                // Sums for the correlation between the participant's scores and the MOS
+                int n = 0;
+                double sx = 0, sy = 0, sxx = 0, syy = 0, sxy = 0;
+                for (int v = 0; v < row.sessions.length && v < videos; v++) {
+                    double x = row.mean(v);
+                    if (Double.isNaN(x)) {
+                        continue;
+                    }
+                    if (screened[v]) {
+                        screenedCount++;
+                        if (x >= high[v]) {
+                            highCount++;
+                        } else if (x <= low[v]) {
+                            lowCount++;
+                        }
+                    }
+                    double y = mean[v];
+                    n++;
+                    sx += x;
+                    sy += y;
+                    sxx += x * x;
+                    syy += y * y;
+                    sxy += x * y;
+                }
+                double correlation = Double.NaN;
+                if (n >= MIN_VIDEOS_FOR_CORRELATION) {
+                    double covariance = sxy - sx * sy / n;
+                    double varianceX = sxx - sx * sx / n;
+                    double varianceY = syy - sy * sy / n;
+                    if (varianceX > 1e-12 && varianceY > 1e-12) {
+                        correlation = covariance / Math.sqrt(varianceX * varianceY);
+                    }
+                }
+                results.add(new Result(participant.getKey(), entry.getKey(), screenedCount,
+                        highCount, lowCount, correlation));
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Returns the number of participants with at least one session, over all methods.
+     */
+    public synchronized int getParticipantCount() {
+        Set<String> participants = new HashSet<>();
+        for (MethodScores scores : mMethods.values()) {
+            participants.addAll(scores.participants.keySet());
+        }
+        return participants.size();
+    }
+}
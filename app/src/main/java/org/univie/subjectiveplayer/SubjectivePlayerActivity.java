@@ -17,12 +17,16 @@
 package org.univie.subjectiveplayer;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
 
 import android.app.AlertDialog;
 import android.app.Dialog;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.os.Bundle;
+import android.os.Process;
+import android.os.SystemClock;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.graphics.Insets;
 import androidx.core.view.ViewCompat;
@@ -37,6 +41,7 @@ import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
 import android.view.View.OnClickListener;
+import android.view.ViewTreeObserver;
 import android.widget.Button;
 import android.widget.EditText;
 import android.widget.LinearLayout;
@@ -52,8 +57,19 @@ public class SubjectivePlayerActivity extends AppCompatActivity {
 	static final int DIALOG_METHODBROWSER = 2;
 	static final int DIALOG_EMPTY = 3;
     static final int DIALOG_ID_ALREADY_USED = 4;
+    static final int DIALOG_NO_VIDEOS = 5;
 
 	private static EditText mEditId = null;
+
+	private Button mButtonStart = null;
+
+	/** Elapsed realtime when the first frame of the ID screen is about to be drawn */
+	private long mFirstFrameTime = -1;
+	/** Elapsed realtime when the background initialization has completed */
+	private long mConfigReadyTime = -1;
+
+	/** Thread updating the sync manifest, or null if none is running */
+	private static Thread sManifestThread = null;
 	
 	/*
 	 * Main code
@@ -66,9 +82,14 @@ public class SubjectivePlayerActivity extends AppCompatActivity {
 		super.onResume();
 		Log.d(TAG, "onResume called");
 
-		// reload any updated preferences
-		Configuration.setPreferences(PreferenceManager
-				.getDefaultSharedPreferences(getBaseContext()));
+		// reload any updated preferences (on first start, they are loaded by
+		// the background initialization instead)
+		if (Configuration.isInitialized()) {
+			Configuration.setPreferences(PreferenceManager
+					.getDefaultSharedPreferences(getBaseContext()));
+			LogArchive.archiveInBackground(Configuration.sFolderLogs, Configuration.sArchiveAfterDays);
+			updateSyncManifestInBackground();
+		}
 
 
 		// reset the session
@@ -78,6 +99,16 @@ public class SubjectivePlayerActivity extends AppCompatActivity {
         mEditId.setText("");
 	}
 
+	/**
+	 * Called when the activity is paused, e.g. when a session starts
+	 */
+	@Override
+	public void onPause() {
+		super.onPause();
+		// Do not hash videos while they are played
+		cancelSyncManifestUpdate();
+	}
+
 	/**
 	 * Called when the activity is first created.
 	 */
@@ -105,25 +136,128 @@ public class SubjectivePlayerActivity extends AppCompatActivity {
 			return WindowInsetsCompat.CONSUMED;
 		});
 
-		// initialize the SD card for retrieving all config and media files
-		try {
-			Configuration.initialize(getApplicationContext());
-			Log.i(TAG, "Configuration initialized successfully");
-		} catch (Exception e) {
-			Log.e(TAG, "Error while initializing: " + e.getMessage());
-			e.printStackTrace();
-			// TODO do something useful, not just quit
-			finish();
-		}
-
 		mEditId = (EditText) findViewById(R.id.edit_id);
 		mEditId.setInputType(InputType.TYPE_CLASS_NUMBER);
 
-		Button buttonStart = (Button) findViewById(R.id.button_start);
-		buttonStart.setOnClickListener(mButtonStartListener);
+		mButtonStart = (Button) findViewById(R.id.button_start);
+		mButtonStart.setOnClickListener(mButtonStartListener);
+
+		// Record when the first frame is drawn, for startup timing
+		mainLayout.getViewTreeObserver().addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener() {
+			@Override
+			public boolean onPreDraw() {
+				mainLayout.getViewTreeObserver().removeOnPreDrawListener(this);
+				mFirstFrameTime = SystemClock.elapsedRealtime();
+				onStartupStepCompleted();
+				return true;
+			}
+		});
+
+		// initialize the SD card for retrieving all config and media files
+		if (Configuration.isInitialized()) {
+			mConfigReadyTime = SystemClock.elapsedRealtime();
+		} else {
+			// the start button and the menu entries that need the folders are
+			// enabled again once the folders exist
+			mButtonStart.setEnabled(false);
+			Configuration.initializeAsync(this, error -> {
+				if (isFinishing() || isDestroyed()) {
+					return;
+				}
+				if (error != null) {
+					Log.e(TAG, "Error while initializing: " + error.getMessage());
+					error.printStackTrace();
+					// TODO do something useful, not just quit
+					finish();
+					return;
+				}
+				Log.i(TAG, "Configuration initialized successfully");
+				mButtonStart.setEnabled(true);
+				invalidateOptionsMenu();
+				mConfigReadyTime = SystemClock.elapsedRealtime();
+				onStartupStepCompleted();
+				LogArchive.archiveInBackground(Configuration.sFolderLogs, Configuration.sArchiveAfterDays);
+				updateSyncManifestInBackground();
+			});
+		}
 		Log.d(TAG, "onCreate completed");
-	}		
+	}
+
+	/**
+	 * Called when the first frame has been drawn or the configuration is ready.
+	 * Once both have happened, the ID entry screen is interactive: the startup
+	 * times are logged and reported to the system via reportFullyDrawn(), which
+	 * is what "adb shell am start -W" and Macrobenchmark pick up as the time to
+	 * full display.
+	 */
+	private void onStartupStepCompleted() {
+		if (mFirstFrameTime < 0 || mConfigReadyTime < 0) {
+			return;
+		}
+		long processStart = Process.getStartElapsedRealtime();
+		long interactive = Math.max(mFirstFrameTime, mConfigReadyTime);
+		Log.i(TAG, "Startup timing: first frame after " + (mFirstFrameTime - processStart)
+				+ " ms, configuration ready after " + (mConfigReadyTime - processStart)
+				+ " ms, interactive after " + (interactive - processStart) + " ms");
+		reportFullyDrawn();
+	}
+
+
+	/**
+	 * Updates the manifest of the config files and videos on a background
+	 * thread while the start screen is shown, so that push_to_device.sh --sync
+	 * only transfers the files that changed. Only new or modified files are
+	 * hashed, with half of the cores. Does nothing if an update is running.
+	 */
+	private static synchronized void updateSyncManifestInBackground() {
+		if (Configuration.sStorage == null || sManifestThread != null) {
+			return;
+		}
+		sManifestThread = new Thread(() -> {
+			Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+			try {
+				long start = SystemClock.elapsedRealtime();
+				File file = new File(Configuration.sStorage, SyncManifest.FILE_NAME);
+				SyncManifest cache;
+				try {
+					cache = SyncManifest.read(file);
+				} catch (IOException e) {
+					Log.w(TAG, "Rebuilding invalid sync manifest: " + e.getMessage());
+					cache = null;
+				}
+				SyncManifest manifest = SyncManifest.buildForDevice(Configuration.sStorage, cache,
+						Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+				manifest.write(file);
+				Log.d(TAG, "Sync manifest with " + manifest.getEntries().size() + " files updated in "
+						+ (SystemClock.elapsedRealtime() - start) + " ms");
+			} catch (InterruptedIOException e) {
+				Log.d(TAG, "Sync manifest update cancelled");
+			} catch (IOException e) {
+				Log.e(TAG, "Error updating sync manifest: " + e.getMessage());
+			} finally {
+				onSyncManifestUpdateEnded(Thread.currentThread());
+			}
+		}, "SyncManifest");
+		sManifestThread.start();
+	}
+
+	/**
+	 * Stops a running update of the sync manifest. The manifest keeps its
+	 * previous state; the next update only hashes the files that changed
+	 * since then.
+	 */
+	private static synchronized void cancelSyncManifestUpdate() {
+		if (sManifestThread != null) {
+			sManifestThread.interrupt();
+			sManifestThread = null;
+		}
+	}
 
+	private static synchronized void onSyncManifestUpdateEnded(Thread thread) {
+		if (sManifestThread == thread) {
+			sManifestThread = null;
+		}
+	}
 
 	/**
 	 * Populates the options menu
@@ -134,6 +268,18 @@ public class SubjectivePlayerActivity extends AppCompatActivity {
 		return true;
 	}
 
+	/**
+	 * Disables the menu entries that read the config and log folders until
+	 * the background initialization has created them
+	 */
+	@Override
+	public boolean onPrepareOptionsMenu(Menu menu) {
+		boolean initialized = Configuration.isInitialized();
+		menu.findItem(R.id.menu_validate).setEnabled(initialized);
+		menu.findItem(R.id.menu_results).setEnabled(initialized);
+		return super.onPrepareOptionsMenu(menu);
+	}
+
 	/**
 	 * Handles the option menu selections
 	 */
@@ -146,6 +292,12 @@ public class SubjectivePlayerActivity extends AppCompatActivity {
 					ConfigValidatorActivity.class);
 			startActivity(validateIntent);
 			return true;
+		} else if (itemId == R.id.menu_results) {
+			Intent resultsIntent = new Intent();
+			resultsIntent.setClass(getApplicationContext(),
+					ResultsActivity.class);
+			startActivity(resultsIntent);
+			return true;
 		} else if (itemId == R.id.menu_preferences) {
 			Intent prefIntent = new Intent();
 			prefIntent.setClass(getApplicationContext(),
@@ -215,6 +367,21 @@ public class SubjectivePlayerActivity extends AppCompatActivity {
             dialog = (AlertDialog) builderUsed.create();
             break;
 
+        // display an error dialog if no videos are left to rate, e.g. after early stopping
+        case DIALOG_NO_VIDEOS:
+            AlertDialog.Builder builderNoVideos = new AlertDialog.Builder(this);
+            builderNoVideos.setTitle(R.string.error_novideos_caption).setMessage(
+                    R.string.error_novideos_body).setCancelable(false)
+                    .setPositiveButton("Close",
+                            new DialogInterface.OnClickListener() {
+                                public void onClick(DialogInterface dialog,
+                                                    int id) {
+                                    dialog.dismiss();
+                                }
+                            });
+            dialog = (AlertDialog) builderNoVideos.create();
+            break;
+
 		default:
 			dialog = null;
 		}
@@ -265,24 +432,17 @@ public class SubjectivePlayerActivity extends AppCompatActivity {
 				Session.sParticipantId = Integer.parseInt(editIdString.toString());
 				Log.i(TAG, "Participant ID: " + Session.sParticipantId);
 
-                // set config file from ID (try .json first, then .cfg)
-                File jsonConfig = new File(
-                        Configuration.sFolderApproot, "subject_" + Session.sParticipantId + ".json");
-                File cfgConfig = new File(
-                        Configuration.sFolderApproot, "subject_" + Session.sParticipantId + ".cfg");
-
-                if (jsonConfig.exists() && jsonConfig.canRead()) {
-                    Configuration.sFileConfig = jsonConfig;
-                    Log.d(TAG, "Using JSON config file: " + jsonConfig.getAbsolutePath());
-                } else if (cfgConfig.exists() && cfgConfig.canRead()) {
-                    Configuration.sFileConfig = cfgConfig;
-                    Log.d(TAG, "Using CFG config file: " + cfgConfig.getAbsolutePath());
-                } else {
+                // set config file from ID (try .json first, then .cfg, then the design file)
+                File configFile = ConfigFileFactory.findConfigFile(
+                        Configuration.sFolderApproot, String.valueOf(Session.sParticipantId));
+                if (configFile == null) {
                     Log.e(TAG, "Config file not found for ID " + Session.sParticipantId +
-                            " (tried .json and .cfg)");
+                            " (tried .json, .cfg and " + ConfigFileFactory.DESIGN_FILE_NAME + ")");
                     showDialog(DIALOG_EMPTY);
                     return;
                 }
+                Configuration.sFileConfig = configFile;
+                Log.d(TAG, "Using config file: " + configFile.getAbsolutePath());
 				Log.d(TAG, "Config file found: " + Configuration.sFileConfig.getAbsolutePath());
 
                 // check if ID hasn't been used already
@@ -296,6 +456,11 @@ public class SubjectivePlayerActivity extends AppCompatActivity {
 
 				Session.readVideosFromFile(Configuration.sFileConfig);
 				Log.i(TAG, "Loaded " + Session.sTracks.size() + " tracks from playlist");
+				if (!Session.hasTestVideos()) {
+					Log.w(TAG, "No videos to rate for participant " + Session.sParticipantId);
+					showDialog(DIALOG_NO_VIDEOS);
+					return;
+				}
 
 				// if we use time-continuous rating
 				// TODO: refactor, this is unnecessarily duplicated
@@ -0,0 +1,486 @@
+/*	This file is part of SubjectivePlayer for Android.
+ *
+ *	SubjectivePlayer for Android is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	SubjectivePlayer for Android is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU General Public License for more details.
+ *
+ *	You should have received a copy of the GNU General Public License
+ *	along with SubjectivePlayer for Android.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.univie.subjectiveplayer;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A manifest of the content folders (config files and videos) with the size,
+ * modification time and SHA-256 of every file, so that a study update only
+ * transfers the files that changed.
+ *
+ * The app writes the manifest of the device to {@link #FILE_NAME} in its
+ * storage folder. On the computer, the same class compares it to the local
+ * study folder and prints the transfer list:
+ * <pre>
+ * java SyncManifest.java sync_manifest.tsv /path/to/study
+ * </pre>
+ * Each line is either "push", the path on the device and the local file, or
+ * "delete" and the path on the device, separated by tabs.
+ *
+ * Manifests are text files with one line per file, sorted by path:
+ * <pre>
+ * path	size	modified	sha256
+ * </pre>
+ * Paths are relative to the storage folder and use '/'. Hashing runs in
+ * parallel on memory-mapped files; files whose size and modification time
+ * match the previous manifest keep their hash without being read.
+ *
+ * The hashes also serve to verify videos against {@link #CHECKSUMS_FILE_NAME}
+ * in the videos folder, which is written on the computer with sha256sum.
+ */
+public final class SyncManifest {
+
+    /** File name of the manifest of the device, in the storage folder */
+    public static final String FILE_NAME = "sync_manifest.tsv";
+
+    /** File name of the cache of the computer, in the study folder */
+    static final String CACHE_FILE_NAME = ".sync_cache.tsv";
+
+    /** File name of the reference checksums of the videos, in the videos folder */
+    public static final String CHECKSUMS_FILE_NAME = "checksums.sha256";
+
+    /** First line of every manifest */
+    static final String HEADER = "# SubjectivePlayer sync manifest 1";
+
+    /** Folder of config files, as Configuration.PATH_CONFIG */
+    static final String FOLDER_CONFIG = "SubjectiveCfg";
+
+    /** Folder of videos, as Configuration.PATH_VIDEOS */
+    static final String FOLDER_VIDEOS = "SubjectiveMovies";
+
+    /**
+     * Suffixes of the files in the study folder that are pushed to the videos
+     * folder. This class must not use others of the app, so it runs on its own
+     * on the computer; ".sppack" is VideoPack.SUFFIX.
+     */
+    static final String[] VIDEO_SUFFIXES = { ".mp4", ".webm", ".mkv", ".sppack", ".sha256" };
+
+    /** Suffixes of the files in the study folder that are pushed to the config folder */
+    static final String[] CONFIG_SUFFIXES = { ".json", ".cfg" };
+
+    /** Suffix of compiled configs, as ConfigFileFactory.COMPILED_EXTENSION */
+    static final String COMPILED_SUFFIX = ".spc";
+
+    /** Files are mapped and hashed in windows of this size */
+    private static final long MAP_WINDOW = 64L << 20;
+
+    /** Hashing threads run at the lowest priority, so they never compete with playback */
+    private static final ThreadFactory HASH_THREADS = runnable -> {
+        Thread thread = new Thread(runnable, "SyncManifest-hash");
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.setDaemon(true);
+        return thread;
+    };
+
+    /**
+     * Receives the progress of hashing. Called on the hashing threads.
+     */
+    public interface ProgressListener {
+        /**
+         * @param files Number of files hashed so far
+         * @param totalFiles Number of files that need to be hashed
+         * @param bytes Number of bytes hashed so far
+         * @param totalBytes Number of bytes that need to be hashed
+         */
+        void onProgress(int files, int totalFiles, long bytes, long totalBytes);
+    }
+
+    /**
+     * A file in the manifest.
+     */
+    public static final class Entry {
+        final String path;
+        final long size;
+        final long modified;
+        final String sha256;
+        /** The local file, when built from a folder */
+        final File file;
+
+        Entry(String path, long size, long modified, String sha256, File file) {
+            this.path = path;
+            this.size = size;
+            this.modified = modified;
+            this.sha256 = sha256;
+            this.file = file;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public String getSha256() {
+            return sha256;
+        }
+    }
+
+    private final Map<String, Entry> mEntries = new TreeMap<>();
+
+    /**
+     * @return The files of the manifest by path, sorted by path
+     */
+    public Map<String, Entry> getEntries() {
+        return Collections.unmodifiableMap(mEntries);
+    }
+
+    /**
+     * Reads a manifest.
+     * @return The manifest, empty if the file does not exist
+     * @throws IOException If the file cannot be read or is not a manifest
+     */
+    public static SyncManifest read(File file) throws IOException {
+        SyncManifest manifest = new SyncManifest();
+        BufferedReader reader;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
+        } catch (FileNotFoundException e) {
+            return manifest;
+        }
+        try {
+            String line = reader.readLine();
+            if (!HEADER.equals(line)) {
+                throw new IOException(file.getName() + " is not a sync manifest");
+            }
+            int lineNumber = 1;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.isEmpty()) {
+                    continue;
+                }
+                String[] fields = line.split("\t");
+                if (fields.length != 4) {
+                    throw new IOException(file.getName() + ": invalid line " + lineNumber);
+                }
+                try {
+                    manifest.add(new Entry(fields[0], Long.parseLong(fields[1]), Long.parseLong(fields[2]),
+                            fields[3], null));
+                } catch (NumberFormatException e) {
+                    throw new IOException(file.getName() + ": invalid line " + lineNumber);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return manifest;
+    }
+
+    /**
+     * Writes the manifest, replacing the file only once it is complete.
+     */
+    public void write(File file) throws IOException {
+        // A unique name, as the manifest may be written by two threads at once
+        File tempFile = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+        try (BufferedWriter writer = new BufferedWriter(
+                new OutputStreamWriter(new FileOutputStream(tempFile), StandardCharsets.UTF_8))) {
+            writer.write(HEADER);
+            writer.newLine();
+            for (Entry entry : mEntries.values()) {
+                writer.write(entry.path + "\t" + entry.size + "\t" + entry.modified + "\t" + entry.sha256);
+                writer.newLine();
+            }
+        }
+        if (!tempFile.renameTo(file)) {
+            tempFile.delete();
+            throw new IOException("Could not write " + file.getPath());
+        }
+    }
+
+    private void add(Entry entry) {
+        mEntries.put(entry.path, entry);
+    }
+
+    /**
+     * Adds the files of another manifest, replacing files with the same path.
+     */
+    public void putAll(SyncManifest other) {
+        mEntries.putAll(other.mEntries);
+    }
+
+    /**
+     * Builds the manifest of the content folders of the app.
+     * @param storage The storage folder that contains the content folders
+     * @param cache The previous manifest, whose hashes are kept for files with
+     *              the same size and modification time
+     * @param threads Number of files hashed at the same time
+     * @throws InterruptedIOException If the calling thread was interrupted to
+     *                                cancel the update
+     */
+    public static SyncManifest buildForDevice(File storage, SyncManifest cache, int threads) throws IOException {
+        Map<String, File> files = new TreeMap<>();
+        for (String folder : new String[] { FOLDER_CONFIG, FOLDER_VIDEOS }) {
+            File[] children = new File(storage, folder).listFiles();
+            if (children == null) {
+                continue;
+            }
+            for (File child : children) {
+                // Compiled configs are created on the device from their source
+                if (child.isFile() && !child.getName().endsWith(COMPILED_SUFFIX)
+                        && !child.getName().endsWith(".tmp")) {
+                    files.put(folder + "/" + child.getName(), child);
+                }
+            }
+        }
+        return build(files, cache, threads, null);
+    }
+
+    /**
+     * Builds the manifest of a study folder on the computer, with paths as
+     * they will be on the device. Files in the folder itself are assigned to
+     * the content folders by suffix, like push_to_device.sh does; subfolders
+     * named like a content folder are taken as they are.
+     */
+    public static SyncManifest buildForStudy(File folder, SyncManifest cache, int threads) throws IOException {
+        File[] children = folder.listFiles();
+        if (children == null) {
+            throw new FileNotFoundException(folder.getPath() + " is not a folder");
+        }
+        Map<String, File> files = new TreeMap<>();
+        for (File child : children) {
+            if (child.isDirectory()
+                    && (child.getName().equals(FOLDER_CONFIG) || child.getName().equals(FOLDER_VIDEOS))) {
+                File[] contents = child.listFiles();
+                if (contents != null) {
+                    for (File file : contents) {
+                        if (file.isFile()) {
+                            files.put(child.getName() + "/" + file.getName(), file);
+                        }
+                    }
+                }
+            } else if (child.isFile() && hasSuffix(child, VIDEO_SUFFIXES)) {
+                files.put(FOLDER_VIDEOS + "/" + child.getName(), child);
+            } else if (child.isFile() && hasSuffix(child, CONFIG_SUFFIXES)) {
+                files.put(FOLDER_CONFIG + "/" + child.getName(), child);
+            }
+        }
+        return build(files, cache, threads, null);
+    }
+
+    private static boolean hasSuffix(File file, String[] suffixes) {
+        String name = file.getName().toLowerCase(Locale.ROOT);
+        for (String suffix : suffixes) {
+            if (name.endsWith(suffix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Builds the manifest of the given files.
+     * @param files The files by their path in the manifest
+     * @param cache The previous manifest, whose hashes are kept for files with
+     *              the same size and modification time, or null
+     * @param threads Number of files hashed at the same time
+     * @param listener Receives the progress, or null
+     * @throws InterruptedIOException If the calling thread was interrupted
+     */
+    static SyncManifest build(Map<String, File> files, SyncManifest cache, int threads,
+                              ProgressListener listener) throws IOException {
+        SyncManifest manifest = new SyncManifest();
+        Map<String, File> changed = new TreeMap<>();
+        long totalBytes = 0;
+        for (Map.Entry<String, File> file : files.entrySet()) {
+            long size = file.getValue().length();
+            long modified = file.getValue().lastModified();
+            Entry cached = cache != null ? cache.mEntries.get(file.getKey()) : null;
+            if (cached != null && cached.size == size && cached.modified == modified) {
+                manifest.add(new Entry(file.getKey(), size, modified, cached.sha256, file.getValue()));
+            } else {
+                changed.put(file.getKey(), file.getValue());
+                totalBytes += size;
+            }
+        }
+
+        int totalFiles = changed.size();
+        long total = totalBytes;
+        AtomicInteger filesDone = new AtomicInteger();
+        AtomicLong bytesDone = new AtomicLong();
+        if (listener != null) {
+            listener.onProgress(0, totalFiles, 0, total);
+        }
+        Map<String, Future<String>> hashes = new TreeMap<>();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads), HASH_THREADS);
+        try {
+            for (Map.Entry<String, File> file : changed.entrySet()) {
+                hashes.put(file.getKey(), executor.submit(() -> {
+                    String hash = hash(file.getValue());
+                    long bytes = bytesDone.addAndGet(file.getValue().length());
+                    if (listener != null) {
+                        listener.onProgress(filesDone.incrementAndGet(), totalFiles, bytes, total);
+                    }
+                    return hash;
+                }));
+            }
+            for (Map.Entry<String, Future<String>> hash : hashes.entrySet()) {
+                File file = files.get(hash.getKey());
+                manifest.add(new Entry(hash.getKey(), file.length(), file.lastModified(), hash.getValue().get(),
+                        file));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while hashing");
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+        return manifest;
+    }
+
+    /**
+     * Computes the SHA-256 of a file, mapping it into memory window by window.
+     * Stops after the current window when the thread is interrupted.
+     * @return The hash as lowercase hex
+     * @throws InterruptedIOException If the thread was interrupted
+     */
+    static String hash(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        try (FileInputStream in = new FileInputStream(file)) {
+            FileChannel channel = in.getChannel();
+            long size = channel.size();
+            for (long position = 0; position < size; position += MAP_WINDOW) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedIOException("Interrupted while hashing " + file.getName());
+                }
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position,
+                        Math.min(MAP_WINDOW, size - position));
+                digest.update(buffer);
+            }
+        }
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Reads reference checksums in the format of sha256sum: a hash, a space,
+     * a space or '*', and the file name, per line.
+     * @return The hashes (lowercase hex) by file name
+     */
+    public static Map<String, String> readChecksums(File file) throws IOException {
+        Map<String, String> checksums = new TreeMap<>();
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                if (line.length() < 67 || line.charAt(64) != ' '
+                        || (line.charAt(65) != ' ' && line.charAt(65) != '*')) {
+                    throw new IOException(file.getName() + ": invalid line " + lineNumber);
+                }
+                String name = line.substring(66);
+                // Strip folders, as videos are looked up by file name
+                checksums.put(name.substring(name.lastIndexOf('/') + 1),
+                        line.substring(0, 64).toLowerCase(Locale.ROOT));
+            }
+        }
+        return checksums;
+    }
+
+    /**
+     * Lists the transfers that make the device match the study folder: files
+     * that are missing on the device or differ in size or content are pushed,
+     * files that are only on the device are deleted.
+     * @param device The manifest of the device
+     * @param study The manifest of the study folder, from {@link #buildForStudy}
+     * @return Transfer lines, pushes first
+     */
+    public static List<String> diff(SyncManifest device, SyncManifest study) {
+        List<String> transfers = new ArrayList<>();
+        for (Entry local : study.mEntries.values()) {
+            Entry remote = device.mEntries.get(local.path);
+            if (remote == null || remote.size != local.size || !remote.sha256.equals(local.sha256)) {
+                transfers.add("push\t" + local.path + "\t" + local.file.getAbsolutePath());
+            }
+        }
+        for (Entry remote : device.mEntries.values()) {
+            if (!study.mEntries.containsKey(remote.path)) {
+                transfers.add("delete\t" + remote.path);
+            }
+        }
+        return transfers;
+    }
+
+    /**
+     * Prints the transfer list for a study folder on a computer.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: java SyncManifest.java <" + FILE_NAME + " from the device> <study folder>");
+            System.exit(2);
+        }
+        SyncManifest device = read(new File(args[0]));
+        File folder = new File(args[1]);
+        File cacheFile = new File(folder, CACHE_FILE_NAME);
+        SyncManifest study = buildForStudy(folder, read(cacheFile), Runtime.getRuntime().availableProcessors());
+        study.write(cacheFile);
+
+        List<String> transfers = diff(device, study);
+        long bytes = 0;
+        for (String transfer : transfers) {
+            System.out.println(transfer);
+            if (transfer.startsWith("push\t")) {
+                bytes += study.mEntries.get(transfer.split("\t")[1]).size;
+            }
+        }
+        System.err.printf(Locale.ROOT, "%d of %d files to push (%.1f MB), %d to delete%n",
+                transfers.stream().filter(t -> t.startsWith("push\t")).count(), study.mEntries.size(),
+                bytes / 1e6, transfers.stream().filter(t -> t.startsWith("delete\t")).count());
+    }
+}
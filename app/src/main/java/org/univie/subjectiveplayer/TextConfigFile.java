@@ -71,7 +71,7 @@ public class TextConfigFile extends BaseConfigFile {
                         String methodName = parts.length >= 2 ? parts[1] : "(empty)";
                         parseErrors.add(new ParseError(lineNumber,
                                 "Unknown METHOD \"" + methodName +
-                                "\" (valid: ACR, CONTINUOUS, DSIS, TIME_CONTINUOUS)"));
+                                "\" (valid: ACR, CONTINUOUS, DSIS, TIME_CONTINUOUS, PC)"));
                     } else {
                         method = parsedMethod;
                     }
@@ -162,6 +162,9 @@ public class TextConfigFile extends BaseConfigFile {
                         "TRAINING_END must come after TRAINING_START (line " + trainingStartLine + ")"));
             }
 
+            validateStimulusPairs();
+            validateSegments();
+
         } catch (Exception e) {
             Log.e(TAG, "Error parsing config file: " + filename, e);
             parseErrors.add(new ParseError(0, "Could not read file: " + e.getMessage()));
@@ -0,0 +1,106 @@
+/*	This file is part of SubjectivePlayer for Android.
+ *
+ *	SubjectivePlayer for Android is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	SubjectivePlayer for Android is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU General Public License for more details.
+ *
+ *	You should have received a copy of the GNU General Public License
+ *	along with SubjectivePlayer for Android.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.univie.subjectiveplayer;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Symbol table that maps playlist entries (video names and BREAK commands)
+ * to dense int IDs. All config files share one table, so a video name that
+ * appears in hundreds of playlists is stored only once, and playlists can be
+ * compared, merged and checked as int arrays.
+ *
+ * IDs are assigned in order of first appearance, starting at 0, and are never
+ * reused. All methods are thread-safe.
+ */
+public final class VideoNameTable {
+
+    private static final VideoNameTable SHARED = new VideoNameTable();
+
+    private final Map<String, Integer> mIds = new HashMap<>();
+    private String[] mNames = new String[64];
+    private final BitSet mBreaks = new BitSet();
+    private int mSize = 0;
+
+    /**
+     * Returns the table shared by all config files.
+     */
+    public static VideoNameTable shared() {
+        return SHARED;
+    }
+
+    /**
+     * Returns the ID for an entry, adding it to the table if necessary.
+     * @param name The video name or BREAK command
+     * @return The ID of the entry
+     */
+    public synchronized int intern(String name) {
+        Integer id = mIds.get(name);
+        if (id != null) {
+            return id;
+        }
+        if (mSize == mNames.length) {
+            mNames = Arrays.copyOf(mNames, mSize * 2);
+        }
+        mNames[mSize] = name;
+        mIds.put(name, mSize);
+        if (Session.isBreakCommand(name)) {
+            mBreaks.set(mSize);
+        }
+        return mSize++;
+    }
+
+    /**
+     * Returns the ID for an entry without adding it.
+     * @param name The video name or BREAK command
+     * @return The ID of the entry, or -1 if it is not in the table
+     */
+    public synchronized int idOf(String name) {
+        Integer id = mIds.get(name);
+        return id != null ? id : -1;
+    }
+
+    /**
+     * Returns the entry for an ID.
+     * @param id An ID returned by {@link #intern(String)}
+     * @return The video name or BREAK command
+     */
+    public synchronized String name(int id) {
+        if (id < 0 || id >= mSize) {
+            throw new IndexOutOfBoundsException("Unknown video ID " + id);
+        }
+        return mNames[id];
+    }
+
+    /**
+     * Returns true if the entry with the given ID is a BREAK command.
+     */
+    public synchronized boolean isBreak(int id) {
+        return mBreaks.get(id);
+    }
+
+    /**
+     * Returns the number of entries in the table. All IDs are below this value,
+     * so it can be used to size arrays or bit sets indexed by ID.
+     */
+    public synchronized int size() {
+        return mSize;
+    }
+}
@@ -0,0 +1,449 @@
+/*	This file is part of SubjectivePlayer for Android.
+ *
+ *	SubjectivePlayer for Android is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	SubjectivePlayer for Android is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU General Public License for more details.
+ *
+ *	You should have received a copy of the GNU General Public License
+ *	along with SubjectivePlayer for Android.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.univie.subjectiveplayer;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * A pack file (.sppack): many videos stored in one file, so that a test is
+ * deployed with a single sequential copy instead of one per video.
+ *
+ * Packs are placed in the videos folder next to (or instead of) the video
+ * files. Playlists keep naming the videos; a name that does not exist as a
+ * file is looked up in the packs, and the player reads the video from its
+ * offset and length in the pack. Each pack is opened once per session and
+ * its descriptor is shared by all of its videos.
+ *
+ * All multi-byte values are big-endian. Layout (version 1):
+ * <pre>
+ * int    magic ("SPPK")
+ * short  version
+ * int    video count
+ * per video: string name, long offset, long length, int CRC32
+ * the videos, each starting at its offset (a multiple of 4096)
+ * </pre>
+ * Strings are stored as an int byte length and UTF-8 bytes.
+ *
+ * This class only uses the Java standard library, so it also runs on a
+ * computer to create packs:
+ * <pre>
+ * java VideoPack.java videos.sppack video1.mp4 video2.mp4 ...
+ * java VideoPack.java --list videos.sppack
+ * java VideoPack.java --verify videos.sppack
+ * </pre>
+ */
+public final class VideoPack implements Closeable {
+
+    /** Magic number at the start of every pack ("SPPK") */
+    static final int MAGIC = 0x5350504B;
+
+    /** Current version of the pack format */
+    static final short VERSION = 1;
+
+    /** File name suffix of packs */
+    public static final String SUFFIX = ".sppack";
+
+    /** Videos start at multiples of this offset */
+    static final int ALIGNMENT = 4096;
+
+    private static final int COPY_BUFFER_SIZE = 1 << 20;
+
+    /** Packs opened by {@link #openAll(File)} */
+    private static final List<VideoPack> sOpenPacks = new ArrayList<>();
+
+    /** Videos of the opened packs by name; the first pack wins for duplicate names */
+    private static final Map<String, Entry> sIndex = new HashMap<>();
+
+    /**
+     * A video in a pack.
+     */
+    public static final class Entry {
+        private final VideoPack pack;
+        private final String name;
+        private final long offset;
+        private final long length;
+        private final int crc;
+
+        Entry(VideoPack pack, String name, long offset, long length, int crc) {
+            this.pack = pack;
+            this.name = name;
+            this.offset = offset;
+            this.length = length;
+            this.crc = crc;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /** Offset of the video in the pack, in bytes */
+        public long getOffset() {
+            return offset;
+        }
+
+        /** Length of the video in bytes */
+        public long getLength() {
+            return length;
+        }
+
+        public File getPackFile() {
+            return pack.file;
+        }
+
+        /**
+         * Returns the descriptor of the pack, which stays open until the pack
+         * is closed. It is shared by all videos of the pack, and readers share
+         * its file position, so only one player may read from it at a time.
+         */
+        public FileDescriptor getFileDescriptor() throws IOException {
+            return pack.in.getFD();
+        }
+
+        /**
+         * Opens a separate descriptor of the pack, for players that read at
+         * the same time as others. Players duplicate the descriptor, so the
+         * stream can be closed as soon as the data source is set.
+         */
+        public FileInputStream openStream() throws IOException {
+            return new FileInputStream(pack.file);
+        }
+    }
+
+    private final File file;
+    private final FileInputStream in;
+    private final Map<String, Entry> entries = new LinkedHashMap<>();
+
+    private VideoPack(File file) throws IOException {
+        this.file = file;
+        this.in = new FileInputStream(file);
+        try {
+            readTableOfContents();
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens a pack and reads its table of contents.
+     * @throws IOException If the file cannot be read or is not a valid pack
+     */
+    public static VideoPack open(File file) throws IOException {
+        return new VideoPack(file);
+    }
+
+    private void readTableOfContents() throws IOException {
+        // A separate stream, so the file position of the shared descriptor is not used
+        try (DataInputStream data = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (data.readInt() != MAGIC) {
+                throw new IOException(file.getName() + " is not a video pack");
+            }
+            short version = data.readShort();
+            if (version != VERSION) {
+                throw new IOException(file.getName() + " has unsupported pack version " + version);
+            }
+            int count = data.readInt();
+            long fileLength = file.length();
+            for (int i = 0; i < count; i++) {
+                String name = readString(data);
+                long offset = data.readLong();
+                long length = data.readLong();
+                int crc = data.readInt();
+                if (offset < 0 || length < 0 || offset + length > fileLength) {
+                    throw new IOException(file.getName() + ": video " + name + " lies outside the pack");
+                }
+                entries.put(name, new Entry(this, name, offset, length, crc));
+            }
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public Collection<Entry> getEntries() {
+        return entries.values();
+    }
+
+    /**
+     * @return The video with the given name, or null if it is not in this pack
+     */
+    public Entry getEntry(String name) {
+        return entries.get(name);
+    }
+
+    /**
+     * Checks the CRC32 of every video in the pack. Reads the whole pack.
+     * @return The names of the videos whose data does not match their checksum
+     */
+    public List<String> verify() throws IOException {
+        List<String> corrupt = new ArrayList<>();
+        try (FileInputStream stream = new FileInputStream(file)) {
+            FileChannel channel = stream.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocate(COPY_BUFFER_SIZE);
+            CRC32 crc = new CRC32();
+            for (Entry entry : entries.values()) {
+                crc.reset();
+                long position = entry.offset;
+                long end = entry.offset + entry.length;
+                while (position < end) {
+                    buffer.clear();
+                    buffer.limit((int) Math.min(buffer.capacity(), end - position));
+                    int read = channel.read(buffer, position);
+                    if (read < 0) {
+                        break;
+                    }
+                    crc.update(buffer.array(), 0, read);
+                    position += read;
+                }
+                if (position < end || (int) crc.getValue() != entry.crc) {
+                    corrupt.add(entry.name);
+                }
+            }
+        }
+        return corrupt;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    /**
+     * Opens all packs in a folder for playback, closing packs opened before.
+     * Packs that cannot be read are skipped.
+     * @param folder The videos folder
+     * @return Descriptions of the packs that could not be opened
+     */
+    public static synchronized List<String> openAll(File folder) {
+        closeAll();
+        List<String> errors = new ArrayList<>();
+        File[] files = folder != null ? folder.listFiles((dir, name) -> name.endsWith(SUFFIX)) : null;
+        if (files == null) {
+            return errors;
+        }
+        Arrays.sort(files);
+        for (File packFile : files) {
+            try {
+                VideoPack pack = open(packFile);
+                sOpenPacks.add(pack);
+                for (Entry entry : pack.getEntries()) {
+                    if (!sIndex.containsKey(entry.name)) {
+                        sIndex.put(entry.name, entry);
+                    }
+                }
+            } catch (IOException e) {
+                errors.add(packFile.getName() + ": " + e.getMessage());
+            }
+        }
+        return errors;
+    }
+
+    /**
+     * Closes all packs opened by {@link #openAll(File)}.
+     */
+    public static synchronized void closeAll() {
+        for (VideoPack pack : sOpenPacks) {
+            try {
+                pack.close();
+            } catch (IOException e) {
+                // nothing left to read from it
+            }
+        }
+        sOpenPacks.clear();
+        sIndex.clear();
+    }
+
+    /**
+     * @return The packs opened by {@link #openAll(File)}
+     */
+    public static synchronized List<VideoPack> getOpenPacks() {
+        return new ArrayList<>(sOpenPacks);
+    }
+
+    /**
+     * Looks up a video in the opened packs.
+     * @param name The video file name as in the playlist
+     * @return The video, or null if no opened pack has it
+     */
+    public static synchronized Entry find(String name) {
+        return sIndex.get(name);
+    }
+
+    /**
+     * Returns where a video is played from: null if it exists as a file, which
+     * takes precedence, otherwise its entry in the opened packs.
+     * @param video The video file
+     * @return The video in a pack, or null if it is a file or cannot be found
+     */
+    public static Entry resolve(File video) {
+        if (video.exists()) {
+            return null;
+        }
+        return find(video.getName());
+    }
+
+    /**
+     * Checks whether a video exists as a file or in one of the opened packs.
+     */
+    public static boolean exists(File video) {
+        return video.exists() || find(video.getName()) != null;
+    }
+
+    /**
+     * Writes a pack of the given videos, named by their file names.
+     * @throws IOException If a video cannot be read, or two have the same name
+     */
+    public static void write(File packFile, List<File> videos) throws IOException {
+        ByteArrayOutputStream tocBytes = new ByteArrayOutputStream();
+        DataOutputStream toc = new DataOutputStream(tocBytes);
+        toc.writeInt(MAGIC);
+        toc.writeShort(VERSION);
+        toc.writeInt(videos.size());
+        Map<String, File> names = new HashMap<>();
+        for (File video : videos) {
+            if (names.put(video.getName(), video) != null) {
+                throw new IOException("Two videos are named " + video.getName());
+            }
+            // Placeholders of the right size; offsets and checksums are filled in below
+            writeString(toc, video.getName());
+            toc.writeLong(0);
+            toc.writeLong(0);
+            toc.writeInt(0);
+        }
+
+        long[] offsets = new long[videos.size()];
+        long[] lengths = new long[videos.size()];
+        int[] crcs = new int[videos.size()];
+        try (RandomAccessFile out = new RandomAccessFile(packFile, "rw")) {
+            out.setLength(0);
+            FileChannel channel = out.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocate(COPY_BUFFER_SIZE);
+            CRC32 crc = new CRC32();
+            long position = align(tocBytes.size());
+            for (int i = 0; i < videos.size(); i++) {
+                offsets[i] = position;
+                crc.reset();
+                try (FileInputStream video = new FileInputStream(videos.get(i))) {
+                    int read;
+                    while ((read = video.read(buffer.array())) > 0) {
+                        crc.update(buffer.array(), 0, read);
+                        buffer.clear();
+                        buffer.limit(read);
+                        while (buffer.hasRemaining()) {
+                            position += channel.write(buffer, position);
+                        }
+                    }
+                }
+                lengths[i] = position - offsets[i];
+                crcs[i] = (int) crc.getValue();
+                position = align(position);
+            }
+
+            tocBytes.reset();
+            toc.writeInt(MAGIC);
+            toc.writeShort(VERSION);
+            toc.writeInt(videos.size());
+            for (int i = 0; i < videos.size(); i++) {
+                writeString(toc, videos.get(i).getName());
+                toc.writeLong(offsets[i]);
+                toc.writeLong(lengths[i]);
+                toc.writeInt(crcs[i]);
+            }
+            toc.flush();
+            channel.write(ByteBuffer.wrap(tocBytes.toByteArray()), 0);
+        }
+    }
+
+    private static long align(long position) {
+        return (position + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > 65535) {
+            throw new IOException("Invalid name length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Creates, lists or verifies a pack on a computer.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length == 2 && (args[0].equals("--list") || args[0].equals("--verify"))) {
+            try (VideoPack pack = open(new File(args[1]))) {
+                if (args[0].equals("--list")) {
+                    for (Entry entry : pack.getEntries()) {
+                        System.out.printf("%s\t%d\t%d\t%08x%n", entry.name, entry.offset, entry.length, entry.crc);
+                    }
+                    return;
+                }
+                List<String> corrupt = pack.verify();
+                for (String name : corrupt) {
+                    System.err.println("Checksum mismatch: " + name);
+                }
+                System.out.println(pack.entries.size() - corrupt.size() + " of " + pack.entries.size()
+                        + " videos OK");
+                if (!corrupt.isEmpty()) {
+                    System.exit(1);
+                }
+            }
+            return;
+        }
+        if (args.length < 2 || args[0].startsWith("--")) {
+            System.err.println("Usage: java VideoPack.java <pack" + SUFFIX + "> <video>...\n"
+                    + "       java VideoPack.java --list <pack" + SUFFIX + ">\n"
+                    + "       java VideoPack.java --verify <pack" + SUFFIX + ">");
+            System.exit(2);
+        }
+        List<File> videos = new ArrayList<>();
+        for (int i = 1; i < args.length; i++) {
+            videos.add(new File(args[i]));
+        }
+        write(new File(args[0]), videos);
+        System.out.println("Packed " + videos.size() + " videos into " + args[0]);
+    }
+}
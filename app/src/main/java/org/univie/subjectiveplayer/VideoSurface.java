@@ -0,0 +1,121 @@
+/*	This file is part of SubjectivePlayer for Android.
+ *
+ *	SubjectivePlayer for Android is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	SubjectivePlayer for Android is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU General Public License for more details.
+ *
+ *	You should have received a copy of the GNU General Public License
+ *	along with SubjectivePlayer for Android.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.univie.subjectiveplayer;
+
+import android.util.Log;
+import android.view.SurfaceView;
+import android.view.View;
+import android.view.ViewGroup.LayoutParams;
+
+/**
+ * Keeps the video surface of a session alive from the first to the last
+ * video.
+ *
+ * Hiding a SurfaceView destroys its surface, so the next video has to wait
+ * for a new one. Instead, the surface stays visible and an opaque cover view
+ * on top of it hides the last frame while rating dialogs, breaks and other
+ * screens are shown. The cover is lifted when the next video has rendered its
+ * first frame, so the previous frame never flashes up. The surface is only
+ * resized when the size it is laid out at really changes, i.e. when a video
+ * has a different aspect ratio than the previous one; its buffers keep that
+ * size (SurfaceHolder.setFixedSize) until then.
+ */
+final class VideoSurface {
+
+    private static final String TAG = VideoSurface.class.getSimpleName();
+
+    /** The cover is lifted this long after start if no first frame was reported */
+    static final long FIRST_FRAME_TIMEOUT_MILLIS = 500;
+
+    private final SurfaceView mView;
+    private final SurfaceView mViewB;
+    private final View mCover;
+    private final Runnable mUncover = this::uncover;
+
+    private int mWidth = 0;
+    private int mHeight = 0;
+
+    /**
+     * @param view The surface the videos are shown on
+     * @param viewB The surface of video B of side by side paired comparisons,
+     *              sized like the first one, or null
+     * @param cover The view laid out on top of the surface that hides it
+     */
+    VideoSurface(SurfaceView view, SurfaceView viewB, View cover) {
+        mView = view;
+        mViewB = viewB;
+        mCover = cover;
+    }
+
+    /**
+     * Hides the surface behind the cover. The surface itself stays alive.
+     */
+    void cover() {
+        mView.removeCallbacks(mUncover);
+        mCover.setVisibility(View.VISIBLE);
+    }
+
+    /**
+     * Lifts the cover, showing the surface.
+     */
+    void uncover() {
+        mView.removeCallbacks(mUncover);
+        mCover.setVisibility(View.GONE);
+    }
+
+    /**
+     * Lifts the cover after {@link #FIRST_FRAME_TIMEOUT_MILLIS}, in case the
+     * video that is starting now does not report its first frame. Otherwise,
+     * {@link #uncover()} is called when the first frame has been rendered.
+     */
+    void uncoverOnFirstFrame() {
+        mView.removeCallbacks(mUncover);
+        mView.postDelayed(mUncover, FIRST_FRAME_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * Sizes the surface to the available width, keeping the aspect ratio of
+     * the video. Does nothing if the surface already has that size.
+     * @param videoWidth The width of the video
+     * @param videoHeight The height of the video
+     * @param availableWidth The width the surface may take
+     * @return Whether the surface was resized
+     */
+    boolean layout(int videoWidth, int videoHeight, int availableWidth) {
+        int width = availableWidth;
+        int height = (int) (((float) videoHeight / (float) videoWidth) * (float) availableWidth);
+        if (width == mWidth && height == mHeight) {
+            return false;
+        }
+        mWidth = width;
+        mHeight = height;
+        Log.d(TAG, "Resizing video surface to " + width + "x" + height);
+        resize(mView, width, height);
+        if (mViewB != null) {
+            resize(mViewB, width, height);
+        }
+        return true;
+    }
+
+    private static void resize(SurfaceView view, int width, int height) {
+        LayoutParams params = view.getLayoutParams();
+        params.width = width;
+        params.height = height;
+        view.setLayoutParams(params);
+        view.getHolder().setFixedSize(width, height);
+    }
+}
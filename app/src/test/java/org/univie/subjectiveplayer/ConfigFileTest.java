@@ -159,6 +159,18 @@ public class ConfigFileTest {
         assertTrue(config.getParseErrors().get(0).message.contains("Unknown METHOD"));
     }
 
+    @Test
+    public void textConfig_parsesDsisPairs() throws IOException {
+        File cfgFile = new File(tempDir, "subject_1.cfg");
+        writeFile(cfgFile, "METHOD DSIS\nsrc1_ref.mp4|src1_hrc1.mp4\nBREAK 30\nsrc2_ref.mp4 | src2_hrc1.mp4\n");
+
+        BaseConfigFile config = new TextConfigFile(cfgFile);
+        assertFalse(config.hasErrors());
+        assertEquals(2, config.getVideoCount());
+        assertArrayEquals(new String[]{"src2_ref.mp4", "src2_hrc1.mp4"},
+                Session.parseStimulusPair(config.getEntries().get(2)));
+    }
+
     @Test
     public void textConfig_extractsIdFromFilename() throws IOException {
         File cfgFile = new File(tempDir, "subject_42.cfg");
@@ -350,6 +362,71 @@ public class ConfigFileTest {
             .anyMatch(e -> e.message.contains("Options are required")));
     }
 
+    @Test
+    public void jsonConfig_ignoresUnknownFields() throws IOException {
+        File jsonFile = new File(tempDir, "subject_1.json");
+        writeFile(jsonFile,
+            "{\"playlist\": [\"video1.mp4\"], \"comment\": {\"nested\": [1, 2, 3]}, " +
+            "\"custom_messages\": {\"start_message\": \"Hi\", \"unused\": true}}");
+
+        BaseConfigFile config = new JsonConfigFile(jsonFile);
+        assertFalse(config.hasErrors());
+        assertEquals("Hi", config.getStartMessage());
+        assertEquals(1, config.getEntries().size());
+    }
+
+    @Test
+    public void jsonConfig_acceptsNullValuesAndStringBooleans() throws IOException {
+        File jsonFile = new File(tempDir, "subject_1.json");
+        writeFile(jsonFile,
+            "{\"method\": null, \"custom_messages\": null, \"playlist\": [\"video1.mp4\"], " +
+            "\"post_questionnaire\": [{\"question\": \"Comments?\", \"type\": \"text\", \"required\": \"false\"}]}");
+
+        BaseConfigFile config = new JsonConfigFile(jsonFile);
+        assertFalse(config.hasErrors());
+        assertEquals(Methods.UNDEFINED, config.getMethod());
+        assertNull(config.getStartMessage());
+        assertFalse(config.getPostQuestionnaire().getQuestions().get(0).isRequired());
+    }
+
+    @Test
+    public void jsonConfig_reportsWrongTopLevelType() throws IOException {
+        File jsonFile = new File(tempDir, "subject_1.json");
+        writeFile(jsonFile, "[\"video1.mp4\"]");
+
+        BaseConfigFile config = new JsonConfigFile(jsonFile);
+        assertTrue(config.hasErrors());
+        assertTrue(config.getParseErrors().get(0).message.contains("Invalid JSON"));
+    }
+
+    @Test
+    public void jsonConfig_reportsInvalidDsisPairs() throws IOException {
+        File jsonFile = new File(tempDir, "subject_1.json");
+        writeFile(jsonFile, "{\"method\": \"DSIS\", \"playlist\": "
+                + "[\"ref.mp4|test.mp4\", \"single.mp4\", \"ref.mp4|\", \"BREAK\"]}");
+
+        BaseConfigFile config = new JsonConfigFile(jsonFile);
+        assertEquals(2, config.getParseErrors().size());
+        assertTrue(config.getParseErrors().get(0).message.contains("\"single.mp4\""));
+        assertTrue(config.getParseErrors().get(1).message.contains("\"ref.mp4|\""));
+
+        // Pairs are only played by the DSIS method
+        writeFile(jsonFile, "{\"method\": \"ACR\", \"playlist\": [\"ref.mp4|test.mp4\"]}");
+        assertTrue(new JsonConfigFile(jsonFile).hasErrors());
+    }
+
+    @Test
+    public void jsonConfig_parsesPairedComparison() throws IOException {
+        File jsonFile = new File(tempDir, "subject_1.json");
+        writeFile(jsonFile, "{\"method\": \"PC\", \"playlist\": "
+                + "[\"src1_hrc1.mp4|src1_hrc2.mp4\", \"BREAK\", \"src1_hrc2.mp4\"]}");
+
+        BaseConfigFile config = new JsonConfigFile(jsonFile);
+        assertEquals(Methods.TYPE_PAIRED_COMPARISON, config.getMethod());
+        assertEquals(1, config.getParseErrors().size());
+        assertTrue(config.getParseErrors().get(0).message.contains("\"src1_hrc2.mp4\""));
+    }
+
     @Test
     public void jsonConfig_extractsIdFromFilename() throws IOException {
         File jsonFile = new File(tempDir, "subject_123.json");
@@ -359,6 +436,321 @@ public class ConfigFileTest {
         assertEquals("123", config.getId());
     }
 
+    @Test
+    public void json_parsesLogFormats() throws IOException {
+        File jsonFile = new File(tempDir, "subject_1.json");
+        writeFile(jsonFile, "{\"log_formats\": [\"csv\", \"binary\"], \"playlist\": [\"video1.mp4\"]}");
+        File defaultFile = new File(tempDir, "subject_2.json");
+        writeFile(defaultFile, "{\"playlist\": [\"video1.mp4\"]}");
+        File invalidFile = new File(tempDir, "subject_3.json");
+        writeFile(invalidFile, "{\"log_formats\": [\"xml\"], \"playlist\": [\"video1.mp4\"]}");
+
+        assertEquals(SessionLogSink.FORMAT_CSV | SessionLogSink.FORMAT_BINARY,
+                new JsonConfigFile(jsonFile).getLogFormats());
+        assertEquals(SessionLogSink.FORMAT_CSV, new JsonConfigFile(defaultFile).getLogFormats());
+        BaseConfigFile invalid = new JsonConfigFile(invalidFile);
+        assertTrue(invalid.hasErrors());
+        assertEquals(SessionLogSink.FORMAT_CSV, invalid.getLogFormats());
+    }
+
+    @Test
+    public void json_parsesPlaybackEngine() throws IOException {
+        File jsonFile = new File(tempDir, "subject_1.json");
+        writeFile(jsonFile, "{\"playback_engine\": \"MediaCodec\", \"playlist\": [\"video1.mp4\"]}");
+        File defaultFile = new File(tempDir, "subject_2.json");
+        writeFile(defaultFile, "{\"playlist\": [\"video1.mp4\"]}");
+        File invalidFile = new File(tempDir, "subject_3.json");
+        writeFile(invalidFile, "{\"playback_engine\": \"exoplayer\", \"playlist\": [\"video1.mp4\"]}");
+
+        assertEquals(CodecPlayer.ENGINE_MEDIA_CODEC, new JsonConfigFile(jsonFile).getPlaybackEngine());
+        assertEquals(CodecPlayer.ENGINE_DEFAULT, new JsonConfigFile(defaultFile).getPlaybackEngine());
+        BaseConfigFile invalid = new JsonConfigFile(invalidFile);
+        assertTrue(invalid.getParseErrors().get(0).message.contains("Unknown playback engine"));
+        assertEquals(CodecPlayer.ENGINE_DEFAULT, invalid.getPlaybackEngine());
+
+        // Kept in compiled configs
+        ConfigCompiler.compile(jsonFile);
+        BaseConfigFile compiled = ConfigFileFactory.create(jsonFile);
+        assertTrue(compiled instanceof CompiledConfigFile);
+        assertEquals(CodecPlayer.ENGINE_MEDIA_CODEC, compiled.getPlaybackEngine());
+    }
+
+    @Test
+    public void json_parsesSegments() throws IOException {
+        File jsonFile = new File(tempDir, "subject_1.json");
+        writeFile(jsonFile, "{\"playlist\": [\"source.mp4@0-10\", "
+                + "{\"video\": \"source.mp4\", \"start\": 12, \"end\": 22.5}]}");
+        File invalidFile = new File(tempDir, "subject_2.json");
+        writeFile(invalidFile, "{\"playlist\": [\"source.mp4@10-5\"]}");
+
+        BaseConfigFile config = new JsonConfigFile(jsonFile);
+        assertTrue(config.getParseErrors().isEmpty());
+        assertEquals("source.mp4@0-10", config.getEntries().get(0));
+        assertEquals("source.mp4@12.0-22.5", config.getEntries().get(1));
+        BaseConfigFile invalid = new JsonConfigFile(invalidFile);
+        assertTrue(invalid.getParseErrors().get(0).message.contains("must give the segment"));
+    }
+
+    // ========== Compiled configs ==========
+
+    @Test
+    public void compiledConfig_matchesSourceConfig() throws IOException {
+        File cfgFile = new File(tempDir, "subject_1.cfg");
+        writeFile(cfgFile,
+            "METHOD CONTINUOUS\n" +
+            "START_MESSAGE Welcome\\nTo the test\n" +
+            "TRAINING_START\n" +
+            "training.mp4\n" +
+            "TRAINING_END\n" +
+            "video1.mp4\n" +
+            "BREAK 30\n" +
+            "video1.mp4\n");
+
+        BaseConfigFile source = ConfigCompiler.compile(cfgFile);
+        BaseConfigFile compiled = ConfigFileFactory.create(cfgFile);
+
+        assertTrue(compiled instanceof CompiledConfigFile);
+        assertEquals("1", compiled.getId());
+        assertEquals("subject_1.cfg", compiled.getFilename());
+        assertEquals(source.getMethod(), compiled.getMethod());
+        assertEquals(source.getStartMessage(), compiled.getStartMessage());
+        assertEquals(source.getEntries(), compiled.getEntries());
+        assertEquals(0, compiled.getTrainingStartIndex());
+        assertEquals(0, compiled.getTrainingEndIndex());
+        assertEquals(2, compiled.getVideoCount());
+        assertEquals(1, compiled.getBreakCount());
+        assertFalse(compiled.hasErrors());
+    }
+
+    @Test
+    public void compiledConfig_keepsQuestionnairesAndErrors() throws IOException {
+        File jsonFile = new File(tempDir, "subject_1.json");
+        writeFile(jsonFile,
+            "{\"method\": \"INVALID\", \"playlist\": [\"video1.mp4\"], " +
+            "\"post_questionnaire\": [{\"question\": \"Choice?\", \"type\": \"radio\", " +
+            "\"options\": [\"A\", \"B\"], \"required\": false}]}");
+
+        ConfigCompiler.compile(jsonFile);
+        BaseConfigFile compiled = ConfigFileFactory.create(jsonFile);
+
+        assertTrue(compiled instanceof CompiledConfigFile);
+        assertTrue(compiled.getParseErrors().get(0).message.contains("Unknown method"));
+        Question question = compiled.getPostQuestionnaire().getQuestions().get(0);
+        assertEquals("Choice?", question.getQuestion());
+        assertEquals(java.util.Arrays.asList("A", "B"), question.getOptions());
+        assertFalse(question.isRequired());
+    }
+
+    @Test
+    public void compiledConfig_ignoredWhenSourceChanged() throws IOException {
+        File cfgFile = new File(tempDir, "subject_1.cfg");
+        writeFile(cfgFile, "video1.mp4\n");
+        ConfigCompiler.compile(cfgFile);
+
+        writeFile(cfgFile, "video1.mp4\nvideo2.mp4\n");
+        BaseConfigFile config = ConfigFileFactory.create(cfgFile);
+
+        assertTrue(config instanceof TextConfigFile);
+        assertEquals(2, config.getEntries().size());
+    }
+
+    @Test
+    public void compiledConfig_ignoredWhenCorrupt() throws IOException {
+        File cfgFile = new File(tempDir, "subject_1.cfg");
+        writeFile(cfgFile, "video1.mp4\n");
+        ConfigCompiler.compile(cfgFile);
+
+        // Keep the header intact so the file still looks fresh, but cut off the rest
+        File compiledFile = ConfigCompiler.compiledFileFor(cfgFile);
+        try (java.io.RandomAccessFile raf = new java.io.RandomAccessFile(compiledFile, "rw")) {
+            raf.setLength(30);
+        }
+        BaseConfigFile config = ConfigFileFactory.create(cfgFile);
+
+        assertTrue(config instanceof TextConfigFile);
+        assertFalse(config.hasErrors());
+    }
+
+    // ========== Video name table ==========
+
+    @Test
+    public void nameTable_sharesIdsAcrossConfigs() throws IOException {
+        File cfgFile = new File(tempDir, "subject_1.cfg");
+        File jsonFile = new File(tempDir, "subject_2.json");
+        writeFile(cfgFile, "shared.mp4\nBREAK\nonly_cfg.mp4\n");
+        writeFile(jsonFile, "{\"playlist\": [\"only_json.mp4\", \"shared.mp4\"]}");
+
+        BaseConfigFile cfg = new TextConfigFile(cfgFile);
+        BaseConfigFile json = new JsonConfigFile(jsonFile);
+
+        int[] cfgIds = cfg.getEntryIds();
+        int[] jsonIds = json.getEntryIds();
+        assertEquals(3, cfgIds.length);
+        assertEquals(cfgIds[0], jsonIds[1]);
+        assertNotEquals(cfgIds[2], jsonIds[0]);
+        assertSame(cfg.getEntries().get(0), json.getEntries().get(1));
+        assertTrue(VideoNameTable.shared().isBreak(cfgIds[1]));
+        assertEquals("shared.mp4", VideoNameTable.shared().name(cfgIds[0]));
+    }
+
+    @Test
+    public void nameTable_videoIdsExcludeBreaks() throws IOException {
+        File cfgFile = new File(tempDir, "subject_1.cfg");
+        writeFile(cfgFile, "video1.mp4\nBREAK 10\nvideo2.mp4\nvideo1.mp4\n");
+
+        BaseConfigFile config = new TextConfigFile(cfgFile);
+        int[] videoIds = config.getVideoIds();
+
+        assertEquals(3, videoIds.length);
+        assertEquals(videoIds[0], videoIds[2]);
+        assertEquals(java.util.Arrays.asList("video1.mp4", "video2.mp4", "video1.mp4"),
+                config.getVideoFilenames());
+    }
+
+    // ========== Playlist designs ==========
+
+    @Test
+    public void design_latinSquareShiftsByParticipant() throws IOException {
+        File designFile = new File(tempDir, ConfigFileFactory.DESIGN_FILE_NAME);
+        writeFile(designFile, "{\"method\": \"ACR\", \"design\": {" +
+            "\"scheme\": \"latin_square\", \"training\": [\"t.mp4\"], " +
+            "\"videos\": [\"a.mp4\", \"b.mp4\", \"c.mp4\"]}}");
+
+        BaseConfigFile first = ConfigFileFactory.create(designFile, 1);
+        BaseConfigFile second = ConfigFileFactory.create(designFile, 2);
+
+        assertFalse(first.hasErrors());
+        assertEquals(java.util.Arrays.asList("t.mp4", "a.mp4", "b.mp4", "c.mp4"), first.getEntries());
+        assertEquals(java.util.Arrays.asList("t.mp4", "b.mp4", "c.mp4", "a.mp4"), second.getEntries());
+        assertEquals(0, first.getTrainingStartIndex());
+        assertEquals(0, first.getTrainingEndIndex());
+        assertEquals(3, first.getVideoCount());
+        assertEquals(1, first.getTrainingVideoCount());
+    }
+
+    @Test
+    public void design_williamsBalancesCarryover() {
+        int n = 4;
+        int[][] pairs = new int[n][n];
+        int[] order = new int[n];
+        for (int row = 0; row < n; row++) {
+            PlaylistDesign.williamsRow(row, order);
+            for (int j = 1; j < n; j++) {
+                pairs[order[j - 1]][order[j]]++;
+            }
+        }
+        for (int a = 0; a < n; a++) {
+            for (int b = 0; b < n; b++) {
+                assertEquals(a == b ? 0 : 1, pairs[a][b]);
+            }
+        }
+    }
+
+    @Test
+    public void design_randomSeparatesSourcesAndIsDeterministic() throws IOException {
+        StringBuilder videos = new StringBuilder();
+        for (int src = 0; src < 5; src++) {
+            for (int hrc = 0; hrc < 4; hrc++) {
+                if (videos.length() > 0) videos.append(", ");
+                videos.append("\"SRC").append(src).append("_HRC").append(hrc).append(".mp4\"");
+            }
+        }
+        File designFile = new File(tempDir, ConfigFileFactory.DESIGN_FILE_NAME);
+        writeFile(designFile, "{\"design\": {\"scheme\": \"random\", \"blocks\": 2, " +
+            "\"break_interval\": 10, \"break_duration\": 30, \"videos\": [" + videos + "]}}");
+
+        BaseConfigFile config = ConfigFileFactory.create(designFile, 7);
+        BaseConfigFile again = ConfigFileFactory.create(designFile, 7);
+
+        assertFalse(config.hasErrors());
+        assertEquals(config.getEntries(), again.getEntries());
+        assertEquals(40, config.getVideoCount());
+        // One break in the middle of each block, one between the blocks
+        assertEquals(3, config.getBreakCount());
+        assertEquals("BREAK 30", config.getEntries().get(10));
+        String previous = null;
+        for (String video : config.getVideoFilenames()) {
+            String source = video.substring(0, video.indexOf('_'));
+            assertNotEquals(previous, source);
+            previous = source;
+        }
+    }
+
+    @Test
+    public void design_separateSourcesFixesOrderTheShuffleGot() {
+        int[] groups = {0, 1, 1};
+        int[] order = {0, 2, 1};
+        PlaylistDesign.separateSources(order, groups, -1);
+        // Starting with video 0 would leave videos 2 and 1 next to each other
+        assertArrayEquals(new int[]{2, 0, 1}, order);
+    }
+
+    @Test
+    public void design_separateSourcesSucceedsWheneverPossible() {
+        java.util.Random random = new java.util.Random(42);
+        for (int run = 0; run < 20000; run++) {
+            int n = 1 + random.nextInt(12);
+            int groupCount = 1 + random.nextInt(5);
+            int[] groups = new int[n];
+            int[] counts = new int[groupCount];
+            int[] order = new int[n];
+            for (int i = 0; i < n; i++) {
+                groups[i] = random.nextInt(groupCount);
+                counts[groups[i]]++;
+                order[i] = i;
+            }
+            for (int i = n - 1; i > 0; i--) {
+                int j = random.nextInt(i + 1);
+                int tmp = order[i];
+                order[i] = order[j];
+                order[j] = tmp;
+            }
+            int previousGroup = random.nextInt(groupCount + 1) - 1;
+            boolean possible = true;
+            for (int g = 0; g < groupCount; g++) {
+                possible &= counts[g] <= (g == previousGroup ? n / 2 : (n + 1) / 2);
+            }
+
+            PlaylistDesign.separateSources(order, groups, previousGroup);
+
+            boolean[] seen = new boolean[n];
+            for (int video : order) {
+                assertFalse(seen[video]);
+                seen[video] = true;
+            }
+            if (possible) {
+                int before = previousGroup;
+                for (int video : order) {
+                    assertNotEquals("Run " + run, before, groups[video]);
+                    before = groups[video];
+                }
+            }
+        }
+    }
+
+    @Test
+    public void design_reportsInvalidDesign() throws IOException {
+        File designFile = new File(tempDir, ConfigFileFactory.DESIGN_FILE_NAME);
+        writeFile(designFile, "{\"design\": {\"scheme\": \"sudoku\", \"videos\": []}}");
+
+        BaseConfigFile config = ConfigFileFactory.create(designFile, 1);
+
+        assertTrue(config.hasErrors());
+        assertEquals(2, config.getParseErrors().size());
+        assertTrue(config.getEntries().isEmpty());
+    }
+
+    @Test
+    public void design_subjectConfigTakesPrecedence() throws IOException {
+        File designFile = new File(tempDir, ConfigFileFactory.DESIGN_FILE_NAME);
+        File subjectFile = new File(tempDir, "subject_2.cfg");
+        writeFile(designFile, "{\"design\": {\"videos\": [\"a.mp4\"]}}");
+        writeFile(subjectFile, "b.mp4\n");
+
+        assertEquals(subjectFile, ConfigFileFactory.findConfigFile(tempDir, "2"));
+        assertEquals(designFile, ConfigFileFactory.findConfigFile(tempDir, "3"));
+    }
+
     // ========== Question validation ==========
 
     @Test
@@ -24,12 +24,22 @@ import org.robolectric.RobolectricTestRunner;
 import org.robolectric.annotation.Config;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
 
 import static org.junit.Assert.*;
 
@@ -84,14 +94,14 @@ public class CsvLoggerTest {
         CsvLogger.logRating(2, "video3.mp4", 3, 1702650020000L, 3.0);
         CsvLogger.closeSessionLog();
 
-        File[] files = tempLogsDir.listFiles();
+        File[] files = listCsvFiles();
         assertEquals(files.length, 1);
         // Filename format: <participantId>_<timestamp>_<method>.csv
         assertTrue(files[0].getName().startsWith("1_"));
         assertTrue(files[0].getName().contains("ACR"));
 
         List<String> lines = readFileLines(files[0]);
-        assertEquals(lines.size(), 5);
+        assertEquals(lines.size(), 6);
         assertEquals(lines.get(0), "video_position,video_name,rating,rated_at,rating_duration");
         // Check that rating_duration is included (format: X.XXX)
         assertTrue(lines.get(1).contains(",2.500"));
@@ -99,6 +109,8 @@ public class CsvLoggerTest {
         // BREAK entries have position -1 and empty rating/timestamp/duration
         assertEquals(lines.get(3), "-1,BREAK,,,");
         assertTrue(lines.get(4).contains(",3.000"));
+        // Footer with row count and checksum, written on close
+        assertTrue(lines.get(5).startsWith("# rows=4 crc32="));
     }
 
     @Test
@@ -107,7 +119,7 @@ public class CsvLoggerTest {
         CsvLogger.logRating(0, "video.mp4", 5, System.currentTimeMillis(), 1.5);
         CsvLogger.closeSessionLog();
 
-        assertEquals(tempLogsDir.listFiles().length, 1);
+        assertEquals(listCsvFiles().length, 1);
     }
 
     // ========== Time-continuous logging ==========
@@ -124,11 +136,11 @@ public class CsvLoggerTest {
         CsvLogger.logRating(0, "video.mp4", 60, baseTime + 2000, null);
         CsvLogger.closeSessionLog();
 
-        File[] files = tempLogsDir.listFiles();
+        File[] files = listCsvFiles();
         assertEquals(files.length, 1);
 
         List<String> lines = readFileLines(files[0]);
-        assertEquals(lines.size(), 4);
+        assertEquals(lines.size(), 5);
         assertEquals(lines.get(0), "video_position,video_name,rating,rated_at,rating_duration");
         // Time-continuous ratings have empty rating_duration
         assertTrue(lines.get(1).startsWith("0,video.mp4,50,"));
@@ -163,7 +175,7 @@ public class CsvLoggerTest {
         assertTrue(files[0].getName().contains("questionnaire_pre"));
 
         List<String> lines = readFileLines(files[0]);
-        assertEquals(3, lines.size());
+        assertEquals(4, lines.size());
         assertEquals("question_number,question_type,question,answer,answered_at,answer_duration", lines.get(0));
         assertTrue(lines.get(1).startsWith("1,number,What is your age?,25,"));
         assertTrue(lines.get(1).contains(",3.500"));
@@ -190,8 +202,8 @@ public class CsvLoggerTest {
         assertEquals(1, files.length);
 
         List<String> lines = readFileLines(files[0]);
-        // Header + 2 rows (one per selection)
-        assertEquals(3, lines.size());
+        // Header + 2 rows (one per selection) + footer
+        assertEquals(4, lines.size());
         assertEquals("question_number,question_type,question,answer,answered_at,answer_duration", lines.get(0));
         // Both rows have same question number, timestamp, and duration
         assertTrue(lines.get(1).startsWith("1,multiple-choice,Which services do you use?,Netflix,"));
@@ -215,14 +227,536 @@ public class CsvLoggerTest {
 
         File[] files = tempLogsDir.listFiles();
         List<String> lines = readFileLines(files[0]);
-        assertEquals(2, lines.size());
+        assertEquals(3, lines.size());
         // Empty answer field but timestamp and duration still present
         assertTrue(lines.get(1).startsWith("1,text,Comments?,,"));
         assertTrue(lines.get(1).contains(",1.000"));
     }
 
+    @Test
+    public void questionnaireLog_streamsAnswersAsGiven() throws IOException {
+        List<Question> questions = new ArrayList<>();
+        questions.add(new Question("What is your age?", Question.TYPE_NUMBER, null, true));
+        questions.add(new Question("Comments?", Question.TYPE_TEXT, null, false));
+        Questionnaire questionnaire = new Questionnaire(questions);
+        List<QuestionnaireAnswer> answers = new ArrayList<>();
+        answers.add(new QuestionnaireAnswer("25", 1702650000000L, 3.5));
+
+        // The first answer is on disk before the questionnaire is complete
+        CsvLogger.logQuestionnaireAnswer("post", 0, questions.get(0), answers.get(0));
+        File[] parts = tempLogsDir.listFiles();
+        assertEquals(1, parts.length);
+        assertTrue(parts[0].getName().endsWith("_questionnaire_post.csv" + LogFileOutputStream.TEMP_EXTENSION));
+        assertEquals(2, readFileLines(parts[0]).size());
+
+        answers.add(new QuestionnaireAnswer("Too long, \"really\"", 1702650005000L, 2.0));
+        CsvLogger.logQuestionnaireAnswer("post", 1, questions.get(1), answers.get(1));
+        CsvLogger.logQuestionnaire("post", questionnaire, answers);
+
+        File[] files = tempLogsDir.listFiles();
+        assertEquals(1, files.length);
+        List<String> lines = readFileLines(files[0]);
+        assertEquals(4, lines.size());
+        assertTrue(lines.get(1).startsWith("1,number,What is your age?,25,"));
+        assertTrue(lines.get(2).startsWith("2,text,Comments?,\"Too long, \"\"really\"\"\","));
+        assertEquals(LogVerifier.Status.VALID, LogVerifier.verify(files[0]).status);
+    }
+
+    @Test
+    public void questionnaireLog_escapesFieldsOnlyWhenNeeded() throws IOException {
+        java.io.StringWriter out = new java.io.StringWriter();
+        QuestionnaireLogSink.writeField(out, "plain text");
+        out.write('|');
+        QuestionnaireLogSink.writeField(out, "a,b");
+        out.write('|');
+        QuestionnaireLogSink.writeField(out, "say \"hi\"");
+        out.write('|');
+        QuestionnaireLogSink.writeField(out, "two\nlines");
+        out.write('|');
+        QuestionnaireLogSink.writeField(out, null);
+        assertEquals("plain text|\"a,b\"|\"say \"\"hi\"\"\"|\"two\nlines\"|", out.toString());
+    }
+
+    // ========== Playback log ==========
+    // Timing measurements next to the session log, e.g. the DSIS switch gap
+
+    @Test
+    public void playbackLog_writtenNextToSessionLog() throws IOException {
+        Session.sCurrentMethod = Methods.TYPE_DSIS_CATEGORICAL;
+        CsvLogger.startSessionLog();
+        CsvLogger.logPlaybackEvent(0, "ref.mp4|test.mp4", PlaybackLogSink.EVENT_SWITCH_GAP, 12.34);
+        CsvLogger.logRating(0, "ref.mp4|test.mp4", 4, 1702650000000L, 1.5);
+        CsvLogger.closeSessionLog();
+
+        File sessionLog = null;
+        File playbackLog = null;
+        for (File f : tempLogsDir.listFiles()) {
+            if (f.getName().endsWith("_DSIS" + PlaybackLogSink.SUFFIX + ".csv")) {
+                playbackLog = f;
+            } else if (f.getName().endsWith("_DSIS.csv")) {
+                sessionLog = f;
+            }
+        }
+        assertNotNull(sessionLog);
+        assertNotNull(playbackLog);
+
+        List<String> lines = readFileLines(playbackLog);
+        assertEquals(3, lines.size());
+        assertEquals(PlaybackLogSink.HEADER, lines.get(0));
+        assertTrue(lines.get(1).startsWith("0,ref.mp4|test.mp4,switch_gap,12.3,"));
+        assertEquals(LogVerifier.Status.VALID, LogVerifier.verify(playbackLog).status);
+
+        // The results screen only reads the session log
+        RatingAggregator aggregator = new RatingAggregator(tempLogsDir, null);
+        assertEquals(1, aggregator.update());
+    }
+
+    // ========== Binary session logs ==========
+    // Compact alternative to the CSV log, selected with log_formats in the config
+
+    @Test
+    public void binaryLog_convertsBackToCsv() throws IOException {
+        Session.sLogFormats = SessionLogSink.FORMAT_CSV | SessionLogSink.FORMAT_BINARY;
+        CsvLogger.startSessionLog();
+        long baseTime = 1702650000000L;
+        for (int i = 0; i < 100; i++) {
+            CsvLogger.logRating(0, "video1.mp4", 50 + i % 5, baseTime + i * 20, null);
+        }
+        CsvLogger.logBreak();
+        CsvLogger.logRating(1, "video2.mp4", 4, baseTime + 10000, 1.234);
+        CsvLogger.closeSessionLog();
+
+        File[] binaryFiles = tempLogsDir.listFiles((dir, name) -> name.endsWith(".splog"));
+        assertEquals(1, binaryFiles.length);
+        File csvFile = listCsvFiles()[0];
+        assertTrue(binaryFiles[0].length() < csvFile.length() / 4);
+
+        File converted = new File(tempLogsDir, "converted.txt");
+        assertEquals(102, BinaryLogReader.toCsv(binaryFiles[0], converted));
+        assertEquals(readFileLines(csvFile), readFileLines(converted));
+    }
+
+    @Test
+    public void binaryLog_roundsDurationsLikeCsv() throws IOException {
+        Session.sLogFormats = SessionLogSink.FORMAT_CSV | SessionLogSink.FORMAT_BINARY;
+        CsvLogger.startSessionLog();
+        // Durations halfway between two milliseconds, where the formats used to disagree
+        double[] durations = {109.8705, 0.5005, 2.0015, 0.9995};
+        for (int i = 0; i < durations.length; i++) {
+            CsvLogger.logRating(i, "video" + i + ".mp4", 3, 1702650000000L + i * 1000, durations[i]);
+        }
+        CsvLogger.closeSessionLog();
+
+        File binaryFile = tempLogsDir.listFiles((dir, name) -> name.endsWith(".splog"))[0];
+        File converted = new File(tempLogsDir, "converted.txt");
+        BinaryLogReader.toCsv(binaryFile, converted);
+        List<String> lines = readFileLines(listCsvFiles()[0]);
+        assertEquals(lines, readFileLines(converted));
+        assertTrue(lines.get(1).endsWith(",109.871"));
+        assertTrue(lines.get(2).endsWith(",0.500"));
+        assertTrue(lines.get(4).endsWith(",1.000"));
+    }
+
+    @Test
+    public void binaryLog_ignoresTruncatedChunk() throws IOException {
+        Session.sLogFormats = SessionLogSink.FORMAT_BINARY;
+        CsvLogger.startSessionLog();
+        CsvLogger.logRating(0, "video1.mp4", 5, 1702650000000L, 2.5);
+        CsvLogger.logRating(1, "video2.mp4", 4, 1702650010000L, 1.5);
+        CsvLogger.closeSessionLog();
+
+        assertEquals(0, listCsvFiles().length);
+        File binaryFile = tempLogsDir.listFiles((dir, name) -> name.endsWith(".splog"))[0];
+        // Cut off the footer and the last byte of the last chunk
+        try (java.io.RandomAccessFile raf = new java.io.RandomAccessFile(binaryFile, "rw")) {
+            raf.setLength(raf.length() - BinaryLogSink.FOOTER_SIZE - 1);
+        }
+
+        List<String> names = new ArrayList<>();
+        BinaryLogReader.read(binaryFile, (position, name, rating, ratedAt, duration) -> names.add(name));
+        assertEquals(1, names.size());
+        assertEquals("video1.mp4", names.get(0));
+    }
+
+    @Test
+    public void aggregator_readsBinaryLogsWithoutCsv() throws IOException {
+        Session.sLogFormats = SessionLogSink.FORMAT_BINARY;
+        writeSession(1, new String[]{"a.mp4", "b.mp4"}, new int[]{5, 2});
+        Session.sLogFormats = SessionLogSink.FORMAT_CSV | SessionLogSink.FORMAT_BINARY;
+        writeSession(2, new String[]{"a.mp4", "b.mp4"}, new int[]{4, 3});
+
+        RatingAggregator aggregator = new RatingAggregator(tempLogsDir, null);
+
+        // The binary log of session 2 is skipped, since its CSV log is read
+        assertEquals(2, aggregator.update());
+        assertEquals(4.5, aggregator.getScores().get(0).mos, 1e-9);
+        assertEquals(2, aggregator.getScores().get(0).count);
+    }
+
+    // ========== Log finalization ==========
+    // Logs are written to a temporary file and renamed with a checksum footer on close
+
+    @Test
+    public void sessionLog_finishedOnlyOnClose() throws IOException {
+        Session.sLogFormats = SessionLogSink.FORMAT_CSV | SessionLogSink.FORMAT_BINARY;
+        CsvLogger.startSessionLog();
+        CsvLogger.logRating(0, "video1.mp4", 5, 1702650000000L, 2.5);
+        assertEquals(0, listCsvFiles().length);
+        File[] parts = tempLogsDir.listFiles((dir, name) -> name.endsWith(LogFileOutputStream.TEMP_EXTENSION));
+        assertEquals(2, parts.length);
+        assertEquals(LogVerifier.Status.UNFINISHED, LogVerifier.verify(parts[0]).status);
+
+        CsvLogger.closeSessionLog();
+        List<LogVerifier.Result> results = LogVerifier.verifyFolder(tempLogsDir);
+        assertEquals(2, results.size());
+        for (LogVerifier.Result result : results) {
+            assertEquals(result.name, LogVerifier.Status.VALID, result.status);
+            assertEquals(1, result.rows);
+        }
+    }
+
+    @Test
+    public void verifier_detectsChangedLogs() throws IOException {
+        Session.sLogFormats = SessionLogSink.FORMAT_CSV | SessionLogSink.FORMAT_BINARY;
+        writeSession(1, new String[]{"a.mp4", "b.mp4"}, new int[]{5, 2});
+        File csvFile = listCsvFiles()[0];
+        File binaryFile = tempLogsDir.listFiles((dir, name) -> name.endsWith(".splog"))[0];
+
+        List<String> lines = readFileLines(csvFile);
+        lines.set(1, lines.get(1).replace(",5,", ",4,"));
+        try (FileWriter writer = new FileWriter(csvFile)) {
+            for (String line : lines) {
+                writer.write(line + System.lineSeparator());
+            }
+        }
+        try (java.io.RandomAccessFile raf = new java.io.RandomAccessFile(binaryFile, "rw")) {
+            long position = raf.length() - BinaryLogSink.FOOTER_SIZE - 1;
+            raf.seek(position);
+            int value = raf.read();
+            raf.seek(position);
+            raf.write(value ^ 1);
+        }
+
+        assertEquals(LogVerifier.Status.CORRUPT, LogVerifier.verify(csvFile).status);
+        assertEquals(LogVerifier.Status.CORRUPT, LogVerifier.verify(binaryFile).status);
+    }
+
+    // ========== Rating aggregation ==========
+    // MOS and confidence intervals computed from the session logs
+
+    @Test
+    public void aggregator_computesMosSkippingBreaksAndQuestionnaires() throws IOException {
+        writeSession(1, new String[]{"a.mp4", "b.mp4"}, new int[]{5, 2});
+        writeSession(2, new String[]{"a.mp4", "b.mp4"}, new int[]{4, 3});
+        CsvLogger.logQuestionnaire("post", new Questionnaire(new ArrayList<>()), new ArrayList<>());
+
+        RatingAggregator aggregator = new RatingAggregator(tempLogsDir, null);
+        assertEquals(2, aggregator.update());
+
+        List<RatingAggregator.VideoScore> scores = aggregator.getScores();
+        assertEquals(2, scores.size());
+        assertEquals("a.mp4", scores.get(0).video);
+        assertEquals(2, scores.get(0).count);
+        assertEquals(4.5, scores.get(0).mos, 1e-9);
+        assertEquals(Math.sqrt(0.5), scores.get(0).stdDev, 1e-9);
+        assertEquals(12.706 * 0.5, scores.get(0).ci95, 1e-9);
+        assertEquals(2.5, scores.get(1).mos, 1e-9);
+    }
+
+    @Test
+    public void aggregator_skipsTrainingVideosFromConfig() throws IOException {
+        File configDir = new File(tempLogsDir, "cfg");
+        configDir.mkdirs();
+        try (FileWriter writer = new FileWriter(new File(configDir, "subject_1.cfg"))) {
+            writer.write("TRAINING_START\ntraining.mp4\nTRAINING_END\na.mp4\n");
+        }
+        writeSession(1, new String[]{"training.mp4", "a.mp4"}, new int[]{1, 4});
+
+        RatingAggregator aggregator = new RatingAggregator(tempLogsDir, configDir);
+        aggregator.update();
+
+        List<RatingAggregator.VideoScore> scores = aggregator.getScores();
+        assertEquals(1, scores.size());
+        assertEquals("a.mp4", scores.get(0).video);
+        assertEquals(1L, aggregator.getRatingCount());
+        new File(configDir, "subject_1.cfg").delete();
+        configDir.delete();
+    }
+
+    @Test
+    public void aggregator_updateOnlyFoldsInNewLogs() throws IOException {
+        writeSession(1, new String[]{"a.mp4"}, new int[]{5});
+        RatingAggregator aggregator = new RatingAggregator(tempLogsDir, null);
+        assertEquals(1, aggregator.update());
+        assertEquals(0, aggregator.update());
+
+        writeSession(2, new String[]{"a.mp4"}, new int[]{3});
+        assertEquals(1, aggregator.update());
+        assertEquals(2, aggregator.getSessionCount());
+        assertEquals(4.0, aggregator.getScores().get(0).mos, 1e-9);
+    }
+
+    @Test
+    public void aggregator_averagesContinuousSamplesPerPresentation() throws IOException {
+        Session.sCurrentMethod = Methods.TYPE_TIME_CONTINUOUS;
+        CsvLogger.startSessionLog();
+        CsvLogger.logRating(0, "a.mp4", 40, 1702650000000L, null);
+        CsvLogger.logRating(0, "a.mp4", 60, 1702650000500L, null);
+        CsvLogger.closeSessionLog();
+
+        RatingAggregator aggregator = new RatingAggregator(tempLogsDir, null);
+        aggregator.update();
+
+        RatingAggregator.VideoScore score = aggregator.getScores().get(0);
+        assertEquals(1, score.count);
+        assertEquals(50.0, score.mos, 1e-9);
+    }
+
+    // ========== Rating store ==========
+    // Per-video statistics committed when a session log is closed
+
+    @Test
+    public void ratingStore_updatedOnSessionClose() throws IOException {
+        Session.sTrainingStartIndex = 0;
+        Session.sTrainingEndIndex = 0;
+        writeSession(1, new String[]{"training.mp4", "a.mp4", "a.mp4"}, new int[]{1, 5, 2});
+        writeSession(2, new String[]{"training.mp4", "a.mp4"}, new int[]{1, 4});
+
+        List<RatingStore.VideoStats> stats = new RatingStore(tempLogsDir).read();
+        assertEquals(1, stats.size());
+        RatingStore.VideoStats a = stats.get(0);
+        assertEquals("a.mp4", a.video);
+        assertEquals(Methods.METHOD_NAMES[Methods.TYPE_ACR_CATEGORICAL], a.method);
+        assertEquals(3, a.getCount());
+        assertEquals(11.0, a.getSum(), 1e-9);
+        assertEquals(45.0, a.getSumSquares(), 1e-9);
+        assertEquals(1, a.getCategoryCount(2));
+        assertEquals(1, a.getCategoryCount(4));
+        assertEquals(1, a.getCategoryCount(5));
+        // The store file does not affect participant IDs
+        assertFalse(CsvLogger.idExists(3));
+    }
+
+    @Test
+    public void ratingStore_compactsAfterThreshold() throws IOException {
+        RatingStore store = new RatingStore(tempLogsDir);
+        for (int i = 0; i <= RatingStore.COMPACT_THRESHOLD; i++) {
+            RatingStore.VideoStats stats = new RatingStore.VideoStats("ACR", "a.mp4");
+            stats.add(3, 3);
+            store.commit("session" + i, java.util.Collections.singletonList(stats));
+        }
+
+        List<String> lines = readFileLines(store.getFile());
+        // Header, record start, one video, record end
+        assertEquals(4, lines.size());
+        assertEquals(RatingStore.COMPACT_THRESHOLD + 1, store.read().get(0).getCount());
+    }
+
+    @Test
+    public void ratingStore_ignoresIncompleteRecords() throws IOException {
+        RatingStore store = new RatingStore(tempLogsDir);
+        RatingStore.VideoStats stats = new RatingStore.VideoStats("ACR", "a.mp4");
+        stats.add(4, 4);
+        store.commit("session1", java.util.Collections.singletonList(stats));
+
+        // Simulate a write interrupted in the middle of a record
+        try (FileWriter writer = new FileWriter(store.getFile(), true)) {
+            writer.write("R\tsession2\nV\tACR\ta.mp4\t1\t5");
+        }
+        store.commit("session3", java.util.Collections.singletonList(stats));
+
+        RatingStore.VideoStats total = store.read().get(0);
+        assertEquals(2, total.getCount());
+        assertEquals(4.0, total.getMean(), 1e-9);
+    }
+
+    // ========== Subject screening ==========
+    // Participants whose scores disagree with everyone else are flagged
+
+    @Test
+    public void screening_flagsParticipantWithInvertedScores() throws IOException {
+        String[] videos = {"v1.mp4", "v2.mp4", "v3.mp4", "v4.mp4", "v5.mp4"};
+        for (int participant = 1; participant <= 5; participant++) {
+            writeSession(participant, videos, new int[]{1, 2, 3, 4, 5});
+        }
+        writeSession(6, videos, new int[]{5, 4, 3, 2, 1});
+
+        SubjectScreening screening = new SubjectScreening(tempLogsDir);
+        assertEquals(6, screening.update());
+
+        List<SubjectScreening.Result> results = screening.screen();
+        assertEquals(6, results.size());
+        for (SubjectScreening.Result result : results) {
+            assertEquals("6".equals(result.participantId), result.isSuspect());
+        }
+        assertTrue(results.get(5).rejectedByCorrelation);
+    }
+
+    @Test
+    public void screening_updateOnlyReadsNewSessions() throws IOException {
+        String[] videos = {"v1.mp4", "v2.mp4", "v3.mp4"};
+        writeSession(1, videos, new int[]{1, 3, 5});
+        SubjectScreening screening = new SubjectScreening(tempLogsDir);
+        assertEquals(1, screening.update());
+        assertEquals(0, screening.update());
+
+        writeSession(2, videos, new int[]{2, 3, 4});
+        assertEquals(1, screening.update());
+        assertEquals(2, screening.getParticipantCount());
+        assertEquals(1.0, screening.screen().get(1).correlation, 1e-6);
+    }
+
+    @Test
+    public void screening_weighsAllSessionsOfAParticipantEqually() throws IOException {
+        String[] videos = {"v1.mp4", "v2.mp4", "v3.mp4"};
+        // Participant 1 scores 3, 4, 5 on average only if the three sessions count the same
+        commitScores("1", videos, new double[]{1, 4, 3});
+        commitScores("1", videos, new double[]{4, 4, 6});
+        commitScores("1", videos, new double[]{4, 4, 6});
+        commitScores("2", videos, new double[]{3, 4, 5});
+
+        SubjectScreening screening = new SubjectScreening(tempLogsDir);
+        assertEquals(4, screening.update());
+        assertEquals(1.0, screening.screen().get(0).correlation, 1e-9);
+    }
+
+    // ========== Log archive ==========
+
+    @Test
+    public void archive_movesOldLogsAndKeepsThemReadable() throws IOException {
+        String[] videos = {"v1.mp4", "v2.mp4"};
+        writeSession(1, videos, new int[]{2, 4});
+        writeSession(2, videos, new int[]{4, 2});
+        writeSession(3, videos, new int[]{5, 5});
+        long old = System.currentTimeMillis() - 30L * 24 * 60 * 60 * 1000;
+        for (File file : listCsvFiles()) {
+            if (!file.getName().startsWith("3_")) {
+                file.setLastModified(old);
+            }
+        }
+
+        assertEquals(2, new LogArchive(tempLogsDir).archive(7, System.currentTimeMillis()));
+        assertEquals(1, listCsvFiles().length);
+        assertTrue(CsvLogger.idExists(1));
+        assertTrue(CsvLogger.idExists(2));
+        assertFalse(CsvLogger.idExists(4));
+
+        RatingAggregator aggregator = new RatingAggregator(tempLogsDir, null);
+        assertEquals(3, aggregator.update());
+        RatingAggregator.VideoScore v1 = aggregator.getScores().get(0);
+        assertEquals("v1.mp4", v1.video);
+        assertEquals(3, v1.count);
+        assertEquals(11.0 / 3, v1.mos, 1e-9);
+    }
+
+    @Test
+    public void archive_rebuildsMissingIndex() throws IOException {
+        writeSession(1, new String[]{"v1.mp4"}, new int[]{3});
+        listCsvFiles()[0].setLastModified(System.currentTimeMillis() - 30L * 24 * 60 * 60 * 1000);
+        assertEquals(1, new LogArchive(tempLogsDir).archive(7, System.currentTimeMillis()));
+
+        File index = new File(new File(tempLogsDir, LogArchive.FOLDER_NAME), LogArchive.INDEX_FILE_NAME);
+        assertTrue(index.delete());
+        assertTrue(new LogArchive(tempLogsDir).getParticipantIds().contains("1"));
+        assertTrue(index.exists());
+    }
+
+    // ========== Results export ==========
+
+    @Test
+    public void export_zipsLogsWithManifest() throws IOException {
+        writeSession(1, new String[]{"v1.mp4", "v2.mp4"}, new int[]{3, 4});
+        writeSession(2, new String[]{"v1.mp4"}, new int[]{5});
+        File[] logs = listCsvFiles();
+
+        ByteArrayOutputStream zip = new ByteArrayOutputStream();
+        ResultsExporter.Stats stats = new ResultsExporter(tempLogsDir, null, 2).export(zip, null);
+        assertEquals(zip.size(), stats.bytesOut);
+
+        Map<String, byte[]> entries = new HashMap<>();
+        try (ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(zip.toByteArray()))) {
+            ZipEntry entry;
+            while ((entry = in.getNextEntry()) != null) {
+                ByteArrayOutputStream data = new ByteArrayOutputStream();
+                byte[] buffer = new byte[4096];
+                int n;
+                while ((n = in.read(buffer)) > 0) {
+                    data.write(buffer, 0, n);
+                }
+                entries.put(entry.getName(), data.toByteArray());
+            }
+        }
+        assertEquals(stats.files + 1, entries.size());
+        String manifest = new String(entries.get(ResultsExporter.MANIFEST_NAME), StandardCharsets.UTF_8);
+        for (File log : logs) {
+            assertTrue(entries.containsKey(ResultsExporter.FOLDER_LOGS + log.getName()));
+            assertTrue(manifest.contains("  " + ResultsExporter.FOLDER_LOGS + log.getName() + "\n"));
+        }
+    }
+
+    @Test
+    public void export_writesFilesInOrderBeyondTheBufferSize() throws IOException {
+        // More in-memory files than fit into the buffer at once, and one that is streamed
+        int count = ResultsExporter.MAX_BUFFERED_SIZE / ResultsExporter.MAX_PARALLEL_SIZE + 2;
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            int size = i == 3 ? ResultsExporter.MAX_PARALLEL_SIZE + 1 : ResultsExporter.MAX_PARALLEL_SIZE;
+            byte[] data = new byte[size];
+            Arrays.fill(data, (byte) i);
+            String name = String.format(Locale.US, "big_%02d.bin", i);
+            try (FileOutputStream out = new FileOutputStream(new File(tempLogsDir, name))) {
+                out.write(data);
+            }
+            names.add(ResultsExporter.FOLDER_LOGS + name);
+        }
+
+        ByteArrayOutputStream zip = new ByteArrayOutputStream();
+        ResultsExporter.Stats stats = new ResultsExporter(tempLogsDir, null, 2).export(zip, null);
+        assertEquals(count, stats.files);
+
+        List<String> written = new ArrayList<>();
+        try (ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(zip.toByteArray()))) {
+            ZipEntry entry;
+            while ((entry = in.getNextEntry()) != null) {
+                written.add(entry.getName());
+                if (!entry.getName().equals(ResultsExporter.MANIFEST_NAME)) {
+                    assertEquals(names.indexOf(entry.getName()), in.read());
+                }
+            }
+        }
+        names.add(ResultsExporter.MANIFEST_NAME);
+        assertEquals(names, written);
+    }
+
     // ========== Helpers ==========
 
+    private void writeSession(int participantId, String[] videos, int[] ratings) {
+        Session.sParticipantId = participantId;
+        CsvLogger.startSessionLog();
+        for (int i = 0; i < videos.length; i++) {
+            CsvLogger.logRating(i, videos[i], ratings[i], 1702650000000L, 1.0);
+            if (i == 0) {
+                CsvLogger.logBreak();
+            }
+        }
+        CsvLogger.closeSessionLog();
+    }
+
+    private void commitScores(String participantId, String[] videos, double[] scores) throws IOException {
+        List<RatingStore.VideoStats> stats = new ArrayList<>();
+        for (int i = 0; i < videos.length; i++) {
+            RatingStore.VideoStats videoStats = new RatingStore.VideoStats("ACR", videos[i]);
+            videoStats.add(scores[i], 0);
+            stats.add(videoStats);
+        }
+        SubjectScreening.commit(tempLogsDir, participantId, stats);
+    }
+
+    private File[] listCsvFiles() {
+        // Closing a session also updates the rating store in the same folder
+        return tempLogsDir.listFiles((dir, name) -> name.endsWith(".csv"));
+    }
+
     private void createLogFile(String filename) throws IOException {
         new File(tempLogsDir, filename).createNewFile();
     }
@@ -242,7 +776,13 @@ public class CsvLoggerTest {
         if (dir != null && dir.exists()) {
             File[] files = dir.listFiles();
             if (files != null) {
-                for (File f : files) f.delete();
+                for (File f : files) {
+                    if (f.isDirectory()) {
+                        cleanup(f);
+                    } else {
+                        f.delete();
+                    }
+                }
             }
             dir.delete();
         }
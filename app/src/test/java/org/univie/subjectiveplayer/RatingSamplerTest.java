@@ -0,0 +1,167 @@
+/*	This file is part of SubjectivePlayer for Android.
+ *
+ *	SubjectivePlayer for Android is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	SubjectivePlayer for Android is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU General Public License for more details.
+ *
+ *	You should have received a copy of the GNU General Public License
+ *	along with SubjectivePlayer for Android.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.univie.subjectiveplayer;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for RatingSampler: the rating cell and the sampling of each video.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class RatingSamplerTest {
+
+    private static final long TIMEOUT_SECONDS = 5;
+
+    /** Samples received by the sink, as "position,name,rating" */
+    private final LinkedBlockingQueue<String> samples = new LinkedBlockingQueue<>();
+
+    private RatingSampler sampler;
+
+    @After
+    public void tearDown() {
+        if (sampler != null) {
+            sampler.stop();
+        }
+    }
+
+    private RatingSampler createSampler(long intervalMillis) {
+        return new RatingSampler(1, 3, 5, intervalMillis,
+                (position, name, rating, time) -> samples.add(position + "," + name + "," + rating));
+    }
+
+    @Test
+    public void adjust_clampsToScaleAndCountsChanges() {
+        sampler = createSampler(1000);
+        assertEquals(3, sampler.getRating());
+        assertEquals(0, sampler.getSequence());
+
+        assertEquals(4, sampler.adjust(1));
+        assertEquals(5, sampler.adjust(1));
+        assertEquals(2, sampler.getSequence());
+
+        // Already at the top: the rating and the sequence stay
+        assertEquals(5, sampler.adjust(1));
+        assertEquals(5, sampler.getRating());
+        assertEquals(2, sampler.getSequence());
+
+        assertEquals(1, sampler.adjust(-10));
+        assertEquals(3, sampler.getSequence());
+        assertEquals(1, sampler.adjust(-1));
+        assertEquals(1, sampler.getRating());
+        assertEquals(3, sampler.getSequence());
+    }
+
+    @Test
+    public void startClip_resetsToDefaultAndSamplesRightAway() throws Exception {
+        sampler = createSampler(1000);
+        sampler.adjust(2);
+        long sequence = sampler.getSequence();
+
+        sampler.startClip(4, "src01.mp4");
+
+        assertEquals(3, sampler.getRating());
+        assertTrue(sampler.getSequence() > sequence);
+        assertEquals("4,src01.mp4,3", samples.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void samples_followRatingAndClip() throws Exception {
+        sampler = createSampler(20);
+        sampler.startClip(0, "a.mp4");
+        assertEquals("0,a.mp4,3", samples.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        sampler.adjust(-1);
+        String sample;
+        do {
+            sample = samples.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            assertNotNull(sample);
+        } while (!sample.equals("0,a.mp4,2"));
+        sampler.pauseClip();
+
+        sampler.startClip(1, "b.mp4");
+        do {
+            sample = samples.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            assertNotNull(sample);
+        } while (sample.startsWith("0,"));
+        assertEquals("1,b.mp4,3", sample);
+    }
+
+    @Test
+    public void pauseClip_stopsSampling() throws Exception {
+        sampler = createSampler(10);
+        sampler.startClip(0, "a.mp4");
+        assertNotNull(samples.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+        sampler.pauseClip();
+        Thread.sleep(50);
+        samples.clear();
+        Thread.sleep(100);
+        assertTrue(samples.isEmpty());
+    }
+
+    @Test
+    public void pauseClip_doesNotWaitForTheSink() throws Exception {
+        CountDownLatch writing = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        sampler = new RatingSampler(1, 3, 5, 1000, (position, name, rating, time) -> {
+            writing.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            samples.add(position + "," + name + "," + rating);
+        });
+        sampler.startClip(0, "a.mp4");
+        assertTrue(writing.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+        // The sink is blocked; pausing and starting the next clip return anyway
+        sampler.pauseClip();
+        sampler.startClip(1, "b.mp4");
+        sampler.pauseClip();
+        release.countDown();
+
+        assertEquals("0,a.mp4,3", samples.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void stop_waitsForTheLastSampleAndEndsSampling() throws Exception {
+        sampler = createSampler(10);
+        sampler.startClip(0, "a.mp4");
+        assertNotNull(samples.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+        sampler.stop();
+        samples.clear();
+        Thread.sleep(100);
+        assertTrue(samples.isEmpty());
+
+        // A stopped sampler does not start again
+        sampler.startClip(1, "b.mp4");
+        Thread.sleep(50);
+        assertTrue(samples.isEmpty());
+    }
+}
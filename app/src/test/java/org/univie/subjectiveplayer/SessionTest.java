@@ -26,6 +26,9 @@ import org.robolectric.annotation.Config;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
 
 import static org.junit.Assert.*;
 
@@ -53,6 +56,9 @@ public class SessionTest {
 
     @After
     public void tearDown() {
+        VideoPack.closeAll();
+        Configuration.sEarlyStoppingCi95 = 0;
+        Configuration.sFolderLogs = null;
         if (tempDir != null) {
             File[] files = tempDir.listFiles();
             if (files != null) {
@@ -77,12 +83,35 @@ public class SessionTest {
         assertEquals(-1, Session.parseBreakDuration("BREAK abc"));
     }
 
+    @Test
+    public void parseSegment_readsStartAndEnd() {
+        assertArrayEquals(new long[] { 12000, 22500 }, Session.parseSegment("src01.mp4@12.0-22.5"));
+        assertArrayEquals(new long[] { 0, 10000 }, Session.parseSegment("src01.mp4@0-10"));
+        assertEquals("src01.mp4", Session.getVideoFileName("src01.mp4@12.0-22.5"));
+        assertEquals("src01.mp4", Session.getVideoFileName("src01.mp4"));
+        assertNull(Session.parseSegment("src01.mp4"));
+        assertNull(Session.parseSegment("src01.mp4@22-12"));
+        assertNull(Session.parseSegment("src01.mp4@12"));
+        assertNull(Session.parseSegment("@0-10"));
+        assertEquals("src01.mp4@12.0-22.5", Session.formatSegment("src01.mp4", 12, 22.5));
+    }
+
+    @Test
+    public void parseSegment_fileNameWithSeparatorIsNotASegment() {
+        assertFalse(Session.isSegment("clip@home.mp4"));
+        assertNull(Session.parseSegment("clip@home.mp4"));
+        assertEquals("clip@home.mp4", Session.getVideoFileName("clip@home.mp4"));
+        assertEquals("clip@home.mp4", Session.getVideoFileName("clip@home.mp4@1-2"));
+        assertTrue(Session.isSegment("src01.mp4@22-12"));
+    }
+
     @Test
     public void parseMethodType_allValidMethods() {
         assertEquals(Methods.TYPE_ACR_CATEGORICAL, Session.parseMethodType("METHOD ACR"));
         assertEquals(Methods.TYPE_CONTINUOUS, Session.parseMethodType("METHOD CONTINUOUS"));
         assertEquals(Methods.TYPE_DSIS_CATEGORICAL, Session.parseMethodType("METHOD DSIS"));
         assertEquals(Methods.TYPE_TIME_CONTINUOUS, Session.parseMethodType("METHOD TIME_CONTINUOUS"));
+        assertEquals(Methods.TYPE_PAIRED_COMPARISON, Session.parseMethodType("METHOD PC"));
     }
 
     @Test
@@ -173,6 +202,74 @@ public class SessionTest {
         config.delete();
     }
 
+    @Test
+    public void readVideosFromFile_removesPairsWithMissingVideos() throws IOException {
+        createTempFile(tempDir, "ref.mp4");
+        createTempFile(tempDir, "test.mp4");
+
+        File config = createTempConfigFile("METHOD DSIS\nref.mp4|test.mp4\nref.mp4|missing.mp4\n");
+        Session.readVideosFromFile(config);
+
+        assertEquals(1, Session.sTracks.size());
+        assertEquals("ref.mp4|test.mp4", Session.sTracks.get(0));
+
+        config.delete();
+    }
+
+    @Test
+    public void readVideosFromFile_keepsSegmentsOfExistingFiles() throws IOException {
+        createTempFile(tempDir, "source.mp4");
+
+        File config = createTempConfigFile("source.mp4@0-10\nsource.mp4@10-20\nmissing.mp4@0-10\n");
+        Session.readVideosFromFile(config);
+
+        assertEquals(2, Session.sTracks.size());
+        assertEquals("source.mp4@10-20", Session.sTracks.get(1));
+
+        config.delete();
+    }
+
+    @Test
+    public void readVideosFromFile_findsVideosInPacks() throws IOException {
+        File first = new File(tempDir, "first.mp4");
+        File second = new File(tempDir, "second.mp4");
+        writeFile(first, "first video");
+        writeFile(second, "second video, which is longer");
+        VideoPack.write(new File(tempDir, "test" + VideoPack.SUFFIX), List.of(first, second));
+        first.delete();
+        second.delete();
+
+        File config = createTempConfigFile("first.mp4\nmissing.mp4\nsecond.mp4\n");
+        Session.readVideosFromFile(config);
+
+        assertEquals(2, Session.sTracks.size());
+        assertEquals("second.mp4", Session.sTracks.get(1));
+        VideoPack.Entry entry = VideoPack.resolve(new File(tempDir, "second.mp4"));
+        assertNotNull(entry);
+        assertEquals(0, entry.getOffset() % VideoPack.ALIGNMENT);
+        assertEquals("second video, which is longer".length(), entry.getLength());
+        assertTrue(VideoPack.getOpenPacks().get(0).verify().isEmpty());
+
+        config.delete();
+    }
+
+    @Test
+    public void videoPack_verifyFindsCorruptVideos() throws IOException {
+        File video = new File(tempDir, "video.mp4");
+        writeFile(video, "video data");
+        File packFile = new File(tempDir, "test" + VideoPack.SUFFIX);
+        VideoPack.write(packFile, List.of(video));
+
+        try (VideoPack pack = VideoPack.open(packFile)) {
+            VideoPack.Entry entry = pack.getEntry("video.mp4");
+            try (RandomAccessFile out = new RandomAccessFile(packFile, "rw")) {
+                out.seek(entry.getOffset());
+                out.write('V');
+            }
+            assertEquals(List.of("video.mp4"), pack.verify());
+        }
+    }
+
     @Test
     public void readVideosFromFile_keepsBreakCommands() throws IOException {
         File config = createTempConfigFile("BREAK 60\nBREAK\n");
@@ -244,8 +341,131 @@ public class SessionTest {
         config.delete();
     }
 
+    // ========== Early stopping ==========
+    // Videos with a precise enough MOS from previous sessions are left out
+
+    @Test
+    public void readVideosFromFile_earlyStoppingRemovesConvergedVideos() throws IOException {
+        createTempFile(tempDir, "stable.mp4");
+        createTempFile(tempDir, "open.mp4");
+        Configuration.sFolderLogs = tempDir;
+        commitRatings("stable.mp4", 12, 4, 4); // CI95 = 0
+        commitRatings("open.mp4", 12, 1, 5);   // CI95 ~ 1.3
+        Configuration.sEarlyStoppingCi95 = 0.5;
+
+        File config = createTempConfigFile(
+            "METHOD ACR\n" +
+            "stable.mp4\n" +
+            "BREAK\n" +
+            "open.mp4\n"
+        );
+        Session.readVideosFromFile(config);
+
+        // The BREAK would now start the playlist, so it is removed as well
+        assertEquals(1, Session.sTracks.size());
+        assertEquals("open.mp4", Session.sTracks.get(0));
+
+        config.delete();
+    }
+
+    @Test
+    public void readVideosFromFile_earlyStoppingKeepsTrainingAndFewRatings() throws IOException {
+        createTempFile(tempDir, "stable.mp4");
+        createTempFile(tempDir, "new.mp4");
+        Configuration.sFolderLogs = tempDir;
+        commitRatings("stable.mp4", 12, 4, 4);
+        commitRatings("new.mp4", Session.EARLY_STOPPING_MIN_RATINGS - 1, 3, 3);
+        Configuration.sEarlyStoppingCi95 = 0.5;
+
+        File config = createTempConfigFile(
+            "METHOD ACR\n" +
+            "TRAINING_START\n" +
+            "stable.mp4\n" +
+            "TRAINING_END\n" +
+            "new.mp4\n" +
+            "stable.mp4\n"
+        );
+        Session.readVideosFromFile(config);
+
+        assertEquals(2, Session.sTracks.size());
+        assertEquals("stable.mp4", Session.sTracks.get(0));
+        assertEquals("new.mp4", Session.sTracks.get(1));
+        assertEquals(0, Session.sTrainingStartIndex);
+        assertEquals(0, Session.sTrainingEndIndex);
+
+        config.delete();
+    }
+
+    @Test
+    public void readVideosFromFile_earlyStoppingCanLeaveNoTestVideos() throws IOException {
+        createTempFile(tempDir, "stable.mp4");
+        createTempFile(tempDir, "training.mp4");
+        Configuration.sFolderLogs = tempDir;
+        commitRatings("stable.mp4", 12, 4, 4);
+        Configuration.sEarlyStoppingCi95 = 0.5;
+
+        File config = createTempConfigFile(
+            "METHOD ACR\n" +
+            "TRAINING_START\n" +
+            "training.mp4\n" +
+            "TRAINING_END\n" +
+            "BREAK\n" +
+            "stable.mp4\n"
+        );
+        Session.readVideosFromFile(config);
+
+        // Only the training video is left, so the session must not be started
+        assertEquals(1, Session.sTracks.size());
+        assertFalse(Session.hasTestVideos());
+
+        config.delete();
+    }
+
+    @Test
+    public void hasTestVideos_withTestVideo() {
+        Session.sTracks.add("training.mp4");
+        Session.sTracks.add("BREAK");
+        Session.sTracks.add("test.mp4");
+        Session.sTrainingStartIndex = 0;
+        Session.sTrainingEndIndex = 0;
+        assertTrue(Session.hasTestVideos());
+
+        Session.sTracks.clear();
+        assertFalse(Session.hasTestVideos());
+    }
+
+    @Test
+    public void readVideosFromFile_earlyStoppingDisabledByDefault() throws IOException {
+        createTempFile(tempDir, "stable.mp4");
+        Configuration.sFolderLogs = tempDir;
+        commitRatings("stable.mp4", 12, 4, 4);
+
+        File config = createTempConfigFile("METHOD ACR\nstable.mp4\n");
+        Session.readVideosFromFile(config);
+
+        assertEquals(1, Session.sTracks.size());
+
+        config.delete();
+    }
+
     // ========== Helpers ==========
 
+    /**
+     * Stores ACR ratings for a video in the rating store, alternating between
+     * the two given scores.
+     */
+    private void commitRatings(String video, int count, int low, int high) throws IOException {
+        RatingStore.VideoStats stats = new RatingStore.VideoStats(
+                Methods.METHOD_NAMES[Methods.TYPE_ACR_CATEGORICAL], video);
+        for (int i = 0; i < count; i++) {
+            int score = i % 2 == 0 ? low : high;
+            stats.add(score, score);
+        }
+        List<RatingStore.VideoStats> list = new ArrayList<>();
+        list.add(stats);
+        new RatingStore(tempDir).commit(video, list);
+    }
+
     private File createTempConfigFile(String content) throws IOException {
         File tempFile = File.createTempFile("test_config", ".cfg");
         writeFile(tempFile, content);
@@ -0,0 +1,215 @@
+/*	This file is part of SubjectivePlayer for Android.
+ *
+ *	SubjectivePlayer for Android is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	SubjectivePlayer for Android is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU General Public License for more details.
+ *
+ *	You should have received a copy of the GNU General Public License
+ *	along with SubjectivePlayer for Android.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.univie.subjectiveplayer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for SyncManifest: the manifest of the device and of a study folder,
+ * and the transfer list push_to_device.sh --sync reads.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class SyncManifestTest {
+
+    private File tempDir;
+    private File storage;
+    private File study;
+
+    @Before
+    public void setUp() throws IOException {
+        tempDir = File.createTempFile("sync_test", "");
+        tempDir.delete();
+        storage = new File(tempDir, "storage");
+        study = new File(tempDir, "study");
+        new File(storage, SyncManifest.FOLDER_CONFIG).mkdirs();
+        new File(storage, SyncManifest.FOLDER_VIDEOS).mkdirs();
+        study.mkdirs();
+    }
+
+    @After
+    public void tearDown() {
+        cleanup(tempDir);
+    }
+
+    // ========== Transfer list ==========
+
+    @Test
+    public void diff_pushesNewAndChangedFilesAndListsDeviceOnlyFiles() throws IOException {
+        writeFile(new File(storage, "SubjectiveCfg/playlist.json"), "{}");
+        writeFile(new File(storage, "SubjectiveMovies/same.mp4"), "same");
+        writeFile(new File(storage, "SubjectiveMovies/changed.mp4"), "old content");
+        writeFile(new File(storage, "SubjectiveMovies/removed.mp4"), "removed");
+        SyncManifest device = pullDeviceManifest();
+
+        writeFile(new File(study, "playlist.json"), "{}");
+        writeFile(new File(study, "same.mp4"), "same");
+        writeFile(new File(study, "changed.mp4"), "new content");
+        writeFile(new File(study, "added.mp4"), "added");
+        SyncManifest local = SyncManifest.buildForStudy(study, null, 2);
+
+        assertEquals(Arrays.asList(
+                "push\tSubjectiveMovies/added.mp4\t" + new File(study, "added.mp4").getAbsolutePath(),
+                "push\tSubjectiveMovies/changed.mp4\t" + new File(study, "changed.mp4").getAbsolutePath(),
+                "delete\tSubjectiveMovies/removed.mp4"),
+                SyncManifest.diff(device, local));
+    }
+
+    @Test
+    public void diff_upToDateDeviceNeedsNoTransfers() throws IOException {
+        writeFile(new File(storage, "SubjectiveMovies/a.mp4"), "a");
+        writeFile(new File(study, "a.mp4"), "a");
+        // Modification times differ between the device and the computer; only contents count
+        new File(study, "a.mp4").setLastModified(1000000000000L);
+
+        assertTrue(SyncManifest.diff(pullDeviceManifest(), SyncManifest.buildForStudy(study, null, 1)).isEmpty());
+    }
+
+    @Test
+    public void diff_missingDeviceManifestPushesEverything() throws IOException {
+        writeFile(new File(study, "a.mp4"), "a");
+        writeFile(new File(study, "subject_1.cfg"), "a.mp4");
+
+        SyncManifest device = SyncManifest.read(new File(tempDir, "does_not_exist.tsv"));
+        List<String> transfers = SyncManifest.diff(device, SyncManifest.buildForStudy(study, null, 1));
+
+        assertEquals(2, transfers.size());
+        assertTrue(transfers.get(0).startsWith("push\tSubjectiveCfg/subject_1.cfg\t"));
+        assertTrue(transfers.get(1).startsWith("push\tSubjectiveMovies/a.mp4\t"));
+    }
+
+    // ========== Building manifests ==========
+
+    @Test
+    public void buildForStudy_assignsFilesToContentFoldersBySuffix() throws IOException {
+        writeFile(new File(study, "a.MP4"), "a");
+        writeFile(new File(study, "videos.sppack"), "pack");
+        writeFile(new File(study, "subject_1.cfg"), "a.MP4");
+        writeFile(new File(study, "notes.txt"), "not pushed");
+        new File(study, SyncManifest.FOLDER_VIDEOS).mkdirs();
+        writeFile(new File(study, "SubjectiveMovies/b.txt"), "taken as it is");
+
+        assertEquals(Arrays.asList("SubjectiveCfg/subject_1.cfg", "SubjectiveMovies/a.MP4",
+                        "SubjectiveMovies/b.txt", "SubjectiveMovies/videos.sppack"),
+                Arrays.asList(SyncManifest.buildForStudy(study, null, 1).getEntries().keySet().toArray()));
+    }
+
+    @Test
+    public void buildForDevice_skipsCompiledAndTemporaryFiles() throws IOException {
+        writeFile(new File(storage, "SubjectiveCfg/playlist.json"), "{}");
+        writeFile(new File(storage, "SubjectiveCfg/playlist.json.spc"), "compiled");
+        writeFile(new File(storage, "SubjectiveMovies/a.mp4.tmp"), "partial");
+
+        assertEquals(Arrays.asList("SubjectiveCfg/playlist.json"),
+                Arrays.asList(SyncManifest.buildForDevice(storage, null, 1).getEntries().keySet().toArray()));
+    }
+
+    @Test
+    public void build_keepsCachedHashOfUnchangedFiles() throws IOException {
+        File video = new File(storage, "SubjectiveMovies/a.mp4");
+        writeFile(video, "abc");
+        video.setLastModified(1000000000000L);
+        String cachedHash = "0000000000000000000000000000000000000000000000000000000000000000";
+        File cacheFile = new File(tempDir, SyncManifest.FILE_NAME);
+        writeFile(cacheFile, SyncManifest.HEADER + "\nSubjectiveMovies/a.mp4\t3\t1000000000000\t" + cachedHash + "\n");
+
+        SyncManifest manifest = SyncManifest.buildForDevice(storage, SyncManifest.read(cacheFile), 1);
+        assertEquals(cachedHash, manifest.getEntries().get("SubjectiveMovies/a.mp4").getSha256());
+
+        // A different modification time means the file is read again
+        video.setLastModified(1000000001000L);
+        manifest = SyncManifest.buildForDevice(storage, SyncManifest.read(cacheFile), 1);
+        assertEquals("ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad",
+                manifest.getEntries().get("SubjectiveMovies/a.mp4").getSha256());
+    }
+
+    @Test
+    public void build_stopsWhenInterrupted() throws IOException {
+        writeFile(new File(storage, "SubjectiveMovies/a.mp4"), "a");
+        Thread.currentThread().interrupt();
+        try {
+            SyncManifest.buildForDevice(storage, null, 1);
+            fail("Expected InterruptedIOException");
+        } catch (InterruptedIOException e) {
+            assertTrue(Thread.interrupted());
+        } finally {
+            Thread.interrupted();
+        }
+    }
+
+    // ========== Reading and writing ==========
+
+    @Test
+    public void read_rejectsFilesThatAreNoManifest() throws IOException {
+        File file = new File(tempDir, "other.tsv");
+        writeFile(file, "path\tsize\n");
+        try {
+            SyncManifest.read(file);
+            fail("Expected IOException");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("not a sync manifest"));
+        }
+    }
+
+    // ========== Helpers ==========
+
+    /**
+     * Builds and writes the manifest of the device, and reads it back like
+     * push_to_device.sh does after pulling it.
+     */
+    private SyncManifest pullDeviceManifest() throws IOException {
+        File file = new File(storage, SyncManifest.FILE_NAME);
+        SyncManifest.buildForDevice(storage, null, 2).write(file);
+        return SyncManifest.read(file);
+    }
+
+    private void writeFile(File file, String content) throws IOException {
+        try (FileWriter writer = new FileWriter(file)) {
+            writer.write(content);
+        }
+    }
+
+    private void cleanup(File dir) {
+        if (dir != null && dir.exists()) {
+            File[] files = dir.listFiles();
+            if (files != null) {
+                for (File f : files) {
+                    if (f.isDirectory()) {
+                        cleanup(f);
+                    } else {
+                        f.delete();
+                    }
+                }
+            }
+            dir.delete();
+        }
+    }
+}
@@ -67,7 +67,7 @@ parser.add_argument(
     "--method",
     type=str,
     default="ACR",
-    choices=["ACR", "CONTINUOUS", "DSIS", "TIME_CONTINUOUS"],
+    choices=["ACR", "CONTINUOUS", "DSIS", "TIME_CONTINUOUS", "PC"],
     help="Rating method (default: ACR)",
 )
 parser.add_argument(
@@ -20,11 +20,16 @@ Arguments:
 Options:
   -h, --help       Show this help message and exit
   -l, --list       List connected devices and exit
-  -d, --dir DIR    Source directory containing *.mp4 and *.cfg files to push
+  -d, --dir DIR    Source directory containing *.mp4, *.sppack and *.cfg files to push
                    (default: script's directory)
+  -s, --sync       Only push files that are new or changed, according to the
+                   manifest the app keeps of its files (needs Java 11+)
+  --delete         With --sync, also delete files that are only on the device
 
 Files pushed:
   *.mp4 files            ->  /sdcard/Android/data/org.univie.subjectiveplayer/files/SubjectiveMovies/
+  *.sppack video packs   ->  /sdcard/Android/data/org.univie.subjectiveplayer/files/SubjectiveMovies/
+  checksums.sha256       ->  /sdcard/Android/data/org.univie.subjectiveplayer/files/SubjectiveMovies/
   *.json or *.cfg files  ->  /sdcard/Android/data/org.univie.subjectiveplayer/files/SubjectiveCfg/
 
 Note: On Android 11+ (API 30+), you must open the SubjectivePlayer app at least once
@@ -44,6 +49,8 @@ EOF
 SCRIPT_DIR="$(cd "$(dirname "${BASH_SOURCE[0]}")" && pwd)"
 INPUT_DIR="$SCRIPT_DIR"
 DEVICE_SERIAL=""
+SYNC=false
+SYNC_DELETE=false
 
 # Parse options
 while [ $# -gt 0 ]; do
@@ -65,6 +72,14 @@ while [ $# -gt 0 ]; do
             INPUT_DIR="$2"
             shift 2
             ;;
+        -s|--sync)
+            SYNC=true
+            shift
+            ;;
+        --delete)
+            SYNC_DELETE=true
+            shift
+            ;;
         -*)
             echo "Error: Unknown option: $1"
             usage
@@ -211,19 +226,62 @@ if [ "$DIRS_OK" = false ]; then
     exit 1
 fi
 
+# Sync mode: compare the manifest of the device with the source directory
+if [ "$SYNC" = true ]; then
+    MANIFEST_TOOL="$SCRIPT_DIR/../app/src/main/java/org/univie/subjectiveplayer/SyncManifest.java"
+    DEVICE_MANIFEST="$(mktemp)"
+    if ! $ADB_CMD pull "$APP_STORAGE/sync_manifest.tsv" "$DEVICE_MANIFEST" > /dev/null 2>&1; then
+        echo "No sync manifest on the device yet, pushing all files"
+        rm -f "$DEVICE_MANIFEST"
+    fi
+    echo ""
+    echo "Comparing $INPUT_DIR with the device..."
+    TRANSFERS="$(java "$MANIFEST_TOOL" "$DEVICE_MANIFEST" "$INPUT_DIR")"
+    rm -f "$DEVICE_MANIFEST"
+
+    echo ""
+    echo "Pushing changed files to $APP_STORAGE..."
+    SYNC_PUSHED=0
+    while IFS=$'\t' read -r action path local_file; do
+        case "$action" in
+            push)
+                echo "  - $path"
+                $ADB_CMD push "$local_file" "$APP_STORAGE/$path" < /dev/null
+                SYNC_PUSHED=$((SYNC_PUSHED + 1))
+                ;;
+            delete)
+                if [ "$SYNC_DELETE" = true ]; then
+                    echo "  - deleting $path"
+                    $ADB_CMD shell rm "'$APP_STORAGE/$path'" < /dev/null
+                else
+                    echo "  - only on device: $path (use --delete to remove it)"
+                fi
+                ;;
+        esac
+    done <<< "$TRANSFERS"
+    if [ "$SYNC_PUSHED" -eq 0 ]; then
+        echo "  (device is up to date)"
+    fi
+
+    echo ""
+    echo "=== Done! ==="
+    echo "Open the app once so that it updates its manifest before the next sync."
+    exit 0
+fi
+
 # Count files to push
-VIDEO_COUNT=$(find "$INPUT_DIR" -maxdepth 1 -name "*.mp4" -o -name "*.webm" -o -name "*.mkv" 2>/dev/null | wc -l | tr -d ' ')
+VIDEO_COUNT=$(find "$INPUT_DIR" -maxdepth 1 -name "*.mp4" -o -name "*.webm" -o -name "*.mkv" -o -name "*.sppack" 2>/dev/null | wc -l | tr -d ' ')
 CONFIG_COUNT=$(find "$INPUT_DIR" -maxdepth 1 -name "*.cfg" -o -name "*.json" 2>/dev/null | wc -l | tr -d ' ')
 
 if [ "$VIDEO_COUNT" -eq 0 ] && [ "$CONFIG_COUNT" -eq 0 ]; then
-    echo "Warning: No video files (*.mp4, *.webm, *.mkv) or config files (*.json or *.cfg) found in $INPUT_DIR"
+    echo "Warning: No video files (*.mp4, *.webm, *.mkv, *.sppack) or config files (*.json or *.cfg) found in $INPUT_DIR"
     exit 1
 fi
 
 echo ""
 echo "Pushing video files to $VIDEOS_PATH..."
 VIDEO_PUSHED=0
-for video in "$INPUT_DIR"/*.mp4 "$INPUT_DIR"/*.webm "$INPUT_DIR"/*.mkv; do
+for video in "$INPUT_DIR"/*.mp4 "$INPUT_DIR"/*.webm "$INPUT_DIR"/*.mkv "$INPUT_DIR"/*.sppack "$INPUT_DIR"/*.sha256; do
     if [ -f "$video" ]; then
         filename=$(basename "$video")
         echo "  - $filename"